@@ -590,31 +590,27 @@ public class ArchiveAction
         
         try {
         	
-        	for(SparseSite s: sites) {
+        	// archive a batch of sites at a time, the service decides how many run at once
+        	for (int start = 0; start < sites.size(); start += NUM_SITES_PER_BATCH) {
         		
-        		log.info("Processing site: " + s.getTitle());
-        		
-        		//archive the site
-        		archiveService.archive(s.getId());
+        		List<String> siteIds = new ArrayList<>();
+        		for (SparseSite s : sites.subList(start, Math.min(start + NUM_SITES_PER_BATCH, sites.size()))) {
+        			log.info("Processing site: " + s.getTitle());
+        			siteIds.add(s.getId());
+        		}
         		
-        		//compress it
+        		//archive and compress them
         		//TODO check return value? do we care?
-        		try {
-        			archiveService.archiveAndZip(s.getId());
-				} catch (IOException e) {
-					log.error("Failed to archive and compress it the site with id {}", s.getId(), e);
-				}
+        		archiveService.archiveAndZip(siteIds);
         		
-        		archiveCount++;
+        		archiveCount += siteIds.size();
         		
         		// update message
-                if (archiveCount % 1 == 0) {
-                    int percentComplete = (int) (archiveCount * 100) / sites.size();
-            		batchArchiveMessage = rb.getFormattedMessage("archive.batch.term.text.statusmessage.update", new Object[]{sites.size(), selectedTerm, archiveCount, percentComplete});
-                }
+                int percentComplete = (int) (archiveCount * 100) / sites.size();
+                batchArchiveMessage = rb.getFormattedMessage("archive.batch.term.text.statusmessage.update", new Object[]{sites.size(), selectedTerm, archiveCount, percentComplete});
         		
         		// sleep if we need to and keep sessions alive
-        		if (archiveCount > 0 && archiveCount % NUM_SITES_PER_BATCH == 0) {
+        		if (archiveCount < sites.size()) {
                     log.info("Sleeping for " + PAUSE_TIME_MS + "ms");
                     Thread.sleep(PAUSE_TIME_MS);
                     threadSession.setActive();
@@ -626,8 +622,6 @@ public class ArchiveAction
         			throw new RuntimeException("Timeout occurred while running batch archive");
         		}
         		
-        		
-        		
         	}
         	
         	//complete
@@ -18,5 +18,17 @@ package org.sakaiproject.lti.api;
 
 public interface SiteMembershipsSynchroniser {
 
-    public void synchroniseSiteMemberships(String siteId, String membershipsId, String membershipsUrl, String oauth_consumer_key, boolean isEmailTrustedConsumer, String callbackType);
+    /**
+     * What a synchronisation did to the site.
+     */
+    public enum Outcome {
+        /** The memberships or groups differed from the consumer's and the site was saved */
+        UPDATED,
+        /** The site already matched the consumer's memberships and was not saved */
+        UNCHANGED,
+        /** The memberships could not be fetched or applied */
+        FAILED
+    }
+
+    public Outcome synchroniseSiteMemberships(String siteId, String membershipsId, String membershipsUrl, String oauth_consumer_key, boolean isEmailTrustedConsumer, String callbackType);
 }
@@ -16,6 +16,7 @@
 
 package org.sakaiproject.lti.api;
 
+import java.util.List;
 import java.util.Map;
 
 import org.sakaiproject.user.api.User;
@@ -27,5 +28,13 @@ import org.sakaiproject.lti.api.LTIException;
 public interface UserFinderOrCreator {
 
     public User findOrCreateUser(Map payload, boolean trustedConsumer, boolean isEmailTrustedConsumer) throws LTIException;
+
+    /**
+     * Find or create the users for many payloads at once, looking up the existing
+     * users together where possible.
+     *
+     * @return the users, keyed by the user_id in each payload
+     */
+    public Map<String, User> findOrCreateUsers(List<Map> payloads, boolean trustedConsumer, boolean isEmailTrustedConsumer) throws LTIException;
     
 }
@@ -0,0 +1,245 @@
+/**
+ * Copyright (c) 2009-2017 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.blti;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.sakaiproject.basiclti.util.SakaiBLTIUtil;
+import org.sakaiproject.component.cover.ComponentManager;
+import org.sakaiproject.lti.api.LTIService;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
+
+/**
+ * Stores replaced LTI outcomes in the background. The servlet checks the signature, sourcedid
+ * and gradebook item of each outcome while the tool waits and then queues the grade; a worker thread
+ * stores the queued grades a gradebook item at a time, so the item is looked up once for
+ * the whole batch. A grade queued for a user who already has one waiting for the same item
+ * replaces it, since only the last would have been kept. Reading or deleting a grade first
+ * calls {@link #flush(Properties)}, so it sees the grades queued before it.
+ *
+ * The queue is held in memory - grades waiting when the server stops are stored by
+ * {@link #destroy()}, but not if the server dies.
+ */
+@Slf4j
+public class OutcomesQueue implements Runnable {
+
+	private final int maxPending;
+	private final long batchDelay;
+
+	// Grades waiting to be stored, by gradebook item, then by user
+	private Map<String, PendingGrades> pending = new LinkedHashMap<String, PendingGrades>();
+	private int pendingCount = 0;
+	private boolean running = true;
+	private Thread worker;
+	// Held while grades taken from the queue are stored
+	private final Object storeLock = new Object();
+
+	/**
+	 * @param maxPending the most grades that may wait, after which callers store their own
+	 * @param batchDelay milliseconds to gather grades before storing them
+	 */
+	public OutcomesQueue(int maxPending, long batchDelay) {
+		this.maxPending = maxPending;
+		this.batchDelay = batchDelay;
+	}
+
+	public void init() {
+		worker = new Thread(this, "LTI outcomes");
+		worker.setDaemon(true);
+		worker.start();
+		log.info("Storing LTI outcomes in the background, max pending={} delay={}ms", maxPending, batchDelay);
+	}
+
+	/**
+	 * Stop the worker and store any grades still waiting.
+	 */
+	public void destroy() {
+		synchronized (this) {
+			running = false;
+			notifyAll();
+		}
+		if ( worker != null ) {
+			try {
+				worker.join(60000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (storeLock) {
+			store(takePending());
+		}
+	}
+
+	/**
+	 * Queue a grade to be stored.
+	 *
+	 * @param pitch the placement properties from {@link SakaiBLTIUtil#validateSourceDid}
+	 * @return false if the queue is full or stopped, in which case the caller must store the grade
+	 */
+	public synchronized boolean offer(Properties pitch, Double grade, String comment) {
+		if ( ! running ) return false;
+		String user_id = pitch.getProperty(SakaiBLTIUtil.SOURCEDID_USER_ID);
+		String key = getKey(pitch);
+		PendingGrades grades = pending.get(key);
+		boolean replaced = grades != null && grades.grades.containsKey(user_id);
+		if ( ! replaced && pendingCount >= maxPending ) return false;
+
+		if ( grades == null ) {
+			grades = new PendingGrades(pitch);
+			pending.put(key, grades);
+		}
+		grades.grades.put(user_id, grade);
+		grades.comments.put(user_id, comment);
+		if ( ! replaced ) pendingCount++;
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Store the grade waiting for a user and gradebook item now, after any being stored already,
+	 * so a following read or delete is not overtaken by it.
+	 *
+	 * @param pitch the placement properties from {@link SakaiBLTIUtil#validateSourceDid}
+	 */
+	public void flush(Properties pitch) {
+		String user_id = pitch.getProperty(SakaiBLTIUtil.SOURCEDID_USER_ID);
+		String key = getKey(pitch);
+		synchronized (storeLock) {
+			PendingGrades flushed = null;
+			synchronized (this) {
+				PendingGrades grades = pending.get(key);
+				if ( grades != null && grades.grades.containsKey(user_id) ) {
+					flushed = new PendingGrades(grades.pitch);
+					flushed.grades.put(user_id, grades.grades.remove(user_id));
+					flushed.comments.put(user_id, grades.comments.remove(user_id));
+					if ( grades.grades.isEmpty() ) pending.remove(key);
+					pendingCount--;
+				}
+			}
+			if ( flushed != null ) store(Collections.singletonList(flushed));
+		}
+	}
+
+	/**
+	 * Store a grade now, after any being stored already, for when the queue is full.
+	 *
+	 * @param pitch the placement properties from {@link SakaiBLTIUtil#validateSourceDid}
+	 * @return Boolean.TRUE if the grade was stored or a String (error)
+	 */
+	public Object storeNow(Properties pitch, Double grade, String comment) {
+		String user_id = pitch.getProperty(SakaiBLTIUtil.SOURCEDID_USER_ID);
+		Map<String, Double> grades = new HashMap<String, Double>();
+		grades.put(user_id, grade);
+		Map<String, String> comments = new HashMap<String, String>();
+		comments.put(user_id, comment);
+		synchronized (storeLock) {
+			return storeGrades(pitch, grades, comments).get(user_id);
+		}
+	}
+
+	/**
+	 * @return the number of grades waiting to be stored
+	 */
+	public synchronized int getPending() {
+		return pendingCount;
+	}
+
+	public void run() {
+		while ( true ) {
+			synchronized (this) {
+				try {
+					while ( running && pendingCount == 0 ) wait();
+					// Give more grades for the same items a chance to arrive
+					long until = System.currentTimeMillis() + batchDelay;
+					long remaining = batchDelay;
+					while ( running && remaining > 0 ) {
+						wait(remaining);
+						remaining = until - System.currentTimeMillis();
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				if ( ! running ) return;
+			}
+			synchronized (storeLock) {
+				store(takePending());
+			}
+		}
+	}
+
+	private static String getKey(Properties pitch) {
+		return pitch.getProperty(LTIService.LTI_SITE_ID) + ":::" + pitch.getProperty("assignment");
+	}
+
+	private synchronized List<PendingGrades> takePending() {
+		List<PendingGrades> retval = new ArrayList<PendingGrades>(pending.values());
+		pending = new LinkedHashMap<String, PendingGrades>();
+		pendingCount = 0;
+		return retval;
+	}
+
+	private void store(List<PendingGrades> batches) {
+		for (PendingGrades batch : batches) {
+			try {
+				Map<String, Object> results = storeGrades(batch.pitch, batch.grades, batch.comments);
+				for (Map.Entry<String, Object> result : results.entrySet()) {
+					if ( result.getValue() instanceof String ) {
+						log.warn("Queued outcome not stored for user_id={} site={}: {}", result.getKey(),
+							batch.pitch.getProperty(LTIService.LTI_SITE_ID), result.getValue());
+					}
+				}
+			} catch (Exception e) {
+				log.error("Queued outcomes not stored for site={}", batch.pitch.getProperty(LTIService.LTI_SITE_ID), e);
+			}
+		}
+	}
+
+	/**
+	 * Store the grades of one gradebook item.
+	 *
+	 * @return the result of {@link SakaiBLTIUtil#setGrades} for each user
+	 */
+	protected Map<String, Object> storeGrades(Properties pitch, Map<String, Double> grades, Map<String, String> comments) {
+		try {
+			return SakaiBLTIUtil.setGrades(pitch, grades, comments);
+		} finally {
+			// A flush stores on the request thread, which clears its own
+			if ( Thread.currentThread() == worker ) {
+				ThreadLocalManager threadLocalManager = (ThreadLocalManager) ComponentManager.get(ThreadLocalManager.class);
+				if ( threadLocalManager != null ) threadLocalManager.clear();
+			}
+		}
+	}
+
+	private static class PendingGrades {
+		final Properties pitch;
+		final Map<String, Double> grades = new HashMap<String, Double>();
+		final Map<String, String> comments = new HashMap<String, String>();
+
+		PendingGrades(Properties pitch) {
+			this.pitch = pitch;
+		}
+	}
+}
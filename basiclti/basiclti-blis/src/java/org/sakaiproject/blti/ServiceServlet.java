@@ -43,7 +43,6 @@ import net.oauth.OAuthAccessor;
 import net.oauth.OAuthConsumer;
 import net.oauth.OAuthMessage;
 import net.oauth.OAuthValidator;
-import net.oauth.SimpleOAuthValidator;
 import net.oauth.server.OAuthServlet;
 import net.oauth.signature.OAuthSignatureMethod;
 
@@ -57,6 +56,7 @@ import org.sakaiproject.authz.api.Member;
 import org.sakaiproject.authz.api.Role;
 import org.sakaiproject.basiclti.util.LegacyShaUtil;
 import org.sakaiproject.basiclti.util.SakaiBLTIUtil;
+import org.sakaiproject.basiclti.util.SakaiOAuthValidator;
 import org.sakaiproject.component.cover.ComponentManager;
 import org.sakaiproject.component.cover.ServerConfigurationService;
 import org.sakaiproject.lti.api.LTIService;
@@ -100,6 +100,9 @@ public class ServiceServlet extends HttpServlet {
 
 	protected static LTIService ltiService = null;
 
+	// Set when outcomes are stored in the background (basiclti.outcomes.async)
+	protected static OutcomesQueue outcomesQueue = null;
+
 	private final String returnHTML = 
 		"<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Transitional//EN\"\n" + 
 		"	\"http://www.w3.org/TR/xhtml1/DTD/xhtml1-transitional.dtd\">\n" + 
@@ -145,6 +148,12 @@ public class ServiceServlet extends HttpServlet {
 	public void init(ServletConfig config) throws ServletException {
 		super.init(config);
 		if ( ltiService == null ) ltiService = (LTIService) ComponentManager.get("org.sakaiproject.lti.api.LTIService");
+		XMLMap.setStreaming(ServerConfigurationService.getBoolean("basiclti.xml.streaming", true));
+		if ( outcomesQueue == null && ServerConfigurationService.getBoolean("basiclti.outcomes.async", false) ) {
+			outcomesQueue = new OutcomesQueue(ServerConfigurationService.getInt("basiclti.outcomes.async.max", 10000),
+				ServerConfigurationService.getInt("basiclti.outcomes.async.delay", 1000));
+			outcomesQueue.init();
+		}
 	}
 
 	/* launch_presentation_return_url=http://lmsng.school.edu/portal/123/page/988/
@@ -380,26 +389,20 @@ public class ServiceServlet extends HttpServlet {
 
 		String URL = SakaiBLTIUtil.getOurServletPath(request);
 		OAuthMessage oam = OAuthServlet.getMessage(request, URL);
-		OAuthValidator oav = new SimpleOAuthValidator();
+		OAuthValidator oav = new SakaiOAuthValidator("outcomes");
 		OAuthConsumer cons = new OAuthConsumer("about:blank#OAuth+CallBack+NotUsed", oauth_consumer_key,oauth_secret, null);
 
 		OAuthAccessor acc = new OAuthAccessor(cons);
 
-		String base_string = null;
-		try {
-			base_string = OAuthSignatureMethod.getBaseString(oam);
-		} catch (Exception e) {
-			log.error(e.getLocalizedMessage(), e);
-			base_string = null;
-		}
-
 		try {
 			oav.validateMessage(oam, acc);
 		} catch (Exception e) {
 			log.warn("Provider failed to validate message");
 			log.warn(e.getLocalizedMessage(), e);
-			if (base_string != null) {
-				log.warn(base_string);
+			try {
+				log.warn(OAuthSignatureMethod.getBaseString(oam));
+			} catch (Exception be) {
+				log.error(be.getLocalizedMessage(), be);
 			}
 			doError(request, response, theMap, "outcome.no.validate", oauth_consumer_key, null);
 			return;
@@ -559,7 +562,7 @@ public class ServiceServlet extends HttpServlet {
 		try {
 			Double dGrade;
 			if ( isRead ) {
-				retval = SakaiBLTIUtil.getGrade(sourcedid, request, ltiService);
+				retval = getGrade(sourcedid, request);
 				if ( retval instanceof Map ) {
 					Map grade = (Map) retval;
 					dGrade = (Double) grade.get("grade");
@@ -577,10 +580,10 @@ public class ServiceServlet extends HttpServlet {
 					}
 				}
 		    } else if ( isDelete ) {
-				retval = SakaiBLTIUtil.deleteGrade(sourcedid, request, ltiService);
+				retval = deleteGrade(sourcedid, request);
 			} else { 
 				dGrade = new Double(result_resultscore_textstring);
-				retval = SakaiBLTIUtil.setGrade(sourcedid, request, ltiService, dGrade, result_resultdata_text);
+				retval = setGrade(sourcedid, request, dGrade, result_resultdata_text);
 			}
 			success = true;
 			theMap.put("/message_response/statusinfo/codemajor", "Success");
@@ -597,6 +600,45 @@ public class ServiceServlet extends HttpServlet {
 		out.println(theXml);
 	}
 
+	// Store the grade, or when outcomes are stored in the background, check the
+	// request and everything needed to store the grade, then queue it
+	protected Object setGrade(String sourcedid, HttpServletRequest request, Double dGrade, String comment)
+	{
+		if ( outcomesQueue == null ) {
+			return SakaiBLTIUtil.setGrade(sourcedid, request, ltiService, dGrade, comment);
+		}
+		Object checked = SakaiBLTIUtil.validateSourceDid(sourcedid, request, ltiService);
+		if ( checked instanceof String ) return checked;
+		Properties pitch = (Properties) checked;
+		String failure = SakaiBLTIUtil.validateGrade(pitch, dGrade);
+		if ( failure != null ) return failure;
+		if ( outcomesQueue.offer(pitch, dGrade, comment) ) return Boolean.TRUE;
+
+		// The queue is full - the request has been checked so store the grade directly
+		return outcomesQueue.storeNow(pitch, dGrade, comment);
+	}
+
+	// Read the grade once any grade queued for it is stored
+	protected Object getGrade(String sourcedid, HttpServletRequest request)
+	{
+		flushGrade(sourcedid, request);
+		return SakaiBLTIUtil.getGrade(sourcedid, request, ltiService);
+	}
+
+	// Delete the grade once any grade queued for it is stored, so it isn't stored after
+	protected Object deleteGrade(String sourcedid, HttpServletRequest request)
+	{
+		flushGrade(sourcedid, request);
+		return SakaiBLTIUtil.deleteGrade(sourcedid, request, ltiService);
+	}
+
+	private void flushGrade(String sourcedid, HttpServletRequest request)
+	{
+		if ( outcomesQueue == null ) return;
+		Object checked = SakaiBLTIUtil.validateSourceDid(sourcedid, request, ltiService);
+		if ( checked instanceof Properties ) outcomesQueue.flush((Properties) checked);
+	}
+
 	protected void processRoster(HttpServletRequest request, HttpServletResponse response, 
 			String lti_message_type, 
 			Site site, String siteId, String placement_id, Properties pitch,
@@ -870,7 +912,7 @@ public class ServiceServlet extends HttpServlet {
 		log.debug("oauth_secret (decrypted): {}", oauth_secret);
 
 		String URL = SakaiBLTIUtil.getOurServletPath(request);
-		pox.validateRequest(oauth_consumer_key, oauth_secret, request, URL);
+		pox.validateRequest(oauth_consumer_key, oauth_secret, request, URL, new SakaiOAuthValidator("pox"));
 		if ( ! pox.valid ) {
 			if (pox.base_string != null) {
 				log.warn(pox.base_string);
@@ -946,7 +988,7 @@ public class ServiceServlet extends HttpServlet {
 		try {
 			Double dGrade;
 			if ( isRead ) {
-				retval = SakaiBLTIUtil.getGrade(sourcedid, request, ltiService);
+				retval = getGrade(sourcedid, request);
 				String sGrade = "";
 				String comment = "";
 				if ( retval instanceof Map ) {
@@ -975,7 +1017,7 @@ public class ServiceServlet extends HttpServlet {
 				}
 				message = "Result read";
 			} else if ( isDelete ) { 
-				retval = SakaiBLTIUtil.deleteGrade(sourcedid, request, ltiService);
+				retval = deleteGrade(sourcedid, request);
 				if ( retval instanceof String ) {
 					doErrorXML(request, response, pox, "outcomes.fail", (String) retval, null);
 					return;
@@ -988,7 +1030,7 @@ public class ServiceServlet extends HttpServlet {
 					throw new Exception("Grade out of range");
 				}
 				dGrade = new Double(result_resultscore_textstring);
-				retval = SakaiBLTIUtil.setGrade(sourcedid, request, ltiService, dGrade, result_resultdata_text);
+				retval = setGrade(sourcedid, request, dGrade, result_resultdata_text);
 				if ( retval instanceof String ) {
 					doErrorXML(request, response, pox, "outcomes.fail", (String) retval, null);
 					return;
@@ -1017,7 +1059,11 @@ public class ServiceServlet extends HttpServlet {
 
 
 	public void destroy() {
-
+		if ( outcomesQueue != null ) {
+			outcomesQueue.destroy();
+			outcomesQueue = null;
+		}
+		SakaiOAuthValidator.logStatistics();
 	}
 
 }
@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2009-2017 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.blti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.sakaiproject.basiclti.util.SakaiBLTIUtil;
+import org.sakaiproject.lti.api.LTIService;
+
+public class OutcomesQueueTest {
+
+	private final List<String> stored = Collections.synchronizedList(new ArrayList<String>());
+	private final CountDownLatch storing = new CountDownLatch(1);
+	private final CountDownLatch release = new CountDownLatch(1);
+	private OutcomesQueue queue;
+
+	@After
+	public void tearDown() {
+		release.countDown();
+		if ( queue != null ) queue.destroy();
+	}
+
+	@Test
+	public void testNewerGradeReplacesWaiting() {
+		queue = new TestQueue(10, 0, false);
+		assertTrue(queue.offer(pitch("a"), 0.5, null));
+		assertTrue(queue.offer(pitch("a"), 0.7, null));
+		assertEquals(1, queue.getPending());
+
+		queue.destroy();
+		queue = null;
+		assertEquals(Collections.singletonList("a=0.7"), stored);
+	}
+
+	@Test
+	public void testFullQueue() {
+		queue = new TestQueue(1, 0, false);
+		assertTrue(queue.offer(pitch("a"), 0.5, null));
+		assertFalse(queue.offer(pitch("b"), 0.5, null));
+		// a grade that replaces one waiting still fits
+		assertTrue(queue.offer(pitch("a"), 0.6, null));
+
+		assertEquals(Boolean.TRUE, queue.storeNow(pitch("b"), 0.5, null));
+		assertEquals(Collections.singletonList("b=0.5"), stored);
+	}
+
+	@Test
+	public void testFlushStoresWaitingGrade() {
+		queue = new TestQueue(10, 0, false);
+		queue.offer(pitch("a"), 0.5, null);
+		queue.offer(pitch("b"), 0.6, null);
+
+		queue.flush(pitch("a"));
+		assertEquals(Collections.singletonList("a=0.5"), stored);
+		assertEquals(1, queue.getPending());
+
+		// nothing left for a
+		queue.flush(pitch("a"));
+		assertEquals(1, stored.size());
+	}
+
+	@Test
+	public void testFlushWaitsForGradesBeingStored() throws Exception {
+		queue = new TestQueue(10, 0, true);
+		queue.init();
+		queue.offer(pitch("a"), 0.5, null);
+		assertTrue(storing.await(5, TimeUnit.SECONDS));
+
+		// the worker has taken the grade, a read must not run before it is stored
+		Thread reader = new Thread(() -> queue.flush(pitch("a")));
+		reader.start();
+		reader.join(200);
+		assertTrue(reader.isAlive());
+
+		release.countDown();
+		reader.join(5000);
+		assertFalse(reader.isAlive());
+		assertEquals(Collections.singletonList("a=0.5"), stored);
+	}
+
+	private Properties pitch(String user_id) {
+		Properties pitch = new Properties();
+		pitch.setProperty(LTIService.LTI_SITE_ID, "site");
+		pitch.setProperty("assignment", "item");
+		pitch.setProperty(SakaiBLTIUtil.SOURCEDID_USER_ID, user_id);
+		return pitch;
+	}
+
+	/**
+	 * Notes the grades it stores, and can hold the first batch until released
+	 */
+	private class TestQueue extends OutcomesQueue {
+
+		private final boolean hold;
+
+		TestQueue(int maxPending, long batchDelay, boolean hold) {
+			super(maxPending, batchDelay);
+			this.hold = hold;
+		}
+
+		@Override
+		protected Map<String, Object> storeGrades(Properties pitch, Map<String, Double> grades, Map<String, String> comments) {
+			storing.countDown();
+			if ( hold ) {
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			Map<String, Object> retval = new HashMap<String, Object>();
+			for (Map.Entry<String, Double> grade : grades.entrySet()) {
+				stored.add(grade.getKey() + "=" + grade.getValue());
+				retval.put(grade.getKey(), Boolean.TRUE);
+			}
+			return retval;
+		}
+	}
+}
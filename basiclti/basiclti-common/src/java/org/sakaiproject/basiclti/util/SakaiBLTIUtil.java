@@ -21,6 +21,7 @@ package org.sakaiproject.basiclti.util;
 
 import java.util.Properties;
 import java.util.Map;
+import java.util.LinkedHashMap;
 import java.util.TreeMap;
 import java.util.HashMap;
 import java.util.List;
@@ -54,6 +55,9 @@ import org.tsugi.lti2.LTI2Config;
 
 import org.sakaiproject.alias.api.AliasService;
 import org.sakaiproject.lti.api.LTIService;
+import org.sakaiproject.memory.api.Cache;
+import org.sakaiproject.memory.api.MemoryService;
+import org.sakaiproject.memory.api.SimpleConfiguration;
 import org.sakaiproject.lti2.SakaiLTI2Config;
 
 import org.sakaiproject.tool.api.Session;
@@ -128,6 +132,24 @@ public class SakaiBLTIUtil {
 
 	public static final String BASICLTI_OUTCOMES_ENABLED = "basiclti.outcomes.enabled";
 	public static final String BASICLTI_OUTCOMES_ENABLED_DEFAULT = "true";
+	public static final String BASICLTI_OUTCOMES_PLACEMENT_CACHE = "basiclti.outcomes.placement.cache.seconds";
+	public static final int BASICLTI_OUTCOMES_PLACEMENT_CACHE_DEFAULT = 60;
+
+	// The key in the properties from validateSourceDid for the user the grade is for
+	public static final String SOURCEDID_USER_ID = "sourcedid_user_id";
+	private static final String PLACEMENT_CACHE_NAME = "org.sakaiproject.basiclti.util.SakaiBLTIUtil.placementCache";
+	private static Cache<String, Properties> placementCache = null;
+
+	// Secrets decrypt the same every time.  Kept in this server's memory rather than
+	// a MemoryService cache that might send them to other servers.
+	private static final int DECRYPTED_SECRETS_MAX = 1000;
+	private static final Map<String, String> decryptedSecrets = new LinkedHashMap<String, String>(DECRYPTED_SECRETS_MAX, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > DECRYPTED_SECRETS_MAX;
+		}
+	};
+	private static String decryptedSecretsKey = null;
 	public static final String BASICLTI_SETTINGS_ENABLED = "basiclti.settings.enabled";
 	public static final String BASICLTI_SETTINGS_ENABLED_DEFAULT = "true";
 	public static final String BASICLTI_ROSTER_ENABLED = "basiclti.roster.enabled";
@@ -318,13 +340,25 @@ public class SakaiBLTIUtil {
 		if ( orig == null || orig.trim().length() < 1 ) return orig;
 		String encryptionKey = ServerConfigurationService.getString(BASICLTI_ENCRYPTION_KEY, null);
 		if ( encryptionKey == null ) return orig;
+		synchronized (decryptedSecrets) {
+			if ( ! encryptionKey.equals(decryptedSecretsKey) ) {
+				decryptedSecrets.clear();
+				decryptedSecretsKey = encryptionKey;
+			}
+			String cached = decryptedSecrets.get(orig);
+			if ( cached != null ) return cached;
+		}
+		String newsecret;
 		try {
-			String newsecret = SimpleEncryption.decrypt(encryptionKey, orig);
-			return newsecret;
+			newsecret = SimpleEncryption.decrypt(encryptionKey, orig);
 		} catch (RuntimeException re) {
 			log.error("Exception when decrypting secret - this is normal if the secret is unencrypted");
-			return orig;
+			newsecret = orig;
+		}
+		synchronized (decryptedSecrets) {
+			if ( encryptionKey.equals(decryptedSecretsKey) ) decryptedSecrets.put(orig, newsecret);
 		}
+		return newsecret;
 	}
 
 	public static boolean sakaiInfo(Properties props, Placement placement, ResourceLoader rb)
@@ -1573,10 +1607,12 @@ public class SakaiBLTIUtil {
 		return handleGradebook(sourcedid, request, ltiService, false, true, null, null);
 	}
 
-	// Quite a long bit of code
-	private static Object handleGradebook(String sourcedid, HttpServletRequest request, 
-		LTIService ltiService, boolean isRead, boolean isDelete, 
-		Double theGrade, String comment)
+	// Returns:
+	// String implies error
+	// Properties - the placement properties, plus the user_id from the sourcedid,
+	// once the sourcedid and the message signature check out
+	public static Object validateSourceDid(String sourcedid, HttpServletRequest request, 
+		LTIService ltiService)
 	{
 		// Truncate this to the maximum length to insure no cruft at the end
 		if ( sourcedid.length() > 2048) sourcedid = sourcedid.substring(0,2048);
@@ -1602,7 +1638,7 @@ public class SakaiBLTIUtil {
 		log.debug("user_id={}", user_id);
 		log.debug("placement_id={}", placement_id);
 
-		Properties pitch = getPropertiesFromPlacement(placement_id, ltiService);
+		Properties pitch = getCachedPropertiesFromPlacement(placement_id, ltiService);
 		if ( pitch == null ) {
 			return "Error retrieving result_sourcedid information";
 		}
@@ -1651,8 +1687,31 @@ public class SakaiBLTIUtil {
 
 		if ( !matched ) return "Sourcedid signature did not match";
 
+		pitch.setProperty(SOURCEDID_USER_ID, user_id);
+		return pitch;
+	}
+
+	// Quite a long bit of code
+	private static Object handleGradebook(String sourcedid, HttpServletRequest request, 
+		LTIService ltiService, boolean isRead, boolean isDelete, 
+		Double theGrade, String comment)
+	{
+		Object checked = validateSourceDid(sourcedid, request, ltiService);
+		if ( checked instanceof String ) return checked;
+
 		// If we are not supposed to lookup or set the grade, we are done
-		if ( isRead == false && isDelete == false && theGrade == null ) return new Boolean(matched);
+		if ( isRead == false && isDelete == false && theGrade == null ) return Boolean.TRUE;
+
+		Properties pitch = (Properties) checked;
+		String user_id = pitch.getProperty(SOURCEDID_USER_ID);
+		String siteId = pitch.getProperty(LTIService.LTI_SITE_ID);
+		Site site = null;
+		try { 
+			site = SiteService.getSite(siteId);
+		} catch (Exception e) {
+			return "Error retrieving result_sourcedid site: "+e.getLocalizedMessage();
+		}
+		Object retval = null;
 
 		// Look up the assignment so we can find the max points
 		GradebookService g = (GradebookService)  ComponentManager
@@ -1676,9 +1735,71 @@ public class SakaiBLTIUtil {
 			return "Assignment not set in placement";
 		}
 
+		pushAdvisor();
+		Assignment assignmentObject = getGradebookAssignment(g, siteId, assignment);
+		if (assignmentObject == null || assignmentObject.getId() == null) {
+			log.warn("assignmentObject or Id is null, cannot proceed with grading.");
+			popAdvisor();
+			return "Grade failure siteId="+siteId;
+		}
+		// Now read, set, or delete the grade...
+		Session sess = SessionManager.getCurrentSession();
+		String message = null;
+
+		try {
+			// Indicate "who" is setting this grade - needs to be a real user account
+			String gb_user_id = ServerConfigurationService.getString(
+					"basiclti.outcomes.userid", "admin");
+			String gb_user_eid = ServerConfigurationService.getString(
+					"basiclti.outcomes.usereid", gb_user_id);
+			sess.setUserId(gb_user_id);
+			sess.setUserEid(gb_user_eid);
+			if ( isRead ) {
+				String actualGrade = g.getAssignmentScoreString(siteId, assignmentObject.getId(), user_id);
+				Double dGrade = null;
+				if ( actualGrade != null && actualGrade.length() > 0 ) {
+					dGrade = new Double(actualGrade);
+					dGrade = dGrade / assignmentObject.getPoints();
+				}
+				CommentDefinition commentDef = g.getAssignmentScoreComment(siteId, assignmentObject.getId(), user_id);
+				message = "Result read";
+				Map<String, Object> retMap = new TreeMap<String, Object> ();
+				retMap.put("grade",dGrade);
+				if (commentDef != null) {
+					retMap.put("comment",commentDef.getCommentText());
+				}
+				retval = retMap;
+			} else if ( isDelete ) {
+				g.setAssignmentScoreString(siteId, assignmentObject.getId(), user_id, null, "External Outcome");
+				log.info("Delete Score site={} assignment={} user_id={}", siteId, assignment, user_id);
+				message = "Result deleted";
+				retval = Boolean.TRUE;
+			} else {
+				g.setAssignmentScoreString(siteId, assignmentObject.getId(), user_id, getRoundedGrade(theGrade,assignmentObject.getPoints()), "External Outcome");
+				g.setAssignmentScoreComment(siteId, assignmentObject.getId(), user_id, comment);
+
+
+				log.info("Stored Score={} assignment={} user_id={} score={}", siteId, assignment, user_id, theGrade);
+				message = "Result replaced";
+				retval = Boolean.TRUE;
+			}
+		} catch (Exception e) {
+			retval = "Grade failure "+e.getMessage()+" siteId="+siteId;
+			log.warn("handleGradebook Grade failure in site: {}, error: {}", siteId, e);
+		} finally {
+			sess.invalidate(); // Make sure to leave no traces
+			popAdvisor();
+		}
+
+		return retval;
+	}
+
+	// Find the gradebook item a placement sends grades to, adding it if needed
+	// Call with the security advisor pushed
+	private static Assignment getGradebookAssignment(GradebookService g, String siteId, String assignment)
+	{
 		Assignment assignmentObject = null;
 
-		pushAdvisor();
 		try {
 			List gradebookAssignments = g.getAssignments(siteId);
 			for (Iterator i=gradebookAssignments.iterator(); i.hasNext();) {
@@ -1715,15 +1836,93 @@ public class SakaiBLTIUtil {
 				assignmentObject = null; // Just to make double sure
 			}
 		}
-		if (assignmentObject == null || assignmentObject.getId() == null) {
-			log.warn("assignmentObject or Id is null, cannot proceed with grading.");
-			return "Grade failure siteId="+siteId;
+		return assignmentObject;
+	}
+
+	// Check everything setGrades needs to store this user's grade, so a grade stored
+	// later can be acknowledged now - only a failure writing the grade is left
+	// pitch comes from validateSourceDid
+	// Returns null if the grade can be stored or a String (error)
+	public static String validateGrade(Properties pitch, Double theGrade)
+	{
+		if ( theGrade == null || theGrade < 0.0 || theGrade > 1.0 ) return "Grade out of range";
+		String user_id = pitch.getProperty(SOURCEDID_USER_ID);
+		String siteId = pitch.getProperty(LTIService.LTI_SITE_ID);
+		String assignment = pitch.getProperty("assignment");
+
+		Site site = null;
+		try { 
+			site = SiteService.getSite(siteId);
+		} catch (Exception e) {
+			return "Error retrieving result_sourcedid site: "+e.getLocalizedMessage();
+		}
+		try {
+			site.getMember(user_id);
+		} catch (Exception e) {
+			log.warn("{} siteId={}, {}", e.getLocalizedMessage(), siteId, e);
+			return "User not found in site";
+		}
+		if ( assignment == null ) {
+			return "Assignment not set in placement";
 		}
-		// Now read, set, or delete the grade...
-		Session sess = SessionManager.getCurrentSession();
-		String message = null;
 
+		GradebookService g = (GradebookService)  ComponentManager
+			.get("org.sakaiproject.service.gradebook.GradebookService");
+		pushAdvisor();
 		try {
+			Assignment assignmentObject = getGradebookAssignment(g, siteId, assignment);
+			if (assignmentObject == null || assignmentObject.getId() == null) {
+				log.warn("assignmentObject or Id is null, cannot proceed with grading.");
+				return "Grade failure siteId="+siteId;
+			}
+			getRoundedGrade(theGrade, assignmentObject.getPoints());
+		} catch (Exception e) {
+			return "Grade failure "+e.getMessage()+" siteId="+siteId;
+		} finally {
+			popAdvisor();
+		}
+		return null;
+	}
+
+	// Store grades for many users of the same gradebook item, finding the item once
+	// pitch comes from validateSourceDid, grades and comments are keyed by user_id
+	// Returns a Map from user_id to Boolean.TRUE (grade stored) or a String (error)
+	public static Map<String, Object> setGrades(Properties pitch, Map<String, Double> grades, Map<String, String> comments)
+	{
+		Map<String, Object> retval = new HashMap<String, Object>();
+		String siteId = pitch.getProperty(LTIService.LTI_SITE_ID);
+		String assignment = pitch.getProperty("assignment");
+
+		Site site = null;
+		String failure = null;
+		try { 
+			site = SiteService.getSite(siteId);
+		} catch (Exception e) {
+			failure = "Error retrieving result_sourcedid site: "+e.getLocalizedMessage();
+		}
+		if ( failure == null && assignment == null ) {
+			failure = "Assignment not set in placement";
+		}
+
+		GradebookService g = (GradebookService)  ComponentManager
+			.get("org.sakaiproject.service.gradebook.GradebookService");
+
+		Session sess = SessionManager.getCurrentSession();
+		pushAdvisor();
+		try {
+			Assignment assignmentObject = null;
+			if ( failure == null ) {
+				assignmentObject = getGradebookAssignment(g, siteId, assignment);
+				if (assignmentObject == null || assignmentObject.getId() == null) {
+					log.warn("assignmentObject or Id is null, cannot proceed with grading.");
+					failure = "Grade failure siteId="+siteId;
+				}
+			}
+			if ( failure != null ) {
+				for (String user_id : grades.keySet()) retval.put(user_id, failure);
+				return retval;
+			}
+
 			// Indicate "who" is setting this grade - needs to be a real user account
 			String gb_user_id = ServerConfigurationService.getString(
 					"basiclti.outcomes.userid", "admin");
@@ -1731,38 +1930,26 @@ public class SakaiBLTIUtil {
 					"basiclti.outcomes.usereid", gb_user_id);
 			sess.setUserId(gb_user_id);
 			sess.setUserEid(gb_user_eid);
-			if ( isRead ) {
-				String actualGrade = g.getAssignmentScoreString(siteId, assignmentObject.getId(), user_id);
-				Double dGrade = null;
-				if ( actualGrade != null && actualGrade.length() > 0 ) {
-					dGrade = new Double(actualGrade);
-					dGrade = dGrade / assignmentObject.getPoints();
+
+			for (Map.Entry<String, Double> grade : grades.entrySet()) {
+				String user_id = grade.getKey();
+				try {
+					site.getMember(user_id);
+				} catch (Exception e) {
+					log.warn("{} siteId={}, {}", e.getLocalizedMessage(), siteId, e);
+					retval.put(user_id, "User not found in site");
+					continue;
 				}
-				CommentDefinition commentDef = g.getAssignmentScoreComment(siteId, assignmentObject.getId(), user_id);
-				message = "Result read";
-				Map<String, Object> retMap = new TreeMap<String, Object> ();
-				retMap.put("grade",dGrade);
-				if (commentDef != null) {
-					retMap.put("comment",commentDef.getCommentText());
+				try {
+					g.setAssignmentScoreString(siteId, assignmentObject.getId(), user_id, getRoundedGrade(grade.getValue(),assignmentObject.getPoints()), "External Outcome");
+					g.setAssignmentScoreComment(siteId, assignmentObject.getId(), user_id, comments.get(user_id));
+					log.info("Stored Score={} assignment={} user_id={} score={}", siteId, assignment, user_id, grade.getValue());
+					retval.put(user_id, Boolean.TRUE);
+				} catch (Exception e) {
+					retval.put(user_id, "Grade failure "+e.getMessage()+" siteId="+siteId);
+					log.warn("setGrades Grade failure in site: {}, error: {}", siteId, e);
 				}
-				retval = retMap;
-			} else if ( isDelete ) {
-				g.setAssignmentScoreString(siteId, assignmentObject.getId(), user_id, null, "External Outcome");
-				log.info("Delete Score site={} assignment={} user_id={}", siteId, assignment, user_id);
-				message = "Result deleted";
-				retval = Boolean.TRUE;
-			} else {
-				g.setAssignmentScoreString(siteId, assignmentObject.getId(), user_id, getRoundedGrade(theGrade,assignmentObject.getPoints()), "External Outcome");
-				g.setAssignmentScoreComment(siteId, assignmentObject.getId(), user_id, comment);
-
-
-				log.info("Stored Score={} assignment={} user_id={} score={}", siteId, assignment, user_id, theGrade);
-				message = "Result replaced";
-				retval = Boolean.TRUE;
 			}
-		} catch (Exception e) {
-			retval = "Grade failure "+e.getMessage()+" siteId="+siteId;
-			log.warn("handleGradebook Grade failure in site: {}, error: {}", siteId, e);
 		} finally {
 			sess.invalidate(); // Make sure to leave no traces
 			popAdvisor();
@@ -1771,6 +1958,36 @@ public class SakaiBLTIUtil {
 		return retval;
 	}
 
+	// getPropertiesFromPlacement, remembered for a short while so a burst of outcomes for
+	// one placement or content item doesn't look it up each time
+	private static Properties getCachedPropertiesFromPlacement(String placement_id, LTIService ltiService)
+	{
+		Cache<String, Properties> cache = getPlacementCache();
+		Properties cached = (cache == null) ? null : cache.get(placement_id);
+		if ( cached == null ) {
+			cached = getPropertiesFromPlacement(placement_id, ltiService);
+			if ( cached == null ) return null;
+			if ( cache != null ) cache.put(placement_id, cached);
+		}
+		// Callers add to the properties so they get their own copy
+		Properties retval = new Properties();
+		retval.putAll(cached);
+		return retval;
+	}
+
+	private static Cache<String, Properties> getPlacementCache()
+	{
+		if ( placementCache == null ) {
+			int seconds = ServerConfigurationService.getInt(BASICLTI_OUTCOMES_PLACEMENT_CACHE, 
+				BASICLTI_OUTCOMES_PLACEMENT_CACHE_DEFAULT);
+			if ( seconds <= 0 ) return null;
+			MemoryService memoryService = (MemoryService) ComponentManager.get(MemoryService.class);
+			placementCache = memoryService.createCache(PLACEMENT_CACHE_NAME, 
+				new SimpleConfiguration<String, Properties>(10000, seconds, 0));
+		}
+		return placementCache;
+	}
+
 	// Returns theGrade * points rounded to 2 digits (as a String)
 	// Used for testing and to avoid precision problems
 	public static String getRoundedGrade(Double theGrade, Double points) throws Exception {
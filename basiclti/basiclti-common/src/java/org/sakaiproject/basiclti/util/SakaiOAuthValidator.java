@@ -0,0 +1,199 @@
+/**
+ * Copyright (c) 2009-2017 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.basiclti.util;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.extern.slf4j.Slf4j;
+
+import net.oauth.OAuth;
+import net.oauth.OAuthAccessor;
+import net.oauth.OAuthException;
+import net.oauth.OAuthMessage;
+import net.oauth.OAuthProblemException;
+import net.oauth.SimpleOAuthValidator;
+
+import org.sakaiproject.component.cover.ComponentManager;
+import org.sakaiproject.component.cover.ServerConfigurationService;
+import org.sakaiproject.memory.api.Cache;
+import org.sakaiproject.memory.api.MemoryService;
+import org.sakaiproject.memory.api.SimpleConfiguration;
+
+/**
+ * Checks the OAuth signatures of the LTI messages sent to Sakai. On top of what
+ * SimpleOAuthValidator checks, a nonce that a consumer has already used within the
+ * timestamp window is turned away. The nonces are kept in a MemoryService cache, so
+ * with a distributed cache a message replayed to another server is turned away too.
+ *
+ * The time taken and the outcome of each validation are counted by kind of message,
+ * see {@link #getStatistics()}.
+ */
+@Slf4j
+public class SakaiOAuthValidator extends SimpleOAuthValidator {
+
+	public static final String BASICLTI_OAUTH_NONCE_CHECK = "basiclti.oauth.nonce.check";
+	public static final String BASICLTI_OAUTH_NONCE_MAX = "basiclti.oauth.nonce.max";
+	public static final int BASICLTI_OAUTH_NONCE_MAX_DEFAULT = 50000;
+	public static final String BASICLTI_OAUTH_STATS_MINUTES = "basiclti.oauth.stats.minutes";
+	public static final int BASICLTI_OAUTH_STATS_MINUTES_DEFAULT = 60;
+
+	private static final String NONCE_CACHE_NAME = "org.sakaiproject.basiclti.util.SakaiOAuthValidator.nonceCache";
+
+	private static Cache<String, Boolean> nonceCache = null;
+	private static boolean nonceCacheChecked = false;
+
+	private static final ConcurrentMap<String, ValidationStats> statistics = new ConcurrentHashMap<String, ValidationStats>();
+	private static final AtomicLong lastLogged = new AtomicLong(System.currentTimeMillis());
+
+	private final String kind;
+
+	/**
+	 * @param kind the kind of message, such as "launch" or "outcomes", to count the validations under
+	 */
+	public SakaiOAuthValidator(String kind) {
+		super();
+		this.kind = kind;
+	}
+
+	/**
+	 * Like SimpleOAuthValidator, except that the nonce is only remembered once the
+	 * signature checks out - otherwise anyone could use up the nonces of a consumer.
+	 */
+	@Override
+	public void validateMessage(OAuthMessage message, OAuthAccessor accessor)
+	throws OAuthException, IOException, URISyntaxException {
+		ValidationStats stats = getStats(kind);
+		long start = System.nanoTime();
+		boolean valid = false;
+		try {
+			checkSingleParameters(message);
+			validateVersion(message);
+			validateTimestampAndNonce(message);
+			validateSignature(message, accessor);
+			checkNonce(message, stats);
+			valid = true;
+		} finally {
+			stats.validated(System.nanoTime() - start, valid);
+			logStatisticsEvery();
+		}
+	}
+
+	private void checkNonce(OAuthMessage message, ValidationStats stats) throws IOException, OAuthProblemException {
+		Cache<String, Boolean> cache = getNonceCache();
+		if ( cache == null ) return;
+
+		String key = message.getConsumerKey() + ":" + message.getParameter(OAuth.OAUTH_TIMESTAMP)
+			+ ":" + message.getParameter(OAuth.OAUTH_NONCE);
+		boolean used;
+		// The cache has no putIfAbsent, so at least this server checks and puts in one go
+		synchronized (cache) {
+			used = cache.containsKey(key);
+			if ( ! used ) cache.put(key, Boolean.TRUE);
+		}
+		if ( used ) {
+			stats.replayed();
+			log.warn("OAuth nonce used again kind={} oauth_consumer_key={}", kind, message.getConsumerKey());
+			throw new OAuthProblemException(OAuth.Problems.NONCE_USED);
+		}
+	}
+
+	private static synchronized Cache<String, Boolean> getNonceCache() {
+		if ( nonceCacheChecked ) return nonceCache;
+		nonceCacheChecked = true;
+		if ( ! ServerConfigurationService.getBoolean(BASICLTI_OAUTH_NONCE_CHECK, true) ) return null;
+		MemoryService memoryService = (MemoryService) ComponentManager.get(MemoryService.class);
+		if ( memoryService == null ) return null;
+
+		// A nonce only needs remembering while its timestamp could still be accepted
+		int seconds = (int) (2 * DEFAULT_TIMESTAMP_WINDOW / 1000L);
+		int max = ServerConfigurationService.getInt(BASICLTI_OAUTH_NONCE_MAX, BASICLTI_OAUTH_NONCE_MAX_DEFAULT);
+		nonceCache = memoryService.createCache(NONCE_CACHE_NAME,
+			new SimpleConfiguration<String, Boolean>(max, seconds, 0));
+		return nonceCache;
+	}
+
+	private static ValidationStats getStats(String kind) {
+		ValidationStats stats = statistics.get(kind);
+		if ( stats == null ) {
+			ValidationStats newStats = new ValidationStats();
+			stats = statistics.putIfAbsent(kind, newStats);
+			if ( stats == null ) stats = newStats;
+		}
+		return stats;
+	}
+
+	private static void logStatisticsEvery() {
+		int minutes = ServerConfigurationService.getInt(BASICLTI_OAUTH_STATS_MINUTES, BASICLTI_OAUTH_STATS_MINUTES_DEFAULT);
+		if ( minutes <= 0 ) return;
+		long last = lastLogged.get();
+		long now = System.currentTimeMillis();
+		if ( now - last < TimeUnit.MINUTES.toMillis(minutes) ) return;
+		if ( lastLogged.compareAndSet(last, now) ) logStatistics();
+	}
+
+	/**
+	 * @return the validation counts and times by kind of message since the server started
+	 */
+	public static Map<String, String> getStatistics() {
+		Map<String, String> retval = new TreeMap<String, String>();
+		for (Map.Entry<String, ValidationStats> entry : statistics.entrySet()) {
+			retval.put(entry.getKey(), entry.getValue().toString());
+		}
+		return retval;
+	}
+
+	public static void logStatistics() {
+		if ( statistics.isEmpty() ) return;
+		log.info("LTI OAuth validation statistics: {}", getStatistics());
+	}
+
+	static class ValidationStats {
+		private final AtomicLong validated = new AtomicLong();
+		private final AtomicLong rejected = new AtomicLong();
+		private final AtomicLong replayed = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		void validated(long nanos, boolean valid) {
+			(valid ? validated : rejected).incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			long max = maxNanos.get();
+			while ( nanos > max && ! maxNanos.compareAndSet(max, nanos) ) {
+				max = maxNanos.get();
+			}
+		}
+
+		void replayed() {
+			replayed.incrementAndGet();
+		}
+
+		@Override
+		public String toString() {
+			long count = validated.get() + rejected.get();
+			double average = count == 0 ? 0 : totalNanos.get() / 1000000.0 / count;
+			return String.format("validated=%d rejected=%d replayed=%d avg=%.3fms max=%.3fms",
+				validated.get(), rejected.get(), replayed.get(), average, maxNanos.get() / 1000000.0);
+		}
+	}
+}
@@ -39,12 +39,13 @@ import net.oauth.signature.OAuthSignatureMethod;
 
 import org.tsugi.basiclti.BasicLTIConstants;
 
+import org.sakaiproject.authz.api.Member;
 import org.sakaiproject.authz.api.SecurityAdvisor;
 import org.sakaiproject.authz.cover.SecurityService;
 import org.sakaiproject.basiclti.util.LegacyShaUtil;
 import org.sakaiproject.component.api.ServerConfigurationService;
 import org.sakaiproject.exception.IdUnusedException;
-import org.sakaiproject.lti.api.SiteMembershipUpdater;
+import org.sakaiproject.lti.api.LTIRoleMapper;
 import org.sakaiproject.lti.api.UserFinderOrCreator;
 import org.sakaiproject.lti.api.SiteMembershipsSynchroniser;
 import org.sakaiproject.lti.extensions.POXMembershipsResponse;
@@ -66,9 +67,9 @@ public class SiteMembershipsSynchroniserImpl implements SiteMembershipsSynchroni
         this.serverConfigurationService = serverConfigurationService;
     }
 
-    private SiteMembershipUpdater siteMembershipUpdater = null;
-    public void setSiteMembershipUpdater(SiteMembershipUpdater siteMembershipUpdater) {
-        this.siteMembershipUpdater = siteMembershipUpdater;
+    private LTIRoleMapper roleMapper = null;
+    public void setRoleMapper(LTIRoleMapper roleMapper) {
+        this.roleMapper = roleMapper;
     }
 
     private SiteService siteService = null;
@@ -91,7 +92,7 @@ public class SiteMembershipsSynchroniserImpl implements SiteMembershipsSynchroni
 		SecurityService.popAdvisor();
 	}
 
-    public void synchroniseSiteMemberships(final String siteId, final String membershipsId, final String membershipsUrl, final String oauth_consumer_key, boolean isEmailTrustedConsumer, final String callbackType) {
+    public Outcome synchroniseSiteMemberships(final String siteId, final String membershipsId, final String membershipsUrl, final String oauth_consumer_key, boolean isEmailTrustedConsumer, final String callbackType) {
 
         Site site = null;
 
@@ -99,29 +100,50 @@ public class SiteMembershipsSynchroniserImpl implements SiteMembershipsSynchroni
             site = siteService.getSite(siteId);
         } catch (IdUnusedException iue) {
             log.error("site.notfound id: {}. This site's memberships will NOT be synchronised. {}", siteId, iue);
-            return;
+            return Outcome.FAILED;
         }
 
+        // Lookup the secret
+        final String configPrefix = "basiclti.provider." + oauth_consumer_key + ".";
+        final String oauth_secret = serverConfigurationService.getString(configPrefix+ "secret", null);
+        if (oauth_secret == null) {
+            log.error("launch.key.notfound {}. This site's memberships will NOT be synchronised.", oauth_consumer_key);
+            return Outcome.FAILED;
+        }
+
+        try {
+            POXMembershipsResponse poxMembershipsResponse = fetchMemberships(membershipsId, membershipsUrl, oauth_consumer_key, oauth_secret, callbackType);
+            if (poxMembershipsResponse == null) {
+                log.warn("Unknown memberships callback type {} for site={}", callbackType, siteId);
+                return Outcome.FAILED;
+            }
+            return processMembershipsResponse(poxMembershipsResponse, site, oauth_consumer_key, isEmailTrustedConsumer);
+        } catch (Exception e) {
+            log.warn("Problem synchronizing {} memberships for site={}.", callbackType, siteId, e);
+            return Outcome.FAILED;
+        }
+    }
+
+    /**
+     * Ask the consumer for the memberships of its context.
+     *
+     * @return the memberships, or null if the callback type is not one we know
+     */
+    protected POXMembershipsResponse fetchMemberships(final String membershipsId, final String membershipsUrl, final String oauth_consumer_key, final String oauth_secret, final String callbackType) throws Exception {
+
         if (BasicLTIConstants.LTI_VERSION_1.equals(callbackType)) {
-            synchronizeLTI1SiteMemberships(site, membershipsId, membershipsUrl, oauth_consumer_key, isEmailTrustedConsumer);
+            return fetchLTI1Memberships(membershipsId, membershipsUrl, oauth_consumer_key, oauth_secret);
         } else if ("ext-moodle-2".equals(callbackType)) {
             // This is non standard. Moodle's core LTI plugin does not currently do memberships and 
             // a fix for this has been proposed at https://tracker.moodle.org/browse/MDL-41724. I don't
             // think this will ever become core and the first time memberships will appear in core lti
             // is with LTI2. At that point this code will be replaced with standard LTI2 JSON type stuff.
-            synchronizeMoodleExtSiteMemberships(site, membershipsId, membershipsUrl, oauth_consumer_key, isEmailTrustedConsumer);
+            return fetchMoodleExtMemberships(membershipsId, membershipsUrl, oauth_consumer_key, oauth_secret);
         }
+        return null;
     }
 
-    private final void synchronizeLTI1SiteMemberships(final Site site, final String membershipsId, final String membershipsUrl, final String oauth_consumer_key, boolean isEmailTrustedConsumer) {
-
-        // Lookup the secret
-        final String configPrefix = "basiclti.provider." + oauth_consumer_key + ".";
-        final String oauth_secret = serverConfigurationService.getString(configPrefix+ "secret", null);
-        if (oauth_secret == null) {
-            log.error("launch.key.notfound {}. This site's memberships will NOT be synchronised.", oauth_consumer_key);
-            return;
-        }
+    private POXMembershipsResponse fetchLTI1Memberships(final String membershipsId, final String membershipsUrl, final String oauth_consumer_key, final String oauth_secret) throws Exception {
 
         OAuthMessage om = new OAuthMessage("POST", membershipsUrl, null);
         om.addParameter(OAuth.OAUTH_CONSUMER_KEY, oauth_consumer_key);
@@ -135,37 +157,25 @@ public class SiteMembershipsSynchroniserImpl implements SiteMembershipsSynchroni
 
         OAuthConsumer oc = new OAuthConsumer(null, oauth_consumer_key, oauth_secret, null);
 
-        try {
-            OAuthSignatureMethod osm = OAuthSignatureMethod.newMethod(OAuth.HMAC_SHA1, new OAuthAccessor(oc));
-            osm.sign(om);
-
-            URL url = new URL(membershipsUrl);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setDoOutput(true);
-            connection.setDoInput(true);
-            connection.setInstanceFollowRedirects(false); 
-            connection.setRequestMethod("POST");
-            connection.setUseCaches (false);
-            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream()));
-            bw.write(OAuth.formEncode(om.getParameters()));
-            bw.flush();
-            bw.close();
-
-            processMembershipsResponse(connection, site, oauth_consumer_key, isEmailTrustedConsumer);
-        } catch (Exception e) {
-            log.warn("Problem synchronizing LTI1 memberships.", e);
-        }
+        OAuthSignatureMethod osm = OAuthSignatureMethod.newMethod(OAuth.HMAC_SHA1, new OAuthAccessor(oc));
+        osm.sign(om);
+
+        URL url = new URL(membershipsUrl);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setDoOutput(true);
+        connection.setDoInput(true);
+        connection.setInstanceFollowRedirects(false); 
+        connection.setRequestMethod("POST");
+        connection.setUseCaches (false);
+        BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream()));
+        bw.write(OAuth.formEncode(om.getParameters()));
+        bw.flush();
+        bw.close();
+
+        return readMembershipsResponse(connection);
     }
 
-    private final void synchronizeMoodleExtSiteMemberships(final Site site, final String membershipsId, final String membershipsUrl, final String oauth_consumer_key, boolean isEmailTrustedConsumer) {
-
-        // Lookup the secret
-        final String configPrefix = "basiclti.provider." + oauth_consumer_key + ".";
-        final String oauth_secret = serverConfigurationService.getString(configPrefix+ "secret", null);
-        if (oauth_secret == null) {
-            log.error("launch.key.notfound {}. This site's memberships will NOT be synchronised.", oauth_consumer_key);
-            return;
-        }
+    private POXMembershipsResponse fetchMoodleExtMemberships(final String membershipsId, final String membershipsUrl, final String oauth_consumer_key, final String oauth_secret) throws Exception {
 
         String type = "readMembershipsWithGroups";
         String uuid = UUID.randomUUID().toString();
@@ -202,44 +212,45 @@ public class SiteMembershipsSynchroniserImpl implements SiteMembershipsSynchroni
 
         OAuthConsumer oc = new OAuthConsumer(null, oauth_consumer_key, oauth_secret, null);
 
-        try {
-            OAuthSignatureMethod osm = OAuthSignatureMethod.newMethod("HMAC-SHA1",new OAuthAccessor(oc));
-            osm.sign(om);
-
-            String authzHeader = om.getAuthorizationHeader(null);
-
-            if(log.isDebugEnabled()) log.debug("AUTHZ HEADER: {}", authzHeader);
-
-            URL url = new URL(membershipsUrl);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setDoOutput(true);
-            connection.setDoInput(true);
-            connection.setInstanceFollowRedirects(false); 
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Authorization", authzHeader);
-            connection.setRequestProperty("Content-Length", "" + Integer.toString(callXml.getBytes().length));
-            connection.setRequestProperty("Content-Type", "text/xml");
-            connection.setUseCaches (false);
-            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream()));
-            bw.write(callXml);
-            bw.flush();
-            bw.close();
-
-            processMembershipsResponse(connection, site, oauth_consumer_key, isEmailTrustedConsumer);
-        } catch (Exception e) {
-            log.warn("Problem synchronizing Mooodle memberships.", e);
-        }
+        OAuthSignatureMethod osm = OAuthSignatureMethod.newMethod("HMAC-SHA1",new OAuthAccessor(oc));
+        osm.sign(om);
+
+        String authzHeader = om.getAuthorizationHeader(null);
+
+        if(log.isDebugEnabled()) log.debug("AUTHZ HEADER: {}", authzHeader);
+
+        URL url = new URL(membershipsUrl);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setDoOutput(true);
+        connection.setDoInput(true);
+        connection.setInstanceFollowRedirects(false); 
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Authorization", authzHeader);
+        connection.setRequestProperty("Content-Length", "" + Integer.toString(callXml.getBytes().length));
+        connection.setRequestProperty("Content-Type", "text/xml");
+        connection.setUseCaches (false);
+        BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream()));
+        bw.write(callXml);
+        bw.flush();
+        bw.close();
+
+        return readMembershipsResponse(connection);
     }
 
-    private void processMembershipsResponse(HttpURLConnection connection, Site site, String oauth_consumer_key, boolean isEmailTrustedConsumer) throws Exception {
-
-        log.debug("processMembershipsResponse");
+    private POXMembershipsResponse readMembershipsResponse(HttpURLConnection connection) throws Exception {
 
         BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream()));
         POXMembershipsResponse poxMembershipsResponse = new POXMembershipsResponse(br);
 
         connection.disconnect();
 
+        return poxMembershipsResponse;
+    }
+
+    private Outcome processMembershipsResponse(POXMembershipsResponse poxMembershipsResponse, Site site, String oauth_consumer_key, boolean isEmailTrustedConsumer) throws Exception {
+
+        log.debug("processMembershipsResponse");
+
         List<POXMembershipsResponse.Member> members = poxMembershipsResponse.getMembers();
 
         Map<String,List<POXMembershipsResponse.Member>> consumerGroups = poxMembershipsResponse.getGroups();
@@ -262,8 +273,8 @@ public class SiteMembershipsSynchroniserImpl implements SiteMembershipsSynchroni
             }
         }
 
-        site.removeMembers();
-
+        // Find the Sakai users for the whole roster at once
+        List<Map> payloads = new ArrayList<Map>();
         for (POXMembershipsResponse.Member member : members) {
 
             Map map = new HashMap();
@@ -274,10 +285,47 @@ public class SiteMembershipsSynchroniserImpl implements SiteMembershipsSynchroni
             map.put(BasicLTIConstants.ROLES, member.role);
             map.put(OAuth.OAUTH_CONSUMER_KEY, oauth_consumer_key);
             map.put("tool_id", "n/a");
-
-            User user = userFinderOrCreator.findOrCreateUser(map, false,isEmailTrustedConsumer);
+            payloads.add(map);
+        }
+        Map<String, User> users = userFinderOrCreator.findOrCreateUsers(payloads, false, isEmailTrustedConsumer);
+
+        // Work out the site roles the consumer's roster maps to. The mapping only depends on
+        // the LTI role for users who are not yet members, which is how the roster is applied.
+        Map<String, String> siteRoles = new HashMap<String, String>();
+        Map<String, String> mappedRoles = new HashMap<String, String>();
+        for (int i = 0; i < members.size(); i++) {
+            POXMembershipsResponse.Member member = members.get(i);
+            Map payload = payloads.get(i);
+            User user = users.get(member.userId);
             member.userId = user.getId();
-            siteMembershipUpdater.addOrUpdateSiteMembership(map, false, user, site);
+
+            String ltiRole = (String) payload.get(BasicLTIConstants.ROLES);
+            String siteRole = mappedRoles.get(ltiRole);
+            if (siteRole == null) {
+                siteRole = roleMapper.mapLTIRole(payload, user, withoutMember(site, user.getId()), false).getValue();
+                mappedRoles.put(ltiRole, siteRole);
+            }
+            siteRoles.put(user.getId(), siteRole);
+        }
+
+        Map<String, Map<String, String>> groupRoles = new HashMap<String, Map<String, String>>();
+        for (String consumerGroupTitle : consumerGroups.keySet()) {
+            Map<String, String> roles = new HashMap<String, String>();
+            for (POXMembershipsResponse.Member consumerGroupMember : consumerGroups.get(consumerGroupTitle)) {
+                roles.put(consumerGroupMember.userId, consumerGroupMember.role);
+            }
+            groupRoles.put(consumerGroupTitle, roles);
+        }
+
+        if (siteRoles.equals(getMemberRoles(site)) && groupRoles.equals(getGroupRoles(site))) {
+            log.debug("Memberships unchanged for site={}", site.getId());
+            return Outcome.UNCHANGED;
+        }
+
+        site.removeMembers();
+
+        for (Map.Entry<String, String> siteRole : siteRoles.entrySet()) {
+            site.addMember(siteRole.getKey(), siteRole.getValue(), true, false);
         }
 
         // Do this so we don't get a concurrent mod exception
@@ -285,10 +333,11 @@ public class SiteMembershipsSynchroniserImpl implements SiteMembershipsSynchroni
 
         // Remove the existing groups
         for (Iterator i = groups.iterator(); i.hasNext(); ) {
+            Group group = (Group) i.next();
             try {
-                site.deleteGroup((Group) i.next());
+                site.deleteGroup(group);
             } catch (IllegalStateException e) {
-                log.error(".processMembershipsResponse: Group with id {} cannot be removed because is locked", ((Group) i).getId());
+                log.error(".processMembershipsResponse: Group with id {} cannot be removed because is locked", group.getId());
             }
         }
 
@@ -318,11 +367,59 @@ public class SiteMembershipsSynchroniserImpl implements SiteMembershipsSynchroni
         try {
             siteService.save(site);
             log.info("Updated  site={}", site.getId());
+            return Outcome.UPDATED;
         } catch (Exception e) {
             //M_log.error("Failed to add group '" + consumerGroupTitle + "' to site", e);
             log.info("Failed to update site={}", site.getId());
+            return Outcome.FAILED;
         } finally {
             popAdvisor();
         }
     }
+
+    /**
+     * The role mapper keeps the current role of existing members, but the roster replaces
+     * the memberships, so map roles against a copy of the site without the user.
+     */
+    private Site withoutMember(Site site, String userId) throws Exception {
+        if (site.getMember(userId) == null) return site;
+        Site copy = siteService.getSite(site.getId());
+        copy.removeMember(userId);
+        return copy;
+    }
+
+    /**
+     * @return the role of each active, non provided member of the site - as the roster would leave them
+     */
+    private Map<String, String> getMemberRoles(Site site) {
+        Map<String, String> roles = new HashMap<String, String>();
+        for (Member member : site.getMembers()) {
+            if (member.isActive() && !member.isProvided()) {
+                roles.put(member.getUserId(), member.getRole().getId());
+            } else {
+                // Anything else is changed by applying the roster
+                roles.put(member.getUserId(), null);
+            }
+        }
+        return roles;
+    }
+
+    /**
+     * @return the member roles of each group, by title. Groups sharing a title make it unmatchable.
+     */
+    private Map<String, Map<String, String>> getGroupRoles(Site site) {
+        Map<String, Map<String, String>> groupRoles = new HashMap<String, Map<String, String>>();
+        for (Group group : site.getGroups()) {
+            if (groupRoles.containsKey(group.getTitle())) {
+                groupRoles.put(group.getTitle(), null);
+                continue;
+            }
+            Map<String, String> roles = new HashMap<String, String>();
+            for (Member member : group.getMembers()) {
+                roles.put(member.getUserId(), member.getRole().getId());
+            }
+            groupRoles.put(group.getTitle(), roles);
+        }
+        return groupRoles;
+    }
 }
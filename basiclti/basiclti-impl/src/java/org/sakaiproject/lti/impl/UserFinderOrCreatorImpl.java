@@ -17,6 +17,8 @@
 package org.sakaiproject.lti.impl;
 
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import lombok.extern.slf4j.Slf4j;
@@ -132,6 +134,37 @@ public class UserFinderOrCreatorImpl implements UserFinderOrCreator {
         return user;
     }
 
+    public Map<String, User> findOrCreateUsers(List<Map> payloads, boolean trustedConsumer, boolean emailtrusted) throws LTIException {
+
+        Map<String, User> users = new HashMap<String, User>();
+
+        // Only users found by eid can be looked up together, the others go one by one
+        Map<String, Map> payloadsByEid = new HashMap<String, Map>();
+        for (Map payload : payloads) {
+            String user_id = (String) payload.get(BasicLTIConstants.USER_ID);
+            if (trustedConsumer || emailtrusted) {
+                users.put(user_id, findOrCreateUser(payload, trustedConsumer, emailtrusted));
+            } else {
+                payloadsByEid.put(getEid(payload, trustedConsumer, user_id), payload);
+            }
+        }
+
+        if (!payloadsByEid.isEmpty()) {
+            for (User user : userDirectoryService.getUsersByEids(payloadsByEid.keySet())) {
+                Map payload = payloadsByEid.remove(user.getEid());
+                if (payload != null) {
+                    users.put((String) payload.get(BasicLTIConstants.USER_ID), user);
+                }
+            }
+            // Whoever is left needs an account
+            for (Map payload : payloadsByEid.values()) {
+                users.put((String) payload.get(BasicLTIConstants.USER_ID), findOrCreateUser(payload, trustedConsumer, emailtrusted));
+            }
+        }
+
+        return users;
+    }
+
     private String getEid(Map payload, boolean trustedConsumer, String user_id) throws LTIException {
 
         String eid;
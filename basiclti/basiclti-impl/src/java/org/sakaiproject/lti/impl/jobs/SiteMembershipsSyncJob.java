@@ -15,8 +15,17 @@
  */
 package org.sakaiproject.lti.impl.jobs;
 
+import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -24,13 +33,19 @@ import org.quartz.JobExecutionContext;
 import org.quartz.JobExecutionException;
 import org.quartz.StatefulJob;
 
+import org.sakaiproject.api.app.scheduler.JobPartition;
+import org.sakaiproject.api.app.scheduler.JobPartitionManager;
 import org.sakaiproject.basiclti.util.SakaiLTIProviderUtil;
 import org.sakaiproject.lti.api.LTIService;
 import org.sakaiproject.lti.api.SiteMembershipsSynchroniser;
+import org.sakaiproject.lti.api.SiteMembershipsSynchroniser.Outcome;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
 
 @Slf4j
 public class SiteMembershipsSyncJob implements StatefulJob {
-	
+
+    public static final String PARTITIONED_JOB_NAME = "ltiSiteMemberships";
+
     private LTIService ltiService = null;
     public void setLtiService(LTIService ltiService) {
         this.ltiService = ltiService;
@@ -41,22 +56,141 @@ public class SiteMembershipsSyncJob implements StatefulJob {
         this.siteMembershipsSynchroniser = siteMembershipsSynchroniser;
     }
 
+    private ThreadLocalManager threadLocalManager = null;
+    public void setThreadLocalManager(ThreadLocalManager threadLocalManager) {
+        this.threadLocalManager = threadLocalManager;
+    }
+
+    /**
+     * The number of sites synchronised at the same time. Each one waits on its consumer,
+     * so a slow consumer only holds up its own sites.
+     */
+    private int syncThreads = 4;
+    public void setSyncThreads(int syncThreads) {
+        this.syncThreads = syncThreads;
+    }
+
+    private JobPartitionManager jobPartitionManager = null;
+    public void setJobPartitionManager(JobPartitionManager jobPartitionManager) {
+        this.jobPartitionManager = jobPartitionManager;
+    }
+
+    /**
+     * The number of partitions the sites are split into so that every server in the cluster
+     * synchronises some of them, 0 to have the server the job fires on do them all.
+     */
+    private int partitions = 8;
+    public void setPartitions(int partitions) {
+        this.partitions = partitions;
+    }
+
+    public void init() {
+        if (jobPartitionManager != null && partitions > 0) {
+            jobPartitionManager.registerWorker(PARTITIONED_JOB_NAME, this::syncPartition);
+        }
+    }
+
+    public void destroy() {
+        if (jobPartitionManager != null) {
+            jobPartitionManager.unregisterWorker(PARTITIONED_JOB_NAME);
+        }
+    }
+
 	public void execute(JobExecutionContext context) throws JobExecutionException {
 		
         log.info("SiteMembershipsSyncJob.execute");
 
-        // Get the current list of jobs
-        List<Map<String, Object>> jobs = ltiService.getMembershipsJobs();
-
-        for (Map<String, Object> job : jobs) {
-            String siteId = (String) job.get("SITE_ID");
-            String membershipsId = (String) job.get("memberships_id");
-            String membershipsUrl = (String) job.get("memberships_url");
-            String consumerKey = (String) job.get("consumerkey");
-            String ltiVersion = (String) job.get("lti_version");
-            boolean isEmailTrustedConsumer= SakaiLTIProviderUtil.isEmailTrustedConsumer(consumerKey);
+        if (jobPartitionManager != null && partitions > 0) {
+            // The other servers pick up the partitions we don't get to first
+            jobPartitionManager.startRun(PARTITIONED_JOB_NAME, partitions);
+            int processed = jobPartitionManager.processPartitions(PARTITIONED_JOB_NAME);
+            log.info("Synchronised {} of {} partitions of the sites on this server", processed, partitions);
+            return;
+        }
 
-            siteMembershipsSynchroniser.synchroniseSiteMemberships(siteId, membershipsId, membershipsUrl, consumerKey, isEmailTrustedConsumer,ltiVersion);
+        try {
+            sync(ltiService.getMembershipsJobs(), null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JobExecutionException(e);
         }
 	}
+
+    private void syncPartition(JobPartition partition) throws InterruptedException {
+        List<Map<String, Object>> jobs = ltiService.getMembershipsJobs().stream()
+                .filter(job -> partition.contains((String) job.get("SITE_ID")))
+                .collect(Collectors.toList());
+        jobPartitionManager.progress(partition, 0, jobs.size());
+        sync(jobs, partition);
+    }
+
+    /**
+     * @param partition the partition the sites belong to, to report progress on, or null
+     */
+    private void sync(List<Map<String, Object>> jobs, JobPartition partition) throws InterruptedException {
+        if (jobs.isEmpty()) return;
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(syncThreads, jobs.size())), r -> {
+            Thread thread = new Thread(r, "[LTI memberships sync " + threadCount.incrementAndGet() + "]");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long start = System.currentTimeMillis();
+        List<Future<Outcome>> results = new ArrayList<Future<Outcome>>();
+        try {
+            for (Map<String, Object> job : jobs) {
+                results.add(executor.submit(syncTask(job)));
+            }
+
+            Map<Outcome, Integer> counts = new EnumMap<Outcome, Integer>(Outcome.class);
+            for (Outcome outcome : Outcome.values()) counts.put(outcome, 0);
+            int done = 0;
+            for (Future<Outcome> result : results) {
+                Outcome outcome;
+                try {
+                    outcome = result.get();
+                } catch (ExecutionException e) {
+                    log.warn("Memberships sync failed", e.getCause());
+                    outcome = Outcome.FAILED;
+                }
+                counts.put(outcome, counts.get(outcome) + 1);
+                if (partition != null && !jobPartitionManager.progress(partition, ++done, jobs.size())) {
+                    log.warn("Giving up on {}, another server has taken it over", partition);
+                    return;
+                }
+            }
+
+            log.info("Synchronised memberships of {} sites in {}ms: {} updated, {} unchanged, {} failed",
+                    jobs.size(), System.currentTimeMillis() - start,
+                    counts.get(Outcome.UPDATED), counts.get(Outcome.UNCHANGED), counts.get(Outcome.FAILED));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Callable<Outcome> syncTask(Map<String, Object> job) {
+
+        String siteId = (String) job.get("SITE_ID");
+        String membershipsId = (String) job.get("memberships_id");
+        String membershipsUrl = (String) job.get("memberships_url");
+        String consumerKey = (String) job.get("consumerkey");
+        String ltiVersion = (String) job.get("lti_version");
+
+        return () -> {
+            long start = System.currentTimeMillis();
+            try {
+                boolean isEmailTrustedConsumer= SakaiLTIProviderUtil.isEmailTrustedConsumer(consumerKey);
+
+                Outcome outcome = siteMembershipsSynchroniser.synchroniseSiteMemberships(siteId, membershipsId, membershipsUrl, consumerKey, isEmailTrustedConsumer,ltiVersion);
+                log.info("Memberships sync site={} {} in {}ms", siteId, outcome, System.currentTimeMillis() - start);
+                return outcome;
+            } finally {
+                if (threadLocalManager != null) {
+                    threadLocalManager.clear();
+                }
+            }
+        };
+    }
 }
@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2009-2017 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.lti.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.StringReader;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.tsugi.basiclti.BasicLTIConstants;
+
+import org.sakaiproject.authz.api.Member;
+import org.sakaiproject.authz.api.Role;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.component.cover.ComponentManager;
+import org.sakaiproject.lti.api.LTIRoleMapper;
+import org.sakaiproject.lti.api.SiteMembershipsSynchroniser.Outcome;
+import org.sakaiproject.lti.api.UserFinderOrCreator;
+import org.sakaiproject.lti.extensions.POXMembershipsResponse;
+import org.sakaiproject.site.api.Site;
+import org.sakaiproject.site.api.SiteService;
+import org.sakaiproject.user.api.User;
+
+public class SiteMembershipsSynchroniserImplTest {
+
+    private static final String ROSTER =
+        "<message_response><members>"
+        + "<member><user_id>lti-1</user_id><person_name_given>Ann</person_name_given>"
+        + "<person_name_family>Smith</person_name_family><roles>Learner</roles></member>"
+        + "</members></message_response>";
+
+    private SiteMembershipsSynchroniserImpl synchroniser;
+    private SiteService siteService;
+    private Site site;
+    private String roster = ROSTER;
+
+    @Before
+    public void setUp() throws Exception {
+        ComponentManager.testingMode = true;
+
+        // Answers from a stand-in for the consumer's memberships endpoint
+        synchroniser = new SiteMembershipsSynchroniserImpl() {
+            @Override
+            protected POXMembershipsResponse fetchMemberships(String membershipsId, String membershipsUrl, String oauth_consumer_key, String oauth_secret, String callbackType) throws Exception {
+                if (roster == null) throw new java.io.IOException("Connection refused");
+                return new POXMembershipsResponse(new StringReader(roster));
+            }
+        };
+
+        site = mock(Site.class);
+        when(site.getId()).thenReturn("site-1");
+        when(site.getGroups()).thenReturn(Collections.emptyList());
+        siteService = mock(SiteService.class);
+        when(siteService.getSite("site-1")).thenReturn(site);
+        synchroniser.setSiteService(siteService);
+
+        ServerConfigurationService serverConfigurationService = mock(ServerConfigurationService.class);
+        when(serverConfigurationService.getString("basiclti.provider.key.secret", null)).thenReturn("secret");
+        synchroniser.setServerConfigurationService(serverConfigurationService);
+
+        User user = mock(User.class);
+        when(user.getId()).thenReturn("user-1");
+        UserFinderOrCreator userFinderOrCreator = mock(UserFinderOrCreator.class);
+        when(userFinderOrCreator.findOrCreateUsers(anyList(), eq(false), eq(false)))
+            .thenReturn(Collections.singletonMap("lti-1", user));
+        synchroniser.setUserFinderOrCreator(userFinderOrCreator);
+
+        LTIRoleMapper roleMapper = mock(LTIRoleMapper.class);
+        when(roleMapper.mapLTIRole(anyMap(), eq(user), any(Site.class), eq(false)))
+            .thenReturn(new AbstractMap.SimpleImmutableEntry<String, String>("learner", "access"));
+        synchroniser.setRoleMapper(roleMapper);
+    }
+
+    private Outcome synchronise() {
+        return synchroniser.synchroniseSiteMemberships("site-1", "memberships-1", "http://consumer/memberships", "key", false, BasicLTIConstants.LTI_VERSION_1);
+    }
+
+    @Test
+    public void testNewMemberIsAddedAndSaved() throws Exception {
+        when(site.getMembers()).thenReturn(Collections.<Member>emptySet());
+
+        assertEquals(Outcome.UPDATED, synchronise());
+        verify(site).addMember("user-1", "access", true, false);
+        verify(siteService, times(1)).save(site);
+    }
+
+    @Test
+    public void testUnchangedSiteIsNotSaved() throws Exception {
+        Member member = mock(Member.class);
+        Role role = mock(Role.class);
+        when(role.getId()).thenReturn("access");
+        when(member.getUserId()).thenReturn("user-1");
+        when(member.getRole()).thenReturn(role);
+        when(member.isActive()).thenReturn(true);
+        Set<Member> members = new HashSet<Member>();
+        members.add(member);
+        when(site.getMembers()).thenReturn(members);
+
+        assertEquals(Outcome.UNCHANGED, synchronise());
+        verify(site, never()).removeMembers();
+        verify(siteService, never()).save(any(Site.class));
+    }
+
+    @Test
+    public void testUnreachableConsumerFails() throws Exception {
+        roster = null;
+
+        assertEquals(Outcome.FAILED, synchronise());
+        verify(siteService, never()).save(any(Site.class));
+    }
+}
@@ -70,6 +70,7 @@ import org.sakaiproject.basiclti.util.SakaiBLTIUtil;
 import org.sakaiproject.basiclti.util.SakaiCASAUtil;
 import org.sakaiproject.basiclti.util.SakaiContentItemUtil;
 import org.sakaiproject.basiclti.util.SakaiLTIProviderUtil;
+import org.sakaiproject.basiclti.util.SakaiOAuthValidator;
 import org.sakaiproject.basiclti.util.LegacyShaUtil;
 import org.sakaiproject.component.cover.ComponentManager;
 import org.sakaiproject.component.cover.ServerConfigurationService;
@@ -665,26 +666,20 @@ public class ProviderServlet extends HttpServlet {
         	  } catch (URISyntaxException use) {
         	  }
           }
-          final OAuthValidator oav = new SimpleOAuthValidator();
+          final OAuthValidator oav = new SakaiOAuthValidator("launch");
           final OAuthConsumer cons = new OAuthConsumer("about:blank#OAuth+CallBack+NotUsed", oauth_consumer_key,oauth_secret, null);
 
           final OAuthAccessor acc = new OAuthAccessor(cons);
 
-          String base_string = null;
-          try {
-              base_string = OAuthSignatureMethod.getBaseString(oam);
-          } catch (Exception e) {
-              log.error(e.getLocalizedMessage(), e);
-              base_string = null;
-          }
-
           try {
               oav.validateMessage(oam, acc);
           } catch (Exception e) {
               log.warn("Provider failed to validate message");
               log.warn(e.getLocalizedMessage(), e);
-              if (base_string != null) {
-                  log.warn(base_string);
+              try {
+                  log.warn(OAuthSignatureMethod.getBaseString(oam));
+              } catch (Exception be) {
+                  log.error(be.getLocalizedMessage(), be);
               }
               throw new LTIException( "launch.no.validate", context_id, e);
           }
@@ -913,7 +908,7 @@ public class ProviderServlet extends HttpServlet {
 
 
 	public void destroy() {
-
+		SakaiOAuthValidator.logStatistics();
 	}
 
 
@@ -20,7 +20,6 @@ import java.io.UnsupportedEncodingException;
 import java.security.GeneralSecurityException;
 import java.util.Arrays;
 
-import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -71,10 +70,8 @@ class HMAC_SHA256 extends OAuthSignatureMethod {
             }
             key = this.key;
         }
-        Mac mac = Mac.getInstance(MAC_NAME);
-        mac.init(key);
         byte[] text = baseString.getBytes(ENCODING);
-        return mac.doFinal(text);
+        return MacPool.doFinal(key, text);
     }
 
     /** ISO-8859-1 or US-ASCII would work, too. */
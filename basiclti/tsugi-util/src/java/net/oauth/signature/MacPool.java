@@ -0,0 +1,63 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.oauth.signature;
+
+import java.security.GeneralSecurityException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+/**
+ * The Mac instances of each thread, ready initialized with the keys the thread
+ * used most recently. A signer is made for every message, so without these every
+ * signature would look up the provider and set up the key again.
+ */
+class MacPool {
+
+    /** The most keys each thread keeps a Mac for. */
+    static final int KEYS_PER_THREAD = 16;
+
+    private static final ThreadLocal<Map<SecretKey, Mac>> MACS = new ThreadLocal<Map<SecretKey, Mac>>();
+
+    private MacPool() {
+    }
+
+    /** Sign the text with the key, using a Mac this thread set up earlier for the key if there is one. */
+    static byte[] doFinal(SecretKey key, byte[] text) throws GeneralSecurityException {
+        Map<SecretKey, Mac> macs = MACS.get();
+        if (macs == null) {
+            macs = new LinkedHashMap<SecretKey, Mac>(KEYS_PER_THREAD * 2, 0.75f, true);
+            MACS.set(macs);
+        }
+        Mac mac = macs.get(key);
+        if (mac == null) {
+            mac = Mac.getInstance(key.getAlgorithm());
+            mac.init(key);
+            if (macs.size() >= KEYS_PER_THREAD) {
+                // Forget the key used least recently
+                Iterator<SecretKey> eldest = macs.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+            macs.put(key, mac);
+        }
+        // doFinal() leaves the Mac ready for the next text with the same key
+        return mac.doFinal(text);
+    }
+
+}
@@ -166,6 +166,10 @@ package org.tsugi.basiclti;
  *     ...
  *    }
  *   
+ * The methods that take or return XML as a String stream it with StAX rather than building
+ * a DOM, which matters when every LTI service call goes through here.  The maps and the XML
+ * are the same either way - setStreaming(false) goes back to the DOM for everything.
+ *
  * This class has static unit tests built in and a static main that can run the sample code and produce
  * output.  This is to insure that the jar file is 100% Self-contained.
  * 
@@ -175,6 +179,7 @@ package org.tsugi.basiclti;
 
 import java.io.ByteArrayOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -185,6 +190,10 @@ import java.util.Iterator;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.OutputKeys;
 
 import lombok.extern.slf4j.Slf4j;
@@ -202,9 +211,36 @@ import org.w3c.dom.NamedNodeMap;
  */
 @Slf4j
 public class XMLMap {	
+	// Asks the JDK StAX parser to report CDATA apart from the text around it, as the DOM does
+	private static final String REPORT_CDATA = "http://java.sun.com/xml/stream/properties/report-cdata-event";
+
+	private static volatile boolean streaming = true;
+
+	private static final XMLInputFactory inputFactory = newInputFactory();
+
+	/**
+	 * Choose whether the methods that take or return XML as a String stream it with
+	 * StAX (the default) or go through a DOM.  The methods that take or return a
+	 * DOM Node always use the DOM.
+	 */
+	public static void setStreaming(boolean stream)
+	{
+		streaming = stream;
+	}
+
+	public static boolean isStreaming()
+	{
+		return streaming;
+	}
+
 	public static Map<String,String> getMap(String str)
 	{
 		if ( str == null ) return null;
+		if ( streaming ) {
+			Map<String,String> retval = streamMap(str);
+			// Anything StAX turns down (a DTD for instance) gets a second chance with the DOM
+			if ( retval != null ) return retval;
+		}
 		Document doc = documentFromString(str);
 		if ( doc == null ) return null;
 		return getMap(doc);
@@ -245,6 +281,10 @@ public class XMLMap {
 	public static Map<String,Object> getFullMap(String str)
 	{
 		if ( str == null ) return null;
+		if ( streaming ) {
+			Map<String,Object> retval = streamFullMap(str);
+			if ( retval != null ) return retval;
+		}
 		Document doc = documentFromString(str);
 		if ( doc == null ) return null;
 		return getObjectMap(doc, true);
@@ -273,6 +313,200 @@ public class XMLMap {
 		}
 	}
 
+	// A Utility Method we expose so folks can stream XML with the same settings as we do
+	public static XMLStreamReader createXMLStreamReader(String input) throws XMLStreamException
+	{
+		return inputFactory.createXMLStreamReader(new StringReader(input));
+	}
+
+	private static XMLInputFactory newInputFactory()
+	{
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		if ( factory.isPropertySupported(REPORT_CDATA) ) factory.setProperty(REPORT_CDATA, Boolean.TRUE);
+		return factory;
+	}
+
+	// The name of the element the reader is on as the DOM names it - prefix and all
+	public static String getNodeName(XMLStreamReader reader)
+	{
+		return qualifiedName(reader.getPrefix(), reader.getLocalName());
+	}
+
+	// Namespace declarations are attributes to the DOM, which does not know about namespaces
+	private static String namespaceName(String prefix)
+	{
+		if ( prefix == null || prefix.length() < 1 ) return "xmlns";
+		return "xmlns:" + prefix;
+	}
+
+	private static String qualifiedName(String prefix, String localName)
+	{
+		if ( prefix == null || prefix.length() < 1 ) return localName;
+		return prefix + ":" + localName;
+	}
+
+	/**
+	 * Read the element the reader is on into a map, as getMap(Node) does for an Element.
+	 * The reader is left on the end tag of the element.
+	 */
+	public static Map<String,String> getMap(XMLStreamReader reader) throws XMLStreamException
+	{
+		Map<String,String> tm = new TreeMap<String,String>();
+		streamElement(tm, "", reader);
+		return tm;
+	}
+
+	private static Map<String,String> streamMap(String str)
+	{
+		XMLStreamReader reader = null;
+		try {
+			reader = createXMLStreamReader(str);
+			Map<String,String> tm = new TreeMap<String,String>();
+			while ( reader.hasNext() ) {
+				if ( reader.next() == XMLStreamConstants.START_ELEMENT ) {
+					streamElement(tm, addSlash("")+getNodeName(reader), reader);
+				}
+			}
+			return tm;
+		} catch (XMLStreamException e) {
+			log.debug("Could not stream XML: {}", e.getMessage());
+			return null;
+		} finally {
+			closeQuietly(reader);
+		}
+	}
+
+	private static Map<String,Object> streamFullMap(String str)
+	{
+		XMLStreamReader reader = null;
+		try {
+			reader = createXMLStreamReader(str);
+			XNode document = new XNode(null);
+			while ( reader.hasNext() ) {
+				if ( reader.next() == XMLStreamConstants.START_ELEMENT ) {
+					document.addChild(readNode(reader));
+				}
+			}
+			Map<String,Object> tm = new TreeMap<String,Object>();
+			recurse(tm, "", document);
+			return tm;
+		} catch (XMLStreamException e) {
+			log.debug("Could not stream XML: {}", e.getMessage());
+			return null;
+		} finally {
+			closeQuietly(reader);
+		}
+	}
+
+	private static void closeQuietly(XMLStreamReader reader)
+	{
+		if ( reader == null ) return;
+		try {
+			reader.close();
+		} catch (XMLStreamException e) {
+			log.debug("Could not close reader: {}", e.getMessage());
+		}
+	}
+
+	// The streaming version of recurse() for a map that is not full - the reader
+	// starts on the element for path and is left on its end tag.
+	private static void streamElement(Map<String,String> tm, String path, XMLStreamReader reader) throws XMLStreamException
+	{
+		for (int i = 0; i < reader.getNamespaceCount(); i++ ) {
+			putAttribute(tm, path, namespaceName(reader.getNamespacePrefix(i)), reader.getNamespaceURI(i));
+		}
+		for (int i = 0; i < reader.getAttributeCount(); i++ ) {
+			putAttribute(tm, path, qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)), reader.getAttributeValue(i));
+		}
+
+		// Like the DOM version we only keep the first run of text and only
+		// traverse the first child with the same name
+		StringBuilder text = null;
+		boolean textDone = false;
+		Set<String> done = null;
+		while ( true ) {
+			int event = reader.next();
+			if ( event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.SPACE ) {
+				if ( textDone ) continue;
+				if ( text == null ) text = new StringBuilder();
+				text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+				continue;
+			}
+			if ( text != null && ! textDone ) {
+				if ( ! isBlank(text) ) tm.put(path, text.toString());
+				textDone = true;
+			}
+			if ( event == XMLStreamConstants.END_ELEMENT ) return;
+			if ( event != XMLStreamConstants.START_ELEMENT ) continue;
+
+			String name = getNodeName(reader);
+			if ( done == null ) done = new HashSet<String>();
+			if ( done.add(name) ) {
+				streamElement(tm, addSlash(path)+name, reader);
+			} else {
+				skipElement(reader);
+			}
+		}
+	}
+
+	private static void skipElement(XMLStreamReader reader) throws XMLStreamException
+	{
+		int depth = 1;
+		while ( depth > 0 ) {
+			int event = reader.next();
+			if ( event == XMLStreamConstants.START_ELEMENT ) depth++;
+			else if ( event == XMLStreamConstants.END_ELEMENT ) depth--;
+		}
+	}
+
+	// Read the element the reader is on into an XNode for a full map
+	private static XNode readNode(XMLStreamReader reader) throws XMLStreamException
+	{
+		XNode node = new XNode(getNodeName(reader));
+		for (int i = 0; i < reader.getNamespaceCount(); i++ ) {
+			node.setAttribute(namespaceName(reader.getNamespacePrefix(i)), reader.getNamespaceURI(i));
+		}
+		for (int i = 0; i < reader.getAttributeCount(); i++ ) {
+			node.setAttribute(qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)), reader.getAttributeValue(i));
+		}
+
+		StringBuilder text = null;
+		boolean textDone = false;
+		while ( true ) {
+			int event = reader.next();
+			if ( event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.SPACE ) {
+				if ( textDone ) continue;
+				if ( text == null ) text = new StringBuilder();
+				text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+				continue;
+			}
+			if ( text != null && ! textDone ) {
+				if ( ! isBlank(text) ) node.text = text.toString();
+				textDone = true;
+			}
+			if ( event == XMLStreamConstants.END_ELEMENT ) return node;
+			if ( event == XMLStreamConstants.START_ELEMENT ) node.addChild(readNode(reader));
+		}
+	}
+
+	private static void putAttribute(Map<String, ? super String> tm, String path, String name, String value)
+	{
+		if ( name == null || isBlank(name) || value == null || isBlank(value) ) return;
+		tm.put(path+"!"+name, value);
+	}
+
+	private static boolean isBlank(CharSequence value)
+	{
+		for (int i = 0; i < value.length(); i++ ) {
+			if ( value.charAt(i) > ' ' ) return false;
+		}
+		return true;
+	}
+
 	private static String addSlash(String path)
 	{
 		if ( path == null ) return "/";
@@ -283,7 +517,7 @@ public class XMLMap {
 	@SuppressWarnings({ "unused", "static-access" })
 	private static void recurse(Map<String, Object> tm, String path, Node parentNode, boolean doFull, int d) 
 	{
-		log.debug("> recurse path={} parentNode={}", path, nodeToString(parentNode));
+		if ( log.isDebugEnabled() ) log.debug("> recurse path={} parentNode={}", path, nodeToString(parentNode));
 		d++;
 
 		NodeList nl = parentNode.getChildNodes();
@@ -337,7 +571,7 @@ public class XMLMap {
 				}
 			}
 			d--;
-			log.debug("< recurse path={} parentNode={}", path, nodeToString(parentNode));
+			if ( log.isDebugEnabled() ) log.debug("< recurse path={} parentNode={}", path, nodeToString(parentNode));
 			return;
 		}
 
@@ -406,11 +640,55 @@ public class XMLMap {
 			tm.put(path+"/"+nextChild, newList);
 		}
 		d--;
-		log.debug("< recurse path={} parentNode={}", path, nodeToString(parentNode));
+		if ( log.isDebugEnabled() ) log.debug("< recurse path={} parentNode={}", path, nodeToString(parentNode));
+	}
+
+	// The full map version of recurse() for a streamed XNode
+	private static void recurse(Map<String, Object> tm, String path, XNode parentNode)
+	{
+		if ( parentNode.text != null ) tm.put(path, parentNode.text);
+		if ( parentNode.attributes != null ) {
+			for (Map.Entry<String, String> attr : parentNode.attributes.entrySet()) {
+				putAttribute(tm, path, attr.getKey(), attr.getValue());
+			}
+		}
+		if ( parentNode.children == null ) return;
+
+		Map<String,Integer> childMap = new TreeMap<String,Integer>();
+		for (XNode node : parentNode.children) {
+			Integer count = childMap.get(node.name);
+			childMap.put(node.name, count == null ? 1 : count + 1);
+		}
+
+		Map<String,List<Map<String,Object>>> nodeMap = new TreeMap<String,List<Map<String,Object>>>();
+		for (Map.Entry<String, Integer> child : childMap.entrySet()) {
+			if ( child.getValue() < 2 ) continue;
+			nodeMap.put(child.getKey(), new ArrayList<Map<String,Object>>());
+		}
+
+		for (XNode node : parentNode.children) {
+			List<Map<String,Object>> mapList = nodeMap.get(node.name);
+			if ( mapList == null ) {
+				recurse(tm, addSlash(path)+node.name, node);
+			} else {
+				Map<String,Object> newMap = new TreeMap<String,Object>();
+				recurse(newMap, "/", node);
+				if ( newMap.size() > 0 ) mapList.add(newMap);
+			}
+		}
+
+		for (Map.Entry<String, List<Map<String,Object>>> child : nodeMap.entrySet()) {
+			if ( child.getValue().size() < 1 ) continue;
+			tm.put(path+"/"+child.getKey(), child.getValue());
+		}
 	}
 
 	public static String getXML(Map<?, ?> tm)
 	{
+		if ( streaming ) {
+			String retval = writeXML(tm, false);
+			if ( retval != null ) return retval;
+		}
 		Document document = getXMLDom(tm);
 		if ( document == null ) return null;
 		return documentToString(document, false);
@@ -428,6 +706,10 @@ public class XMLMap {
 
 	public static String getXML(Map<?, ?> tm, boolean pretty)
 	{
+		if ( streaming ) {
+			String retval = writeXML(tm, pretty);
+			if ( retval != null ) return retval;
+		}
 		Document document = getXMLDom(tm);
 		if ( document == null ) return null;
 		String retval = documentToString(document, pretty);
@@ -486,6 +768,246 @@ public class XMLMap {
 		return sb.toString();
 	}
 
+	/*
+	 * Write the XML for a map without a DOM or a Transformer.  The map is laid out in
+	 * XNodes by the same rules as getXMLDom() and written out the way the Transformer
+	 * writes the DOM.  Maps that the DOM turns down or that the Transformer has its own
+	 * ideas about (text mixed with elements, control characters, names that are not
+	 * plain ASCII) return null and are left to the DOM so that they come out the same.
+	 */
+	private static String writeXML(Map<?, ?> tm, boolean pretty)
+	{
+		if ( tm == null ) return null;
+		XNode document = new XNode(null);
+		StringBuilder sb = new StringBuilder(XML_DECLARATION);
+		try {
+			iterateMap(document, tm);
+			if ( document.children == null ) return null;
+			if ( pretty ) sb.append('\n');
+			writeNode(sb, document.children.get(0), pretty);
+		} catch (DomOnlyException e) {
+			return null;
+		}
+		if ( ! pretty ) return sb.toString();
+		sb.append('\n');
+		return prettyPostProcess(sb.toString());
+	}
+
+	private static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>";
+
+	private static void writeNode(StringBuilder sb, XNode node, boolean pretty)
+	{
+		sb.append('<').append(node.name);
+		if ( node.attributes != null ) {
+			for (Map.Entry<String, String> attr : node.attributes.entrySet()) {
+				sb.append(' ').append(attr.getKey()).append("=\"");
+				escape(sb, attr.getValue(), true);
+				sb.append('"');
+			}
+		}
+		if ( node.children == null && node.text == null ) {
+			sb.append("/>");
+			return;
+		}
+		if ( node.children != null && node.text != null ) throw new DomOnlyException();
+		sb.append('>');
+		if ( node.children != null ) {
+			for (XNode child : node.children) {
+				if ( pretty ) sb.append('\n');
+				writeNode(sb, child, pretty);
+			}
+			if ( pretty ) sb.append('\n');
+		} else {
+			escape(sb, node.text, false);
+		}
+		sb.append("</").append(node.name).append('>');
+	}
+
+	private static void escape(StringBuilder sb, String value, boolean attribute)
+	{
+		for (int i = 0; i < value.length(); i++ ) {
+			char ch = value.charAt(i);
+			switch ( ch ) {
+				case '&': sb.append("&amp;"); break;
+				case '<': sb.append("&lt;"); break;
+				case '>': sb.append("&gt;"); break;
+				case '\r': sb.append("&#13;"); break;
+				case '"': sb.append(attribute ? "&quot;" : "\""); break;
+				case '\n': sb.append(attribute ? "&#10;" : "\n"); break;
+				case '\t': sb.append(attribute ? "&#9;" : "\t"); break;
+				default:
+					if ( ch < ' ' || ( ch >= 0x7f && ch <= 0x9f ) || Character.isSurrogate(ch) ) throw new DomOnlyException();
+					sb.append(ch);
+			}
+		}
+	}
+
+	// The XNode version of iterateMap(), storeInDom(), getNodeAtPath() and getOrAddChildNode()
+	private static void iterateMap(XNode parentNode, Map<?, ?> tm)
+	{
+		for (Object k : tm.keySet()) {
+			String key = (String) k;
+			if ( key == null ) continue;
+			if ( ! key.startsWith("/") ) continue;  // Skip
+			Object obj = tm.get(key);
+			if ( obj instanceof String ) {
+				storeInTree(parentNode, key, (String) obj, 0);
+			} else if ( obj instanceof String [] ) {
+				String [] strArray = (String []) obj;
+				for(int i=0; i < strArray.length; i++ ) {
+					storeInTree(parentNode, key, strArray[i], i);
+				}
+			} else if ( obj instanceof Map ) {
+				iterateMap(getNodeAtPath(parentNode, key, 0), (Map<?, ?>) obj);
+			} else if ( obj instanceof List ) {
+				int newPos = 0;
+				for (Object listObj : (List<?>) obj) {
+					if ( listObj instanceof String ) {
+						storeInTree(parentNode, key, (String) listObj, newPos);
+						newPos++;
+					} else if ( listObj instanceof Map ) {
+						iterateMap(getNodeAtPath(parentNode, key, newPos), (Map<?, ?>) listObj);
+						newPos++;
+					}
+				}
+			}
+		}
+	}
+
+	private static void storeInTree(XNode parentNode, String key, String value, int nodePos)
+	{
+		if ( value == null ) return;
+		String [] newPath = key.split("/");
+		String nodeAttr = null;
+		for ( int i=1; i< newPath.length; i++ )
+		{
+			String nodeName = newPath[i];
+			if ( i == newPath.length-1 ) {
+				String [] nodeSplit = nodeName.split("!");
+				if ( nodeSplit.length > 1 ) {
+					nodeName = nodeSplit[0];
+					nodeAttr = nodeSplit[1];
+				}
+				parentNode = getOrAddChildNode(parentNode, nodeName, nodePos);
+			} else {
+				parentNode = getOrAddChildNode(parentNode, nodeName, 0);
+			}
+		}
+
+		if ( nodeAttr != null ) {
+			checkName(nodeAttr);
+			// The document itself takes no attributes
+			if ( parentNode.name != null ) parentNode.setAttribute(nodeAttr, value);
+		} else {
+			parentNode.addText(value);
+		}
+	}
+
+	private static XNode getNodeAtPath(XNode parentNode, String path, int nodePos)
+	{
+		String [] newPath = path.split("/");
+		for ( int i=1; i< newPath.length; i++ )
+		{
+			String nodeName = newPath[i];
+			if ( i == newPath.length-1 ) {
+				String [] nodeSplit = nodeName.split("!");
+				if ( nodeSplit.length > 1 ) nodeName = nodeSplit[0];
+				parentNode = getOrAddChildNode(parentNode, nodeName, nodePos);
+			} else {
+				parentNode = getOrAddChildNode(parentNode, nodeName, 0);
+			}
+		}
+		return parentNode;
+	}
+
+	private static XNode getOrAddChildNode(XNode parentNode, String nodeName, int whichNode)
+	{
+		// Check to see if we are somewhere in an index
+		int begpos = nodeName.indexOf('[');
+		int endpos = nodeName.indexOf(']');
+		if ( begpos > 0 && endpos > begpos && endpos < nodeName.length() ) {
+			String indStr = nodeName.substring(begpos+1,endpos);
+			nodeName = nodeName.substring(0,begpos);
+			whichNode = new Integer(indStr);
+		}
+
+		int foundNodes = -1;
+		if ( parentNode.children != null ) for (XNode node : parentNode.children) {
+			if ( nodeName.equals(node.name) ) {
+				foundNodes++;
+				if ( foundNodes >= whichNode ) return node;
+			}
+		}
+
+		checkName(nodeName);
+		XNode newNode = null;
+		while ( foundNodes < whichNode ) {
+			foundNodes++;
+			newNode = parentNode.addChild(new XNode(nodeName));
+		}
+		if ( newNode == null ) throw new DomOnlyException();
+		return newNode;
+	}
+
+	// An element when we stream - just enough for recurse() and writeXML()
+	private static class XNode
+	{
+		final String name;
+		String text;
+		Map<String, String> attributes;
+		List<XNode> children;
+
+		// The document has no name
+		XNode(String name)
+		{
+			this.name = name;
+		}
+
+		XNode addChild(XNode child)
+		{
+			if ( children == null ) {
+				children = new ArrayList<XNode>();
+			} else if ( name == null ) {
+				throw new DomOnlyException();  // Only one root element
+			}
+			children.add(child);
+			return child;
+		}
+
+		void addText(String value)
+		{
+			if ( name == null ) throw new DomOnlyException();
+			if ( value.length() < 1 ) return;
+			text = text == null ? value : text + value;
+		}
+
+		// Kept in order by name as the DOM does
+		void setAttribute(String attrName, String value)
+		{
+			if ( attributes == null ) attributes = new TreeMap<String, String>();
+			attributes.put(attrName, value);
+		}
+
+	}
+
+	// Names the DOM would take without a second look - the rest are left to it to accept or reject
+	private static void checkName(String name)
+	{
+		if ( name.length() < 1 ) throw new DomOnlyException();
+		for (int i = 0; i < name.length(); i++ ) {
+			char ch = name.charAt(i);
+			boolean ok = ( ch >= 'a' && ch <= 'z' ) || ( ch >= 'A' && ch <= 'Z' ) || ch == '_' || ch == ':';
+			if ( i > 0 ) ok = ok || ( ch >= '0' && ch <= '9' ) || ch == '-' || ch == '.';
+			if ( ! ok ) throw new DomOnlyException();
+		}
+	}
+
+	// Thrown when a map is left to the DOM version
+	private static class DomOnlyException extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+	}
+
 	public static Document getXMLDom(Map<?, ?> tm)
 	{
 		if ( tm == null ) return null;
@@ -525,7 +1047,7 @@ public class XMLMap {
 	 */
 	private static void iterateMap(Document document, Node parentNode, Map<?, ?> tm, int d)
 	{
-		log.debug("> IterateMap parentNode= {}", nodeToString(parentNode));
+		if ( log.isDebugEnabled() ) log.debug("> IterateMap parentNode= {}", nodeToString(parentNode));
 		d++;
 		Iterator<?> iter = tm.keySet().iterator();
 		while( iter.hasNext() ) {
@@ -546,9 +1068,9 @@ public class XMLMap {
 			} else if ( obj instanceof Map ) {
 				Map<?, ?> subMap = (Map<?, ?>) obj;
 				Node startNode = getNodeAtPath(document, parentNode, key, 0, d);
-				log.debug("descending into Map path={} startNode={}", key, nodeToString(startNode));
+				if ( log.isDebugEnabled() ) log.debug("descending into Map path={} startNode={}", key, nodeToString(startNode));
 				iterateMap(document, startNode, subMap, d);
-				log.debug("back from descent Map path={} startNode={}", key, nodeToString(startNode));
+				if ( log.isDebugEnabled() ) log.debug("back from descent Map path={} startNode={}", key, nodeToString(startNode));
 			} else if ( obj instanceof List ) {
 				List<?> lst = (List<?>) obj;
 				log.debug("Have a list that is this long {}", lst.size());
@@ -564,9 +1086,9 @@ public class XMLMap {
 						Map<?, ?> subMap = (Map<?, ?>) listObj;
 						log.debug("Retrieving key from  List-Map path={}@{}", key, newPos);
 						Node startNode = getNodeAtPath(document, parentNode, key, newPos, d);
-						log.debug("descending into List-Map path={}@{} startNode={}", key, newPos, nodeToString(startNode));
+						if ( log.isDebugEnabled() ) log.debug("descending into List-Map path={}@{} startNode={}", key, newPos, nodeToString(startNode));
 						iterateMap(document, startNode, subMap, d);
-						log.debug("back from descent List-Map path={}@{} startNode={}", key, newPos, nodeToString(startNode));
+						if ( log.isDebugEnabled() ) log.debug("back from descent List-Map path={}@{} startNode={}", key, newPos, nodeToString(startNode));
 						newPos++;
 					} else {
 						log.info("XMLMap Encountered an object of type {} in a List which should contain only Map objects", obj.getClass().getName());
@@ -577,16 +1099,16 @@ public class XMLMap {
 			}
 		}
 		d--;
-		log.debug("< IterateMap parentNode = {}", nodeToString(parentNode));
+		if ( log.isDebugEnabled() ) log.debug("< IterateMap parentNode = {}", nodeToString(parentNode));
 	}
 
 	private static void storeInDom(Document document, Node parentNode, String key, String value, int nodePos, int d)
 	{
-		log.debug("> storeInDom{}@{} = {} parent={}", key, nodePos, value, nodeToString(parentNode));
+		if ( log.isDebugEnabled() ) log.debug("> storeInDom{}@{} = {} parent={}", key, nodePos, value, nodeToString(parentNode));
 		d++;
 		if ( document == null || key == null || value == null ) return;
 		if ( parentNode == null ) parentNode = document;
-		log.debug("parentNode I={}", nodeToString(parentNode));
+		if ( log.isDebugEnabled() ) log.debug("parentNode I={}", nodeToString(parentNode));
 
 		String [] newPath = key.split("/");
 		log.debug("newPath = {}", outStringArray(newPath));
@@ -634,7 +1156,7 @@ public class XMLMap {
 	private static Node getNodeAtPath(Document document, Node parentNode, String path, int nodePos, int d)
 	{
 		if ( parentNode == null ) parentNode = document;
-		log.debug("> getNodeAtPath path@{}={} parentNode={}", nodePos, path, nodeToString(parentNode));
+		if ( log.isDebugEnabled() ) log.debug("> getNodeAtPath path@{}={} parentNode={}", nodePos, path, nodeToString(parentNode));
 		d++;
 
 		String [] newPath = path.split("/");
@@ -656,14 +1178,14 @@ public class XMLMap {
 			}	
 		}
 		d--;
-		log.debug("< getNodeAtPath returning={}", nodeToString(parentNode));
+		if ( log.isDebugEnabled() ) log.debug("< getNodeAtPath returning={}", nodeToString(parentNode));
 		return parentNode;
 	}
 
 	@SuppressWarnings("static-access")
 	private static Node getOrAddChildNode(Document doc, Node parentNode, String nodeName,int whichNode, int d)
 	{
-		log.debug("> getOrAddChildNode name={}@{} parentNode={}", nodeName, whichNode, nodeToString(parentNode));
+		if ( log.isDebugEnabled() ) log.debug("> getOrAddChildNode name={}@{} parentNode={}", nodeName, whichNode, nodeToString(parentNode));
 		d++;
 		if ( nodeName == null || parentNode == null) return null;
 
@@ -691,7 +1213,7 @@ public class XMLMap {
 				if ( nodeName.equals(node.getNodeName()) ) {
 					foundNodes++;
 					d--;
-					log.debug("< getOrAddChildNode found name={}", nodeToString(node));
+					if ( log.isDebugEnabled() ) log.debug("< getOrAddChildNode found name={}", nodeToString(node));
 					log.debug("foundNodes = {} looking for node={}", foundNodes, whichNode);
 					if ( foundNodes >= whichNode ) return node;
 				}
@@ -704,13 +1226,13 @@ public class XMLMap {
 			log.debug("Adding node at position {} moving toward {}", foundNodes, whichNode);
 			if ( nodeName == null ) continue;
 			newNode = doc.createElement(nodeName);
-			log.debug("Adding {} at {} in {}", nodeName, nodeToString(parentNode), doc);
+			if ( log.isDebugEnabled() ) log.debug("Adding {} at {} in {}", nodeName, nodeToString(parentNode), doc);
 			parentNode.appendChild(newNode);
-			log.debug("xml={}", documentToString(doc,false));
-			log.debug("getOrAddChildNode added newnode={}", nodeToString(newNode));
+			if ( log.isDebugEnabled() ) log.debug("xml={}", documentToString(doc,false));
+			if ( log.isDebugEnabled() ) log.debug("getOrAddChildNode added newnode={}", nodeToString(newNode));
 		}
 		d--;
-		log.debug("< getOrAddChildNode added newnode={}", nodeToString(newNode));
+		if ( log.isDebugEnabled() ) log.debug("< getOrAddChildNode added newnode={}", nodeToString(newNode));
 		return newNode;
 	}
 
@@ -12,6 +12,9 @@ import java.util.Properties;
 import java.util.TreeMap;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.xpath.XPath;
@@ -85,6 +88,7 @@ public class IMSPOXRequest {
 		MINOR_UNSUPPORTED
 	} ; 
 
+	// Only parsed into a DOM when XMLMap is not streaming
 	public Document postDom = null;
 	public Element bodyElement = null;
 	public Element headerElement = null;
@@ -240,6 +244,8 @@ public class IMSPOXRequest {
 
 	public void parsePostBody()
 	{
+		if ( XMLMap.isStreaming() && streamPostBody() ) return;
+
 		try {
 			DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
 			dbf.setFeature("http://xml.org/sax/features/external-general-entities", false); 
@@ -278,6 +284,64 @@ public class IMSPOXRequest {
 		valid = true;
 	}
 
+	// Pick the operation and the header and body maps straight out of the XML
+	// without a DOM - returns false to leave anything StAX cannot read to the DOM
+	private boolean streamPostBody()
+	{
+		XMLStreamReader reader = null;
+		try {
+			reader = XMLMap.createXMLStreamReader(postBody);
+			String envelope = null;
+			String section = null;
+			int depth = 0;
+			while ( reader.hasNext() ) {
+				int event = reader.next();
+				if ( event == XMLStreamConstants.END_ELEMENT ) {
+					depth--;
+					continue;
+				}
+				if ( event != XMLStreamConstants.START_ELEMENT ) continue;
+				depth++;
+				if ( depth == 1 ) {
+					envelope = XMLMap.getNodeName(reader);
+				} else if ( depth == 2 ) {
+					section = XMLMap.getNodeName(reader);
+				} else if ( depth == 3 && "imsx_POXEnvelopeRequest".equals(envelope) ) {
+					// Only the first element of the first body and header count
+					if ( bodyMap == null && "imsx_POXBody".equals(section) ) {
+						operation = XMLMap.getNodeName(reader);
+						bodyMap = XMLMap.getMap(reader);
+						depth--;
+					} else if ( headerMap == null && "imsx_POXHeader".equals(section) ) {
+						headerMap = XMLMap.getMap(reader);
+						depth--;
+					}
+				}
+			}
+		} catch (XMLStreamException e) {
+			log.debug("Could not stream XML: {}", e.getMessage());
+			operation = null;
+			bodyMap = null;
+			headerMap = null;
+			return false;
+		} finally {
+			if ( reader != null ) {
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {
+					log.debug("Could not close reader: {}", e.getMessage());
+				}
+			}
+		}
+
+		if ( operation == null || bodyMap == null ) {
+			errorMessage = "Could not find operation";
+			return true;
+		}
+		valid = true;
+		return true;
+	}
+
 	// Assumes data is all loaded
 	public void validateRequest(String oauth_consumer_key, String oauth_secret, HttpServletRequest request) 
 	{
@@ -285,25 +349,30 @@ public class IMSPOXRequest {
 	}
 
 	public void validateRequest(String oauth_consumer_key, String oauth_secret, HttpServletRequest request, String URL) 
+	{
+		validateRequest(oauth_consumer_key, oauth_secret, request, URL, new SimpleOAuthValidator());
+	}
+
+	// Lets the caller bring a validator that does more checking - of nonces for instance
+	public void validateRequest(String oauth_consumer_key, String oauth_secret, HttpServletRequest request, String URL, OAuthValidator oav) 
 	{
 		valid = false;
 		OAuthMessage oam = OAuthServlet.getMessage(request, URL);
-		OAuthValidator oav = new SimpleOAuthValidator();
 		OAuthConsumer cons = new OAuthConsumer("about:blank#OAuth+CallBack+NotUsed", 
 				oauth_consumer_key, oauth_secret, null);
 
 		OAuthAccessor acc = new OAuthAccessor(cons);
 
-		try {
-			base_string = OAuthSignatureMethod.getBaseString(oam);
-		} catch (Exception e) {
-			base_string = null;
-		}
-
 		try {
 			oav.validateMessage(oam,acc);
 		} catch(Exception e) {
 			errorMessage = "Launch fails OAuth validation: "+e.getMessage();
+			// Only needed to explain the failure
+			try {
+				base_string = OAuthSignatureMethod.getBaseString(oam);
+			} catch (Exception be) {
+				base_string = null;
+			}
 			return;
 		}
 		valid = true;
@@ -0,0 +1,52 @@
+package net.oauth.signature;
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+
+import net.oauth.OAuth;
+import net.oauth.OAuthAccessor;
+import net.oauth.OAuthConsumer;
+import net.oauth.OAuthMessage;
+import net.oauth.OAuthProblemException;
+import net.oauth.SimpleOAuthValidator;
+
+public class MacPoolTest {
+
+	@Test
+	public void testSameAsNewMac() throws Exception {
+		byte[] text = "POST&http%3A%2F%2Flocalhost%2Fimsblis%2Fservice%2F&oauth_nonce%3D123".getBytes("UTF-8");
+		// More keys than a thread keeps, twice round, so some are set up again
+		for (int round = 0; round < 2; round++) {
+			for (int i = 0; i < MacPool.KEYS_PER_THREAD + 4; i++) {
+				for (String algorithm : new String[] { "HmacSHA1", "HmacSHA256" }) {
+					SecretKeySpec key = new SecretKeySpec(("secret" + i + "&").getBytes("UTF-8"), algorithm);
+					Mac mac = Mac.getInstance(algorithm);
+					mac.init(key);
+					assertArrayEquals(mac.doFinal(text), MacPool.doFinal(key, text));
+					assertArrayEquals(mac.doFinal(text), MacPool.doFinal(key, text));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSignatureValidates() throws Exception {
+		OAuthAccessor accessor = new OAuthAccessor(new OAuthConsumer(null, "key", "secret", null));
+		OAuthMessage message = accessor.newRequestMessage("POST", "http://localhost/imsblti/provider",
+			Collections.singletonMap("resource_link_id", "42").entrySet());
+		new SimpleOAuthValidator().validateMessage(message, accessor);
+
+		OAuthAccessor other = new OAuthAccessor(new OAuthConsumer(null, "key", "wrong", null));
+		try {
+			new SimpleOAuthValidator().validateMessage(message, other);
+			fail("Signed with a different secret");
+		} catch (OAuthProblemException e) {
+			assertEquals(OAuth.Problems.SIGNATURE_INVALID, e.getProblem());
+		}
+	}
+}
@@ -0,0 +1,204 @@
+package org.tsugi.basiclti;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Test;
+
+import org.tsugi.pox.IMSPOXRequest;
+
+/**
+ * The streaming and DOM versions of XMLMap must give the same maps and XML
+ * for the POX traffic that goes through it.
+ */
+public class XMLMapTest {
+
+	private static final String HEADER = "<imsx_POXHeader>\n" +
+		"  <imsx_POXRequestHeaderInfo>\n" +
+		"    <imsx_version>V1.0</imsx_version>\n" +
+		"    <imsx_messageIdentifier>999999123</imsx_messageIdentifier>\n" +
+		"  </imsx_POXRequestHeaderInfo>\n" +
+		"</imsx_POXHeader>\n";
+
+	private static final String REPLACE_RESULT = "<?xml version = \"1.0\" encoding = \"UTF-8\"?>\n" +
+		"<imsx_POXEnvelopeRequest xmlns = \"http://www.imsglobal.org/services/ltiv1p1/xsd/imsoms_v1p0\">\n" +
+		HEADER +
+		"<imsx_POXBody>\n" +
+		"  <replaceResultRequest>\n" +
+		"    <resultRecord>\n" +
+		"      <sourcedGUID>\n" +
+		"        <sourcedId>a4d2f1e0c5b5:::site-1:::42:::user-1</sourcedId>\n" +
+		"      </sourcedGUID>\n" +
+		"      <result>\n" +
+		"        <resultScore>\n" +
+		"          <language>en-us</language>\n" +
+		"          <textString>0.92</textString>\n" +
+		"        </resultScore>\n" +
+		"        <resultData>\n" +
+		"          <text><![CDATA[Well <b>done</b>]]> &amp; thanks</text>\n" +
+		"        </resultData>\n" +
+		"      </result>\n" +
+		"    </resultRecord>\n" +
+		"  </replaceResultRequest>\n" +
+		"</imsx_POXBody>\n" +
+		"</imsx_POXEnvelopeRequest>";
+
+	private static final String READ_RESULT = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+		"<imsx_POXEnvelopeRequest xmlns=\"http://www.imsglobal.org/services/ltiv1p1/xsd/imsoms_v1p0\">" +
+		HEADER +
+		"<imsx_POXBody><readResultRequest><resultRecord><sourcedGUID>" +
+		"<sourcedId>a4d2f1e0c5b5:::site-1:::42:::user-1</sourcedId>" +
+		"</sourcedGUID></resultRecord></readResultRequest></imsx_POXBody>" +
+		"</imsx_POXEnvelopeRequest>";
+
+	private static final String DELETE_RESULT = "<imsx_POXEnvelopeRequest xmlns=\"http://www.imsglobal.org/services/ltiv1p1/xsd/imsoms_v1p0\">\n" +
+		"<!-- A comment before the header -->" + HEADER +
+		"<imsx_POXBody><deleteResultRequest><resultRecord><sourcedGUID>" +
+		"<sourcedId>one</sourcedId></sourcedGUID><sourcedGUID><sourcedId>two</sourcedId></sourcedGUID>" +
+		"</resultRecord></deleteResultRequest></imsx_POXBody>" +
+		"</imsx_POXEnvelopeRequest>";
+
+	private static final String RESPONSE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+		"<imsx_POXEnvelopeResponse xmlns=\"http://www.imsglobal.org/services/ltiv1p1/xsd/imsoms_v1p0\" xmlns:x=\"urn:x\">\n" +
+		"  <imsx_POXHeader>\n" +
+		"    <imsx_POXResponseHeaderInfo>\n" +
+		"      <imsx_version>V1.0</imsx_version>\n" +
+		"      <imsx_messageIdentifier>1313355158804</imsx_messageIdentifier>\n" +
+		"      <imsx_statusInfo>\n" +
+		"        <imsx_codeMajor>success</imsx_codeMajor>\n" +
+		"        <imsx_severity>status</imsx_severity>\n" +
+		"        <imsx_description x:lang=\"en\" z=\" \">Result read</imsx_description>\n" +
+		"        <imsx_messageRefIdentifier>999999123</imsx_messageRefIdentifier>\n" +
+		"        <imsx_operationRefIdentifier>readResultRequest</imsx_operationRefIdentifier>\n" +
+		"      </imsx_statusInfo>\n" +
+		"    </imsx_POXResponseHeaderInfo>\n" +
+		"  </imsx_POXHeader>\n" +
+		"  <imsx_POXBody>\n" +
+		"    <readResultResponse>\n" +
+		"      <result><resultScore><language>en</language><textString>0.92</textString></resultScore></result>\n" +
+		"    </readResultResponse>\n" +
+		"  </imsx_POXBody>\n" +
+		"</imsx_POXEnvelopeResponse>";
+
+	private static final String MEMBERSHIPS = "<message_response>\n" +
+		"  <lti_message_type>basic-lis-readmembershipsforcontext</lti_message_type>\n" +
+		"  <statusinfo><codemajor>Success</codemajor><severity>Status</severity></statusinfo>\n" +
+		"  <members>\n" +
+		"    <member><user_id>lti-1</user_id><roles>Learner</roles><person_name_given>Ann</person_name_given></member>\n" +
+		"    <member><user_id>lti-2</user_id><roles>Instructor,Learner</roles><person_contact_email_primary>b@example.com</person_contact_email_primary></member>\n" +
+		"    <member><user_id>lti-3</user_id><roles>Learner</roles>\n" +
+		"      <groups><group><id>g1</id><title>Group &lt;1&gt;</title></group><group><id>g2</id><title>Two</title></group></groups>\n" +
+		"    </member>\n" +
+		"  </members>\n" +
+		"</message_response>";
+
+	private static final String[] SAMPLES = {
+		REPLACE_RESULT, READ_RESULT, DELETE_RESULT, RESPONSE, MEMBERSHIPS,
+		"<a><b x=\"X\">B</b><c><d>D</d></c></a>",
+		"<a>  <b>first</b> tail<?pi x?><b>second</b>text</a>",
+		"<rss version=\"2.0\"><channel><title>Dr-Chuck's Media</title><item><title>One</title></item><item><title>Two</title></item></channel></rss>",
+	};
+
+	@After
+	public void tearDown() {
+		XMLMap.setStreaming(true);
+	}
+
+	@Test
+	public void testMapsMatchDom() {
+		for (String xml : SAMPLES) {
+			XMLMap.setStreaming(false);
+			Map<String,String> domMap = XMLMap.getMap(xml);
+			Map<String,Object> domFullMap = XMLMap.getFullMap(xml);
+			XMLMap.setStreaming(true);
+			assertEquals(xml, domMap, XMLMap.getMap(xml));
+			assertEquals(xml, domFullMap, XMLMap.getFullMap(xml));
+		}
+		Map<String,String> replace = XMLMap.getMap(REPLACE_RESULT);
+		assertEquals("0.92", replace.get("/imsx_POXEnvelopeRequest/imsx_POXBody/replaceResultRequest/resultRecord/result/resultScore/textString"));
+		assertEquals("http://www.imsglobal.org/services/ltiv1p1/xsd/imsoms_v1p0", replace.get("/imsx_POXEnvelopeRequest!xmlns"));
+		assertEquals(3, XMLMap.getList(XMLMap.getFullMap(MEMBERSHIPS), "/message_response/members/member").size());
+	}
+
+	@Test
+	public void testBadXml() {
+		assertNull(XMLMap.getMap("<a><b></a>"));
+		assertNull(XMLMap.getFullMap("not xml"));
+	}
+
+	@Test
+	public void testXmlMatchesDom() {
+		List<Map<String,?>> maps = new ArrayList<Map<String,?>>();
+		for (String xml : SAMPLES) {
+			maps.add(XMLMap.getMap(xml));
+			maps.add(XMLMap.getFullMap(xml));
+		}
+
+		// As the servlets build their responses
+		Map<String,Object> response = new TreeMap<String,Object>();
+		response.put("/readResultResponse/result/resultScore/language", "en");
+		response.put("/readResultResponse/result/resultScore/textString", "0.5 & \"more\" <or> less\r\n\tand more");
+		response.put("/readResultResponse/result!status", "a \"b\"\n\t<c> & d");
+		response.put("/readResultResponse/result!alpha", "first");
+		response.put("/readResultResponse/empty", "");
+		response.put("/readResultResponse/list", new String[] { "one", "two" });
+		response.put("/readResultResponse/list[3]", "four");
+		Map<String,Object> sub = new TreeMap<String,Object>();
+		sub.put("/x", "X");
+		sub.put("/y!z", "Z");
+		response.put("/readResultResponse/sub", sub);
+		List<Map<String,Object>> items = new ArrayList<Map<String,Object>>();
+		items.add(sub);
+		items.add(sub);
+		response.put("/readResultResponse/item", items);
+		maps.add(response);
+
+		for (Map<String,?> map : maps) {
+			XMLMap.setStreaming(false);
+			String dom = XMLMap.getXML(map);
+			String domPretty = XMLMap.getXML(map, true);
+			String domFragment = XMLMap.getXMLFragment(map, true);
+			XMLMap.setStreaming(true);
+			assertEquals(dom, XMLMap.getXML(map));
+			assertEquals(domPretty, XMLMap.getXML(map, true));
+			assertEquals(domFragment, XMLMap.getXMLFragment(map, true));
+		}
+	}
+
+	@Test
+	public void testRoundTrip() {
+		for (String xml : SAMPLES) {
+			Map<String,Object> fullMap = XMLMap.getFullMap(xml);
+			assertEquals(xml, fullMap, XMLMap.getFullMap(XMLMap.getXML(fullMap, true)));
+		}
+
+		// The DOM version decodes the Transformer output in the platform charset
+		Map<String,Object> accents = new TreeMap<String,Object>();
+		accents.put("/a/b", "caf\u00e9 \u00fcber");
+		assertEquals("<a><b>caf\u00e9 \u00fcber</b></a>", XMLMap.getXMLFragment(accents, false));
+		assertEquals(accents, XMLMap.getFullMap(XMLMap.getXML(accents)));
+	}
+
+	@Test
+	public void testPoxRequestMatchesDom() {
+		for (String xml : new String[] { REPLACE_RESULT, READ_RESULT, DELETE_RESULT, RESPONSE, "<a/>" }) {
+			XMLMap.setStreaming(false);
+			IMSPOXRequest dom = new IMSPOXRequest(xml);
+			XMLMap.setStreaming(true);
+			IMSPOXRequest stax = new IMSPOXRequest(xml);
+			assertEquals(xml, dom.valid, stax.valid);
+			assertEquals(xml, dom.getOperation(), stax.getOperation());
+			assertEquals(xml, dom.getHeaderMap(), stax.getHeaderMap());
+			assertEquals(xml, dom.getBodyMap(), stax.getBodyMap());
+		}
+		IMSPOXRequest pox = new IMSPOXRequest(REPLACE_RESULT);
+		assertEquals("replaceResultRequest", pox.getOperation());
+		assertEquals("999999123", pox.getHeaderMessageIdentifier());
+		assertEquals("a4d2f1e0c5b5:::site-1:::42:::user-1", pox.getBodyMap().get("/resultRecord/sourcedGUID/sourcedId"));
+		assertNull(pox.postDom);
+	}
+}
@@ -22,6 +22,8 @@
 package org.sakaiproject.archive.api;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 
 /**
  * <p>
@@ -94,4 +96,12 @@ public interface ArchiveService
 	 * @throws IOException 
 	 */
 	public String archiveAndZip(String siteId) throws IOException;
+
+	/**
+	 * Archive several sites then compress each to a zip. Sites are archived at the same time, up to the
+	 * configured number of threads.
+	 * @param siteIds - ids of the sites to be archived
+	 * @return A log of messages from creating each archive, keyed by site id, in the order given
+	 */
+	public Map<String, String> archiveAndZip(List<String> siteIds);
 }
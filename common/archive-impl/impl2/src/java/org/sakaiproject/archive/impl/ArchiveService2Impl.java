@@ -20,6 +20,14 @@ package org.sakaiproject.archive.impl;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -29,6 +37,9 @@ import org.apache.commons.lang.StringUtils;
 import org.sakaiproject.archive.api.ArchiveService;
 import org.sakaiproject.component.api.ServerConfigurationService;
 import org.sakaiproject.entity.api.EntityManager;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
+import org.sakaiproject.tool.api.Session;
+import org.sakaiproject.tool.api.SessionManager;
 
 @Slf4j
 public class ArchiveService2Impl implements ArchiveService
@@ -67,6 +78,18 @@ public class ArchiveService2Impl implements ArchiveService
 		m_siteZipper = siteZipper;
 	}
 	
+	/** Dependency: SessionManager */
+	protected SessionManager m_sessionManager = null;
+	public void setSessionManager(SessionManager sessionManager) {
+		m_sessionManager = sessionManager;
+	}
+	
+	/** Dependency: ThreadLocalManager */
+	protected ThreadLocalManager m_threadLocalManager = null;
+	public void setThreadLocalManager(ThreadLocalManager threadLocalManager) {
+		m_threadLocalManager = threadLocalManager;
+	}
+	
 	/*********************************************/
 	/* Injected Default Settings                 */
 	/*********************************************/
@@ -102,6 +125,14 @@ public class ArchiveService2Impl implements ArchiveService
 		m_filteredSakaiRoles = filtered;
 	}
 
+	/** The most sites archived at the same time by a batch archive. */
+	protected int m_batchThreads = 2;
+	public void setBatchThreads(int batchThreads) {
+		m_batchThreads = batchThreads;
+	}
+
+	protected ExecutorService m_batchExecutor = null;
+
 	/*******************************************************************************
 	* Init and Destroy
 	*******************************************************************************/
@@ -127,8 +158,18 @@ public class ArchiveService2Impl implements ArchiveService
         if (filteredRoles != null) {
             m_filteredSakaiRoles = filteredRoles;
         }
+
+		m_batchThreads = m_serverConfigurationService.getInt("archive.batch.threads", m_batchThreads);
+		if (m_batchThreads > 1) {
+			AtomicInteger threadNumber = new AtomicInteger();
+			m_batchExecutor = Executors.newFixedThreadPool(m_batchThreads, r -> {
+				Thread thread = new Thread(r, "site-archive-" + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
 		
-		log.info("init(): storage path: " + m_storagePath + ", unzip path: " + m_unzipPath + ", merge filter{services="+m_filterSakaiServices+", roles="+m_filterSakaiRoles+"}");
+		log.info("init(): storage path: " + m_storagePath + ", unzip path: " + m_unzipPath + ", merge filter{services="+m_filterSakaiServices+", roles="+m_filterSakaiRoles+"}, batch threads: " + m_batchThreads);
 		if (!new File(m_storagePath).isDirectory()) {
 			log.warn("Failed to find directory {} please create or configure {}.", m_storagePath, "archive.storage.path");
 		}
@@ -140,6 +181,9 @@ public class ArchiveService2Impl implements ArchiveService
 
 	public void destroy() {
 		log.info("destroy()");
+		if (m_batchExecutor != null) {
+			m_batchExecutor.shutdownNow();
+		}
 	}
 
 	
@@ -194,5 +238,55 @@ public class ArchiveService2Impl implements ArchiveService
 		}
 		return log;
 	}
+
+	@Override
+	public Map<String, String> archiveAndZip(List<String> siteIds) {
+		Map<String, String> results = new LinkedHashMap<String, String>();
+		if (m_batchExecutor == null || siteIds.size() < 2) {
+			for (String siteId : siteIds) {
+				results.put(siteId, archiveAndZipQuietly(siteId));
+			}
+			return results;
+		}
+
+		// the workers archive as the current user, so they see the same sites and content
+		final Session session = m_sessionManager.getCurrentSession();
+		Map<String, Future<String>> futures = new LinkedHashMap<String, Future<String>>();
+		for (final String siteId : siteIds) {
+			futures.put(siteId, m_batchExecutor.submit(() -> {
+				m_sessionManager.setCurrentSession(session);
+				try {
+					return archiveAndZipQuietly(siteId);
+				} finally {
+					m_threadLocalManager.clear();
+				}
+			}));
+		}
+		for (Map.Entry<String, Future<String>> future : futures.entrySet()) {
+			try {
+				results.put(future.getKey(), future.getValue().get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				for (Future<String> remaining : futures.values()) {
+					remaining.cancel(true);
+				}
+				results.put(future.getKey(), "Interrupted archiving site " + future.getKey() + "\n");
+				break;
+			} catch (ExecutionException e) {
+				log.error("Failed to archive site {}", future.getKey(), e.getCause());
+				results.put(future.getKey(), "Error archiving site " + future.getKey() + ": " + e.getCause() + "\n");
+			}
+		}
+		return results;
+	}
+
+	private String archiveAndZipQuietly(String siteId) {
+		try {
+			return archiveAndZip(siteId);
+		} catch (IOException e) {
+			log.error("Failed to archive and compress the site with id {}", siteId, e);
+			return "Error archiving site " + siteId + ": " + e + "\n";
+		}
+	}
 	
 } // ArchiveService2Impl
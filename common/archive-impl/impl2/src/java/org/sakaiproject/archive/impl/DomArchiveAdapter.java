@@ -0,0 +1,76 @@
+/***********************************************************************************
+ *
+ * Copyright (c) 2017 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.archive.impl;
+
+import java.util.List;
+import java.util.Stack;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import org.sakaiproject.entity.api.EntityProducer;
+import org.sakaiproject.entity.api.Reference;
+import org.sakaiproject.entity.api.StreamingArchiveAware;
+import org.sakaiproject.util.Xml;
+
+/**
+ * Lets the archiver stream producers that only archive to DOM. The producer's DOM is built as before, then written
+ * to the stream and dropped, so at most one producer's archive is in memory at a time.
+ */
+public class DomArchiveAdapter implements StreamingArchiveAware {
+
+	private final EntityProducer producer;
+
+	public DomArchiveAdapter(EntityProducer producer) {
+		this.producer = producer;
+	}
+
+	public String archive(String siteId, XMLStreamWriter writer, String archivePath, List<Reference> attachments)
+			throws XMLStreamException
+	{
+		Document doc = Xml.createDocument();
+		Stack<Element> stack = new Stack<Element>();
+		Element root = doc.createElement("archive");
+		doc.appendChild(root);
+		stack.push(root);
+
+		String msg;
+		try
+		{
+			msg = producer.archive(siteId, doc, stack, archivePath, attachments);
+		}
+		catch (Throwable t)
+		{
+			msg = t.toString() + "\n";
+		}
+
+		for (Node node = root.getFirstChild(); node != null; node = node.getNextSibling())
+		{
+			if (node instanceof Element)
+			{
+				Xml.writeElement(writer, (Element) node);
+			}
+		}
+		return msg;
+	}
+}
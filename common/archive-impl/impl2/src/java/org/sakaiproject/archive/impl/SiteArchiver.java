@@ -18,10 +18,16 @@
 
 package org.sakaiproject.archive.impl;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.ArrayList;
 import java.util.Stack;
 import java.util.Vector;
@@ -29,8 +35,13 @@ import java.util.Vector;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 import lombok.extern.slf4j.Slf4j;
 
+import org.apache.commons.io.IOUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
@@ -43,6 +54,8 @@ import org.sakaiproject.authz.api.AuthzGroupService;
 import org.sakaiproject.component.api.ServerConfigurationService;
 import org.sakaiproject.entity.api.EntityManager;
 import org.sakaiproject.entity.api.EntityProducer;
+import org.sakaiproject.entity.api.Reference;
+import org.sakaiproject.entity.api.StreamingArchiveAware;
 import org.sakaiproject.exception.IdUnusedException;
 import org.sakaiproject.site.api.Site;
 import org.sakaiproject.site.api.SiteService;
@@ -91,6 +104,9 @@ public class SiteArchiver {
 		m_timeService = service;
 	}
 	
+	/** Writes the archive files, safe to share once configured. */
+	protected XMLOutputFactory m_outputFactory = XMLOutputFactory.newInstance();
+
 	/** Dependency: ContentHosting */
 	protected ContentHostingService m_contentHostingService = null;
 	public void setContentHostingService(ContentHostingService service) {
@@ -116,12 +132,12 @@ public class SiteArchiver {
 		}
 
 		// collect all the attachments we need
-		List attachments = m_entityManager.newReferenceList();
+		final List<Reference> attachments = m_entityManager.newReferenceList();
 
 		Time now = m_timeService.newTime();
 
 		// this is the folder we are writing files to
-		String storagePath = m_storagePath + siteId + "-archive/";
+		final String storagePath = m_storagePath + siteId + "-archive/";
 
 		// create the directory for the archive
 		File dir = new File(m_storagePath + siteId + "-archive/");
@@ -135,53 +151,21 @@ public class SiteArchiver {
 			if (service == null) continue;
 			if (!service.willArchiveMerge()) continue;
 
-			Document doc = Xml.createDocument();
-			Stack stack = new Stack();
-			Element root = doc.createElement("archive");
-			doc.appendChild(root);
-			root.setAttribute("source", siteId);
-			root.setAttribute("server", m_serverConfigurationService.getServerId());
-			root.setAttribute("date", now.toString());
-			root.setAttribute("system", fromSystem);
-			
-			stack.push(root);
-
-			try {
-				String msg = service.archive(siteId, doc, stack, storagePath, attachments);
-				results.append(msg);
-			}
-			catch (Throwable t)
-			{
-				results.append(t.toString() + "\n");
-			}
+			// producers that can't stream build their DOM as before and have it written out
+			final StreamingArchiveAware archiver = (service instanceof StreamingArchiveAware) ? (StreamingArchiveAware) service
+					: new DomArchiveAdapter(service);
 
-			stack.pop();
-			
 			String fileName = storagePath + service.getLabel() + ".xml";
-			Xml.writeDocument(doc, fileName);
+			results.append(writeArchive(fileName, sourceAttributes(siteId, now, fromSystem),
+					writer -> archiver.archive(siteId, writer, storagePath, attachments)));
 		}
 
 		// archive the collected attachments
 		if (attachments.size() > 0)
 		{
-			Document doc = Xml.createDocument();
-			Stack stack = new Stack();
-			Element root = doc.createElement("archive");
-			doc.appendChild(root);
-			root.setAttribute("source", siteId);
-			root.setAttribute("server", m_serverConfigurationService.getServerId());
-			root.setAttribute("date", now.toString());
-			root.setAttribute("system", fromSystem);
-			
-			stack.push(root);
-
-			String msg = m_contentHostingService.archiveResources(attachments, doc, stack, storagePath);
-			results.append(msg);
-
-			stack.pop();
-
 			String fileName = storagePath + "attachment.xml";
-			Xml.writeDocument(doc, fileName);
+			results.append(writeArchive(fileName, sourceAttributes(siteId, now, fromSystem),
+					writer -> m_contentHostingService.archiveResources(attachments, writer, storagePath)));
 		}
 
 		// *** Site
@@ -205,26 +189,100 @@ public class SiteArchiver {
 
 
 		// *** Users
-		doc = Xml.createDocument();
-		stack = new Stack();
-		root = doc.createElement("archive");
-		doc.appendChild(root);
-		root.setAttribute("site", siteId);
-		root.setAttribute("date", now.toString());
-		root.setAttribute("system", fromSystem);
-		
-		stack.push(root);
-		
-		msg = archiveUsers(theSite, doc, stack);
-		results.append(msg);
-
-		stack.pop();
-		Xml.writeDocument(doc, m_storagePath + siteId + "-archive/user.xml");
+		Map<String, String> siteAttributes = new LinkedHashMap<String, String>();
+		siteAttributes.put("site", siteId);
+		siteAttributes.put("date", now.toString());
+		siteAttributes.put("system", fromSystem);
+		final Site site = theSite;
+		results.append(writeArchive(m_storagePath + siteId + "-archive/user.xml", siteAttributes,
+				writer -> archiveUsers(site, writer)));
 
 
 		return results.toString();
 
 	}	// archive
+
+	/**
+	 * Write one archive file, its root element carrying the attributes given.
+	 * @param fileName The complete file name path.
+	 * @param attributes The attributes of the "archive" element.
+	 * @param content Writes the contents of the "archive" element.
+	 * @return A log of messages from writing the content.
+	 */
+	protected String writeArchive(String fileName, Map<String, String> attributes, ArchiveContent content)
+	{
+		StringBuilder results = new StringBuilder();
+		OutputStream out = null;
+		XMLStreamWriter writer = null;
+		try
+		{
+			out = new BufferedOutputStream(new FileOutputStream(fileName));
+			writer = m_outputFactory.createXMLStreamWriter(out, "UTF-8");
+			writer.writeStartDocument("UTF-8", "1.0");
+			writer.writeStartElement("archive");
+			for (Map.Entry<String, String> attribute : attributes.entrySet())
+			{
+				writer.writeAttribute(attribute.getKey(), attribute.getValue());
+			}
+
+			try
+			{
+				results.append(content.write(writer));
+			}
+			catch (XMLStreamException e)
+			{
+				throw e;
+			}
+			catch (Throwable t)
+			{
+				// as with the DOM archive, keep what was written before the failure
+				results.append(t.toString() + "\n");
+			}
+
+			// closes any elements left open
+			writer.writeEndDocument();
+			writer.flush();
+		}
+		catch (IOException | XMLStreamException e)
+		{
+			log.warn("archive(): failed to write {}: {}", fileName, e.toString());
+			results.append("Error writing " + fileName + ": " + e.toString() + "\n");
+		}
+		finally
+		{
+			if (writer != null)
+			{
+				try
+				{
+					writer.close();
+				}
+				catch (XMLStreamException e)
+				{
+					log.debug(e.getMessage());
+				}
+			}
+			IOUtils.closeQuietly(out);
+		}
+		return results.toString();
+	}
+
+	private Map<String, String> sourceAttributes(String siteId, Time now, String fromSystem)
+	{
+		Map<String, String> attributes = new LinkedHashMap<String, String>();
+		attributes.put("source", siteId);
+		attributes.put("server", m_serverConfigurationService.getServerId());
+		attributes.put("date", now.toString());
+		attributes.put("system", fromSystem);
+		return attributes;
+	}
+
+	/**
+	 * The contents of an archive file.
+	 */
+	protected interface ArchiveContent
+	{
+		String write(XMLStreamWriter writer) throws XMLStreamException;
+	}
 	
 	/**
 	* Archive the site definition.
@@ -328,17 +386,13 @@ public class SiteArchiver {
 	}	// archiveSite
 
 	/**
-	* Archive the users defined in this site (internal users only).
+	* Archive the users defined in this site (internal users only), writing each user as it goes.
 	* @param site the site.
-	* @param doc The document to contain the xml.
-	* @param stack The stack of elements, the top of which will be the containing
-	* element of the "site" element.
+	* @param writer The writer, positioned inside the "archive" element.
 	*/
-	protected String archiveUsers(Site site, Document doc, Stack stack)
+	protected String archiveUsers(Site site, XMLStreamWriter writer) throws XMLStreamException
 	{
-		Element element = doc.createElement(UserDirectoryService.APPLICATION_ID);
-		((Element)stack.peek()).appendChild(element);
-		stack.push(element);
+		writer.writeStartElement(UserDirectoryService.APPLICATION_ID);
 	
 		try
 		{
@@ -350,27 +404,44 @@ public class SiteArchiver {
 				AuthzGroup realm = m_authzGroupService.getAuthzGroup(realmId);
 				users.addAll(m_userDirectoryService.getUsers(realm.getUsers()));
 				Collections.sort(users);
+
+				// each user is built on its own then written, so only one is held as DOM at a time
+				Document doc = Xml.createDocument();
+				Element container = doc.createElement(UserDirectoryService.APPLICATION_ID);
+				doc.appendChild(container);
+				Stack<Element> stack = new Stack<Element>();
+				stack.push(container);
 				for (int i = 0; i < users.size(); i++)
 				{
 					User user = (User) users.get(i);
-					user.toXml(doc, stack);
+					Element userNode = user.toXml(doc, stack);
+					container.removeChild(userNode);
+					Xml.writeElement(writer, userNode);
 				}
 			}
 			catch (GroupNotDefinedException e)
 			{
 				log.warn(e.getMessage(), e);
 			}
+			catch (XMLStreamException e)
+			{
+				throw e;
+			}
 			catch (Exception any) {
 				log.warn(any.getMessage(), any);
 			}
 	
 		}
+		catch (XMLStreamException e)
+		{
+			throw e;
+		}
 		catch (Exception any)
 		{
 			log.warn(any.getMessage(), any);
 		}
 	
-		stack.pop();
+		writer.writeEndElement();
 		
 		return "archiving the users for Site: " + site.getId() + "\n";
 	
@@ -25,6 +25,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Enumeration;
@@ -33,6 +35,7 @@ import java.util.zip.ZipFile;
 
 import lombok.extern.slf4j.Slf4j;
 
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
@@ -124,30 +127,22 @@ public class SiteZipper {
 			zipFile.createNewFile();
 		}
 
-        FileOutputStream fOut = null;
-        FileInputStream zip = null;
-        BufferedOutputStream bOut = null;
+        // the hash is taken as the zip is written rather than by reading the zip back
+        MessageDigest sha1 = DigestUtils.getSha1Digest();
         ZipArchiveOutputStream zOut = null;
         
         try {
-            fOut = new FileOutputStream(zipFile);
-            bOut = new BufferedOutputStream(fOut);
-            zOut = new ZipArchiveOutputStream(bOut);
+            zOut = new ZipArchiveOutputStream(new BufferedOutputStream(new DigestOutputStream(new FileOutputStream(zipFile), sha1)));
             addFileToZip(zOut, archivePath, ""); //add the directory which will then add all files recursively
-
-            //create a sha1 hash of the zip
-            String hashPath = m_storagePath + siteId + "-" + timestamp + ".sha1";
-            log.info("Creating hash: " + hashPath);
-            zip  = new FileInputStream(compressedArchivePath);
-            String hash = DigestUtils.sha1Hex(zip);
-            FileUtils.writeStringToFile(new File(hashPath), hash);
-        } finally {
             zOut.finish();
-            zOut.close();
-            bOut.close();
-            fOut.close();
-            zip.close();
+        } finally {
+            IOUtils.closeQuietly(zOut);
         }
+
+        //create a sha1 hash of the zip
+        String hashPath = m_storagePath + siteId + "-" + timestamp + ".sha1";
+        log.info("Creating hash: " + hashPath);
+        FileUtils.writeStringToFile(new File(hashPath), Hex.encodeHexString(sha1.digest()));
 		
 		return true;
 	}
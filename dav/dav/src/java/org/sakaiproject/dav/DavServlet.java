@@ -98,10 +98,11 @@ import java.util.Date;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
-import java.util.Stack;
 import java.util.TimeZone;
 import java.util.Vector;
 
@@ -281,7 +282,10 @@ public class DavServlet extends HttpServlet
 	protected static final int MAX_XML_STREAM_LENGTH = 4096;
 
 	/** Configuration: allow use of alias for site id in references. */
-	protected boolean m_siteAlias = true;        
+	protected boolean m_siteAlias = true;
+
+	/** Configuration: how deep a PROPFIND of Depth infinity goes, 0 or less to refuse them. */
+	protected int propfindInfinityDepth = INFINITY;        
 
         // can be called on id with or withing adjustid, since
         // the prefixes we check for are not adjusted
@@ -635,6 +639,8 @@ public class DavServlet extends HttpServlet
 		if (nonDavUserAgent == null) {
 		    nonDavUserAgent = new String[] {  "Mozilla", "Opera", "BlackBerry" };
 		}
+
+		propfindInfinityDepth = ServerConfigurationService.getInt("webdav.propfind.depth.infinity", INFINITY);
 	}
 
 	/** create the info */
@@ -1564,10 +1570,7 @@ public class DavServlet extends HttpServlet
 					eTag = our_path;
 				}
 				modificationDate = props.getTimeProperty(ResourceProperties.PROP_MODIFIED_DATE).getTime();
-				eTag = modificationDate + "+" + eTag;
-				// SAK-26593 if you don't clean the eTag you may send invalid XML to client
-				// SAK-29338 Cyberduck started to see our md5 etag as an AWS s3-like checksum so let's add a prefix
-				eTag = "sakai-" + MD5Encoder.encode(md5Helper.digest(eTag.getBytes()));
+				eTag = getETag(modificationDate + "+" + eTag);
 				if (log.isDebugEnabled()) log.debug("Path=" + path + " eTag=" + eTag);
 				creationDate = props.getTimeProperty(ResourceProperties.PROP_CREATION_DATE).getTime();
 				resourceLink = mbr.getUrl();
@@ -1598,6 +1601,63 @@ public class DavServlet extends HttpServlet
 			if (creationDate == 0) creationDate = modificationDate;
 			date = modificationDate;
 		}
+
+		/**
+		 * Info for a collection member that was fetched with its collection, so it isn't looked up again.
+		 */
+		public ResourceInfoSAKAI(String our_path, ContentEntity mbr)
+		{
+			path = our_path;
+			exists = true;
+			collection = mbr.isCollection();
+
+			ResourceProperties props = mbr.getProperties();
+			resourceName = props.getProperty(ResourceProperties.PROP_DISPLAY_NAME);
+			displayName = props.getPropertyFormatted(ResourceProperties.PROP_DISPLAY_NAME);
+			try
+			{
+				if (!collection)
+				{
+					length = ((ContentResource) mbr).getContentLength();
+					MIMEType = ((ContentResource) mbr).getContentType();
+					eTag = mbr.getId();
+				}
+				else
+				{
+					if (!path.endsWith("/")) path += "/";
+					eTag = our_path;
+				}
+				modificationDate = props.getTimeProperty(ResourceProperties.PROP_MODIFIED_DATE).getTime();
+				eTag = getETag(modificationDate + "+" + eTag);
+				creationDate = props.getTimeProperty(ResourceProperties.PROP_CREATION_DATE).getTime();
+				resourceLink = mbr.getUrl();
+			}
+			catch (EntityPropertyNotDefinedException e)
+			{
+				log.warn("ResourceInfoSAKAI - This resource is empty" + path);
+			}
+			catch (EntityPropertyTypeException e)
+			{
+				log.warn("ResourceInfoSAKAI - EntityPropertyType Exception " + path);
+			}
+
+			httpDate = getHttpDate(modificationDate);
+			if (creationDate == 0) creationDate = modificationDate;
+			date = modificationDate;
+		}
+	}
+
+	/**
+	 * Make an entity tag that is safe to send in XML.
+	 */
+	protected String getETag(String value)
+	{
+		// SAK-26593 if you don't clean the eTag you may send invalid XML to client
+		// SAK-29338 Cyberduck started to see our md5 etag as an AWS s3-like checksum so let's add a prefix
+		synchronized (md5Helper)
+		{
+			return "sakai-" + MD5Encoder.encode(md5Helper.digest(value.getBytes()));
+		}
 	}
 
 	public DirContextSAKAI getResourcesSAKAI()
@@ -2055,7 +2115,7 @@ public class DavServlet extends HttpServlet
 		// Properties which are to be displayed.
 		Vector<String> properties = null;
 		// Propfind depth
-		int depth = INFINITY;
+		int depth = propfindInfinityDepth;
 		// Propfind type
 		int type = FIND_ALL_PROP;
 
@@ -2063,7 +2123,7 @@ public class DavServlet extends HttpServlet
 
 		if (depthStr == null)
 		{
-			depth = INFINITY;
+			depth = propfindInfinityDepth;
 		}
 		else
 		{
@@ -2077,10 +2137,24 @@ public class DavServlet extends HttpServlet
 			}
 			else if (depthStr.equals("infinity"))
 			{
-				depth = INFINITY;
+				depth = propfindInfinityDepth;
 			}
 		}
 
+		if (propfindInfinityDepth <= 0 && !"0".equals(depthStr) && !"1".equals(depthStr))
+		{
+			// RFC 4918 9.1 lets a server refuse infinite depth
+			resp.setStatus(SakaidavStatus.SC_FORBIDDEN);
+			resp.setContentType("text/xml; charset=UTF-8");
+			XMLWriter generatedXML = new XMLWriter(resp.getWriter());
+			generatedXML.writeXMLHeader();
+			generatedXML.writeElement("D", "error" + generateNamespaceDeclarations(), XMLWriter.OPENING);
+			generatedXML.writeElement("D", "propfind-finite-depth", XMLWriter.NO_CONTENT);
+			generatedXML.writeElement("D", "error", XMLWriter.CLOSING);
+			generatedXML.sendData();
+			return;
+		}
+
 		Node propNode = null;
 
 		DocumentBuilder documentBuilder = getDocumentBuilder();
@@ -2261,6 +2335,21 @@ public class DavServlet extends HttpServlet
 			return;
 		}
 
+		if (resources.isCollection)
+		{
+			// a client that has seen this collection unchanged needn't be sent it again
+			String collectionTag = getPropfindTag(resources.collection, depth);
+			if (collectionTag != null)
+			{
+				resp.setHeader("ETag", "\"" + collectionTag + "\"");
+				if (matchesETag(req.getHeader("If-None-Match"), collectionTag))
+				{
+					resp.sendError(SakaidavStatus.SC_PRECONDITION_FAILED);
+					return;
+				}
+			}
+		}
+
 		resp.setStatus(SakaidavStatus.SC_MULTI_STATUS);
 
 		resp.setContentType("text/xml; charset=UTF-8");
@@ -2271,51 +2360,43 @@ public class DavServlet extends HttpServlet
 
 		generatedXML.writeElement("D", "multistatus" + generateNamespaceDeclarations(), XMLWriter.OPENING);
 
-		if (depth == 0)
-		{
-			parseProperties(req, resources, generatedXML, path, type, properties);
-		}
-		else
-		{
-			// The stack always contains the object of the current level
-			Stack<String> stack = new Stack<String>();
-			stack.push(path);
+		parseProperties(req, resources, generatedXML, path, type, properties);
+		generatedXML.sendData();
 
-			// Stack of the objects one level below
-			Stack<String> stackBelow = new Stack<String>();
+		if ((resources.isCollection) && (depth > 0))
+		{
+			// Walk a level at a time. Members come from one fetch of their collection and are written
+			// as they are found, rather than each being looked up again by path.
+			Map<String, ContentCollection> level = new LinkedHashMap<String, ContentCollection>();
+			level.put(path, resources.collection);
 
-			while ((!stack.isEmpty()) && (depth >= 0))
+			while ((!level.isEmpty()) && (depth > 0))
 			{
+				Map<String, ContentCollection> levelBelow = new LinkedHashMap<String, ContentCollection>();
 
-				String currentPath = (String) stack.pop();
-
-				try
-				{
-					// if (log.isDebugEnabled()) log.debug("Lookup currentPath="+currentPath);
-					resources.lookup(currentPath);
-				}
-				catch (NamingException e)
-				{
-					continue;
-				}
-
-				parseProperties(req, resources, generatedXML, currentPath, type, properties);
-
-				if ((resources.isCollection) && (depth > 0))
+				for (Map.Entry<String, ContentCollection> entry : level.entrySet())
 				{
+					String currentPath = entry.getKey();
 
-					Iterator<ContentEntity> it = resources.list(currentPath);
-					while (it.hasNext())
+					List<ContentEntity> members = entry.getValue().getMemberResources();
+					for (ContentEntity mbr : members)
 					{
-						Entity mbr = it.next();
 						String resourceName = getResourceNameSAKAI(mbr);
 
 						String newPath = currentPath;
 						if (!(newPath.endsWith("/"))) newPath += "/";
 						newPath += resourceName;
-						if (!(newPath.toLowerCase().indexOf("/protected") >= 0 && !contentHostingService.allowAddCollection(newPath)))
-						stackBelow.push(newPath);
-						// if (log.isDebugEnabled()) log.debug("SAKAI found resource " + newPath);
+						if (newPath.toLowerCase().indexOf("/protected") >= 0 && !contentHostingService.allowAddCollection(newPath)) continue;
+						if (!(mbr.isCollection() ? contentHostingService.allowGetCollection(mbr.getId())
+								: contentHostingService.allowGetResource(mbr.getId()))) continue;
+
+						parseProperties(req, generatedXML, newPath, type, properties, new ResourceInfoSAKAI(newPath, mbr));
+						generatedXML.sendData();
+
+						if (mbr.isCollection())
+						{
+							levelBelow.put(newPath, (ContentCollection) mbr);
+						}
 					}
 
 					// Displaying the lock-null resources present in that
@@ -2333,18 +2414,11 @@ public class DavServlet extends HttpServlet
 							parseLockNullProperties(req, generatedXML, lockNullPath, type, properties);
 						}
 					}
-
+					generatedXML.sendData();
 				}
 
-				if (stack.isEmpty())
-				{
-					depth--;
-					stack = stackBelow;
-
-					stackBelow = new Stack<String>();
-				}
-				// if (log.isDebugEnabled()) log.debug("SAKAIDAV.propfind() " + generatedXML.toString());
-				generatedXML.sendData();
+				depth--;
+				level = levelBelow;
 			}
 		}
 
@@ -2354,6 +2428,69 @@ public class DavServlet extends HttpServlet
 
 	}
 
+	/**
+	 * The tag of a PROPFIND on a collection. It only covers the collection and its members, so there is none for a
+	 * deeper PROPFIND, whose answer also changes with the members of sub collections.
+	 *
+	 * @return the tag, or null if the answer can't be tagged
+	 */
+	protected String getPropfindTag(ContentCollection collection, int depth)
+	{
+		return depth <= 1 ? getCollectionTag(collection) : null;
+	}
+
+	/**
+	 * A tag for a collection that changes when the collection or any of its members is changed, added or removed.
+	 * Members are fetched together, so this costs one lookup rather than one for each member.
+	 */
+	protected String getCollectionTag(ContentCollection collection)
+	{
+		List<String> versions = new ArrayList<String>();
+		for (ContentEntity mbr : collection.getMemberResources())
+		{
+			versions.add(mbr.getId() + "+" + getModifiedTime(mbr));
+		}
+		Collections.sort(versions);
+
+		StringBuilder tag = new StringBuilder(collection.getId()).append("+").append(getModifiedTime(collection));
+		for (String version : versions)
+		{
+			tag.append("|").append(version);
+		}
+		return getETag(tag.toString());
+	}
+
+	private long getModifiedTime(ContentEntity entity)
+	{
+		try
+		{
+			return entity.getProperties().getTimeProperty(ResourceProperties.PROP_MODIFIED_DATE).getTime();
+		}
+		catch (Exception e)
+		{
+			return 0;
+		}
+	}
+
+	/**
+	 * @return true if the If-None-Match header lists the tag, or is *
+	 */
+	protected boolean matchesETag(String ifNoneMatch, String eTag)
+	{
+		if (ifNoneMatch == null) return false;
+		for (String candidate : ifNoneMatch.split(","))
+		{
+			candidate = candidate.trim();
+			if (candidate.startsWith("W/")) candidate = candidate.substring(2);
+			if (candidate.length() > 1 && candidate.startsWith("\"") && candidate.endsWith("\""))
+			{
+				candidate = candidate.substring(1, candidate.length() - 1);
+			}
+			if (candidate.equals("*") || candidate.equals(eTag)) return true;
+		}
+		return false;
+	}
+
 	/**
 	 * PROPPATCH Method.
 	 */
@@ -4353,7 +4490,21 @@ public class DavServlet extends HttpServlet
 		// (the "toUpperCase()" avoids problems on Windows systems)
 		if (path.toUpperCase().startsWith("/WEB-INF") || path.toUpperCase().startsWith("/META-INF")) return;
 
-		ResourceInfoSAKAI resourceInfo = new ResourceInfoSAKAI(path, resources);
+		parseProperties(req, generatedXML, path, type, propertiesVector, new ResourceInfoSAKAI(path, resources));
+	}
+
+	/**
+	 * Propfind helper method, for a resource whose info has already been found.
+	 * 
+	 * @param resourceInfo
+	 *        The resource's properties
+	 */
+	private void parseProperties(HttpServletRequest req, XMLWriter generatedXML, String path, int type,
+			Vector<String> propertiesVector, ResourceInfoSAKAI resourceInfo)
+	{
+		// Exclude any resource in the /WEB-INF and /META-INF subdirectories
+		// (the "toUpperCase()" avoids problems on Windows systems)
+		if (path.toUpperCase().startsWith("/WEB-INF") || path.toUpperCase().startsWith("/META-INF")) return;
 
 		generatedXML.writeElement("D", "response", XMLWriter.OPENING);
 		String status = new String("HTTP/1.1 " + SakaidavStatus.SC_OK + " " + SakaidavStatus.getStatusText(SakaidavStatus.SC_OK));
@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2003-2018 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.dav;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.content.api.ContentCollection;
+import org.sakaiproject.content.api.ContentEntity;
+import org.sakaiproject.content.api.ContentResource;
+import org.sakaiproject.entity.api.ResourceProperties;
+import org.sakaiproject.time.api.Time;
+
+public class DavServletTest
+{
+
+	private DavServlet servlet;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		DavServlet.md5Helper = MessageDigest.getInstance("MD5");
+		servlet = new DavServlet();
+	}
+
+	@Test
+	public void testOnlyShallowPropfindIsTagged()
+	{
+		ContentCollection collection = collection("/group/site/", 1, Collections.singletonList(entity("/group/site/a", 1)));
+		assertNotNull(servlet.getPropfindTag(collection, 0));
+		assertEquals(servlet.getPropfindTag(collection, 0), servlet.getPropfindTag(collection, 1));
+		// a sub collection could change without changing its parent
+		assertNull(servlet.getPropfindTag(collection, 2));
+		assertNull(servlet.getPropfindTag(collection, 3));
+	}
+
+	@Test
+	public void testTagFollowsMembers()
+	{
+		String tag = servlet.getCollectionTag(collection("/group/site/", 1,
+				Arrays.asList(entity("/group/site/a", 1), entity("/group/site/b", 1))));
+
+		// members in another order are the same collection
+		assertEquals(tag, servlet.getCollectionTag(collection("/group/site/", 1,
+				Arrays.asList(entity("/group/site/b", 1), entity("/group/site/a", 1)))));
+		assertNotEquals(tag, servlet.getCollectionTag(collection("/group/site/", 1,
+				Arrays.asList(entity("/group/site/a", 1), entity("/group/site/b", 2)))));
+		assertNotEquals(tag, servlet.getCollectionTag(collection("/group/site/", 1,
+				Collections.singletonList(entity("/group/site/a", 1)))));
+	}
+
+	@Test
+	public void testMatchesETag()
+	{
+		assertTrue(servlet.matchesETag("\"sakai-1\"", "sakai-1"));
+		assertTrue(servlet.matchesETag("\"sakai-2\", W/\"sakai-1\"", "sakai-1"));
+		assertTrue(servlet.matchesETag("*", "sakai-1"));
+		assertFalse(servlet.matchesETag("\"sakai-2\"", "sakai-1"));
+		assertFalse(servlet.matchesETag(null, "sakai-1"));
+	}
+
+	private ContentCollection collection(String id, long modified, List<ContentEntity> members)
+	{
+		ResourceProperties properties = properties(modified);
+		return proxy(ContentCollection.class, (method, args) -> {
+			switch (method)
+			{
+				case "getId":
+					return id;
+				case "getProperties":
+					return properties;
+				case "getMemberResources":
+					return members;
+				case "isCollection":
+					return true;
+				default:
+					return null;
+			}
+		});
+	}
+
+	private ContentEntity entity(String id, long modified)
+	{
+		ResourceProperties properties = properties(modified);
+		return proxy(ContentResource.class, (method, args) -> {
+			switch (method)
+			{
+				case "getId":
+					return id;
+				case "getProperties":
+					return properties;
+				case "isCollection":
+					return false;
+				default:
+					return null;
+			}
+		});
+	}
+
+	private ResourceProperties properties(long modified)
+	{
+		Time time = proxy(Time.class, (method, args) -> "getTime".equals(method) ? modified : null);
+		return proxy(ResourceProperties.class, (method, args) -> "getTimeProperty".equals(method) ? time : null);
+	}
+
+	private interface Handler
+	{
+		Object invoke(String method, Object[] args) throws Exception;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T proxy(Class<T> type, Handler handler)
+	{
+		return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+				(p, method, args) -> handler.invoke(method.getName(), args));
+	}
+}
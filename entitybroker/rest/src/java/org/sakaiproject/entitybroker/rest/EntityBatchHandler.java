@@ -20,18 +20,38 @@
 
 package org.sakaiproject.entitybroker.rest;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.StringReader;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
-
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletInputStream;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 
 import org.azeckoski.reflectutils.ArrayUtils;
 import org.azeckoski.reflectutils.map.ArrayOrderedMap;
@@ -45,12 +65,16 @@ import org.sakaiproject.entitybroker.providers.ExternalIntegrationProvider;
 import org.sakaiproject.entitybroker.rest.caps.BatchProvider;
 import org.sakaiproject.entitybroker.util.http.EntityHttpServletRequest;
 import org.sakaiproject.entitybroker.util.http.EntityHttpServletResponse;
+import org.sakaiproject.entitybroker.util.http.EntityServletInputStream;
 import org.sakaiproject.entitybroker.util.http.HttpClientWrapper;
 import org.sakaiproject.entitybroker.util.http.HttpRESTUtils;
 import org.sakaiproject.entitybroker.util.http.HttpRESTUtils.Method;
 import org.sakaiproject.entitybroker.util.http.HttpResponse;
 import org.sakaiproject.entitybroker.util.http.URLData;
 import org.sakaiproject.entitybroker.util.request.RequestUtils;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
+import org.sakaiproject.tool.api.Session;
+import org.sakaiproject.tool.api.SessionManager;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -67,6 +91,19 @@ public class EntityBatchHandler {
 
     public static final String CONFIG_BATCH_ENABLE = "entitybroker.batch.enable";
     public static final boolean CONFIG_BATCH_DEFAULT = false;
+    public static final String CONFIG_BATCH_THREADS = "entitybroker.batch.threads";
+    public static final int CONFIG_BATCH_THREADS_DEFAULT = 0;
+    public static final String CONFIG_BATCH_TIMEOUT = "entitybroker.batch.timeout";
+    public static final int CONFIG_BATCH_TIMEOUT_DEFAULT = 30000;
+
+    /**
+     * Session and user bindings made by the Sakai RequestFilter which are copied to the threads running batch refs,
+     * the container request and response are not as each ref has its own copy
+     */
+    private static final String[] PROPAGATED_BINDINGS = {
+        "org.sakaiproject.util.RequestFilter.http_session",
+        "org.sakaiproject.util.RequestFilter.remote_user"
+    };
 
     private static final String HEADER_BATCH_STATUS = "batchStatus";
     private static final String HEADER_BATCH_ERRORS = "batchErrors";
@@ -104,6 +141,8 @@ public class EntityBatchHandler {
     }
 
     private EntityProvider batchEP = null;
+    private ThreadPoolExecutor batchExecutor = null;
+    private long batchTimeout = CONFIG_BATCH_TIMEOUT_DEFAULT;
 
     public void init() {
         // register the batch EP handler
@@ -123,6 +162,20 @@ public class EntityBatchHandler {
                 }
             };
             this.entityBrokerManager.getEntityProviderManager().registerEntityProvider(batchEP);
+
+            // GET refs are run side by side on this pool if threads are set, by default they run one at a time as before
+            int threads = this.externalIntegrationProvider.getConfigurationSetting(CONFIG_BATCH_THREADS, CONFIG_BATCH_THREADS_DEFAULT);
+            batchTimeout = this.externalIntegrationProvider.getConfigurationSetting(CONFIG_BATCH_TIMEOUT, CONFIG_BATCH_TIMEOUT_DEFAULT);
+            if (threads > 0) {
+                final AtomicInteger count = new AtomicInteger();
+                batchExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<Runnable>(threads * 25), r -> {
+                            Thread t = new Thread(r, "entitybroker-batch-" + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }, new ThreadPoolExecutor.CallerRunsPolicy());
+                batchExecutor.allowCoreThreadTimeOut(true);
+            }
         } else {
             // batch provider is disabled so do not show the docs for it - this empty on purpose
         }
@@ -130,6 +183,10 @@ public class EntityBatchHandler {
 
     public void destroy() {
         log.info("EntityBatchHandler: destroy()");
+        if (batchExecutor != null) {
+            batchExecutor.shutdownNow();
+            batchExecutor = null;
+        }
         if (batchEP != null) {
             try {
                 this.entityBrokerManager.getEntityProviderManager().unregisterEntityProvider(batchEP);
@@ -223,6 +280,10 @@ public class EntityBatchHandler {
         Map<String, ResponseBase> results = new ArrayOrderedMap<String, ResponseBase>(); // the results of all valid refs
         boolean successOverall = false; // true if all ok or partial ok, false if exception occurs or all fail
         boolean failure = false;
+        // the refs in the order they were requested, GETs may still be running
+        List<PendingRef> pendingRefs = new ArrayList<PendingRef>();
+        BatchContext batchContext = (batchExecutor != null && Method.GET.equals(method)) ? new BatchContext() : null;
+        long deadline = System.currentTimeMillis() + batchTimeout;
         for (int i = 0; i < refs.length; i++) {
             String refKey = "ref" + i;
             String reference = refs[i];
@@ -260,6 +321,10 @@ public class EntityBatchHandler {
 
             // object will hold the results of this reference request
             ResponseBase result = null;
+            // or the request that will produce it
+            Callable<ResponseBase> request = null;
+            // a ref that timed out may still be adding to this while it is read
+            List<Cookie> cookies = Collections.synchronizedList(new ArrayList<Cookie>());
 
             // parse the entityURL, should hopefully not cause a failure
             URLData ud = new URLData(entityURL);
@@ -311,7 +376,12 @@ public class EntityBatchHandler {
                         continue; // skip
                     }
 
-                    result = generateInternalResult(refKey, reference, entityURL, req, res, method, referencedParams);
+                    // copy the request here, the original is not safe to use from other threads
+                    HttpServletRequest source = batchContext != null ? new BatchRefRequest(req) : req;
+                    EntityHttpServletRequest entityRequest = makeInternalRequest(refKey, entityURL, source, method, referencedParams);
+                    EntityHttpServletResponse entityResponse = new EntityHttpServletResponse(res);
+                    String internalURL = entityURL;
+                    request = () -> generateInternalResult(reference, internalURL, entityRequest, entityResponse, cookies);
                 }
 
             } else {
@@ -324,7 +394,35 @@ public class EntityBatchHandler {
                 if (clientWrapper == null) {
                     clientWrapper = HttpRESTUtils.makeReusableHttpClient(false, 0, req.getCookies());
                 }
-                result = generateExternalResult(refKey, reference, entityURL, method, referencedParams, clientWrapper);
+                HttpClientWrapper externalClient = clientWrapper;
+                String externalURL = entityURL;
+                request = () -> generateExternalResult(refKey, reference, externalURL, method, referencedParams, externalClient);
+            }
+
+            // store the processed ref and url so we do not do them again
+            processedRefsAndURLs.add(reference);
+            processedRefsAndURLs.add(entityURL);
+
+            PendingRef pending = new PendingRef(refKey, reference, entityURL, cookies);
+            if (request == null) {
+                pending.result = result;
+            } else if (batchContext != null) {
+                pending.future = batchContext.submit(request);
+            } else {
+                pending.result = runRequest(request);
+            }
+            pendingRefs.add(pending);
+        }
+
+        // collect the results in the order the refs were given
+        for (PendingRef pending : pendingRefs) {
+            String refKey = pending.refKey;
+            ResponseBase result = pending.await(deadline);
+            // all cookies go into the main response
+            synchronized (pending.cookies) {
+                for (Cookie cookie : pending.cookies) {
+                    res.addCookie(cookie);
+                }
             }
 
             // special handling for null result (should really not happen unless there was a logic error)
@@ -356,9 +454,6 @@ public class EntityBatchHandler {
                 }
             }
 
-            // store the processed ref and url so we do not do them again
-            processedRefsAndURLs.add(reference);
-            processedRefsAndURLs.add(entityURL);
             results.put(refKey, result); // use an artificial key
         }
 
@@ -488,8 +583,8 @@ public class EntityBatchHandler {
      * Processing internal (EB) requests
      * @return the result from the request (may be an error)
      */
-    private ResponseBase generateInternalResult(String refKey, String reference, String entityURL, HttpServletRequest req, 
-            HttpServletResponse res, Method method, Map<String, Map<String, String[]>> referencedParams) {
+    private ResponseBase generateInternalResult(String reference, String entityURL, EntityHttpServletRequest entityRequest, 
+            EntityHttpServletResponse entityResponse, List<Cookie> cookies) {
         ResponseBase result = null;
         ResponseError error = null;
 
@@ -512,25 +607,6 @@ public class EntityBatchHandler {
          * Fun times for all
          */
 
-        EntityHttpServletRequest entityRequest = new EntityHttpServletRequest(req, entityURL);
-        entityRequest.setContextPath("");
-        if (Method.POST.equals(method) || Method.PUT.equals(method) ) {
-            // set only the unreferenced and correct referenced params for this request
-            entityRequest.clearParameters(); // also clears REFS_PARAM_NAME
-            entityRequest.setParameters( referencedParams.get(UNREFERENCED_PARAMS) );
-            String key = refKey + '.';
-            if (referencedParams.containsKey(key)) {
-                entityRequest.setParameters( referencedParams.get(key) );
-            }
-            // set the params from the query itself again
-            entityRequest.setParameters( entityRequest.pathQueryParams );
-            //log.info("All request params: " + entityRequest.getStringParameters());
-        } else {
-            entityRequest.removeParameter(REFS_PARAM_NAME); // make sure this is not passed along
-        }
-        entityRequest.setUseRealDispatcher(false); // we do not want to actually have the container handle forwarding
-        EntityHttpServletResponse entityResponse = new EntityHttpServletResponse(res);
-
         boolean redirected = false;
         do {
             try {
@@ -585,10 +661,9 @@ public class EntityBatchHandler {
         // create the result object to encode and place into the final response
         if (error == null && entityResponse != null) {
             // all ok, create the result for the response object
-            // all cookies go into the main response
-            Cookie[] cookies = entityResponse.getCookies();
-            for (Cookie cookie : cookies) {
-                res.addCookie(cookie);
+            // all cookies go into the main response, the caller adds them
+            for (Cookie cookie : entityResponse.getCookies()) {
+                cookies.add(cookie);
             }
             // status codes are compiled
             int status = entityResponse.getStatus();
@@ -600,6 +675,32 @@ public class EntityBatchHandler {
         return result;
     }
 
+    /**
+     * Makes the request for an internal (EB) reference
+     * @return a copy of the request set up for the reference
+     */
+    private EntityHttpServletRequest makeInternalRequest(String refKey, String entityURL, HttpServletRequest req, 
+            Method method, Map<String, Map<String, String[]>> referencedParams) {
+        EntityHttpServletRequest entityRequest = new EntityHttpServletRequest(req, entityURL);
+        entityRequest.setContextPath("");
+        if (Method.POST.equals(method) || Method.PUT.equals(method) ) {
+            // set only the unreferenced and correct referenced params for this request
+            entityRequest.clearParameters(); // also clears REFS_PARAM_NAME
+            entityRequest.setParameters( referencedParams.get(UNREFERENCED_PARAMS) );
+            String key = refKey + '.';
+            if (referencedParams.containsKey(key)) {
+                entityRequest.setParameters( referencedParams.get(key) );
+            }
+            // set the params from the query itself again
+            entityRequest.setParameters( entityRequest.pathQueryParams );
+            //log.info("All request params: " + entityRequest.getStringParameters());
+        } else {
+            entityRequest.removeParameter(REFS_PARAM_NAME); // make sure this is not passed along
+        }
+        entityRequest.setUseRealDispatcher(false); // we do not want to actually have the container handle forwarding
+        return entityRequest;
+    }
+
     /**
      * Processing external (non-EB) requests
      * @return the result from the request (may be an error)
@@ -824,6 +925,186 @@ public class EntityBatchHandler {
         return content;
     }
 
+    private static ResponseBase runRequest(Callable<ResponseBase> request) {
+        try {
+            return request.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("Failure running batch request: " + e, e);
+        }
+    }
+
+    /**
+     * A reference in the batch which has been started but may not be finished yet
+     */
+    private static class PendingRef {
+        final String refKey;
+        final String reference;
+        final String entityURL;
+        final List<Cookie> cookies;
+        ResponseBase result;
+        Future<ResponseBase> future;
+
+        PendingRef(String refKey, String reference, String entityURL, List<Cookie> cookies) {
+            this.refKey = refKey;
+            this.reference = reference;
+            this.entityURL = entityURL;
+            this.cookies = cookies;
+        }
+
+        /**
+         * @param deadline when the whole batch has to be done by
+         * @return the result of this ref, an error if it failed or ran out of time
+         */
+        ResponseBase await(long deadline) {
+            if (future == null) {
+                return result;
+            }
+            try {
+                return future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // interrupt it so it does not hold on to a pool thread, the rest of the batch is still returned
+                future.cancel(true);
+                String errorMessage = "Timed out waiting for reference ("+reference+") for url ("+entityURL+")";
+                log.warn("EntityBatchHandler: " + errorMessage);
+                ResponseError error = new ResponseError(reference, entityURL, errorMessage);
+                error.status = HttpServletResponse.SC_GATEWAY_TIMEOUT;
+                return error;
+            } catch (ExecutionException e) {
+                // a failing ref is reported in its own result and does not fail the whole batch
+                Throwable cause = e.getCause();
+                String errorMessage = "Failure attempting to process reference ("+reference+") for url ("+entityURL+"): " + cause.getMessage() + ":" + cause;
+                log.warn("EntityBatchHandler: " + errorMessage);
+                return new ResponseError(reference, entityURL, errorMessage);
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+                return new ResponseError(reference, entityURL, "Interrupted waiting for reference ("+reference+")");
+            }
+        }
+    }
+
+    /**
+     * Runs the refs of one batch request on the batch pool with the Sakai session and
+     * request bindings of the thread that received the batch
+     */
+    private class BatchContext {
+        private final SessionManager sessionManager;
+        private final ThreadLocalManager threadLocalManager;
+        private final Session session;
+        private final Map<String, Object> bindings = new HashMap<String, Object>();
+        private final Thread origin = Thread.currentThread();
+
+        BatchContext() {
+            // these are only found when running in Sakai
+            sessionManager = externalIntegrationProvider.findService(SessionManager.class);
+            threadLocalManager = externalIntegrationProvider.findService(ThreadLocalManager.class);
+            session = sessionManager != null ? sessionManager.getCurrentSession() : null;
+            if (threadLocalManager != null) {
+                for (String name : PROPAGATED_BINDINGS) {
+                    Object value = threadLocalManager.get(name);
+                    if (value != null) {
+                        bindings.put(name, value);
+                    }
+                }
+            }
+        }
+
+        Future<ResponseBase> submit(Callable<ResponseBase> request) {
+            FutureTask<ResponseBase> task = new FutureTask<ResponseBase>(() -> {
+                if (Thread.currentThread() == origin) {
+                    // the pool was full and handed it back, this thread already has everything set up
+                    return request.call();
+                }
+                try {
+                    if (threadLocalManager != null) {
+                        for (Entry<String, Object> binding : bindings.entrySet()) {
+                            threadLocalManager.set(binding.getKey(), binding.getValue());
+                        }
+                    }
+                    if (sessionManager != null && session != null) {
+                        sessionManager.setCurrentSession(session);
+                    }
+                    return request.call();
+                } finally {
+                    if (threadLocalManager != null) {
+                        threadLocalManager.clear();
+                    }
+                }
+            });
+            batchExecutor.execute(task);
+            return task;
+        }
+    }
+
+    /**
+     * The original request as seen by a ref run on the batch pool. The request copy made for the ref reads
+     * everything it needs from here on the request thread, and the few values it would otherwise look up
+     * on the original later are taken now, so no pool thread ever uses the container's request.
+     */
+    static class BatchRefRequest extends HttpServletRequestWrapper {
+        private final String authType;
+        private final String localAddr;
+        private final String localName;
+        private final int localPort;
+        private final List<Locale> locales;
+        private final String pathTranslated;
+        private final int remotePort;
+        private final String remoteUser;
+        private final Principal userPrincipal;
+        private final String requestedSessionId;
+        private final boolean requestedSessionIdFromCookie;
+        private final boolean requestedSessionIdFromURL;
+        private final boolean requestedSessionIdValid;
+        private final boolean secure;
+        private final HttpSession session;
+
+        @SuppressWarnings("unchecked")
+        BatchRefRequest(HttpServletRequest req) {
+            super(req);
+            authType = req.getAuthType();
+            localAddr = req.getLocalAddr();
+            localName = req.getLocalName();
+            localPort = req.getLocalPort();
+            locales = Collections.list(req.getLocales());
+            pathTranslated = req.getPathTranslated();
+            remotePort = req.getRemotePort();
+            remoteUser = req.getRemoteUser();
+            userPrincipal = req.getUserPrincipal();
+            requestedSessionId = req.getRequestedSessionId();
+            requestedSessionIdFromCookie = req.isRequestedSessionIdFromCookie();
+            requestedSessionIdFromURL = req.isRequestedSessionIdFromURL();
+            requestedSessionIdValid = req.isRequestedSessionIdValid();
+            secure = req.isSecure();
+            session = req.getSession(false);
+        }
+
+        public String getAuthType() { return authType; }
+        public String getLocalAddr() { return localAddr; }
+        public String getLocalName() { return localName; }
+        public int getLocalPort() { return localPort; }
+        public Enumeration getLocales() { return Collections.enumeration(locales); }
+        public String getPathTranslated() { return pathTranslated; }
+        public int getRemotePort() { return remotePort; }
+        public String getRemoteUser() { return remoteUser; }
+        public Principal getUserPrincipal() { return userPrincipal; }
+        public String getRequestedSessionId() { return requestedSessionId; }
+        public boolean isRequestedSessionIdFromCookie() { return requestedSessionIdFromCookie; }
+        public boolean isRequestedSessionIdFromURL() { return requestedSessionIdFromURL; }
+        public boolean isRequestedSessionIdFromUrl() { return requestedSessionIdFromURL; }
+        public boolean isRequestedSessionIdValid() { return requestedSessionIdValid; }
+        public boolean isSecure() { return secure; }
+        public HttpSession getSession() { return session; }
+        public HttpSession getSession(boolean create) { return session; }
+        // Sakai does not use container roles
+        public boolean isUserInRole(String role) { return false; }
+        public String getRealPath(String path) { return null; }
+        // only GET refs are run on the pool so there is no body to read
+        public ServletInputStream getInputStream() { return new EntityServletInputStream(""); }
+        public BufferedReader getReader() { return new BufferedReader(new StringReader("")); }
+    }
+
     /**
      * Base class for all response data which will be encoded and output
      */
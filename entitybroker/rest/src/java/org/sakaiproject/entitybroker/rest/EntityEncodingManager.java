@@ -20,10 +20,13 @@
 
 package org.sakaiproject.entitybroker.rest;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -447,95 +450,114 @@ public class EntityEncodingManager {
             replacementEncoding = "<div style=\"font-weight:bold;color:red;\">"+msg+"</div>";
         }
 
-        String encoded = null;
-        if (EntityView.VIEW_LIST.equals(view.getViewKey()) 
-                || ref.getId() == null) {
-            // encoding a collection of entities
-            StringBuilder sb = new StringBuilder(40);
-
-            // make header
-            if (Formats.HTML.equals(format) 
-                    || Formats.FORM.equals(format)) {
-                sb.append("<h1>"+ref.getPrefix() + COLLECTION + "</h1>\n");
-            } else if (Formats.JSON.equals(format) || Formats.JSONP.equals(format)) {
-                sb.append("{\""+ENTITY_PREFIX+"\": \""+ref.getPrefix() + "\", \"" + ref.getPrefix() + COLLECTION + "\": [\n");
+        // write straight into the output rather than building the whole response up in memory first
+        Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+        try {
+            // add the HTML headers
+            if (Formats.FORM.equals(format)) {
+                String title = view.getViewKey() + ":" + ref;
+                writer.write(XML_HEADER + XHTML_HEADER.replace("{title}", title));
             } else if (Formats.XML.equals(format)) {
-                sb.append("<" + ref.getPrefix() + COLLECTION + " " + ENTITY_PREFIX + "=\"" + ref.getPrefix() + "\">\n");
-            } else { // general case
-                sb.append(ref.getPrefix() + COLLECTION + "\n");
+                writer.write(XML_HEADER);
+            } else if (Formats.JSONP.equals(format)) {
+                String callback = JSON_DEFAULT_CALLBACK;
+                if (params != null && params.containsKey(JSON_CALLBACK_PARAM)) {
+                    callback = sanitizeJsonCallback(params.get(JSON_CALLBACK_PARAM));
+                }
+                writer.write(callback + "(");
             }
 
-            int encodedEntities = 0;
-            if (replacementEncoding != null) {
-                sb.append(replacementEncoding);
-            } else {
-                // loop through and encode items
-                for (EntityData entity : entities) {
-                    try {
-                        String encode = encodeEntity(ref.getPrefix(), format, entity, view);
-                        if (encode.length() > 3) {
-                            if ((Formats.JSON.equals(format) || Formats.JSONP.equals(format)) 
-                                    && encodedEntities > 0) {
-                                sb.append(",");
+            if (EntityView.VIEW_LIST.equals(view.getViewKey()) 
+                    || ref.getId() == null) {
+                // encoding a collection of entities
+
+                // make header
+                if (Formats.HTML.equals(format) 
+                        || Formats.FORM.equals(format)) {
+                    writer.write("<h1>"+ref.getPrefix() + COLLECTION + "</h1>\n");
+                } else if (Formats.JSON.equals(format) || Formats.JSONP.equals(format)) {
+                    writer.write("{\""+ENTITY_PREFIX+"\": \""+ref.getPrefix() + "\", \"" + ref.getPrefix() + COLLECTION + "\": [\n");
+                } else if (Formats.XML.equals(format)) {
+                    writer.write("<" + ref.getPrefix() + COLLECTION + " " + ENTITY_PREFIX + "=\"" + ref.getPrefix() + "\">\n");
+                } else { // general case
+                    writer.write(ref.getPrefix() + COLLECTION + "\n");
+                }
+
+                int encodedEntities = 0;
+                if (replacementEncoding != null) {
+                    writer.write(replacementEncoding);
+                } else {
+                    boolean json = Formats.JSON.equals(format) || Formats.JSONP.equals(format);
+                    StreamingJSONEncoder jsonEncoder = json ? getStreamingJSONEncoder() : null;
+                    // loop through and encode items
+                    for (EntityData entity : entities) {
+                        try {
+                            if (jsonEncoder != null) {
+                                Map<String, Object> entityProps = new ArrayOrderedMap<String, Object>();
+                                Object toEncode = getEncodableEntity(entity, entityProps);
+                                if (toEncode != null && jsonEncoder.canEncode(toEncode, entityProps)) {
+                                    if (encodedEntities > 0) {
+                                        writer.write(",");
+                                    }
+                                    jsonEncoder.encode(writer, toEncode, entityProps, getMaxDepth(ref.getPrefix()));
+                                    encodedEntities++;
+                                    continue;
+                                }
+                            }
+                            String encode = encodeEntity(ref.getPrefix(), format, entity, view);
+                            if (encode.length() > 3) {
+                                if (json && encodedEntities > 0) {
+                                    writer.write(",");
+                                }
+                                writer.write(encode);
+                                encodedEntities++;
                             }
-                            sb.append(encode);
-                            encodedEntities++;
+                        } catch (RuntimeException e) {
+                            throw new EntityEncodingException("Failure during internal output encoding of entity set on entity: " + ref, ref.toString(), e);
                         }
-                    } catch (RuntimeException e) {
-                        throw new EntityEncodingException("Failure during internal output encoding of entity set on entity: " + ref, ref.toString(), e);
                     }
                 }
-            }
 
-            // make footer
-            if (Formats.HTML.equals(format)
-                    || Formats.FORM.equals(format)) {
-                sb.append("\n<b>Collection size:</b> "+encodedEntities+"\n");
-            } else if (Formats.JSON.equals(format) || Formats.JSONP.equals(format)) {
-                sb.append("\n]}");
-            } else if (Formats.XML.equals(format)) {
-                sb.append("</" + ref.getPrefix() + COLLECTION + ">");
-            } else { // general case
-                sb.append("\nSize: " + encodedEntities + "\n");
-            }
-            encoded = sb.toString();
-        } else {
-            // encoding a single entity
-            EntityData toEncode = entities.get(0);
-            if (replacementEncoding != null) {
-                encoded = replacementEncoding;
+                // make footer
+                if (Formats.HTML.equals(format)
+                        || Formats.FORM.equals(format)) {
+                    writer.write("\n<b>Collection size:</b> "+encodedEntities+"\n");
+                } else if (Formats.JSON.equals(format) || Formats.JSONP.equals(format)) {
+                    writer.write("\n]}");
+                } else if (Formats.XML.equals(format)) {
+                    writer.write("</" + ref.getPrefix() + COLLECTION + ">");
+                } else { // general case
+                    writer.write("\nSize: " + encodedEntities + "\n");
+                }
             } else {
-                if (toEncode == null) {
-                    throw new EntityEncodingException("Failed to encode data for entity (" + ref 
-                            + "), entity object to encode could not be found (null object in list)", ref.toString());
+                // encoding a single entity
+                EntityData toEncode = entities.get(0);
+                if (replacementEncoding != null) {
+                    writer.write(replacementEncoding);
                 } else {
-                    try {
-                        encoded = encodeEntity(ref.getPrefix(), format, toEncode, view);
-                    } catch (RuntimeException e) {
-                        throw new EntityEncodingException("Failure during internal output encoding of entity: " + ref, ref.toString(), e);
+                    if (toEncode == null) {
+                        throw new EntityEncodingException("Failed to encode data for entity (" + ref 
+                                + "), entity object to encode could not be found (null object in list)", ref.toString());
+                    } else {
+                        String encoded;
+                        try {
+                            encoded = encodeEntity(ref.getPrefix(), format, toEncode, view);
+                        } catch (RuntimeException e) {
+                            throw new EntityEncodingException("Failure during internal output encoding of entity: " + ref, ref.toString(), e);
+                        }
+                        writer.write(encoded);
                     }
                 }
             }
-        }
-        // add the HTML headers and footers
-        if (Formats.FORM.equals(format)) {
-            String title = view.getViewKey() + ":" + ref;
-            encoded = XML_HEADER + XHTML_HEADER.replace("{title}", title) + encoded + XHTML_FOOTER;
-        } else if (Formats.XML.equals(format)) {
-            encoded = XML_HEADER + encoded;
-        } else if (Formats.JSONP.equals(format)) {
-            String callback = JSON_DEFAULT_CALLBACK;
-            if (params != null && params.containsKey(JSON_CALLBACK_PARAM)) {
-                callback = sanitizeJsonCallback(params.get(JSON_CALLBACK_PARAM));
+
+            // add the HTML footers
+            if (Formats.FORM.equals(format)) {
+                writer.write(XHTML_FOOTER);
+            } else if (Formats.JSONP.equals(format)) {
+                writer.write(")");
             }
-            encoded = callback + "(" + encoded + ")";
-        }
-        // put the encoded data into the stream
-        try {
-            byte[] b = encoded.getBytes(Formats.UTF_8);
-            output.write(b);
-        } catch (UnsupportedEncodingException e) {
-            throw new EntityEncodingException("Failed to encode UTF-8: " + ref, ref.toString(), e);
+            // the output belongs to the caller so only flush it
+            writer.flush();
         } catch (IOException e) {
             throw new EntityEncodingException("Failed to encode into output stream: " + ref, ref.toString(), e);
         }
@@ -757,30 +779,8 @@ public class EntityEncodingManager {
             }
         } else {
             // encode the entity itself
-            Object toEncode = entityData; // default to encoding the entity data object
             Map<String, Object> entityProps = new ArrayOrderedMap<String, Object>();
-            if (entityData != null && entityData.getData() != null) {
-                if (entityData.isDataOnly()) {
-                    toEncode = entityData.getData();
-                    // no meta data except properties if there are any
-                    entityProps.putAll( entityData.getEntityProperties() );
-                } else {
-                    if (ConstructorUtils.isClassBean(entityData.getData().getClass())) {
-                        // encode the bean directly if it is one
-                        toEncode = entityData.getData();
-                        // add in the extra props
-                        entityProps.put(ENTITY_REFERENCE, entityData.getEntityReference());
-                        entityProps.put(ENTITY_URL, entityData.getEntityURL());
-                        if (entityData.getEntityRef().getId() != null) {
-                            entityProps.put(ENTITY_ID, entityData.getEntityRef().getId());
-                        }
-                        if (entityData.isDisplayTitleSet()) {
-                            entityProps.put(ENTITY_TITLE, entityData.getDisplayTitle());
-                        }
-                    }
-                    entityProps.putAll(entityData.getEntityProperties());
-                }
-            }
+            Object toEncode = getEncodableEntity(entityData, entityProps);
             // do the encoding
             try {
                 encoded = encodeData(toEncode, format, prefix, entityProps);
@@ -792,6 +792,39 @@ public class EntityEncodingManager {
         return encoded;
     }
 
+    /**
+     * Works out what should be encoded for an entity
+     * @param entityData (optional) the entity data being encoded
+     * @param entityProps filled in with the extra properties to encode along with the entity
+     * @return the object to encode
+     */
+    protected Object getEncodableEntity(EntityData entityData, Map<String, Object> entityProps) {
+        Object toEncode = entityData; // default to encoding the entity data object
+        if (entityData != null && entityData.getData() != null) {
+            if (entityData.isDataOnly()) {
+                toEncode = entityData.getData();
+                // no meta data except properties if there are any
+                entityProps.putAll( entityData.getEntityProperties() );
+            } else {
+                if (ConstructorUtils.isClassBean(entityData.getData().getClass())) {
+                    // encode the bean directly if it is one
+                    toEncode = entityData.getData();
+                    // add in the extra props
+                    entityProps.put(ENTITY_REFERENCE, entityData.getEntityReference());
+                    entityProps.put(ENTITY_URL, entityData.getEntityURL());
+                    if (entityData.getEntityRef().getId() != null) {
+                        entityProps.put(ENTITY_ID, entityData.getEntityRef().getId());
+                    }
+                    if (entityData.isDisplayTitleSet()) {
+                        entityProps.put(ENTITY_TITLE, entityData.getDisplayTitle());
+                    }
+                }
+                entityProps.putAll(entityData.getEntityProperties());
+            }
+        }
+        return toEncode;
+    }
+
     /**
      * @return the form view URLs which should be used with the forms
      */
@@ -860,13 +893,7 @@ public class EntityEncodingManager {
         }
         String encoded = "";
         if (data != null) {
-            int maxDepth = 0;
-            if (name != null) {
-                DepthLimitable provider = (DepthLimitable) entityProviderManager.getProviderByPrefixAndCapability(name, DepthLimitable.class);
-                if (provider != null) {
-                    maxDepth = provider.getMaxDepth();
-                }
-            }
+            int maxDepth = getMaxDepth(name);
             Transcoder transcoder = getTranscoder(format);
             try {
                 if (maxDepth == 0) {
@@ -882,6 +909,39 @@ public class EntityEncodingManager {
         return encoded;
     }
     
+    /**
+     * @param prefix (optional) an entity prefix
+     * @return the max depth to encode to for the provider of this prefix or 0 for the default
+     */
+    protected int getMaxDepth(String prefix) {
+        int maxDepth = 0;
+        if (prefix != null) {
+            DepthLimitable provider = (DepthLimitable) entityProviderManager.getProviderByPrefixAndCapability(prefix, DepthLimitable.class);
+            if (provider != null) {
+                maxDepth = provider.getMaxDepth();
+            }
+        }
+        return maxDepth;
+    }
+
+    public static final String CONFIG_JSON_STREAMING = "entitybroker.json.streaming";
+
+    private StreamingJSONEncoder streamingJSONEncoder;
+    private boolean streamingJSONChecked = false;
+    /**
+     * @return the encoder for writing JSON collections straight into the output or null if it is not enabled
+     */
+    protected StreamingJSONEncoder getStreamingJSONEncoder() {
+        if (! streamingJSONChecked) {
+            if (entityBrokerManager.getExternalIntegrationProvider() != null
+                    && entityBrokerManager.getExternalIntegrationProvider().getConfigurationSetting(CONFIG_JSON_STREAMING, false)) {
+                streamingJSONEncoder = new StreamingJSONEncoder(entityBrokerManager.getMaxJSONLevel());
+            }
+            streamingJSONChecked = true;
+        }
+        return streamingJSONEncoder;
+    }
+
     /**
      * Clean the JSONP callback parameter to make sure it is sensible
      * @param param The parameter for the callback, should be a String
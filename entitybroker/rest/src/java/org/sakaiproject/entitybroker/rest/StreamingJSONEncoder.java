@@ -0,0 +1,281 @@
+/**
+ * Copyright (c) 2007-2018 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.rest;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.azeckoski.reflectutils.ClassFields;
+import org.azeckoski.reflectutils.ClassFields.FieldsFilter;
+import org.azeckoski.reflectutils.ConstructorUtils;
+import org.azeckoski.reflectutils.ReflectUtils;
+
+/**
+ * Writes JSON straight to a {@link Writer} instead of building it up as a String,
+ * for use when outputting large collections of entities. <br/>
+ * The output has the same structure as the reflectutils JSONTranscoder the
+ * {@link EntityEncodingManager} uses (same field names, nulls included, dates as
+ * milliseconds, no class field) but without the pretty printing whitespace. <br/>
+ * Which fields of a bean are written is still decided by reflectutils, but that is only
+ * worked out once per class: the getters are then kept as {@link MethodHandle}s so encoding
+ * each object is a plain method call per field rather than a reflective lookup.
+ */
+public class StreamingJSONEncoder {
+
+    private static final ClassValue<Accessor[]> ACCESSORS = new ClassValue<Accessor[]>() {
+        @Override
+        protected Accessor[] computeValue(Class<?> type) {
+            return makeAccessors(type);
+        }
+    };
+
+    private final int maxLevel;
+
+    /**
+     * @param maxLevel the deepest level of nesting to write out, objects below this are written as their string value
+     */
+    public StreamingJSONEncoder(int maxLevel) {
+        this.maxLevel = maxLevel;
+    }
+
+    /**
+     * @param data the data to encode
+     * @param properties (optional) extra properties to add into the encoding
+     * @return true if this encoder can write the data, only maps and beans are handled at the top level
+     * as other values are wrapped up by the transcoder
+     */
+    public boolean canEncode(Object data, Map<String, Object> properties) {
+        return data != null && (data instanceof Map || isBean(data.getClass()));
+    }
+
+    /**
+     * Encode the data into the writer
+     * @param writer where to write the JSON
+     * @param data the data to encode
+     * @param properties (optional) extra properties to add to the encoded object
+     * @param maxDepth (optional) the maximum depth to encode to for this data, 0 to use the default
+     * @throws IOException if the writer fails
+     */
+    public void encode(Writer writer, Object data, Map<String, Object> properties, int maxDepth) throws IOException {
+        int max = maxDepth > 0 ? Math.min(maxDepth, maxLevel) : maxLevel;
+        writeValue(writer, data, properties, 0, max);
+    }
+
+    private void writeValue(Writer w, Object value, Map<String, Object> properties, int level, int max) throws IOException {
+        if (value == null) {
+            w.write("null");
+            return;
+        }
+        Class<?> type = value.getClass();
+        if (value instanceof CharSequence || value instanceof Character) {
+            writeString(w, value.toString());
+        } else if (value instanceof Boolean) {
+            w.write(value.toString());
+        } else if (value instanceof Number) {
+            writeNumber(w, (Number) value);
+        } else if (value instanceof Date) {
+            w.write(Long.toString(((Date) value).getTime()));
+        } else if (value instanceof Calendar) {
+            w.write(Long.toString(((Calendar) value).getTimeInMillis()));
+        } else if (value instanceof Enum) {
+            writeString(w, ((Enum<?>) value).name());
+        } else if (level >= max) {
+            // too deep, just say what it is
+            writeString(w, value.toString());
+        } else if (value instanceof Map) {
+            w.write('{');
+            boolean first = true;
+            for (Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                first = writeField(w, first, String.valueOf(entry.getKey()), entry.getValue(), level, max);
+            }
+            writeProperties(w, first, properties, level, max);
+            w.write('}');
+        } else if (value instanceof Collection) {
+            w.write('[');
+            boolean first = true;
+            for (Object item : (Collection<?>) value) {
+                if (! first) {
+                    w.write(',');
+                }
+                first = false;
+                writeValue(w, item, null, level + 1, max);
+            }
+            w.write(']');
+        } else if (type.isArray()) {
+            w.write('[');
+            int length = Array.getLength(value);
+            for (int i = 0; i < length; i++) {
+                if (i > 0) {
+                    w.write(',');
+                }
+                writeValue(w, Array.get(value, i), null, level + 1, max);
+            }
+            w.write(']');
+        } else if (isBean(type)) {
+            w.write('{');
+            boolean first = true;
+            for (Accessor accessor : ACCESSORS.get(type)) {
+                first = writeField(w, first, accessor.name, accessor.get(value), level, max);
+            }
+            writeProperties(w, first, properties, level, max);
+            w.write('}');
+        } else {
+            writeString(w, value.toString());
+        }
+    }
+
+    private boolean writeField(Writer w, boolean first, String name, Object value, int level, int max) throws IOException {
+        if (! first) {
+            w.write(',');
+        }
+        writeString(w, name);
+        w.write(':');
+        writeValue(w, value, null, level + 1, max);
+        return false;
+    }
+
+    private void writeProperties(Writer w, boolean first, Map<String, Object> properties, int level, int max) throws IOException {
+        if (properties != null) {
+            for (Entry<String, Object> entry : properties.entrySet()) {
+                first = writeField(w, first, entry.getKey(), entry.getValue(), level, max);
+            }
+        }
+    }
+
+    private static void writeNumber(Writer w, Number n) throws IOException {
+        if ((n instanceof Double && (((Double) n).isNaN() || ((Double) n).isInfinite()))
+                || (n instanceof Float && (((Float) n).isNaN() || ((Float) n).isInfinite()))) {
+            // not representable as a JSON number
+            writeString(w, n.toString());
+        } else {
+            w.write(n.toString());
+        }
+    }
+
+    private static void writeString(Writer w, String s) throws IOException {
+        w.write('"');
+        int start = 0;
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            String escape = null;
+            switch (c) {
+                case '"': escape = "\\\""; break;
+                case '\\': escape = "\\\\"; break;
+                case '\n': escape = "\\n"; break;
+                case '\r': escape = "\\r"; break;
+                case '\t': escape = "\\t"; break;
+                case '\b': escape = "\\b"; break;
+                case '\f': escape = "\\f"; break;
+                case '\u2028': escape = "\\u2028"; break;
+                case '\u2029': escape = "\\u2029"; break;
+                default:
+                    if (c < 0x20) {
+                        escape = String.format("\\u%04x", (int) c);
+                    }
+            }
+            if (escape != null) {
+                w.write(s, start, i - start);
+                w.write(escape);
+                start = i + 1;
+            }
+        }
+        w.write(s, start, length - start);
+        w.write('"');
+    }
+
+    private static boolean isBean(Class<?> type) {
+        return ! ConstructorUtils.isClassSimple(type) && ConstructorUtils.isClassBean(type);
+    }
+
+    /**
+     * Find the fields reflectutils would serialize for this class and a direct way to read each of them
+     */
+    private static Accessor[] makeAccessors(Class<?> type) {
+        ClassFields<?> cf = ReflectUtils.getInstance().analyzeClass(type);
+        List<Accessor> accessors = new ArrayList<Accessor>();
+        for (String name : cf.getFieldTypes(FieldsFilter.SERIALIZABLE).keySet()) {
+            if ("class".equals(name)) {
+                continue;
+            }
+            accessors.add(new Accessor(name, findGetter(type, name)));
+        }
+        return accessors.toArray(new Accessor[accessors.size()]);
+    }
+
+    private static MethodHandle findGetter(Class<?> type, String name) {
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        String suffix = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        for (String prefix : new String[] {"get", "is"}) {
+            try {
+                Method m = type.getMethod(prefix + suffix);
+                if (m.getReturnType() != void.class && Modifier.isPublic(m.getDeclaringClass().getModifiers())) {
+                    return lookup.unreflect(m);
+                }
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                // try the next way
+            }
+        }
+        try {
+            Field f = type.getField(name);
+            if (Modifier.isPublic(f.getDeclaringClass().getModifiers())) {
+                return lookup.unreflectGetter(f);
+            }
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            // left to reflectutils
+        }
+        return null;
+    }
+
+    private static class Accessor {
+        private final String name;
+        private final MethodHandle getter;
+
+        private Accessor(String name, MethodHandle getter) {
+            this.name = name;
+            this.getter = getter;
+        }
+
+        private Object get(Object bean) {
+            if (getter == null) {
+                // not a plain getter or public field (or not public), let reflectutils work it out
+                return ReflectUtils.getInstance().getFieldValue(bean, name);
+            }
+            try {
+                return getter.invoke(bean);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException("Failed to read field (" + name + ") from " + bean.getClass(), e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright (c) 2003-2018 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.entitybroker.rest;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import junit.framework.TestCase;
+
+import org.sakaiproject.entitybroker.EntityView;
+import org.sakaiproject.entitybroker.mocks.data.TestData;
+import org.sakaiproject.entitybroker.util.external.ExternalIntegrationProviderMock;
+import org.sakaiproject.entitybroker.util.http.EntityHttpServletRequest;
+import org.sakaiproject.entitybroker.util.http.EntityHttpServletResponse;
+
+/**
+ * Testing the batch GET refs which are run on the batch pool
+ */
+public class EntityBatchHandlerTest extends TestCase {
+
+    private static final String REF_OK = "/direct" + TestData.REF4;
+    private static final String REF_OTHER = "/direct" + TestData.REF4_two;
+
+    private ServiceTestManager serviceTestManager;
+    private EntityBatchHandler batchHandler;
+    private Thread testThread;
+    // threads other than the test thread which used the original request
+    private Set<Thread> requestUsers = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        serviceTestManager = new ServiceTestManager(new TestData());
+        testThread = Thread.currentThread();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (batchHandler != null) {
+            batchHandler.destroy();
+        }
+        super.tearDown();
+    }
+
+    private void makeBatchHandler(final int timeout, EntityHandlerImpl refHandler) {
+        batchHandler = new EntityBatchHandler(serviceTestManager.entityBrokerManager,
+                serviceTestManager.entityEncodingManager, new ExternalIntegrationProviderMock() {
+                    @SuppressWarnings("unchecked")
+                    @Override
+                    public <T> T getConfigurationSetting(String settingName, T defaultValue) {
+                        if (EntityBatchHandler.CONFIG_BATCH_TIMEOUT.equals(settingName)) {
+                            return (T) Integer.valueOf(timeout);
+                        }
+                        // the pool is off by default
+                        if (EntityBatchHandler.CONFIG_BATCH_THREADS.equals(settingName)) {
+                            return (T) Integer.valueOf(4);
+                        }
+                        return super.getConfigurationSetting(settingName, defaultValue);
+                    }
+                });
+        batchHandler.setEntityRequestHandler(refHandler);
+    }
+
+    /**
+     * The original request, which notes any thread other than the test thread using it
+     */
+    private HttpServletRequest makeRequest(String refs) {
+        EntityHttpServletRequest req = new EntityHttpServletRequest("GET", "/direct/batch.json");
+        req.setParameter(EntityBatchHandler.REFS_PARAM_NAME, refs);
+        return new HttpServletRequestWrapper(req) {
+            @Override
+            public HttpSession getSession() {
+                used();
+                return super.getSession();
+            }
+            @Override
+            public HttpSession getSession(boolean create) {
+                used();
+                return super.getSession(create);
+            }
+            @Override
+            public String getRemoteUser() {
+                used();
+                return "user";
+            }
+            @Override
+            public Object getAttribute(String name) {
+                used();
+                return super.getAttribute(name);
+            }
+            private void used() {
+                if (Thread.currentThread() != testThread) {
+                    requestUsers.add(Thread.currentThread());
+                }
+            }
+        };
+    }
+
+    private EntityHttpServletResponse runBatch(String refs) {
+        EntityHttpServletResponse res = new EntityHttpServletResponse();
+        batchHandler.handleBatch(new EntityView("/batch.json"), makeRequest(refs), res);
+        return res;
+    }
+
+    public void testRefsGetTheirOwnRequests() {
+        final Set<HttpServletRequest> seen = Collections.newSetFromMap(new ConcurrentHashMap<HttpServletRequest, Boolean>());
+        final Set<String> users = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        makeBatchHandler(30000, new EntityHandlerImpl() {
+            @Override
+            public String handleEntityAccess(HttpServletRequest req, HttpServletResponse res, String path) {
+                seen.add(req);
+                users.add(req.getRemoteUser());
+                assertSame(req.getSession(), req.getSession(false));
+                res.setStatus(HttpServletResponse.SC_OK);
+                return null;
+            }
+        });
+
+        EntityHttpServletResponse res = runBatch(REF_OK + "," + REF_OTHER);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertEquals(2, seen.size());
+        // the user was looked up on the request thread and handed over
+        assertEquals(Collections.singleton("user"), users);
+        assertTrue("original request used by " + requestUsers, requestUsers.isEmpty());
+    }
+
+    public void testSlowRefIsCancelled() throws Exception {
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        makeBatchHandler(200, new EntityHandlerImpl() {
+            @Override
+            public String handleEntityAccess(HttpServletRequest req, HttpServletResponse res, String path) {
+                if (req.getRequestURI().contains(TestData.IDS4[1])) {
+                    try {
+                        Thread.sleep(60000);
+                    } catch (InterruptedException e) {
+                        interrupted.countDown();
+                    }
+                }
+                res.setStatus(HttpServletResponse.SC_OK);
+                return null;
+            }
+        });
+
+        EntityHttpServletResponse res = runBatch(REF_OK + "," + REF_OTHER);
+        String content = res.getContentAsString();
+        assertTrue(content, content.contains("Timed out"));
+        assertTrue(content, content.contains(String.valueOf(HttpServletResponse.SC_GATEWAY_TIMEOUT)));
+        // the worker was interrupted rather than left to run
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+    }
+
+    public void testFailingRefIsReportedOnItsOwn() {
+        makeBatchHandler(30000, new EntityHandlerImpl() {
+            @Override
+            public String handleEntityAccess(HttpServletRequest req, HttpServletResponse res, String path) {
+                if (req.getRequestURI().contains(TestData.IDS4[1])) {
+                    // a redirect with nowhere to go fails outside of the request handling
+                    res.setStatus(HttpServletResponse.SC_FOUND);
+                } else {
+                    res.setStatus(HttpServletResponse.SC_OK);
+                }
+                return null;
+            }
+        });
+
+        EntityHttpServletResponse res = runBatch(REF_OK + "," + REF_OTHER);
+        String content = res.getContentAsString();
+        assertTrue(content, content.contains("Failure attempting to process reference"));
+        assertTrue(content, content.contains("\"status\": 200") || content.contains("\"status\":200"));
+    }
+
+}
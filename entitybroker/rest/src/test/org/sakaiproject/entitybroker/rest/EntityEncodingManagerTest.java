@@ -23,6 +23,7 @@ package org.sakaiproject.entitybroker.rest;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -389,6 +390,38 @@ public class EntityEncodingManagerTest extends TestCase {
 
     }
 
+    // the streaming encoder must produce the same data as the transcoder
+    public void testStreamingJSONEncode() throws Exception {
+        StreamingJSONEncoder encoder = new StreamingJSONEncoder(entityBrokerManager.getMaxJSONLevel());
+
+        Map<String, Object> m = new ArrayOrderedMap<String, Object>();
+        m.put("id", 123);
+        m.put("thing", "A \"quoted\" \\ thing\n");
+        m.put("empty", null);
+        Map<String, Object> m2 = new ArrayOrderedMap<String, Object>();
+        m2.put("name", "aaron");
+        m2.put("num", 456);
+        m2.put("array", new String[] {"A","B","C"});
+        m.put("map", m2);
+        assertTrue(encoder.canEncode(m, null));
+        StringWriter writer = new StringWriter();
+        encoder.encode(writer, m, null, 0);
+        assertEquals(entityEncodingManager.decodeData(entityEncodingManager.encodeData(m, Formats.JSON, null, null), Formats.JSON),
+                entityEncodingManager.decodeData(writer.toString(), Formats.JSON));
+
+        MyEntity me = new MyEntity("aaronz", "stuff", 5);
+        me.extra = "extra";
+        Map<String, Object> props = new ArrayOrderedMap<String, Object>();
+        props.put(EntityEncodingManager.ENTITY_REFERENCE, "/myprefix/aaronz");
+        assertTrue(encoder.canEncode(me, props));
+        writer = new StringWriter();
+        encoder.encode(writer, me, props, 0);
+        assertEquals(entityEncodingManager.decodeData(entityEncodingManager.encodeData(me, Formats.JSON, null, props), Formats.JSON),
+                entityEncodingManager.decodeData(writer.toString(), Formats.JSON));
+
+        assertFalse(encoder.canEncode("just a string", null));
+    }
+
     // testing the internal decoder
     @SuppressWarnings("unchecked")
     public void testJSONDecode() {
@@ -0,0 +1,182 @@
+/**
+ * Copyright (c) 2003-2017 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.api.app.scheduler;
+
+import java.util.Date;
+
+/**
+ * One partition of a run of a partitioned job. The keys of the job (site IDs, assessment IDs...)
+ * are spread over the partitions by {@link #partitionOf(String, int)}, so every server works out
+ * the same partition for a key without asking the others.
+ *
+ * @see JobPartitionManager
+ */
+public class JobPartition {
+
+	public static enum Status
+	{
+		/** Waiting for a server to claim it. */
+		WAITING,
+		/** Claimed by a server, which holds the lease until it finishes or stops renewing it. */
+		RUNNING,
+		DONE,
+		FAILED
+	}
+
+	private String jobName;
+	private int partition;
+	private int partitions;
+	private Status status;
+	private String serverId;
+	private long leaseExpires;
+	private long processed;
+	private long total;
+	private Date started;
+	private Date updated;
+
+	public JobPartition() { }
+
+	public JobPartition(String jobName, int partition, int partitions) {
+		this.jobName = jobName;
+		this.partition = partition;
+		this.partitions = partitions;
+		this.status = Status.WAITING;
+	}
+
+	/**
+	 * @param key a key of the job, such as a site ID
+	 * @param partitions the number of partitions of the job
+	 * @return the partition, from 0 to partitions - 1, the key belongs to
+	 */
+	public static int partitionOf(String key, int partitions) {
+		return Math.floorMod(key.hashCode(), partitions);
+	}
+
+	/**
+	 * @param key a key of the job, such as a site ID
+	 * @return true if the key belongs to this partition and so should be processed by its worker
+	 */
+	public boolean contains(String key) {
+		return partitionOf(key, partitions) == partition;
+	}
+
+	public String getJobName() {
+		return jobName;
+	}
+
+	public void setJobName(String jobName) {
+		this.jobName = jobName;
+	}
+
+	/**
+	 * @return the number of this partition, from 0 to {@link #getPartitions()} - 1
+	 */
+	public int getPartition() {
+		return partition;
+	}
+
+	public void setPartition(int partition) {
+		this.partition = partition;
+	}
+
+	/**
+	 * @return the number of partitions in the run
+	 */
+	public int getPartitions() {
+		return partitions;
+	}
+
+	public void setPartitions(int partitions) {
+		this.partitions = partitions;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public void setStatus(Status status) {
+		this.status = status;
+	}
+
+	/**
+	 * @return the server instance (see ServerConfigurationService#getServerIdInstance()) that last
+	 * claimed the partition, or null if none has
+	 */
+	public String getServerId() {
+		return serverId;
+	}
+
+	public void setServerId(String serverId) {
+		this.serverId = serverId;
+	}
+
+	/**
+	 * @return when, in milliseconds, the lease of the server running the partition runs out
+	 */
+	public long getLeaseExpires() {
+		return leaseExpires;
+	}
+
+	public void setLeaseExpires(long leaseExpires) {
+		this.leaseExpires = leaseExpires;
+	}
+
+	/**
+	 * @return the number of keys processed so far, as reported by the worker
+	 */
+	public long getProcessed() {
+		return processed;
+	}
+
+	public void setProcessed(long processed) {
+		this.processed = processed;
+	}
+
+	/**
+	 * @return the number of keys in the partition, as reported by the worker, or 0 if not known yet
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	public void setTotal(long total) {
+		this.total = total;
+	}
+
+	/**
+	 * @return when the run this partition belongs to was started
+	 */
+	public Date getStarted() {
+		return started;
+	}
+
+	public void setStarted(Date started) {
+		this.started = started;
+	}
+
+	public Date getUpdated() {
+		return updated;
+	}
+
+	public void setUpdated(Date updated) {
+		this.updated = updated;
+	}
+
+	public String toString() {
+		return jobName + " partition " + partition + "/" + partitions + " " + status + " server: " + serverId
+			+ " processed: " + processed + "/" + total;
+	}
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright (c) 2003-2017 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.api.app.scheduler;
+
+import java.util.List;
+
+/**
+ * Spreads the work of a long job over the servers of a cluster. Quartz only fires a trigger on one
+ * server, so a job that wants the others to help splits its keys into partitions:
+ * <ol>
+ * <li>every server registers a {@link JobPartitionWorker} for the job when it starts up,</li>
+ * <li>the job, when fired, calls {@link #startRun(String, int)} and then {@link #processPartitions(String)},</li>
+ * <li>the other servers notice the waiting partitions when they next poll and claim some of them.</li>
+ * </ol>
+ * A server holds a lease on each partition it claims and keeps renewing it while the worker runs. If the
+ * server goes away the lease runs out, or the server drops out of the cluster, and another server claims
+ * the partition and runs it again.
+ */
+public interface JobPartitionManager {
+
+	/**
+	 * Register the worker that processes the partitions of a job on this server.
+	 *
+	 * @param jobName the name of the job, as passed to {@link #startRun(String, int)}
+	 * @param worker the worker
+	 */
+	public void registerWorker(String jobName, JobPartitionWorker worker);
+
+	/**
+	 * @param jobName the name of the job to stop processing partitions of on this server
+	 */
+	public void unregisterWorker(String jobName);
+
+	/**
+	 * Start a run of the job split into some partitions, unless the last run still has partitions
+	 * waiting or running, in which case that run is carried on with instead.
+	 *
+	 * @param jobName the name of the job
+	 * @param partitions the number of partitions, which should be a few times the number of servers
+	 * @return true if a new run was started
+	 */
+	public boolean startRun(String jobName, int partitions);
+
+	/**
+	 * Claim and process the waiting partitions of the job on this server, one at a time, until there
+	 * are none left to claim.
+	 *
+	 * @param jobName the name of the job
+	 * @return the number of partitions processed
+	 */
+	public int processPartitions(String jobName);
+
+	/**
+	 * Record how far the worker has got with a partition.
+	 *
+	 * @param partition the partition being processed
+	 * @param processed the number of keys processed so far
+	 * @param total the number of keys in the partition
+	 * @return false if this server no longer holds the partition and should stop working on it
+	 */
+	public boolean progress(JobPartition partition, long processed, long total);
+
+	/**
+	 * @param jobName the name of the job
+	 * @return the partitions of the last run of the job, in order
+	 */
+	public List<JobPartition> getPartitions(String jobName);
+
+	/**
+	 * @return the partitions of the last run of every partitioned job, by job name and partition
+	 */
+	public List<JobPartition> getPartitions();
+
+}
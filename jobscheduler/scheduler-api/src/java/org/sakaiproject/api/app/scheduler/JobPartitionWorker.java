@@ -0,0 +1,35 @@
+/**
+ * Copyright (c) 2003-2017 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.api.app.scheduler;
+
+/**
+ * Does the work of one partition of a partitioned job on the server that claimed it.
+ *
+ * @see JobPartitionManager#registerWorker(String, JobPartitionWorker)
+ */
+public interface JobPartitionWorker {
+
+	/**
+	 * Process the keys of the job that belong to the partition, see {@link JobPartition#contains(String)}.
+	 * Progress should be reported through {@link JobPartitionManager#progress(JobPartition, long, long)},
+	 * and the work given up if that returns false.
+	 *
+	 * @param partition the partition claimed by this server
+	 * @throws Exception if the partition failed, it is then marked as failed and not run again in this run
+	 */
+	public void process(JobPartition partition) throws Exception;
+
+}
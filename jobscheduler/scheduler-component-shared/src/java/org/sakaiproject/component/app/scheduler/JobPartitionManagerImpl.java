@@ -0,0 +1,354 @@
+/**
+ * Copyright (c) 2003-2017 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.component.app.scheduler;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.sakaiproject.api.app.scheduler.JobPartition;
+import org.sakaiproject.api.app.scheduler.JobPartitionManager;
+import org.sakaiproject.api.app.scheduler.JobPartitionWorker;
+import org.sakaiproject.cluster.api.ClusterService;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.db.api.SqlService;
+
+/**
+ * Keeps the partitions and their leases in the SCHEDULER_JOB_PARTITION table. A server claims a
+ * partition with an update that only succeeds if the row hasn't changed since it was read, so two
+ * servers can't both claim the same one.
+ *
+ * Each server polls for waiting partitions of the jobs it has workers for, and renews the leases of the
+ * partitions it is running on another thread, so a worker doesn't lose its partition while it is busy.
+ */
+@Slf4j
+public class JobPartitionManagerImpl implements JobPartitionManager {
+
+	public static final String SCHEDULER_PARTITION_LEASE_SECONDS = "scheduler.partition.lease.seconds";
+	public static final int SCHEDULER_PARTITION_LEASE_SECONDS_DEFAULT = 120;
+	public static final String SCHEDULER_PARTITION_POLL_SECONDS = "scheduler.partition.poll.seconds";
+	public static final int SCHEDULER_PARTITION_POLL_SECONDS_DEFAULT = 30;
+
+	/** Progress is written at most this often, apart from when a partition is finished. */
+	static final long PROGRESS_MILLIS = 5000L;
+
+	private static final String SELECT_PARTITIONS = "SELECT JOB_NAME, PARTITION_NO, PARTITION_COUNT, STATUS, SERVER_ID,"
+		+ " LEASE_EXPIRES, PROCESSED, TOTAL, RUN_STARTED, UPDATED FROM SCHEDULER_JOB_PARTITION";
+	private static final String PARTITION_IS = " WHERE JOB_NAME = ? AND PARTITION_NO = ? AND RUN_STARTED = ?";
+
+	private SqlService sqlService;
+	private ServerConfigurationService serverConfigurationService;
+	private ClusterService clusterService;
+	private boolean autoDdl = false;
+
+	private final Map<String, JobPartitionWorker> workers = new ConcurrentHashMap<String, JobPartitionWorker>();
+	/** The partitions this server is running, so their leases can be renewed. */
+	private final Set<JobPartition> running = ConcurrentHashMap.newKeySet();
+
+	private String serverId;
+	private long leaseMillis;
+	private ScheduledExecutorService executor;
+
+	public void init() {
+		if (autoDdl) {
+			sqlService.ddl(this.getClass().getClassLoader(), "job_partition");
+		}
+		serverId = serverConfigurationService.getServerIdInstance();
+		leaseMillis = TimeUnit.SECONDS.toMillis(serverConfigurationService.getInt(SCHEDULER_PARTITION_LEASE_SECONDS, SCHEDULER_PARTITION_LEASE_SECONDS_DEFAULT));
+		long pollSeconds = serverConfigurationService.getInt(SCHEDULER_PARTITION_POLL_SECONDS, SCHEDULER_PARTITION_POLL_SECONDS_DEFAULT);
+
+		// One thread to work on the partitions, the other to renew leases while it does
+		executor = Executors.newScheduledThreadPool(2, r -> {
+			Thread thread = new Thread(r, "[Job partitions]");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(this::renewLeases, leaseMillis / 3, leaseMillis / 3, TimeUnit.MILLISECONDS);
+		if (pollSeconds > 0) {
+			executor.scheduleWithFixedDelay(this::poll, pollSeconds, pollSeconds, TimeUnit.SECONDS);
+		}
+		log.info("Job partitions server={} lease={}s poll={}s", serverId, leaseMillis / 1000, pollSeconds);
+	}
+
+	public void destroy() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+		// Hand back what we were running, so the other servers don't have to wait for the leases to run out
+		sqlService.dbWrite("UPDATE SCHEDULER_JOB_PARTITION SET STATUS = ?, LEASE_EXPIRES = 0 WHERE SERVER_ID = ? AND STATUS = ?",
+			new Object[] { JobPartition.Status.WAITING.name(), serverId, JobPartition.Status.RUNNING.name() });
+	}
+
+	@Override
+	public void registerWorker(String jobName, JobPartitionWorker worker) {
+		workers.put(jobName, worker);
+	}
+
+	@Override
+	public void unregisterWorker(String jobName) {
+		workers.remove(jobName);
+	}
+
+	@Override
+	public boolean startRun(String jobName, int partitions) {
+		if (partitions < 1) {
+			throw new IllegalArgumentException("A job needs at least one partition: " + partitions);
+		}
+		for (JobPartition partition : getPartitions(jobName)) {
+			if (partition.getStatus() == JobPartition.Status.WAITING || partition.getStatus() == JobPartition.Status.RUNNING) {
+				log.info("Carrying on with the last run of {} started {}", jobName, partition.getStarted());
+				return false;
+			}
+		}
+
+		long now = System.currentTimeMillis();
+		try {
+			sqlService.transact(() -> {
+				sqlService.dbWrite("DELETE FROM SCHEDULER_JOB_PARTITION WHERE JOB_NAME = ?", new Object[] { jobName });
+				for (int i = 0; i < partitions; i++) {
+					if (!sqlService.dbWrite("INSERT INTO SCHEDULER_JOB_PARTITION (JOB_NAME, PARTITION_NO, PARTITION_COUNT, STATUS,"
+							+ " SERVER_ID, LEASE_EXPIRES, PROCESSED, TOTAL, RUN_STARTED, UPDATED) VALUES (?, ?, ?, ?, NULL, 0, 0, 0, ?, ?)",
+							new Object[] { jobName, i, partitions, JobPartition.Status.WAITING.name(), now, now })) {
+						throw new IllegalStateException("Failed to add partition " + i + " of " + jobName);
+					}
+				}
+			}, "JobPartitionManager.startRun");
+		} catch (RuntimeException e) {
+			log.warn("Failed to start a run of {}: {}", jobName, e.toString());
+			return false;
+		}
+		log.info("Started a run of {} in {} partitions", jobName, partitions);
+		return true;
+	}
+
+	@Override
+	public int processPartitions(String jobName) {
+		JobPartitionWorker worker = workers.get(jobName);
+		if (worker == null) {
+			log.warn("No worker for the partitions of {} on this server", jobName);
+			return 0;
+		}
+		int processed = 0;
+		JobPartition partition;
+		while ((partition = claimNext(jobName)) != null) {
+			process(worker, partition);
+			processed++;
+		}
+		return processed;
+	}
+
+	@Override
+	public boolean progress(JobPartition partition, long processed, long total) {
+		long now = System.currentTimeMillis();
+		boolean recent = partition.getUpdated() != null && now - partition.getUpdated().getTime() < PROGRESS_MILLIS;
+		partition.setProcessed(processed);
+		partition.setTotal(total);
+		if (recent && processed < total) {
+			return running.contains(partition);
+		}
+		partition.setUpdated(new Date(now));
+		int count = sqlService.dbWriteCount("UPDATE SCHEDULER_JOB_PARTITION SET PROCESSED = ?, TOTAL = ?, UPDATED = ?"
+			+ PARTITION_IS + " AND SERVER_ID = ? AND STATUS = ?",
+			new Object[] { processed, total, now, partition.getJobName(), partition.getPartition(), partition.getStarted().getTime(),
+				serverId, JobPartition.Status.RUNNING.name() }, null, null, false);
+		if (count < 1) {
+			lost(partition);
+		}
+		return running.contains(partition);
+	}
+
+	@Override
+	public List<JobPartition> getPartitions(String jobName) {
+		return sqlService.dbRead(SELECT_PARTITIONS + " WHERE JOB_NAME = ? ORDER BY PARTITION_NO", new Object[] { jobName }, this::readPartition);
+	}
+
+	@Override
+	public List<JobPartition> getPartitions() {
+		return sqlService.dbRead(SELECT_PARTITIONS + " ORDER BY JOB_NAME, PARTITION_NO", null, this::readPartition);
+	}
+
+	/**
+	 * Claim a partition that is waiting, or whose server has gone away. The search starts at a
+	 * random partition so that servers polling at the same time don't all go for the same one.
+	 */
+	private JobPartition claimNext(String jobName) {
+		List<JobPartition> partitions = getPartitions(jobName);
+		if (partitions.isEmpty()) return null;
+		long now = System.currentTimeMillis();
+		Collection<String> servers = null;
+		int start = ThreadLocalRandom.current().nextInt(partitions.size());
+		for (int i = 0; i < partitions.size(); i++) {
+			JobPartition partition = partitions.get((start + i) % partitions.size());
+			if (partition.getStatus() == JobPartition.Status.RUNNING && servers == null && clusterService != null) {
+				servers = clusterService.getServers();
+			}
+			if (isClaimable(partition, now, servers) && claim(partition, now)) {
+				return partition;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param servers the servers in the cluster, or null if not known
+	 */
+	static boolean isClaimable(JobPartition partition, long now, Collection<String> servers) {
+		switch (partition.getStatus()) {
+			case WAITING:
+				return true;
+			case RUNNING:
+				return partition.getLeaseExpires() < now
+					|| (servers != null && !servers.isEmpty() && !servers.contains(partition.getServerId()));
+			default:
+				return false;
+		}
+	}
+
+	private boolean claim(JobPartition partition, long now) {
+		String previous = partition.getServerId();
+		int count = sqlService.dbWriteCount("UPDATE SCHEDULER_JOB_PARTITION SET STATUS = ?, SERVER_ID = ?, LEASE_EXPIRES = ?, UPDATED = ?"
+			+ PARTITION_IS + " AND STATUS = ? AND LEASE_EXPIRES = ?",
+			new Object[] { JobPartition.Status.RUNNING.name(), serverId, now + leaseMillis, now,
+				partition.getJobName(), partition.getPartition(), partition.getStarted().getTime(),
+				partition.getStatus().name(), partition.getLeaseExpires() }, null, null, false);
+		if (count < 1) {
+			// Another server got there first
+			return false;
+		}
+		if (partition.getStatus() == JobPartition.Status.RUNNING) {
+			log.info("Took over partition {} of {} from {}", partition.getPartition(), partition.getJobName(), previous);
+		}
+		partition.setStatus(JobPartition.Status.RUNNING);
+		partition.setServerId(serverId);
+		partition.setLeaseExpires(now + leaseMillis);
+		partition.setUpdated(new Date(now));
+		return true;
+	}
+
+	private void process(JobPartitionWorker worker, JobPartition partition) {
+		long start = System.currentTimeMillis();
+		running.add(partition);
+		JobPartition.Status status = JobPartition.Status.FAILED;
+		try {
+			worker.process(partition);
+			status = JobPartition.Status.DONE;
+		} catch (Exception e) {
+			log.warn("Partition {} of {} failed", partition.getPartition(), partition.getJobName(), e);
+		} finally {
+			finish(partition, status);
+		}
+		log.info("Partition {} of {} {} in {}ms, processed {}/{}", partition.getPartition(), partition.getJobName(), partition.getStatus(),
+			System.currentTimeMillis() - start, partition.getProcessed(), partition.getTotal());
+	}
+
+	private void finish(JobPartition partition, JobPartition.Status status) {
+		if (!running.remove(partition)) {
+			// Someone else has it now, leave it to them
+			return;
+		}
+		partition.setStatus(status);
+		int count = sqlService.dbWriteCount("UPDATE SCHEDULER_JOB_PARTITION SET STATUS = ?, LEASE_EXPIRES = 0, PROCESSED = ?, TOTAL = ?, UPDATED = ?"
+			+ PARTITION_IS + " AND SERVER_ID = ? AND STATUS = ?",
+			new Object[] { status.name(), partition.getProcessed(), partition.getTotal(), System.currentTimeMillis(),
+				partition.getJobName(), partition.getPartition(), partition.getStarted().getTime(),
+				serverId, JobPartition.Status.RUNNING.name() }, null, null, false);
+		if (count < 1) {
+			log.warn("Partition {} of {} was taken over before it finished", partition.getPartition(), partition.getJobName());
+		}
+	}
+
+	private void renewLeases() {
+		try {
+			for (JobPartition partition : running) {
+				long leaseExpires = System.currentTimeMillis() + leaseMillis;
+				int count = sqlService.dbWriteCount("UPDATE SCHEDULER_JOB_PARTITION SET LEASE_EXPIRES = ?"
+					+ PARTITION_IS + " AND SERVER_ID = ? AND STATUS = ?",
+					new Object[] { leaseExpires, partition.getJobName(), partition.getPartition(), partition.getStarted().getTime(),
+						serverId, JobPartition.Status.RUNNING.name() }, null, null, false);
+				if (count < 1) {
+					lost(partition);
+				} else {
+					partition.setLeaseExpires(leaseExpires);
+				}
+			}
+		} catch (Throwable t) {
+			log.warn("Failed to renew the leases of job partitions", t);
+		}
+	}
+
+	private void lost(JobPartition partition) {
+		if (running.remove(partition)) {
+			log.warn("Lost the lease on partition {} of {}", partition.getPartition(), partition.getJobName());
+		}
+	}
+
+	private void poll() {
+		for (String jobName : workers.keySet()) {
+			try {
+				int processed = processPartitions(jobName);
+				if (processed > 0) {
+					log.debug("Processed {} partitions of {}", processed, jobName);
+				}
+			} catch (Throwable t) {
+				log.warn("Failed to process the partitions of {}", jobName, t);
+			}
+		}
+	}
+
+	private JobPartition readPartition(ResultSet result) {
+		try {
+			JobPartition partition = new JobPartition(result.getString("JOB_NAME"), result.getInt("PARTITION_NO"), result.getInt("PARTITION_COUNT"));
+			partition.setStatus(JobPartition.Status.valueOf(result.getString("STATUS")));
+			partition.setServerId(result.getString("SERVER_ID"));
+			partition.setLeaseExpires(result.getLong("LEASE_EXPIRES"));
+			partition.setProcessed(result.getLong("PROCESSED"));
+			partition.setTotal(result.getLong("TOTAL"));
+			partition.setStarted(new Date(result.getLong("RUN_STARTED")));
+			partition.setUpdated(new Date(result.getLong("UPDATED")));
+			return partition;
+		} catch (SQLException | IllegalArgumentException e) {
+			log.warn("Failed to read a job partition: {}", e.toString());
+			return null;
+		}
+	}
+
+	public void setSqlService(SqlService sqlService) {
+		this.sqlService = sqlService;
+	}
+
+	public void setServerConfigurationService(ServerConfigurationService serverConfigurationService) {
+		this.serverConfigurationService = serverConfigurationService;
+	}
+
+	public void setClusterService(ClusterService clusterService) {
+		this.clusterService = clusterService;
+	}
+
+	public void setAutoDdl(boolean autoDdl) {
+		this.autoDdl = autoDdl;
+	}
+}
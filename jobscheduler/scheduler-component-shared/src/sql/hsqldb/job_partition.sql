@@ -0,0 +1,16 @@
+-- SQL for the partitions of partitioned jobs, see JobPartitionManager.
+-- Each job has one row per partition of its last run, holding the lease of the server running it.
+
+CREATE TABLE SCHEDULER_JOB_PARTITION (
+	JOB_NAME VARCHAR(255) NOT NULL,
+	PARTITION_NO INT NOT NULL,
+	PARTITION_COUNT INT NOT NULL,
+	STATUS VARCHAR(16) NOT NULL,
+	SERVER_ID VARCHAR(255) NULL,
+	LEASE_EXPIRES BIGINT NOT NULL,
+	PROCESSED BIGINT NOT NULL,
+	TOTAL BIGINT NOT NULL,
+	RUN_STARTED BIGINT NOT NULL,
+	UPDATED BIGINT NOT NULL,
+	PRIMARY KEY (JOB_NAME, PARTITION_NO)
+);
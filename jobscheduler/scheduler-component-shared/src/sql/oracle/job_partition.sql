@@ -0,0 +1,16 @@
+-- SQL for the partitions of partitioned jobs, see JobPartitionManager.
+-- Each job has one row per partition of its last run, holding the lease of the server running it.
+
+CREATE TABLE SCHEDULER_JOB_PARTITION (
+	JOB_NAME VARCHAR2(255) NOT NULL,
+	PARTITION_NO NUMBER(10) NOT NULL,
+	PARTITION_COUNT NUMBER(10) NOT NULL,
+	STATUS VARCHAR2(16) NOT NULL,
+	SERVER_ID VARCHAR2(255) NULL,
+	LEASE_EXPIRES NUMBER(19) NOT NULL,
+	PROCESSED NUMBER(19) NOT NULL,
+	TOTAL NUMBER(19) NOT NULL,
+	RUN_STARTED NUMBER(19) NOT NULL,
+	UPDATED NUMBER(19) NOT NULL,
+	PRIMARY KEY (JOB_NAME, PARTITION_NO)
+);
@@ -0,0 +1,159 @@
+/**
+ * Copyright (c) 2003-2017 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.component.app.scheduler;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.api.app.scheduler.JobPartition;
+import org.sakaiproject.api.app.scheduler.JobPartitionWorker;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.db.api.SqlService;
+
+/**
+ * Test the claiming of job partitions, against a mocked database.
+ */
+public class JobPartitionManagerImplTest {
+
+    private JobPartitionManagerImpl manager;
+    private SqlService sqlService;
+    private List<JobPartition> processed = new ArrayList<>();
+    private JobPartitionWorker worker = partition -> processed.add(partition);
+
+    @Before
+    public void setUp() {
+        sqlService = mock(SqlService.class);
+        ServerConfigurationService serverConfigurationService = mock(ServerConfigurationService.class);
+        when(serverConfigurationService.getServerIdInstance()).thenReturn("server-1");
+        when(serverConfigurationService.getInt(eq(JobPartitionManagerImpl.SCHEDULER_PARTITION_LEASE_SECONDS), anyInt())).thenReturn(120);
+        when(serverConfigurationService.getInt(eq(JobPartitionManagerImpl.SCHEDULER_PARTITION_POLL_SECONDS), anyInt())).thenReturn(0);
+
+        manager = new JobPartitionManagerImpl();
+        manager.setSqlService(sqlService);
+        manager.setServerConfigurationService(serverConfigurationService);
+        manager.init();
+        manager.registerWorker("job", worker);
+    }
+
+    @After
+    public void tearDown() {
+        manager.destroy();
+    }
+
+    private JobPartition partition(int number, JobPartition.Status status, String serverId, long leaseExpires) {
+        JobPartition partition = new JobPartition("job", number, 4);
+        partition.setStatus(status);
+        partition.setServerId(serverId);
+        partition.setLeaseExpires(leaseExpires);
+        partition.setStarted(new Date(1000L));
+        return partition;
+    }
+
+    @Test
+    public void testPartitionOf() {
+        int[] counts = new int[4];
+        for (int i = 0; i < 1000; i++) {
+            String key = "site-" + i;
+            int partition = JobPartition.partitionOf(key, 4);
+            Assert.assertTrue(new JobPartition("job", partition, 4).contains(key));
+            Assert.assertFalse(new JobPartition("job", (partition + 1) % 4, 4).contains(key));
+            counts[partition]++;
+        }
+        for (int count : counts) {
+            Assert.assertTrue(count > 150);
+        }
+        // A negative hash code still lands in a partition
+        Assert.assertTrue("polygenelubricants".hashCode() < 0);
+        Assert.assertEquals(Math.floorMod("polygenelubricants".hashCode(), 4), JobPartition.partitionOf("polygenelubricants", 4));
+    }
+
+    @Test
+    public void testIsClaimable() {
+        long now = System.currentTimeMillis();
+        List<String> servers = Arrays.asList("server-1", "server-2");
+        Assert.assertTrue(JobPartitionManagerImpl.isClaimable(partition(0, JobPartition.Status.WAITING, null, 0), now, servers));
+        Assert.assertFalse(JobPartitionManagerImpl.isClaimable(partition(0, JobPartition.Status.RUNNING, "server-2", now + 1000), now, servers));
+        // The lease has run out
+        Assert.assertTrue(JobPartitionManagerImpl.isClaimable(partition(0, JobPartition.Status.RUNNING, "server-2", now - 1000), now, servers));
+        // The server has left the cluster
+        Assert.assertTrue(JobPartitionManagerImpl.isClaimable(partition(0, JobPartition.Status.RUNNING, "server-3", now + 1000), now, servers));
+        Assert.assertFalse(JobPartitionManagerImpl.isClaimable(partition(0, JobPartition.Status.RUNNING, "server-3", now + 1000), now, null));
+        Assert.assertFalse(JobPartitionManagerImpl.isClaimable(partition(0, JobPartition.Status.DONE, "server-2", 0), now, servers));
+        Assert.assertFalse(JobPartitionManagerImpl.isClaimable(partition(0, JobPartition.Status.FAILED, "server-2", 0), now, servers));
+    }
+
+    @Test
+    public void testProcessWaitingPartition() {
+        when(sqlService.<JobPartition>dbRead(anyString(), any(), any())).thenReturn(
+                Arrays.asList(partition(0, JobPartition.Status.DONE, "server-2", 0), partition(1, JobPartition.Status.WAITING, null, 0)),
+                Arrays.asList(partition(0, JobPartition.Status.DONE, "server-2", 0), partition(1, JobPartition.Status.DONE, "server-1", 0)));
+        when(sqlService.dbWriteCount(anyString(), any(), any(), any(), anyBoolean())).thenReturn(1);
+
+        Assert.assertEquals(1, manager.processPartitions("job"));
+        Assert.assertEquals(1, processed.size());
+        Assert.assertEquals(1, processed.get(0).getPartition());
+        Assert.assertEquals(JobPartition.Status.DONE, processed.get(0).getStatus());
+        Assert.assertEquals("server-1", processed.get(0).getServerId());
+        verify(sqlService).dbWriteCount(startsWith("UPDATE SCHEDULER_JOB_PARTITION SET STATUS = ?, LEASE_EXPIRES = 0"),
+                argThat(fields -> JobPartition.Status.DONE.name().equals(fields[0])), any(), any(), anyBoolean());
+    }
+
+    @Test
+    public void testClaimedByAnotherServer() {
+        when(sqlService.<JobPartition>dbRead(anyString(), any(), any())).thenReturn(
+                Collections.singletonList(partition(1, JobPartition.Status.WAITING, null, 0)),
+                Collections.singletonList(partition(1, JobPartition.Status.RUNNING, "server-2", System.currentTimeMillis() + 60000)));
+        when(sqlService.dbWriteCount(anyString(), any(), any(), any(), anyBoolean())).thenReturn(0);
+
+        Assert.assertEquals(0, manager.processPartitions("job"));
+        Assert.assertTrue(processed.isEmpty());
+    }
+
+    @Test
+    public void testLostPartitionStops() {
+        JobPartition partition = partition(1, JobPartition.Status.WAITING, null, 0);
+        when(sqlService.<JobPartition>dbRead(anyString(), any(), any())).thenReturn(
+                Collections.singletonList(partition), Collections.<JobPartition>emptyList());
+        // The claim works, but by the time progress is written another server has the partition
+        when(sqlService.dbWriteCount(startsWith("UPDATE SCHEDULER_JOB_PARTITION SET STATUS = ?, SERVER_ID"), any(), any(), any(), anyBoolean())).thenReturn(1);
+        List<Boolean> held = new ArrayList<>();
+        manager.registerWorker("job", p -> held.add(manager.progress(p, 1, 1)));
+
+        Assert.assertEquals(1, manager.processPartitions("job"));
+        Assert.assertEquals(Collections.singletonList(false), held);
+        verify(sqlService, never()).dbWriteCount(startsWith("UPDATE SCHEDULER_JOB_PARTITION SET STATUS = ?, LEASE_EXPIRES = 0"),
+                any(), any(), any(), anyBoolean());
+    }
+}
@@ -54,6 +54,8 @@ import org.sakaiproject.api.app.scheduler.ConfigurableJobProperty;
 import org.sakaiproject.api.app.scheduler.ConfigurableJobPropertyValidationException;
 import org.sakaiproject.api.app.scheduler.ConfigurableJobPropertyValidator;
 import org.sakaiproject.api.app.scheduler.JobDetailWrapper;
+import org.sakaiproject.api.app.scheduler.JobPartition;
+import org.sakaiproject.api.app.scheduler.JobPartitionManager;
 import org.sakaiproject.api.app.scheduler.SchedulerManager;
 import org.sakaiproject.api.app.scheduler.TriggerWrapper;
 import org.sakaiproject.api.app.scheduler.JobBeanWrapper;
@@ -98,10 +100,17 @@ public class SchedulerTool
       triggerEventManager = null;
   private EventPager evtPager = new EventPager();
 
+  private JobPartitionManager jobPartitionManager;
+
   public SchedulerTool()
   {
   }
 
+  public void setJobPartitionManager(JobPartitionManager jobPartitionManager)
+  {
+      this.jobPartitionManager = jobPartitionManager;
+  }
+
   public void setTriggerEventManager (TriggerEventManager tem)
   {
       triggerEventManager = tem;
@@ -1297,6 +1306,17 @@ public class SchedulerTool
 	  return currentWrappedJobs;
   }
   
+  /**
+   * @return the partitions of the last run of each partitioned job, across the cluster
+   */
+  public List<JobPartition> getJobPartitions() {
+	  if (jobPartitionManager == null)
+	  {
+		  return Collections.emptyList();
+	  }
+	  return jobPartitionManager.getPartitions();
+  }
+
   public boolean isJobKillable(JobDetail detail) {
 	  if (InterruptableJob.class.isAssignableFrom(detail.getJobClass())) {
 		  return true;
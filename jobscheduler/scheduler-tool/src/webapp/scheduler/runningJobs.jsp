@@ -47,6 +47,57 @@
    	        </h:outputText>
     	    </h:column>
         </h:dataTable>
+        <h:panelGroup rendered="#{not empty schedulerTool.jobPartitions}">
+          <h3><h:outputText value="#{msgs.job_partitions}"/></h3>
+          <h:dataTable value="#{schedulerTool.jobPartitions}" var="partition" styleClass="table table-striped">
+            <h:column>
+              <f:facet name="header">
+                <h:outputText value="#{msgs.job_name}"/>
+              </f:facet>
+              <h:outputText value="#{partition.jobName}"/>
+            </h:column>
+            <h:column>
+              <f:facet name="header">
+                <h:outputText value="#{msgs.partition}"/>
+              </f:facet>
+              <h:outputText value="#{partition.partition + 1} / #{partition.partitions}"/>
+            </h:column>
+            <h:column>
+              <f:facet name="header">
+                <h:outputText value="#{msgs.partition_status}"/>
+              </f:facet>
+              <h:outputText value="#{partition.status}"/>
+            </h:column>
+            <h:column>
+              <f:facet name="header">
+                <h:outputText value="#{msgs.server}"/>
+              </f:facet>
+              <h:outputText value="#{partition.serverId}"/>
+            </h:column>
+            <h:column>
+              <f:facet name="header">
+                <h:outputText value="#{msgs.partition_progress}"/>
+              </f:facet>
+              <h:outputText value="#{partition.processed} / #{partition.total}"/>
+            </h:column>
+            <h:column>
+              <f:facet name="header">
+                <h:outputText value="#{msgs.partition_started}"/>
+              </f:facet>
+              <h:outputText value="#{partition.started}">
+                <f:convertDateTime pattern="MM/dd/yy 'at' HH:mm:ss"/>
+              </h:outputText>
+            </h:column>
+            <h:column>
+              <f:facet name="header">
+                <h:outputText value="#{msgs.partition_updated}"/>
+              </f:facet>
+              <h:outputText value="#{partition.updated}">
+                <f:convertDateTime pattern="MM/dd/yy 'at' HH:mm:ss"/>
+              </h:outputText>
+            </h:column>
+          </h:dataTable>
+        </h:panelGroup>
 		  </sakai:view_content>
   	</h:form>
 	</sakai:view_container>
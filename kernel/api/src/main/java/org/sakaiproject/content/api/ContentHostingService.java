@@ -31,10 +31,14 @@ import java.util.Set;
 import java.util.Stack;
 import java.util.TreeSet;
 
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.sakaiproject.antivirus.api.VirusFoundException;
 import org.sakaiproject.authz.api.AuthzPermissionException;
 import org.sakaiproject.entity.api.Entity;
 import org.sakaiproject.entity.api.EntityProducer;
+import org.sakaiproject.entity.api.Reference;
 import org.sakaiproject.entity.api.ResourceProperties;
 import org.sakaiproject.entity.api.ResourcePropertiesEdit;
 import org.sakaiproject.exception.IdInvalidException;
@@ -1539,6 +1543,21 @@ public interface ContentHostingService extends EntityProducer
 	 */
 	String archiveResources(List resources, Document doc, Stack stack, String archivePath);
 
+	/**
+	 * Archive the specified list of resources, writing each one as it goes.
+	 * 
+	 * @param resources
+	 *        A list of the resources to archive.
+	 * @param writer
+	 *        The writer, positioned inside the containing element of the "service.name" element.
+	 * @param archivePath
+	 *        The path to the folder where we are writing auxilary files.
+	 * @return A log of status messages from the archive.
+	 * @throws XMLStreamException
+	 *         if the archive file can't be written.
+	 */
+	String archiveResources(List<Reference> resources, XMLStreamWriter writer, String archivePath) throws XMLStreamException;
+
 	/**
 	 * Gets all locks set on the resource with this local resource id.
 	 * 
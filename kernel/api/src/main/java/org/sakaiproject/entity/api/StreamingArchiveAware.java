@@ -0,0 +1,49 @@
+/**
+ * Copyright (c) 2003-2017 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.entity.api;
+
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Services which implement StreamingArchiveAware write their archive straight to the archive file as they go, rather
+ * than building a DOM of the whole site first. The archiver uses this in place of
+ * {@link EntityProducer#archive(String, org.w3c.dom.Document, java.util.Stack, String, List)}, which it still calls
+ * for producers that don't implement it. Note that services must also be registered EntityProducers and the XML
+ * written must be the same as the DOM archive so that merge can read either.
+ */
+public interface StreamingArchiveAware {
+
+	/**
+	 * Archive the resources for the given site.
+	 *
+	 * @param siteId
+	 *        the id of the site.
+	 * @param writer
+	 *        The writer, positioned inside the containing element of the "service.name" element.
+	 * @param archivePath
+	 *        The path to the folder where we are writing auxilary files.
+	 * @param attachments
+	 *        This should be an empty List into which the implementation will put any attachments that are needed to support the
+	 *        archived content.
+	 * @return A log of status messages from the archive.
+	 * @throws XMLStreamException
+	 *         if the archive file can't be written, in which case it is incomplete.
+	 */
+	String archive(String siteId, XMLStreamWriter writer, String archivePath, List<Reference> attachments) throws XMLStreamException;
+}
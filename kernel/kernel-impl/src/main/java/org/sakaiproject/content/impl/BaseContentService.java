@@ -65,6 +65,8 @@ import java.util.regex.Pattern;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -130,6 +132,7 @@ import org.sakaiproject.entity.api.HttpAccess;
 import org.sakaiproject.entity.api.Reference;
 import org.sakaiproject.entity.api.ResourceProperties;
 import org.sakaiproject.entity.api.ResourcePropertiesEdit;
+import org.sakaiproject.entity.api.StreamingArchiveAware;
 import org.sakaiproject.entity.api.serialize.EntityParseException;
 import org.sakaiproject.entity.api.serialize.EntityReader;
 import org.sakaiproject.entity.api.serialize.EntityReaderHandler;
@@ -188,7 +191,8 @@ import org.sakaiproject.util.api.LinkMigrationHelper;
  */
 @Slf4j
 public abstract class BaseContentService implements ContentHostingService, CacheRefresher, ContextObserver, EntityTransferrer, 
-SiteContentAdvisorProvider, SiteContentAdvisorTypeRegistry, EntityTransferrerRefMigrator, HardDeleteAware
+SiteContentAdvisorProvider, SiteContentAdvisorTypeRegistry, EntityTransferrerRefMigrator, HardDeleteAware,
+StreamingArchiveAware
 {
 	protected static final long END_OF_TIME = 8000L * 365L * 24L * 60L * 60L * 1000L;
 	protected static final long START_OF_TIME = 365L * 24L * 60L * 60L * 1000L;
@@ -4741,7 +4745,9 @@ SiteContentAdvisorProvider, SiteContentAdvisorTypeRegistry, EntityTransferrerRef
 			newResource.setContentLength(deleResource.getContentLength());
 			newResource.setResourceType(deleResource.getResourceType());
 			newResource.setAvailability(deleResource.isHidden(), deleResource.getReleaseDate(),deleResource.getRetractDate());
-			newResource.setContent(m_storage.streamDeletedResourceBody(deleResource));
+			if (!shareResourceBody(newResource, deleResource)) {
+				newResource.setContent(m_storage.streamDeletedResourceBody(deleResource));
+			}
 			try {
 				// If you're storing the file in DB this breaks as it removes the restored file.
 				removeDeletedResource(deleResource);
@@ -4837,7 +4843,7 @@ SiteContentAdvisorProvider, SiteContentAdvisorTypeRegistry, EntityTransferrerRef
 		try
 		{
 			content = edit.streamContent();
-			addDeleteResource(id, 
+			addDeleteResource(edit, id, 
 				content_type, content, resource_type, edit.getReleaseDate(), edit.getRetractDate(), 
 				properties, uuid, userId,
 				NotificationService.NOTI_OPTIONAL);
@@ -4859,6 +4865,17 @@ SiteContentAdvisorProvider, SiteContentAdvisorTypeRegistry, EntityTransferrerRef
 	}
 
 	public ContentResource addDeleteResource(String id, String type, InputStream inputStream, String resourceType, Time releaseDate, Time retractDate, ResourceProperties properties, String uuid, String userId, int priority) throws PermissionException, ServerOverloadException
+	{
+		return addDeleteResource(null, id, type, inputStream, resourceType, releaseDate, retractDate, properties, uuid, userId, priority);
+	}
+
+	/**
+	 * Store a resource in the delete table, sharing the body of the resource being deleted when the storage can.
+	 * 
+	 * @param resource
+	 *        The resource being deleted, or null to store the body from the stream.
+	 */
+	protected ContentResource addDeleteResource(ContentResource resource, String id, String type, InputStream inputStream, String resourceType, Time releaseDate, Time retractDate, ResourceProperties properties, String uuid, String userId, int priority) throws PermissionException, ServerOverloadException
 			{
 		id = (String) fixTypeAndId(id, type).get("id");
 		// resource must also NOT end with a separator characters (fix it)
@@ -4895,7 +4912,11 @@ SiteContentAdvisorProvider, SiteContentAdvisorTypeRegistry, EntityTransferrerRef
 		edit.setResourceType(resourceType);
 		edit.setReleaseDate(releaseDate);
 		edit.setRetractDate(retractDate);
-		if (inputStream != null)
+		if (resource != null && shareResourceBody(edit, resource))
+		{
+			if (log.isDebugEnabled()) log.debug("addDeleteResource sharing the body of " + resource.getId());
+		}
+		else if (inputStream != null)
 		{
 			edit.setContent(inputStream);
 		}
@@ -5720,6 +5741,8 @@ SiteContentAdvisorProvider, SiteContentAdvisorTypeRegistry, EntityTransferrerRef
 				    // do a reference copy so the actual content is not duplicated
 				    ((BaseResourceEdit)edit).setReferenceCopy(resource.getId());
                     if (log.isDebugEnabled()) log.debug("copyResource doing a reference copy of "+resource.getId());
+				} else if (shareResourceBody(edit, resource)) {
+                    if (log.isDebugEnabled()) log.debug("copyResource sharing the body of "+resource.getId());
 				} else {
 	                // use stream instead of byte array
 	                // edit.setContent(resource.getContent());
@@ -5782,6 +5805,21 @@ SiteContentAdvisorProvider, SiteContentAdvisorTypeRegistry, EntityTransferrerRef
 
 	} // copyResource
 
+	/**
+	 * Point a new resource at the stored body of another instead of copying the bytes, when the storage keeps bodies that
+	 * can be shared.
+	 * 
+	 * @param edit
+	 *        The new resource.
+	 * @param resource
+	 *        The resource being copied.
+	 * @return true if the body is shared and the content must not be set on the edit, false to copy it as usual.
+	 */
+	protected boolean shareResourceBody(ContentResourceEdit edit, ContentResource resource)
+	{
+		return false;
+	}
+
 	/**
 	 * Copy a collection.
 	 * 
@@ -7780,6 +7818,42 @@ SiteContentAdvisorProvider, SiteContentAdvisorTypeRegistry, EntityTransferrerRef
 
 	} // archive
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public String archive(String siteId, XMLStreamWriter writer, String archivePath, List<Reference> attachments)
+			throws XMLStreamException
+	{
+		// prepare the buffer for the results log
+		StringBuilder results = new StringBuilder();
+
+		// start with an element with our very own name
+		writer.writeStartElement(ContentHostingService.class.getName());
+
+		// the root collection for the site
+		String siteCollectionId = getSiteCollection(siteId);
+
+		try
+		{
+			// get the collection for the site
+			ContentCollection collection = getCollection(siteCollectionId);
+
+			archiveCollection(collection, writer, newArchiveStack(), archivePath, siteCollectionId, results);
+		}
+		catch (XMLStreamException e)
+		{
+			throw e;
+		}
+		catch (Exception any)
+		{
+			results.append("Error archiving collection from site: " + siteId + " " + any.toString() + "\n");
+		}
+
+		writer.writeEndElement();
+
+		return results.toString();
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -7817,6 +7891,46 @@ SiteContentAdvisorProvider, SiteContentAdvisorTypeRegistry, EntityTransferrerRef
 		return results.toString();
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public String archiveResources(List<Reference> attachments, XMLStreamWriter writer, String archivePath)
+			throws XMLStreamException
+	{
+		// prepare the buffer for the results log
+		StringBuilder results = new StringBuilder();
+
+		// start with an element with our very own name
+		writer.writeStartElement(ContentHostingService.class.getName());
+
+		Stack<Element> stack = newArchiveStack();
+		for (Reference ref : attachments)
+		{
+			try
+			{
+				ContentResource resource = (ContentResource) ref.getEntity();
+
+				if (resource != null)
+				{
+					results.append(archiveResource(resource, writer, stack, archivePath, null));
+				}
+			}
+			catch (XMLStreamException e)
+			{
+				throw e;
+			}
+			catch (Exception any)
+			{
+				results.append("Error archiving resource: " + ref + " " + any.toString() + "\n");
+				log.warn("archveResources: exception archiving resource: " + ref + ": ", any);
+			}
+		}
+
+		writer.writeEndElement();
+
+		return results.toString();
+	}
+
 	/**
 	 * Replace the WT user id with the new qualified id
 	 * 
@@ -8377,7 +8491,10 @@ SiteContentAdvisorProvider, SiteContentAdvisorTypeRegistry, EntityTransferrerRef
 								ContentResourceEdit edit = addResource(nId);
 								edit.setContentType(((ContentResource) oResource).getContentType());
 								edit.setResourceType(((ContentResource) oResource).getResourceType());
-								edit.setContent(((ContentResource) oResource).streamContent());
+								if (!shareResourceBody(edit, (ContentResource) oResource))
+								{
+									edit.setContent(((ContentResource) oResource).streamContent());
+								}
 								edit.setAvailability(((ContentResource) oResource).isHidden(), ((ContentResource) oResource).getReleaseDate(), ((ContentResource) oResource).getRetractDate());
 								//edit.setContent(((ContentResource) oResource).getContent());
 								// import properties
@@ -9020,6 +9137,99 @@ SiteContentAdvisorProvider, SiteContentAdvisorTypeRegistry, EntityTransferrerRef
 		return "archiving resource: " + resource.getId() + " body in file: " + fileName + "\n";
 	}
 
+	/**
+	 * @return a stack holding an empty element to build single collection and resource elements in, for the streaming archive.
+	 */
+	protected Stack<Element> newArchiveStack()
+	{
+		Document doc = Xml.createDocument();
+		Element container = doc.createElement("archive");
+		doc.appendChild(container);
+		Stack<Element> stack = new Stack<Element>();
+		stack.push(container);
+		return stack;
+	}
+
+	/**
+	 * Archive the collection, then the members of the collection, writing each one as it goes so that only one is held
+	 * as DOM at a time.
+	 * 
+	 * @param collection
+	 *        The collection whose members are to be archived.
+	 * @param writer
+	 *        The writer, positioned inside the "service.name" element.
+	 * @param stack
+	 *        A stack from {@link #newArchiveStack()} to build each element in.
+	 * @param storagePath
+	 *        The path to the folder where we are writing files.
+	 * @param siteCollectionId
+	 *        The resource id of the site collection.
+	 * @param results
+	 *        A log of messages from the archive.
+	 */
+	protected void archiveCollection(ContentCollection collection, XMLStreamWriter writer, Stack<Element> stack,
+			String storagePath, String siteCollectionId, StringBuilder results) throws XMLStreamException
+	{
+		// first the collection
+		Element el = collection.toXml(stack.peek().getOwnerDocument(), stack);
+
+		// store the relative file id in the xml
+		el.setAttribute("rel-id", collection.getId().substring(siteCollectionId.length()));
+		writeArchiveElement(writer, stack);
+
+		results.append("archiving collection: " + collection.getId() + "\n");
+
+		// now each member
+		List members = collection.getMemberResources();
+		if ((members == null) || (members.size() == 0)) return;
+		for (int i = 0; i < members.size(); i++)
+		{
+			Object member = members.get(i);
+			if (member instanceof ContentCollection)
+			{
+				archiveCollection((ContentCollection) member, writer, stack, storagePath, siteCollectionId, results);
+			}
+			else if (member instanceof ContentResource)
+			{
+				results.append(archiveResource((ContentResource) member, writer, stack, storagePath, siteCollectionId));
+			}
+		}
+	}
+
+	/**
+	 * Archive a single resource, writing it straight away.
+	 * 
+	 * @param resource
+	 *        The content resource to archive
+	 * @param writer
+	 *        The writer, positioned inside the "service.name" element.
+	 * @param stack
+	 *        A stack from {@link #newArchiveStack()} to build the element in.
+	 * @param storagePath
+	 *        The path to the folder where we are writing files.
+	 * @param siteCollectionId
+	 *        The resource id of the site collection (optional).
+	 * @return A log of messages from the archive.
+	 */
+	protected String archiveResource(ContentResource resource, XMLStreamWriter writer, Stack<Element> stack,
+			String storagePath, String siteCollectionId) throws XMLStreamException
+	{
+		String rv = archiveResource(resource, stack.peek().getOwnerDocument(), stack, storagePath, siteCollectionId);
+		writeArchiveElement(writer, stack);
+		return rv;
+	}
+
+	/**
+	 * Write out and then drop the element built in the archive stack.
+	 */
+	private void writeArchiveElement(XMLStreamWriter writer, Stack<Element> stack) throws XMLStreamException
+	{
+		Element container = stack.peek();
+		Element el = (Element) container.getLastChild();
+		container.removeChild(el);
+		Xml.writeElement(writer, el);
+	}
+
 	/**
 	 * Merge in a collection from an XML DOM definition. Take whole if not defined already. Ignore if already here.
 	 * 
@@ -206,4 +206,99 @@ public interface ContentServiceSql
 	 */
 	String getSelectByResourceTypeQuerySql();
 
+	/**
+	 * returns the sql statement which retrieves the stored FILE_SIZE of one resource.
+	 */
+	String getResourceFileSizeSql(String table);
+
+	/**
+	 * returns the sql statement which returns a row if the CONTENT_CONTEXT_USAGE table exists.
+	 */
+	String getContextUsageExistsSql();
+
+	/**
+	 * returns the sql statement which retrieves the ledger total of bytes for a quota context.
+	 */
+	String getContextUsageSql();
+
+	/**
+	 * returns the sql statement which starts the ledger for a quota context.
+	 */
+	String getInsertContextUsageSql();
+
+	/**
+	 * returns the sql statement which reads the ledger total and reconcile time of a quota context and locks the row.
+	 */
+	String getLockContextUsageSql();
+
+	/**
+	 * returns the sql statement which adds a (possibly negative) number of bytes to the ledger total of a quota context.
+	 */
+	String getAddContextUsageSql();
+
+	/**
+	 * returns the sql statement which selects the quota contexts whose ledger was last reconciled before a given time.
+	 */
+	String getStaleContextUsageSql();
+
+	/**
+	 * returns the sql statement which claims a quota context for reconciliation, so only one node recounts it.
+	 */
+	String getClaimContextUsageSql();
+
+	/**
+	 * returns the sql statement which replaces the ledger total and reconcile time of a quota context with a recount.
+	 */
+	String getReconcileContextUsageSql();
+
+	/**
+	 * returns the sql statement which checks whether a dropbox folder name is a user id, as the dropbox root quota query does.
+	 */
+	String getDropBoxUserFolderSql();
+
+	/**
+	 * returns the sql statement which returns a row if the CONTENT_BODY_HASH table exists.
+	 */
+	String getBodyHashExistsSql();
+
+	/**
+	 * returns the sql statement which retrieves the file path of a content addressed body that is not being collected.
+	 */
+	String getBodyHashPathSql();
+
+	/**
+	 * returns the sql statement which records a new content addressed body with one reference.
+	 */
+	String getInsertBodyHashSql();
+
+	/**
+	 * returns the sql statement which adds a reference to a content addressed body that is not being collected.
+	 */
+	String getAcquireBodyHashSql();
+
+	/**
+	 * returns the sql statement which drops a reference to a content addressed body.
+	 */
+	String getReleaseBodyHashSql();
+
+	/**
+	 * returns the sql statement which selects the hash and file path of bodies unreferenced since a given time.
+	 */
+	String getUnusedBodyHashSql();
+
+	/**
+	 * returns the sql statement which claims an unreferenced body for collection, so no new reference can be added.
+	 */
+	String getClaimBodyHashSql();
+
+	/**
+	 * returns the sql statement which removes a claimed body.
+	 */
+	String getDeleteBodyHashSql();
+
+	/**
+	 * returns the sql statement which selects, in id order after a given id, the resources whose body file is not content addressed.
+	 */
+	String getLegacyFilePathSql(String table);
+
 }
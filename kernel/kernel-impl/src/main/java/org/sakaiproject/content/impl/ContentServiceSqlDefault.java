@@ -321,4 +321,99 @@ public class ContentServiceSqlDefault implements ContentServiceSql
 	    return "select SUM(FILE_SIZE) from CONTENT_RESOURCE where IN_COLLECTION LIKE ? and not exists (select 1 from SAKAI_USER_ID_MAP where USER_ID = substr(in_collection,length(?)+1,instr(substr(in_collection,length(?)+1),'/')-1))";
 	}
 
+	public String getResourceFileSizeSql(String table)
+	{
+		return "select FILE_SIZE from " + table + " where RESOURCE_ID = ?";
+	}
+
+	public String getContextUsageExistsSql()
+	{
+		return "select count(*) from CONTENT_CONTEXT_USAGE where RECONCILED < 0";
+	}
+
+	public String getContextUsageSql()
+	{
+		return "select USAGE_BYTES from CONTENT_CONTEXT_USAGE where CONTEXT_ID = ?";
+	}
+
+	public String getInsertContextUsageSql()
+	{
+		return "insert into CONTENT_CONTEXT_USAGE (CONTEXT_ID, USAGE_BYTES, RECONCILED) values (?, ?, ?)";
+	}
+
+	public String getLockContextUsageSql()
+	{
+		return "select USAGE_BYTES, RECONCILED from CONTENT_CONTEXT_USAGE where CONTEXT_ID = ? for update";
+	}
+
+	public String getAddContextUsageSql()
+	{
+		return "update CONTENT_CONTEXT_USAGE set USAGE_BYTES = USAGE_BYTES + ? where CONTEXT_ID = ?";
+	}
+
+	public String getStaleContextUsageSql()
+	{
+		return "select CONTEXT_ID from CONTENT_CONTEXT_USAGE where RECONCILED < ? order by RECONCILED";
+	}
+
+	public String getClaimContextUsageSql()
+	{
+		return "update CONTENT_CONTEXT_USAGE set RECONCILED = ? where CONTEXT_ID = ? and RECONCILED < ?";
+	}
+
+	public String getReconcileContextUsageSql()
+	{
+		return "update CONTENT_CONTEXT_USAGE set USAGE_BYTES = ?, RECONCILED = ? where CONTEXT_ID = ?";
+	}
+
+	public String getDropBoxUserFolderSql()
+	{
+		return "select USER_ID from SAKAI_USER_ID_MAP where USER_ID = ?";
+	}
+
+	public String getBodyHashExistsSql()
+	{
+		return "select count(*) from CONTENT_BODY_HASH where REF_COUNT < -1";
+	}
+
+	public String getBodyHashPathSql()
+	{
+		return "select FILE_PATH from CONTENT_BODY_HASH where HASH = ? and REF_COUNT >= 0";
+	}
+
+	public String getInsertBodyHashSql()
+	{
+		return "insert into CONTENT_BODY_HASH (HASH, FILE_PATH, FILE_SIZE, REF_COUNT, UPDATED) values (?, ?, ?, 1, ?)";
+	}
+
+	public String getAcquireBodyHashSql()
+	{
+		return "update CONTENT_BODY_HASH set REF_COUNT = REF_COUNT + 1, UPDATED = ? where HASH = ? and REF_COUNT >= 0";
+	}
+
+	public String getReleaseBodyHashSql()
+	{
+		return "update CONTENT_BODY_HASH set REF_COUNT = REF_COUNT - 1, UPDATED = ? where HASH = ? and REF_COUNT > 0";
+	}
+
+	public String getUnusedBodyHashSql()
+	{
+		return "select HASH, FILE_PATH from CONTENT_BODY_HASH where REF_COUNT <= 0 and UPDATED < ? order by UPDATED";
+	}
+
+	public String getClaimBodyHashSql()
+	{
+		return "update CONTENT_BODY_HASH set REF_COUNT = -1, UPDATED = ? where HASH = ? and REF_COUNT <= 0 and UPDATED < ?";
+	}
+
+	public String getDeleteBodyHashSql()
+	{
+		return "delete from CONTENT_BODY_HASH where HASH = ? and REF_COUNT = -1";
+	}
+
+	public String getLegacyFilePathSql(String table)
+	{
+		return "select RESOURCE_ID from " + table + " where RESOURCE_ID > ? and FILE_PATH is not null and FILE_PATH not like ? order by RESOURCE_ID";
+	}
+
 }
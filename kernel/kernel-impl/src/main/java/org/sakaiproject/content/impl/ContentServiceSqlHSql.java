@@ -85,4 +85,12 @@ public class ContentServiceSqlHSql extends ContentServiceSqlDefault
 		return "select SUM(FILE_SIZE) from CONTENT_RESOURCE where IN_COLLECTION LIKE ? and not exists (select 1 from SAKAI_USER_ID_MAP where USER_ID = substr(in_collection,length(?)+1,locate('/',substr(in_collection,length(?)+1))-1))";
 	}
 
+	/**
+	 * returns the sql statement which reads the ledger total and reconcile time of a quota context, HSQLDB locks the table for the transaction instead.
+	 */
+	public String getLockContextUsageSql()
+	{
+		return "select USAGE_BYTES, RECONCILED from CONTENT_CONTEXT_USAGE where CONTEXT_ID = ?";
+	}
+
 }
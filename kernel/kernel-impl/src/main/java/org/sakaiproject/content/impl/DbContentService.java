@@ -24,9 +24,16 @@ package org.sakaiproject.content.impl;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Blob;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -42,11 +49,16 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import lombok.extern.slf4j.Slf4j;
 
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+
 import org.slf4j.Marker;
 import org.slf4j.MarkerFactory;
 
@@ -63,6 +75,7 @@ import org.sakaiproject.content.api.Lock;
 import org.sakaiproject.content.api.LockManager;
 import org.sakaiproject.content.impl.serialize.impl.conversion.Type1BlobCollectionConversionHandler;
 import org.sakaiproject.db.api.SqlReader;
+import org.sakaiproject.db.api.SqlReaderFinishedException;
 import org.sakaiproject.db.api.SqlService;
 import org.sakaiproject.entity.api.Entity;
 import org.sakaiproject.entity.api.ResourceProperties;
@@ -348,6 +361,37 @@ public class DbContentService extends BaseContentService
 
     private boolean addNewColumnsCompleted = false;
 
+    /** Whether quota checks read the per-context usage ledger instead of summing FILE_SIZE. */
+    protected boolean m_usageLedger = true;
+
+    /** Ledger rows not recounted for this many hours are reconciled, 0 to never reconcile. */
+    protected int m_usageReconcileAge = 24;
+
+    /** The most ledger rows one node reconciles per hourly pass. */
+    protected int m_usageReconcileBatch = 500;
+
+    private Timer usageReconcileTimer;
+
+    /** The folder, under the body path or a volume, that holds bodies named by the SHA-256 of their bytes. */
+    protected static final String BODY_HASH_FOLDER = "sha256";
+
+    /** How many resource ids the migration to content addressed bodies reads at a time. */
+    protected static final int MIGRATE_PAGE_SIZE = 1000;
+
+    /** Whether CONTENT_BODY_HASH is there, so the references to content addressed bodies are counted. */
+    protected boolean m_bodyHashes = false;
+
+    /** Whether new file system bodies are stored once per SHA-256 and shared by every resource with the same bytes. */
+    protected boolean m_bodyDedupe = false;
+
+    /** Hours a content addressed body must go unreferenced before its file is removed. */
+    protected int m_bodyCollectAge = 24;
+
+    /** The most unreferenced bodies one node removes per hourly pass. */
+    protected int m_bodyCollectBatch = 500;
+
+    private Timer bodyCollectTimer;
+
     public void setDatabaseBeans(Map databaseBeans)
     {
         this.databaseBeans = databaseBeans;
@@ -395,6 +439,12 @@ public class DbContentService extends BaseContentService
 
                 // add the delete table
                 m_sqlService.ddl(this.getClass().getClassLoader(), "sakai_content_delete");
+
+                // add the quota usage ledger
+                m_sqlService.ddl(this.getClass().getClassLoader(), "sakai_content_usage");
+
+                // add the content addressed body references
+                m_sqlService.ddl(this.getClass().getClassLoader(), "sakai_content_body");
             }
 
             // Check for the existence of the FILE_SIZE column
@@ -458,6 +508,8 @@ public class DbContentService extends BaseContentService
 
             super.init();
 
+            initUsageLedger();
+
             // convert to filesystem storage?
             if (m_convertToFile)
             {
@@ -471,6 +523,8 @@ public class DbContentService extends BaseContentService
                 throw new IllegalStateException("There is no FileSystemHandler set for the ContentService!");
             }
 
+            initBodyHashes();
+
             log.info("init(): tables: " + m_collectionTableName + " " + m_resourceTableName + " " + m_resourceBodyTableName + " "
                     + m_groupTableName + " locks-in-db: " + m_locksInDb + " bodyPath: " + m_bodyPath + " storage: " + m_storage);
 
@@ -483,6 +537,150 @@ public class DbContentService extends BaseContentService
         //testResourceByTypePaging();
     }
 
+    /**
+     * Turn on the quota usage ledger if it is configured and its table is there, and schedule its reconciliation.
+     */
+    protected void initUsageLedger()
+    {
+        m_usageLedger = m_serverConfigurationService.getBoolean("content.usage.ledger", true);
+        m_usageReconcileAge = m_serverConfigurationService.getInt("content.usage.reconcile.age", 24);
+        m_usageReconcileBatch = m_serverConfigurationService.getInt("content.usage.reconcile.batch", 500);
+        if (!m_usageLedger)
+        {
+            return;
+        }
+
+        List exists = m_sqlService.dbRead(contentServiceSql.getContextUsageExistsSql());
+        if (exists == null || exists.isEmpty())
+        {
+            log.warn("init(): CONTENT_CONTEXT_USAGE is missing, quota checks will sum the size of each context. Create it with sakai_content_usage.sql");
+            m_usageLedger = false;
+            return;
+        }
+
+        if (m_usageReconcileAge > 0)
+        {
+            long hour = 60L * 60L * 1000L;
+            usageReconcileTimer = new Timer("[content usage reconcile]", true);
+            usageReconcileTimer.schedule(new TimerTask()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        reconcileContextUsage(m_usageReconcileBatch);
+                    }
+                    catch (Exception e)
+                    {
+                        log.warn("Failed to reconcile content usage: " + e.getMessage(), e);
+                    }
+                    finally
+                    {
+                        threadLocalManager.clear();
+                    }
+                }
+            }, (long) (Math.random() * hour), hour);
+        }
+        log.info("init(): quota usage ledger on, reconciling contexts older than " + m_usageReconcileAge + " hours");
+    }
+
+    /**
+     * Turn on the content addressed body store if the body is kept on the file system and its table is there, schedule
+     * the removal of unreferenced bodies and start moving existing bodies into it if asked to.
+     */
+    protected void initBodyHashes()
+    {
+        if (m_bodyPath == null)
+        {
+            return;
+        }
+        m_bodyDedupe = m_serverConfigurationService.getBoolean("content.body.dedupe", false);
+        m_bodyCollectAge = m_serverConfigurationService.getInt("content.body.dedupe.collect.age", 24);
+        m_bodyCollectBatch = m_serverConfigurationService.getInt("content.body.dedupe.collect.batch", 500);
+
+        List exists = m_sqlService.dbRead(contentServiceSql.getBodyHashExistsSql());
+        m_bodyHashes = exists != null && !exists.isEmpty();
+        if (!m_bodyHashes)
+        {
+            if (m_bodyDedupe)
+            {
+                log.warn("init(): CONTENT_BODY_HASH is missing, bodies will not be deduplicated. Create it with sakai_content_body.sql");
+                m_bodyDedupe = false;
+            }
+            return;
+        }
+        if (m_bodyDedupe && fileSystemHandler instanceof DefaultFileSystemHandler
+                && ((DefaultFileSystemHandler) fileSystemHandler).isUseIdForFilePath())
+        {
+            log.warn("init(): bodies are stored by resource id, they can't be deduplicated");
+            m_bodyDedupe = false;
+        }
+
+        if (m_bodyCollectAge > 0)
+        {
+            long hour = 60L * 60L * 1000L;
+            bodyCollectTimer = new Timer("[content body collect]", true);
+            bodyCollectTimer.schedule(new TimerTask()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        collectBodyHashes(m_bodyCollectBatch);
+                    }
+                    catch (Exception e)
+                    {
+                        log.warn("Failed to remove unreferenced content bodies: " + e.getMessage(), e);
+                    }
+                    finally
+                    {
+                        threadLocalManager.clear();
+                    }
+                }
+            }, (long) (Math.random() * hour), hour);
+        }
+
+        if (m_bodyDedupe && m_serverConfigurationService.getBoolean("content.body.dedupe.migrate", false))
+        {
+            Thread migration = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        migrateToBodyHashes();
+                    }
+                    finally
+                    {
+                        threadLocalManager.clear();
+                    }
+                }
+            }, "[content body migrate]");
+            migration.setDaemon(true);
+            migration.start();
+        }
+        log.info("init(): content addressed bodies " + (m_bodyDedupe ? "on" : "off") + ", removing bodies unreferenced for "
+                + m_bodyCollectAge + " hours");
+    }
+
+    @Override
+    public void destroy()
+    {
+        if (usageReconcileTimer != null)
+        {
+            usageReconcileTimer.cancel();
+            usageReconcileTimer = null;
+        }
+        if (bodyCollectTimer != null)
+        {
+            bodyCollectTimer.cancel();
+            bodyCollectTimer = null;
+        }
+        super.destroy();
+    }
+
     /**
      * Runs tests of the getResourcesOfType() method. Steps are:<br/>
      * 1) Add 26 site-level resource collections ("/group/site_A/" through "/group/site_Z/")
@@ -1756,6 +1954,7 @@ public class DbContentService extends BaseContentService
                 {
                     BaseResourceEdit redit = (BaseResourceEdit) edit;
                     boolean ok = true;
+                    String previousFilePath = redit.m_filePath;
 
                     /**
                      * https://jira.sakaiproject.org/browse/KNL-817
@@ -1763,6 +1962,7 @@ public class DbContentService extends BaseContentService
                      * Instead, we modify the in DB resource table to point at the new resource id
                      */
                     String referenceResourceId = redit.referenceCopy;
+                    String sharedHash = null;
                     if (referenceResourceId != null) {
                         // special handling for reference commits
                         if (log.isDebugEnabled()) log.debug("Making resource ("+redit.getId()+") reference copy of DB resource ("+referenceResourceId+"), body/contentStream is ignored");
@@ -1789,6 +1989,9 @@ public class DbContentService extends BaseContentService
                                 log.warn("Moving RESOURCE_ID ("+redit.getId()+") to ("+referenceResourceId+") for DB stored content data ("+m_resourceBodyTableName+") failed... we will do a normal content copy as a fallback");
                                 referenceResourceId = null;
                             }
+                        } else if (m_bodyHashes && getBodyHash(redit.m_filePath) != null) {
+                            // each resource pointing at a content addressed body holds one reference to it, taken with the resource row below
+                            sharedHash = getBodyHash(redit.m_filePath);
                         }
                     }
                     if (referenceResourceId == null) {
@@ -1859,7 +2062,29 @@ public class DbContentService extends BaseContentService
                     {
                         insertIndividualDropboxRecord(getIndividualDropboxId(edit.getId()));
                     }
-                    m_resourceStore.commitResource(edit);
+                    // a new body written to a content addressed path replaces the one at the old path
+                    String replacedFilePath = (m_bodyPath != null && previousFilePath != null && !previousFilePath.equals(redit.m_filePath))
+                            ? previousFilePath : null;
+                    // the reference to a content addressed body written above is taken outside the row transaction
+                    String writtenHash = (m_bodyPath != null && m_bodyHashes && redit.m_filePath != null && !redit.m_filePath.equals(previousFilePath))
+                            ? getBodyHash(redit.m_filePath) : null;
+                    try
+                    {
+                        commitResourceRow(edit, sharedHash, replacedFilePath);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        // no row refers to the new body, so give up its reference and let it be collected
+                        if (writtenHash != null)
+                        {
+                            releaseBodyHash(writtenHash);
+                        }
+                        throw e;
+                    }
+                    if (replacedFilePath != null && getBodyHash(replacedFilePath) == null)
+                    {
+                        fileSystemHandler.delete(edit.getId(), m_bodyPath, replacedFilePath);
+                    }
                 }
 
             }
@@ -1933,8 +2158,16 @@ public class DbContentService extends BaseContentService
                else
                {
 
+                   final String hash = (m_bodyPath != null && m_bodyHashes) ? getBodyHash(((BaseResourceEdit) edit).m_filePath) : null;
+
+                   // a shared body is only let go of, it is removed once nothing refers to it
+                   if (hash != null)
+                   {
+                       log.info("Removing deleted resource ("+edit.getId()+") reference to shared content: "+((BaseResourceEdit) edit).m_filePath);
+                   }
+
                    // if we have been configured to use an external file system
-                   if (m_bodyPath != null)
+                   else if (m_bodyPath != null)
                    {
                        delResourceBodyFilesystem(m_bodyPathDeleted, edit);
                    }
@@ -1949,7 +2182,22 @@ public class DbContentService extends BaseContentService
                    byte[] body = ((BaseResourceEdit) edit).m_body;
                    ((BaseResourceEdit) edit).m_body = null;
 
-                   m_resourceDeleteStore.removeResource(edit);
+                   if (hash != null)
+                   {
+                       final ContentResourceEdit deleted = edit;
+                       m_sqlService.transact(new Runnable()
+                       {
+                           public void run()
+                           {
+                               m_resourceDeleteStore.removeResource(deleted);
+                               releaseBodyHash(hash);
+                           }
+                       }, "removeDeletedResource:" + edit.getId());
+                   }
+                   else
+                   {
+                       m_resourceDeleteStore.removeResource(edit);
+                   }
 
                }
            }
@@ -2028,6 +2276,14 @@ public class DbContentService extends BaseContentService
                    String message = "failed to write file ";
                    BaseResourceEdit redit = (BaseResourceEdit) edit;
 
+				   final String hash = (redit.referenceCopy != null && m_bodyPath != null && m_bodyHashes) ? getBodyHash(redit.m_filePath) : null;
+				   if (hash != null)
+				   {
+					   // the recycle bin keeps a reference to the shared body of the resource rather than a copy of it
+					   commitDeletedResourceRow(edit, uuid, hash);
+					   return;
+				   }
+
 				   boolean ok = true;
 				   if (redit.m_body == null)
 				   {
@@ -2117,7 +2373,15 @@ public class DbContentService extends BaseContentService
 			   else
 			   {
 
-				   if (m_bodyPath != null)
+				   String sharedFilePath = null;
+				   if (m_bodyPath != null && m_bodyHashes && getBodyHash(((BaseResourceEdit) edit).m_filePath) != null)
+				   {
+					   // content addressed bodies are shared, the reference of this resource is dropped with its row. The
+					   // recycle bin holds a reference of its own, and a move has taken one for the new resource already.
+					   sharedFilePath = ((BaseResourceEdit) edit).m_filePath;
+					   log.info("Removing resource ("+edit.getId()+") reference to shared content: "+sharedFilePath);
+				   }
+				   else if (m_bodyPath != null)
 				   {
 					   // if we have been configured to use an external file system
 					   if (removeContent) {
@@ -2145,7 +2409,7 @@ public class DbContentService extends BaseContentService
 				   {
 					   insertIndividualDropboxRecord(getIndividualDropboxId(edit.getId()));
 				   }
-				   m_resourceStore.removeResource(edit);
+				   removeResourceRow(edit, (sharedFilePath != null) ? getBodyHash(sharedFilePath) : null);
 
 			   }
 		   }
@@ -2248,7 +2512,9 @@ public class DbContentService extends BaseContentService
                     // if we have been configured to use an external file system
                     if (m_bodyPath != null)
                     {
-                        return streamResourceBodyFilesystem(m_bodyPathDeleted,resource);
+                        // a shared body stays where the resource had it
+                        boolean shared = m_bodyHashes && getBodyHash(((BaseResourceEdit) resource).m_filePath) != null;
+                        return streamResourceBodyFilesystem(shared ? m_bodyPath : m_bodyPathDeleted, resource);
                     }
 
                     // otherwise use the database
@@ -2496,6 +2762,10 @@ public class DbContentService extends BaseContentService
          */
         private boolean putResourceBodyFilesystem(ContentResourceEdit resource, InputStream stream, String rootFolder)
         {
+            if (m_bodyDedupe && m_bodyPath.equals(rootFolder))
+            {
+                return putResourceBodyHashed(resource, stream);
+            }
             try
             {
                 long byteCount = fileSystemHandler.saveInputStream(((BaseResourceEdit) resource).m_id, rootFolder, ((BaseResourceEdit) resource).m_filePath, stream);
@@ -2515,6 +2785,241 @@ public class DbContentService extends BaseContentService
             }
         }
 
+        /**
+         * Write the resource body once for all resources with the same bytes. The body is staged in a temporary file while
+         * its SHA-256 is computed, then stored at the content addressed path unless a resource with the same bytes already
+         * put it there, in which case the stored body gains a reference. The resource is pointed at that path, and the body
+         * it had before is released by the caller once the resource is committed.
+         * 
+         * @param resource
+         *        The resource whose body is being written.
+         * @param stream
+         *        The body.
+         * @return true if the resource body is written successfully, false otherwise.
+         */
+        private boolean putResourceBodyHashed(ContentResourceEdit resource, InputStream stream)
+        {
+            BaseResourceEdit edit = (BaseResourceEdit) resource;
+            File staged = null;
+            try
+            {
+                staged = File.createTempFile("content-body-", ".tmp");
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                long byteCount;
+                try (OutputStream out = new FileOutputStream(staged))
+                {
+                    byteCount = IOUtils.copyLarge(new DigestInputStream(stream, digest), out);
+                }
+                String hash = Hex.encodeHexString(digest.digest());
+
+                String filePath = edit.m_filePath;
+                // unchanged bytes keep the reference the resource already holds
+                if (!hash.equals(getBodyHash(filePath)))
+                {
+                    filePath = acquireBodyHash(hash);
+                    if (filePath == null)
+                    {
+                        filePath = getBodyHashPath(hash);
+                        if (m_sqlService.dbWriteFailQuiet(null, contentServiceSql.getInsertBodyHashSql(),
+                                new Object[] {hash, filePath, Long.valueOf(byteCount), Long.valueOf(System.currentTimeMillis())}))
+                        {
+                            try (InputStream in = new FileInputStream(staged))
+                            {
+                                fileSystemHandler.saveInputStream(hash, m_bodyPath, filePath, in);
+                            }
+                            catch (IOException e)
+                            {
+                                releaseBodyHash(hash);
+                                throw e;
+                            }
+                        }
+                        else
+                        {
+                            // another resource stored the same bytes meanwhile, or the body is being removed
+                            filePath = acquireBodyHash(hash);
+                            if (filePath == null)
+                            {
+                                if (getBodyHash(edit.m_filePath) != null)
+                                {
+                                    edit.setFilePath(timeService.newTime());
+                                }
+                                filePath = edit.m_filePath;
+                                try (InputStream in = new FileInputStream(staged))
+                                {
+                                    fileSystemHandler.saveInputStream(edit.m_id, m_bodyPath, filePath, in);
+                                }
+                            }
+                        }
+                    }
+                }
+                edit.m_filePath = filePath;
+
+                resource.setContentLength(byteCount);
+                ResourcePropertiesEdit props = resource.getPropertiesEdit();
+                props.addProperty(ResourceProperties.PROP_CONTENT_LENGTH, Long.toString(byteCount));
+                if (resource.getContentType() != null)
+                {
+                    props.addProperty(ResourceProperties.PROP_CONTENT_TYPE, resource.getContentType());
+                }
+                return true;
+            }
+            catch (IOException e)
+            {
+                log.error("IOException", e);
+                return false;
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                log.error("NoSuchAlgorithmException", e);
+                return false;
+            }
+            finally
+            {
+                if (staged != null && !staged.delete())
+                {
+                    log.warn("Unable to delete staged content body " + staged);
+                }
+            }
+        }
+
+        /**
+         * Write the row of a committed resource, together with the reference it takes to a shared body, the release of
+         * the shared body it replaced and its usage, in one transaction.
+         * 
+         * @param sharedHash
+         *        the hash of a shared body the resource now refers to without having written it, or null
+         * @param replacedFilePath
+         *        the body the resource pointed at before, or null if it is unchanged
+         */
+        protected void commitResourceRow(final ContentResourceEdit edit, final String sharedHash, String replacedFilePath)
+        {
+            final String replacedHash = (replacedFilePath != null && m_bodyHashes) ? getBodyHash(replacedFilePath) : null;
+            m_sqlService.transact(new Runnable()
+            {
+                public void run()
+                {
+                    if (sharedHash != null && acquireBodyHash(sharedHash) == null)
+                    {
+                        log.warn("Content addressed body ("+((BaseResourceEdit) edit).m_filePath+") of resource ("+edit.getId()+") is not in CONTENT_BODY_HASH, its reference is not counted");
+                    }
+                    long storedSize = getStoredFileSize(edit.getId());
+                    m_resourceStore.commitResource(edit);
+                    addContextUsage(edit.getId(), ((BasicGroupAwareEdit) edit).getContext(), edit.getContentLength() - storedSize);
+                    if (replacedHash != null)
+                    {
+                        releaseBodyHash(replacedHash);
+                    }
+                }
+            }, "commitResource:" + edit.getId());
+        }
+
+        /**
+         * Delete the row of a resource, together with the release of its reference to a shared body and its usage, in one
+         * transaction.
+         * 
+         * @param sharedHash
+         *        the hash of the shared body of the resource, or null
+         */
+        protected void removeResourceRow(final ContentResourceEdit edit, final String sharedHash)
+        {
+            m_sqlService.transact(new Runnable()
+            {
+                public void run()
+                {
+                    long storedSize = getStoredFileSize(edit.getId());
+                    m_resourceStore.removeResource(edit);
+                    addContextUsage(edit.getId(), ((BasicGroupAwareEdit) edit).getContext(), -storedSize);
+                    if (sharedHash != null)
+                    {
+                        releaseBodyHash(sharedHash);
+                    }
+                }
+            }, "removeResource:" + edit.getId());
+        }
+
+        /**
+         * Write the recycle bin row of a resource with a shared body, together with the reference it takes to the body, in
+         * one transaction. The reference keeps the body while the resource is in the recycle bin, it is released when the
+         * row is purged or restored.
+         */
+        protected void commitDeletedResourceRow(final ContentResourceEdit edit, final String uuid, final String hash) throws ServerOverloadException
+        {
+            final boolean[] acquired = {false};
+            m_sqlService.transact(new Runnable()
+            {
+                public void run()
+                {
+                    acquired[0] = acquireBodyHash(hash) != null;
+                    if (acquired[0])
+                    {
+                        m_resourceDeleteStore.commitDeleteResource(edit, uuid);
+                    }
+                }
+            }, "commitDeletedResource:" + edit.getId());
+            if (!acquired[0])
+            {
+                m_resourceDeleteStore.cancelResource(edit);
+                String message = "failed to keep shared body " + ((BaseResourceEdit) edit).m_filePath + " in the recycle bin";
+                ServerOverloadException e = new ServerOverloadException(message);
+                log.error(message, e);
+                throw e;
+            }
+        }
+
+        /**
+         * Point a resource at the content addressed body it is already stored in, replacing its own copy.
+         * 
+         * @param id
+         *        The resource id.
+         * @return true if the resource was moved to a content addressed body, false if it is in use, has no body or
+         *         already shares one.
+         */
+        protected boolean migrateToBodyHash(String id)
+        {
+            BaseResourceEdit edit = (BaseResourceEdit) m_resourceStore.editResource(id);
+            if (edit == null)
+            {
+                return false;
+            }
+            String filePath = edit.m_filePath;
+            boolean ok = false;
+            if (filePath != null && getBodyHash(filePath) == null && edit.getContentLength() > 0)
+            {
+                InputStream stream = null;
+                try
+                {
+                    stream = fileSystemHandler.getInputStream(id, m_bodyPath, filePath);
+                    ok = putResourceBodyHashed(edit, stream);
+                }
+                catch (IOException e)
+                {
+                    log.warn("migrateToBodyHash(): unable to read body of " + id + ": " + e.getMessage());
+                }
+                finally
+                {
+                    if (stream != null)
+                    {
+                        try
+                        {
+                            stream.close();
+                        }
+                        catch (IOException e)
+                        {
+                            log.debug(e.getMessage());
+                        }
+                    }
+                }
+            }
+            if (!ok || filePath.equals(edit.m_filePath))
+            {
+                m_resourceStore.cancelResource(edit);
+                return false;
+            }
+            m_resourceStore.commitResource(edit);
+            fileSystemHandler.delete(id, m_bodyPath, filePath);
+            return true;
+        }
+
         /**
          * Write the resource body to the external file system. The file name is the m_bodyPath with the resource id appended.
          * 
@@ -3339,7 +3844,255 @@ public class DbContentService extends BaseContentService
         }
     }
 
+    /**
+     * The size of a quota context, from the usage ledger when it is on. A context missing from the ledger is summed
+     * once and then kept up to date as its resources are committed and removed. A dropbox folder below the folder of
+     * its owner is counted with that folder, as the ledger only follows the contexts quotas are checked on.
+     */
     protected long getSizeForContext(String context) 
+    {
+        if (!m_usageLedger)
+        {
+            return sumSizeForContext(context);
+        }
+
+        String usageContext = getUsageContext(context);
+        List<String> list = m_sqlService.dbRead(contentServiceSql.getContextUsageSql(), new Object[] {usageContext}, null);
+        if (list != null && !list.isEmpty())
+        {
+            try
+            {
+                return Long.parseLong(list.get(0));
+            }
+            catch (NumberFormatException e)
+            {
+                log.warn("getSizeForContext() unable to parse ledger usage \"" + list.get(0) + "\" for context \"" + usageContext + "\"");
+            }
+        }
+
+        // the primary key lets only one row in, if another node started it first this counts into that row
+        m_sqlService.dbWriteFailQuiet(null, contentServiceSql.getInsertContextUsageSql(),
+                new Object[] {usageContext, Long.valueOf(0L), Long.valueOf(0L)});
+        return countContextUsage(usageContext, false);
+    }
+
+    /**
+     * Recount ledger rows not reconciled within the configured age, to correct any drift from writes that failed
+     * part way.
+     *
+     * @param batch
+     *        the most contexts to recount
+     * @return the number of contexts recounted
+     */
+    protected int reconcileContextUsage(int batch)
+    {
+        if (!m_usageLedger || m_usageReconcileAge <= 0)
+        {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        Long cutoff = Long.valueOf(now - m_usageReconcileAge * 60L * 60L * 1000L);
+        List<String> stale = m_sqlService.dbRead(contentServiceSql.getStaleContextUsageSql(), new Object[] {cutoff}, null);
+        if (stale == null)
+        {
+            return 0;
+        }
+
+        int reconciled = 0;
+        for (String context : stale)
+        {
+            if (reconciled >= batch)
+            {
+                break;
+            }
+            // claim the row so that other nodes skip it
+            int claimed = m_sqlService.dbWriteCount(contentServiceSql.getClaimContextUsageSql(),
+                    new Object[] {Long.valueOf(now), context, cutoff}, null, null, true);
+            if (claimed != 1)
+            {
+                continue;
+            }
+            countContextUsage(context, true);
+            reconciled++;
+        }
+        if (reconciled > 0)
+        {
+            log.info("reconcileContextUsage() recounted " + reconciled + " contexts");
+        }
+        return reconciled;
+    }
+
+    /**
+     * Sum a quota context into its ledger row while holding a lock on the row, so changes committed meanwhile wait and
+     * are added to the count rather than lost or counted twice. The row must exist.
+     *
+     * @param recount
+     *        false to keep the total if another node has counted the context already
+     * @return the total in the ledger
+     */
+    protected long countContextUsage(String context, boolean recount)
+    {
+        Connection connection = null;
+        boolean wasCommit = true;
+        try
+        {
+            connection = m_sqlService.borrowConnection();
+            wasCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+
+            List<long[]> rows = m_sqlService.dbRead(connection, contentServiceSql.getLockContextUsageSql(), new Object[] {context}, new SqlReader<long[]>()
+            {
+                public long[] readSqlResultRecord(ResultSet result)
+                {
+                    try
+                    {
+                        return new long[] {result.getLong(1), result.getLong(2)};
+                    }
+                    catch (SQLException e)
+                    {
+                        log.warn("countContextUsage() unable to read ledger row: " + e.getMessage());
+                        return null;
+                    }
+                }
+            });
+            if (!recount && rows != null && !rows.isEmpty() && rows.get(0) != null && rows.get(0)[1] > 0L)
+            {
+                connection.commit();
+                return rows.get(0)[0];
+            }
+
+            long size = sumSizeForContext(context);
+            m_sqlService.dbWrite(connection, contentServiceSql.getReconcileContextUsageSql(),
+                    new Object[] {Long.valueOf(size), Long.valueOf(System.currentTimeMillis()), context});
+            connection.commit();
+            return size;
+        }
+        catch (SQLException e)
+        {
+            log.warn("countContextUsage() failed for context \"" + context + "\": " + e.getMessage());
+            if (connection != null)
+            {
+                try
+                {
+                    connection.rollback();
+                }
+                catch (SQLException ignore)
+                {
+                    // the connection is returned below
+                }
+            }
+            return sumSizeForContext(context);
+        }
+        finally
+        {
+            if (connection != null)
+            {
+                try
+                {
+                    connection.setAutoCommit(wasCommit);
+                }
+                catch (SQLException ignore)
+                {
+                    // returned all the same
+                }
+                m_sqlService.returnConnection(connection);
+            }
+        }
+    }
+
+    /**
+     * @return the context a quota context is kept under in the ledger, the owner folder for a dropbox folder below it
+     */
+    protected String getUsageContext(String context)
+    {
+        if (!context.startsWith(COLLECTION_DROPBOX))
+        {
+            return context;
+        }
+        // "", "group-user", site id, owner folder, subfolder, ...
+        String[] parts = context.split(Entity.SEPARATOR);
+        if (parts.length <= 4)
+        {
+            return context;
+        }
+        return COLLECTION_DROPBOX + parts[2] + Entity.SEPARATOR + parts[3] + Entity.SEPARATOR;
+    }
+
+    /**
+     * @return the FILE_SIZE stored for a resource, 0 if it is new or the ledger is off
+     */
+    protected long getStoredFileSize(String resourceId)
+    {
+        if (!m_usageLedger)
+        {
+            return 0L;
+        }
+        List<String> list = m_sqlService.dbRead(contentServiceSql.getResourceFileSizeSql(m_resourceTableName), new Object[] {resourceId}, null);
+        if (list == null || list.isEmpty() || list.get(0) == null)
+        {
+            return 0L;
+        }
+        try
+        {
+            return Long.parseLong(list.get(0));
+        }
+        catch (NumberFormatException e)
+        {
+            return 0L;
+        }
+    }
+
+    /**
+     * Apply a change in the size of a resource to the ledger rows of every quota context that counts it. Contexts not in
+     * the ledger yet are left alone, they are summed when first checked.
+     */
+    protected void addContextUsage(String resourceId, String context, long delta)
+    {
+        if (!m_usageLedger || delta == 0)
+        {
+            return;
+        }
+        for (String usageContext : getUsageContexts(resourceId, context))
+        {
+            m_sqlService.dbWrite(contentServiceSql.getAddContextUsageSql(), new Object[] {Long.valueOf(delta), usageContext});
+        }
+    }
+
+    /**
+     * The quota contexts that count a resource, matching the queries in {@link #sumSizeForContext(String)}: the site
+     * context, or for a dropbox the folder it is in and the dropbox root unless that folder belongs to a user.
+     */
+    protected List<String> getUsageContexts(String resourceId, String context)
+    {
+        List<String> contexts = new ArrayList<String>(2);
+        if (resourceId.startsWith(COLLECTION_DROPBOX))
+        {
+            // "", "group-user", site id, folder or file, ...
+            String[] parts = resourceId.split(Entity.SEPARATOR);
+            if (parts.length < 4)
+            {
+                return contexts;
+            }
+            String root = COLLECTION_DROPBOX + parts[2] + Entity.SEPARATOR;
+            if (parts.length > 4)
+            {
+                contexts.add(root + parts[3] + Entity.SEPARATOR);
+                List<String> user = m_sqlService.dbRead(contentServiceSql.getDropBoxUserFolderSql(), new Object[] {parts[3]}, null);
+                if (user != null && !user.isEmpty())
+                {
+                    return contexts;
+                }
+            }
+            contexts.add(root);
+        }
+        else if (context != null)
+        {
+            contexts.add(context);
+        }
+        return contexts;
+    }
+
+    protected long sumSizeForContext(String context) 
     {
         long size = 0L;
 
@@ -3366,13 +4119,215 @@ public class DbContentService extends BaseContentService
             }
             catch(Exception e)
             {
-                log.warn("getSizeForContext() unable to parse long from \"" + result + "\" for context \"" + context + "\"");
+                log.warn("sumSizeForContext() unable to parse long from \"" + result + "\" for context \"" + context + "\"");
             }
         }
 
         return size;
     }
 
+    /**
+     * The SHA-256 a content addressed body is named by.
+     * 
+     * @return the hash, or null if the file path is not content addressed
+     */
+    protected String getBodyHash(String filePath)
+    {
+        if (filePath == null || !filePath.contains(Entity.SEPARATOR + BODY_HASH_FOLDER + Entity.SEPARATOR))
+        {
+            return null;
+        }
+        String hash = filePath.substring(filePath.lastIndexOf(Entity.SEPARATOR) + 1);
+        return (hash.length() == 64) ? hash : null;
+    }
+
+    /**
+     * The file path of a new content addressed body, fanned out by the first bytes of the hash and spread over the body
+     * volumes the same way for every node.
+     */
+    protected String getBodyHashPath(String hash)
+    {
+        String volume = Entity.SEPARATOR;
+        if ((m_bodyVolumes != null) && (m_bodyVolumes.length > 0))
+        {
+            volume += m_bodyVolumes[Integer.parseInt(hash.substring(0, 4), 16) % m_bodyVolumes.length] + Entity.SEPARATOR;
+        }
+        return volume + BODY_HASH_FOLDER + Entity.SEPARATOR + hash.substring(0, 2) + Entity.SEPARATOR + hash.substring(2, 4)
+                + Entity.SEPARATOR + hash;
+    }
+
+    /**
+     * Add a reference to a stored content addressed body.
+     * 
+     * @return the file path of the body, or null if it is not stored or is being removed
+     */
+    protected String acquireBodyHash(String hash)
+    {
+        List<String> list = m_sqlService.dbRead(contentServiceSql.getBodyHashPathSql(), new Object[] {hash}, null);
+        if (list == null || list.isEmpty())
+        {
+            return null;
+        }
+        int count = m_sqlService.dbWriteCount(contentServiceSql.getAcquireBodyHashSql(),
+                new Object[] {Long.valueOf(System.currentTimeMillis()), hash}, null, null, true);
+        return (count == 1) ? list.get(0) : null;
+    }
+
+    /**
+     * Drop a reference to a content addressed body. The file stays until it has gone unreferenced for the collect age.
+     */
+    protected void releaseBodyHash(String hash)
+    {
+        m_sqlService.dbWrite(contentServiceSql.getReleaseBodyHashSql(), new Object[] {Long.valueOf(System.currentTimeMillis()), hash});
+    }
+
+    /**
+     * Delete the files of content addressed bodies that no resource has referred to within the collect age. Each body is
+     * claimed first, which stops new references to it, so a resource committed meanwhile stores its own copy instead.
+     * 
+     * @param batch
+     *        the most bodies to remove
+     * @return the number of bodies removed
+     */
+    protected int collectBodyHashes(int batch)
+    {
+        if (!m_bodyHashes || m_bodyCollectAge <= 0)
+        {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        Long cutoff = Long.valueOf(now - m_bodyCollectAge * 60L * 60L * 1000L);
+        List<String[]> unused = m_sqlService.dbRead(contentServiceSql.getUnusedBodyHashSql(), new Object[] {cutoff}, new SqlReader()
+        {
+            public Object readSqlResultRecord(ResultSet result)
+            {
+                try
+                {
+                    return new String[] {result.getString(1), result.getString(2)};
+                }
+                catch (SQLException e)
+                {
+                    log.warn("collectBodyHashes() unable to read body: " + e.getMessage());
+                    return null;
+                }
+            }
+        });
+        if (unused == null)
+        {
+            return 0;
+        }
+
+        int collected = 0;
+        for (String[] body : unused)
+        {
+            if (collected >= batch)
+            {
+                break;
+            }
+            // claim the body so that other nodes skip it and nothing can refer to it again
+            int claimed = m_sqlService.dbWriteCount(contentServiceSql.getClaimBodyHashSql(),
+                    new Object[] {Long.valueOf(now), body[0], cutoff}, null, null, true);
+            if (claimed != 1)
+            {
+                continue;
+            }
+            fileSystemHandler.delete(body[0], m_bodyPath, body[1]);
+            m_sqlService.dbWrite(contentServiceSql.getDeleteBodyHashSql(), new Object[] {body[0]});
+            collected++;
+        }
+        if (collected > 0)
+        {
+            log.info("collectBodyHashes() removed " + collected + " unreferenced bodies");
+        }
+        return collected;
+    }
+
+    /**
+     * Move the bodies of existing resources to content addressed paths, so that copies already made share one body.
+     * Resources in use are skipped and picked up by a later run. The ids are read a page at a time and moved once the
+     * page is read, so no connection is held while bodies are written.
+     * 
+     * @return the number of resources moved
+     */
+    protected int migrateToBodyHashes()
+    {
+        log.info("migrateToBodyHashes() started");
+        int count = 0;
+        String last = "";
+        String hashed = "%" + Entity.SEPARATOR + BODY_HASH_FOLDER + Entity.SEPARATOR + "%";
+        while (true)
+        {
+            final List<String> ids = new ArrayList<String>(MIGRATE_PAGE_SIZE);
+            m_sqlService.dbRead(contentServiceSql.getLegacyFilePathSql(m_resourceTableName), new Object[] {last, hashed}, new SqlReader()
+            {
+                public Object readSqlResultRecord(ResultSet result) throws SqlReaderFinishedException
+                {
+                    if (ids.size() >= MIGRATE_PAGE_SIZE)
+                    {
+                        throw new SqlReaderFinishedException();
+                    }
+                    try
+                    {
+                        ids.add(result.getString(1));
+                    }
+                    catch (SQLException e)
+                    {
+                        log.warn("migrateToBodyHashes() unable to read resource id: " + e.getMessage());
+                    }
+                    return null;
+                }
+            });
+            if (ids.isEmpty())
+            {
+                break;
+            }
+            for (String id : ids)
+            {
+                try
+                {
+                    if (((DbStorage) m_storage).migrateToBodyHash(id))
+                    {
+                        count++;
+                        if (count % 1000 == 0)
+                        {
+                            log.info("migrateToBodyHashes() moved " + count + " bodies");
+                        }
+                    }
+                }
+                catch (Exception e)
+                {
+                    log.warn("migrateToBodyHashes() skipped a resource: " + e.getMessage());
+                }
+            }
+            last = ids.get(ids.size() - 1);
+        }
+        log.info("migrateToBodyHashes() done, moved " + count + " bodies");
+        return count;
+    }
+
+    /**
+     * {@inheritDoc} Content addressed bodies on the file system are shared by reference.
+     */
+    @Override
+    protected boolean shareResourceBody(ContentResourceEdit edit, ContentResource resource)
+    {
+        if (m_bodyPath == null || !m_bodyHashes || !(edit instanceof BaseResourceEdit) || !(resource instanceof BaseResourceEdit))
+        {
+            return false;
+        }
+        String filePath = ((BaseResourceEdit) resource).m_filePath;
+        if (getBodyHash(filePath) == null)
+        {
+            return false;
+        }
+        // the reference is counted when the copy is committed, as for a move
+        ((BaseResourceEdit) edit).setReferenceCopy(resource.getId());
+        ((BaseResourceEdit) edit).m_filePath = filePath;
+        edit.setContentLength(resource.getContentLength());
+        edit.getPropertiesEdit().addProperty(ResourceProperties.PROP_CONTENT_LENGTH, Long.toString(resource.getContentLength()));
+        return true;
+    }
+
     /**
      * @throws Exception 
      * 
@@ -47,6 +47,13 @@ public class DefaultFileSystemHandler implements FileSystemHandler {
         this.useIdForFilePath = useIdForFilePath;
     }
 
+    /**
+     * @return true if files are named by resource id and the file path is ignored.
+     */
+    public boolean isUseIdForFilePath() {
+        return useIdForFilePath;
+    }
+
     /**
      * A Helper method to get the File object for the parameters.
      * This method will look at the property useIdForFilePath to see if the
@@ -0,0 +1,19 @@
+-----------------------------------------------------------------------------
+-- CONTENT_BODY_HASH
+-----------------------------------------------------------------------------
+
+CREATE TABLE CONTENT_BODY_HASH
+(
+	HASH VARCHAR (64) NOT NULL,
+	FILE_PATH VARCHAR (128) NOT NULL,
+	FILE_SIZE BIGINT NOT NULL,
+	REF_COUNT INT NOT NULL,
+	UPDATED BIGINT NOT NULL,
+	PRIMARY KEY (HASH)
+);
+
+CREATE INDEX CONTENT_BODY_HASH_UNUSED ON CONTENT_BODY_HASH
+(
+	REF_COUNT,
+	UPDATED
+);
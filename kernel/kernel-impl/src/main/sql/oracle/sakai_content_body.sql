@@ -0,0 +1,19 @@
+-----------------------------------------------------------------------------
+-- CONTENT_BODY_HASH
+-----------------------------------------------------------------------------
+
+CREATE TABLE CONTENT_BODY_HASH
+(
+	HASH VARCHAR2 (64) NOT NULL,
+	FILE_PATH VARCHAR2 (128) NOT NULL,
+	FILE_SIZE NUMBER(19) NOT NULL,
+	REF_COUNT NUMBER(10) NOT NULL,
+	UPDATED NUMBER(19) NOT NULL,
+	PRIMARY KEY (HASH)
+);
+
+CREATE INDEX CONTENT_BODY_HASH_UNUSED ON CONTENT_BODY_HASH
+(
+	REF_COUNT,
+	UPDATED
+);
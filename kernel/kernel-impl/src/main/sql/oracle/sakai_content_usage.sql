@@ -0,0 +1,16 @@
+-----------------------------------------------------------------------------
+-- CONTENT_CONTEXT_USAGE
+-----------------------------------------------------------------------------
+
+CREATE TABLE CONTENT_CONTEXT_USAGE
+(
+	CONTEXT_ID VARCHAR2 (255) NOT NULL,
+	USAGE_BYTES NUMBER(19) NOT NULL,
+	RECONCILED NUMBER(19) NOT NULL,
+	PRIMARY KEY (CONTEXT_ID)
+);
+
+CREATE INDEX CONTENT_CONTEXT_USAGE_RECON ON CONTENT_CONTEXT_USAGE
+(
+	RECONCILED
+);
@@ -0,0 +1,221 @@
+/**
+ * Copyright (c) 2003-2018 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.content.impl.test;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.sakaiproject.content.api.ContentHostingService;
+import org.sakaiproject.content.api.ContentResourceEdit;
+import org.sakaiproject.content.impl.DbContentService;
+import org.sakaiproject.db.api.SqlService;
+import org.sakaiproject.test.SakaiKernelTestBase;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
+import org.sakaiproject.tool.api.Session;
+import org.sakaiproject.tool.api.SessionManager;
+
+/**
+ * Test for resources sharing one body on the file system through the recycle bin.
+ */
+@Slf4j
+public class ContentHostingServiceBodyHashTest extends SakaiKernelTestBase {
+
+	private static String bodyPath;
+	private ContentHostingService ch;
+	private SqlService sql;
+
+	@BeforeClass
+	public static void beforeClass() {
+		try {
+			Properties properties = new Properties();
+			bodyPath = Files.createTempDirectory(FileSystems.getDefault().getPath(System.getProperty("java.io.tmpdir")), "files").toString();
+			properties.put("org.sakaiproject.content.api.ContentHostingService@bodyPath", bodyPath);
+			properties.put("org.sakaiproject.content.api.ContentHostingService@bodyPathDeleted",
+					Files.createTempDirectory(FileSystems.getDefault().getPath(System.getProperty("java.io.tmpdir")), "deleted").toString());
+			oneTimeSetup("bodyhash", null, properties);
+		} catch (Exception e) {
+			log.warn(e.getMessage(), e);
+		}
+	}
+
+	@Before
+	public void setUp() {
+		ch = getService(ContentHostingService.class);
+		sql = getService(SqlService.class);
+		getService(ThreadLocalManager.class).clear();
+		Session session = getService(SessionManager.class).getCurrentSession();
+		session.setUserId("admin");
+		session.setUserEid("admin");
+	}
+
+	@Test
+	public void testDeleteAndRestoreSharedBody() throws Exception {
+		byte[] body = UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8);
+		String first = addResource(body);
+		String second = addResource(body);
+		Assert.assertEquals(2, getReferences(body));
+
+		// the recycle bin holds the body for the deleted resource
+		ch.removeResource(first);
+		Assert.assertEquals(2, getReferences(body));
+
+		ch.restoreResource(first);
+		Assert.assertEquals(2, getReferences(body));
+		Assert.assertArrayEquals(body, ch.getResource(first).getContent());
+		Assert.assertArrayEquals(body, ch.getResource(second).getContent());
+	}
+
+	@Test
+	public void testPurgeSharedBody() throws Exception {
+		byte[] body = UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8);
+		String first = addResource(body);
+		String second = addResource(body);
+
+		ch.removeResource(first);
+		ch.removeDeletedResource(first);
+		Assert.assertEquals(1, getReferences(body));
+		Assert.assertArrayEquals(body, ch.getResource(second).getContent());
+
+		ch.removeResource(second);
+		Assert.assertEquals(1, getReferences(body));
+		ch.removeDeletedResource(second);
+		Assert.assertEquals(0, getReferences(body));
+	}
+
+	@Test
+	public void testFailedCommitReleasesBody() throws Exception {
+		byte[] body = UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8);
+		String hash = getHash(body);
+		DbContentService service = (DbContentService) ch;
+		Method collect = DbContentService.class.getDeclaredMethod("collectBodyHashes", int.class);
+		collect.setAccessible(true);
+
+		String id = "/" + UUID.randomUUID().toString();
+		ContentResourceEdit resource = ch.addResource(id);
+		resource.setContent(body);
+		int[] during = {-1, -1};
+		service.setSqlService(failCommit(id, () -> {
+			// the body is written and referenced, the resource row is not yet
+			during[0] = getReferences(body);
+			age(hash);
+			during[1] = collect(service, collect);
+		}));
+		try {
+			ch.commitResource(resource);
+		} catch (IllegalStateException e) {
+			// the failure is logged rather than thrown when the content type is detected
+		} finally {
+			service.setSqlService(sql);
+		}
+		Assert.assertFalse(ch.isAvailable(id) && ch.getResource(id).getContentLength() > 0);
+		Assert.assertEquals(1, during[0]);
+		Assert.assertEquals(0, during[1]);
+		File file = new File(bodyPath, getFilePath(hash));
+		Assert.assertTrue(file.exists());
+
+		// the reference of the failed commit is dropped, so the body goes once it has been unused long enough
+		Assert.assertEquals(0, getReferences(body));
+		age(hash);
+		Assert.assertEquals(1, collect(service, collect));
+		Assert.assertTrue(sql.dbRead("select REF_COUNT from CONTENT_BODY_HASH where HASH = ?", new Object[] {hash}, null).isEmpty());
+		Assert.assertFalse(file.exists());
+	}
+
+	/**
+	 * A SqlService which fails the commit of a resource after running its row transaction, and runs a check before it.
+	 */
+	private SqlService failCommit(String id, Runnable before) {
+		return (SqlService) Proxy.newProxyInstance(SqlService.class.getClassLoader(), new Class<?>[] {SqlService.class}, (proxy, method, args) -> {
+			if ("transact".equals(method.getName()) && ("commitResource:" + id).equals(args[1])) {
+				before.run();
+				Runnable callback = (Runnable) args[0];
+				return sql.transact(() -> {
+					callback.run();
+					throw new IllegalStateException("commit failed");
+				}, (String) args[1]);
+			}
+			try {
+				return method.invoke(sql, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		});
+	}
+
+	private int collect(DbContentService service, Method collect) {
+		try {
+			return (Integer) collect.invoke(service, 100);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Make a body look unused for longer than the collect age.
+	 */
+	private void age(String hash) {
+		sql.dbWrite("update CONTENT_BODY_HASH set UPDATED = 0 where HASH = ?", new Object[] {hash});
+	}
+
+	private String getFilePath(String hash) {
+		List<String> paths = sql.dbRead("select FILE_PATH from CONTENT_BODY_HASH where HASH = ?", new Object[] {hash}, null);
+		Assert.assertEquals(1, paths.size());
+		return paths.get(0);
+	}
+
+	private String addResource(byte[] body) throws Exception {
+		String id = "/" + UUID.randomUUID().toString();
+		ContentResourceEdit resource = ch.addResource(id);
+		resource.setContent(body);
+		ch.commitResource(resource);
+		return id;
+	}
+
+	private int getReferences(byte[] body) {
+		List<String> counts = sql.dbRead("select REF_COUNT from CONTENT_BODY_HASH where HASH = ?", new Object[] {getHash(body)}, null);
+		Assert.assertEquals(1, counts.size());
+		return Integer.parseInt(counts.get(0));
+	}
+
+	private String getHash(byte[] body) {
+		StringBuilder hash = new StringBuilder();
+		try {
+			for (byte b : MessageDigest.getInstance("SHA-256").digest(body)) {
+				hash.append(String.format("%02x", b));
+			}
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		return hash.toString();
+	}
+}
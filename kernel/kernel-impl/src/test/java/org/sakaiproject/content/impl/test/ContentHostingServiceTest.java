@@ -215,6 +215,70 @@ public class ContentHostingServiceTest extends SakaiKernelTestBase {
 		}
 	}
 
+	/**
+	 * Checks the usage ledger follows resources being added, replaced and removed.
+	 */
+	@Test
+	public void testUsageLedger() throws Exception {
+		ContentHostingService ch = getService(ContentHostingService.class);
+		SessionManager sm = getService(SessionManager.class);
+		Session session = sm.getCurrentSession();
+		session.setUserEid("admin");
+		session.setUserId("admin");
+		String folder = "/user/admin/";
+		try {
+			ch.commitCollection(ch.addCollection(folder));
+		} catch (IdUsedException e) {
+			// made by an earlier test
+		}
+		long before = ch.getCollection(folder).getBodySizeK();
+
+		ContentResourceEdit cr = ch.addResource(folder + "usage.bin");
+		cr.setContent(new byte[5000]);
+		ch.commitResource(cr);
+		Assert.assertEquals(before + 5, ch.getCollection(folder).getBodySizeK());
+
+		cr = ch.editResource(folder + "usage.bin");
+		cr.setContent(new byte[2000]);
+		ch.commitResource(cr);
+		Assert.assertEquals(before + 2, ch.getCollection(folder).getBodySizeK());
+
+		ch.removeResource(folder + "usage.bin");
+		Assert.assertEquals(before, ch.getCollection(folder).getBodySizeK());
+	}
+
+	/**
+	 * Checks a dropbox subfolder is counted with the folder of its owner, which the ledger keeps up to date.
+	 */
+	@Test
+	public void testUsageLedgerDropboxSubfolder() throws Exception {
+		ContentHostingService ch = getService(ContentHostingService.class);
+		SessionManager sm = getService(SessionManager.class);
+		Session session = sm.getCurrentSession();
+		session.setUserEid("admin");
+		session.setUserId("admin");
+		String owner = "/group-user/usage-site/owner/";
+		String sub = owner + "sub/";
+		for (String folder : Arrays.asList("/group-user/usage-site/", owner, sub)) {
+			try {
+				ch.commitCollection(ch.addCollection(folder));
+			} catch (IdUsedException e) {
+				// made by an earlier run
+			}
+		}
+		long before = ch.getCollection(sub).getBodySizeK();
+		Assert.assertEquals(ch.getCollection(owner).getBodySizeK(), before);
+
+		ContentResourceEdit cr = ch.addResource(sub + "usage.bin");
+		cr.setContent(new byte[5000]);
+		ch.commitResource(cr);
+		Assert.assertEquals(before + 5, ch.getCollection(sub).getBodySizeK());
+		Assert.assertEquals(before + 5, ch.getCollection(owner).getBodySizeK());
+
+		ch.removeResource(sub + "usage.bin");
+		Assert.assertEquals(before, ch.getCollection(sub).getBodySizeK());
+	}
+
 	//Resources for this from http://svn.apache.org/repos/asf/tika/trunk/tika-parsers/src/test/resources/test-documents/
 	//Test mime type detector, might be useful to test it off as well
 	@Test
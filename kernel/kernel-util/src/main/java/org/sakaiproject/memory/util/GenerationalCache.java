@@ -0,0 +1,198 @@
+/**
+ * Copyright (c) 2003-2018 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.memory.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+import org.sakaiproject.memory.api.Cache;
+
+/**
+ * Wraps a {@link Cache} whose entries can be dropped a whole scope (a site, a topic, a user...) at a time.
+ * <p>
+ * Every scope has a generation number kept in the cache itself and the keys built by
+ * {@link #key(String, String...)} include the generations of their scopes. {@link #invalidate(String)}
+ * moves a scope on to a new generation, after which the old entries are never read again and are left for
+ * the cache to expire. If a generation is evicted a new one is started from the clock, so it can't go back
+ * to a number an older entry was stored under.
+ * <p>
+ * The cache has no compare and set, so changes made through this class are serialised with a lock striped
+ * by key:
+ * <ul>
+ * <li>{@link #update(String, UnaryOperator)} changes a copy of an entry and puts it back while holding the lock,
+ * so two updates of the same entry can't lose each other. {@link #compute(String, UnaryOperator)} does the
+ * same but also creates a missing entry.</li>
+ * <li>{@link #load(String, Supplier)} only stores what it loaded if no update or removal of a key on the same
+ * stripe happened while it was loading, as the value may have been read before that change.</li>
+ * </ul>
+ * The lock is local to this server. In a distributed cache an update removes the entry instead, so that the
+ * next read on any server loads it again.
+ */
+public class GenerationalCache {
+
+	private static final int STRIPES = 64;
+
+	private final Cache<String, Object> cache;
+	private final Object[] locks = new Object[STRIPES];
+	private final AtomicLongArray epochs = new AtomicLongArray(STRIPES);
+
+	public GenerationalCache(Cache<String, Object> cache) {
+		this.cache = cache;
+		for (int i = 0; i < STRIPES; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * @return the current generation of a scope, starting one if there is none
+	 */
+	public long generation(String scope) {
+		String key = generationKey(scope);
+		Long generation = (Long) cache.get(key);
+		if (generation == null) {
+			synchronized (lock(key)) {
+				generation = (Long) cache.get(key);
+				if (generation == null) {
+					generation = System.currentTimeMillis();
+					cache.put(key, generation);
+				}
+			}
+		}
+		return generation;
+	}
+
+	/**
+	 * Drop every entry whose key was built with this scope.
+	 */
+	public void invalidate(String scope) {
+		String key = generationKey(scope);
+		synchronized (lock(key)) {
+			Long generation = (Long) cache.get(key);
+			cache.put(key, Math.max(System.currentTimeMillis(), generation == null ? 0L : generation + 1));
+		}
+	}
+
+	/**
+	 * @param name what the entry holds, unique within the scopes
+	 * @param scopes the scopes the entry should be dropped with
+	 * @return a key for the entry in the current generation of each scope
+	 */
+	public String key(String name, String... scopes) {
+		StringBuilder key = new StringBuilder(name);
+		for (String scope : scopes) {
+			key.append(':').append(scope).append('@').append(generation(scope));
+		}
+		return key.toString();
+	}
+
+	@SuppressWarnings("unchecked")
+	public <V> V get(String key) {
+		return (V) cache.get(key);
+	}
+
+	/**
+	 * Get an entry, loading and storing it on a miss.
+	 *
+	 * @return the entry, or null if the loader returned null
+	 */
+	public <V> V load(String key, Supplier<V> loader) {
+		V value = get(key);
+		if (value == null) {
+			int stripe = stripe(key);
+			long epoch = epochs.get(stripe);
+			value = loader.get();
+			if (value != null) {
+				synchronized (locks[stripe]) {
+					if (epochs.get(stripe) == epoch) {
+						cache.put(key, value);
+					}
+				}
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Change an entry if it is cached. A missing entry is left alone, it will be loaded with the change.
+	 *
+	 * @param operation given the cached value, which must not be changed in place, returns the new value or
+	 * null to remove the entry
+	 */
+	public <V> void update(String key, UnaryOperator<V> operation) {
+		int stripe = stripe(key);
+		synchronized (locks[stripe]) {
+			epochs.incrementAndGet(stripe);
+			if (cache.isDistributed()) {
+				cache.remove(key);
+				return;
+			}
+			V value = get(key);
+			if (value != null) {
+				V updated = operation.apply(value);
+				if (updated == null) {
+					cache.remove(key);
+				} else if (updated != value) {
+					cache.put(key, updated);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Change an entry whether it is cached or not, for entries that can be built up one change at a time.
+	 *
+	 * @param operation given the cached value or null, which must not be changed in place, returns the new
+	 * value or null to remove the entry
+	 */
+	public <V> void compute(String key, UnaryOperator<V> operation) {
+		int stripe = stripe(key);
+		synchronized (locks[stripe]) {
+			epochs.incrementAndGet(stripe);
+			if (cache.isDistributed()) {
+				cache.remove(key);
+				return;
+			}
+			V value = get(key);
+			V updated = operation.apply(value);
+			if (updated == null) {
+				cache.remove(key);
+			} else if (updated != value) {
+				cache.put(key, updated);
+			}
+		}
+	}
+
+	public void remove(String key) {
+		int stripe = stripe(key);
+		synchronized (locks[stripe]) {
+			epochs.incrementAndGet(stripe);
+			cache.remove(key);
+		}
+	}
+
+	private static String generationKey(String scope) {
+		return "generation:" + scope;
+	}
+
+	private Object lock(String key) {
+		return locks[stripe(key)];
+	}
+
+	private static int stripe(String key) {
+		return Math.floorMod(key.hashCode(), STRIPES);
+	}
+}
@@ -39,6 +39,8 @@ import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -48,6 +50,7 @@ import org.apache.commons.codec.binary.Base64;
 import org.w3c.dom.DOMImplementation;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.w3c.dom.ls.DOMImplementationLS;
@@ -339,6 +342,65 @@ public class Xml
 		}
 	}
 
+	/**
+	 * Write a DOM Element, with its attributes and children, to an XML stream. This lets DOM built content be
+	 * written into a document that is otherwise streamed.
+	 * 
+	 * @param writer
+	 *        The stream to write to.
+	 * @param element
+	 *        The element to write.
+	 * @throws XMLStreamException
+	 *         if the stream can't be written.
+	 */
+	public static void writeElement(XMLStreamWriter writer, Element element) throws XMLStreamException
+	{
+		writeNode(writer, element);
+	}
+
+	private static void writeNode(XMLStreamWriter writer, Node node) throws XMLStreamException
+	{
+		switch (node.getNodeType())
+		{
+			case Node.ELEMENT_NODE:
+				NodeList children = node.getChildNodes();
+				if (children.getLength() == 0)
+				{
+					writer.writeEmptyElement(node.getNodeName());
+				}
+				else
+				{
+					writer.writeStartElement(node.getNodeName());
+				}
+				NamedNodeMap attributes = node.getAttributes();
+				for (int i = 0; i < attributes.getLength(); i++)
+				{
+					Node attribute = attributes.item(i);
+					writer.writeAttribute(attribute.getNodeName(), attribute.getNodeValue());
+				}
+				if (children.getLength() > 0)
+				{
+					for (int i = 0; i < children.getLength(); i++)
+					{
+						writeNode(writer, children.item(i));
+					}
+					writer.writeEndElement();
+				}
+				break;
+			case Node.TEXT_NODE:
+				writer.writeCharacters(node.getNodeValue());
+				break;
+			case Node.CDATA_SECTION_NODE:
+				writer.writeCData(node.getNodeValue());
+				break;
+			case Node.COMMENT_NODE:
+				writer.writeComment(node.getNodeValue());
+				break;
+			default:
+				break;
+		}
+	}
+
 	/**
 	 * Place a string into the attribute <tag>of the element <el>, encoded so special characters can be used.
 	 * 
@@ -0,0 +1,155 @@
+/**
+ * Copyright (c) 2003-2018 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.memory.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.memory.api.Cache;
+
+public class GenerationalCacheTest {
+
+	private Map<String, Object> entries;
+	private Cache<String, Object> cache;
+	private GenerationalCache generationalCache;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void setUp() {
+		entries = new ConcurrentHashMap<>();
+		cache = mock(Cache.class);
+		when(cache.get(anyString())).thenAnswer(i -> entries.get(i.getArgument(0)));
+		doAnswer(i -> entries.put(i.getArgument(0), i.getArgument(1))).when(cache).put(anyString(), any());
+		when(cache.remove(anyString())).thenAnswer(i -> entries.remove(i.getArgument(0)) != null);
+		generationalCache = new GenerationalCache(cache);
+	}
+
+	@Test
+	public void testInvalidate() {
+		String siteKey = generationalCache.key("pages", "site:a");
+		String userKey = generationalCache.key("sites", "user:b");
+		String bothKey = generationalCache.key("view", "site:a", "user:b");
+		assertEquals(siteKey, generationalCache.key("pages", "site:a"));
+
+		generationalCache.invalidate("site:a");
+		assertNotEquals(siteKey, generationalCache.key("pages", "site:a"));
+		assertNotEquals(bothKey, generationalCache.key("view", "site:a", "user:b"));
+		assertEquals(userKey, generationalCache.key("sites", "user:b"));
+	}
+
+	@Test
+	public void testEvictedGenerationMovesOn() throws Exception {
+		String key = generationalCache.key("pages", "site:a");
+		entries.remove("generation:site:a");
+		Thread.sleep(2);
+		assertNotEquals(key, generationalCache.key("pages", "site:a"));
+	}
+
+	@Test
+	public void testLoadAndUpdate() {
+		List<String> loaded = generationalCache.load("k", () -> Collections.singletonList("a"));
+		assertEquals(Collections.singletonList("a"), loaded);
+		// A hit does not call the loader
+		assertEquals(loaded, generationalCache.load("k", () -> null));
+
+		generationalCache.update("k", (List<String> list) -> {
+			List<String> copy = new ArrayList<>(list);
+			copy.add("b");
+			return copy;
+		});
+		assertEquals(2, generationalCache.<List<String>>get("k").size());
+		// The value handed out earlier is untouched
+		assertEquals(1, loaded.size());
+
+		generationalCache.update("k", (List<String> list) -> null);
+		assertNull(generationalCache.get("k"));
+	}
+
+	@Test
+	public void testUpdateOfMissingEntry() {
+		generationalCache.update("k", (List<String> list) -> {
+			throw new AssertionError("nothing to update");
+		});
+		assertFalse(entries.containsKey("k"));
+	}
+
+	@Test
+	public void testCompute() {
+		generationalCache.compute("k", (String s) -> s == null ? "a" : s + "b");
+		assertEquals("a", entries.get("k"));
+		generationalCache.compute("k", (String s) -> s == null ? "a" : s + "b");
+		assertEquals("ab", entries.get("k"));
+		generationalCache.compute("k", (String s) -> null);
+		assertFalse(entries.containsKey("k"));
+	}
+
+	@Test
+	public void testLoadRacingUpdateIsNotStored() {
+		// The update lands while the value is being read from the database, which may be before the change
+		String value = generationalCache.load("k", () -> {
+			generationalCache.update("k", (String s) -> s + "!");
+			return "stale";
+		});
+		assertEquals("stale", value);
+		assertFalse(entries.containsKey("k"));
+		assertEquals("fresh", generationalCache.load("k", () -> "fresh"));
+		assertEquals("fresh", entries.get("k"));
+	}
+
+	@Test
+	public void testDistributedUpdateRemoves() {
+		when(cache.isDistributed()).thenReturn(true);
+		entries.put("k", "a");
+		generationalCache.update("k", (String s) -> s + "b");
+		assertFalse(entries.containsKey("k"));
+	}
+
+	@Test
+	public void testConcurrentUpdates() throws Exception {
+		entries.put("k", 0);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 8; t++) {
+			Thread thread = new Thread(() -> {
+				for (int i = 0; i < 1000; i++) {
+					generationalCache.update("k", (Integer n) -> n + 1);
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(8000, entries.get("k"));
+		assertTrue(generationalCache.generation("site:a") > 0);
+	}
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright (c) 2003-2017 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringWriter;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+public class XmlTest {
+
+	@Test
+	public void testWriteElement() throws Exception {
+		Document doc = Xml.createDocument();
+		Element root = doc.createElement("collection");
+		root.setAttribute("id", "/group/site/<a & b>/");
+		doc.appendChild(root);
+		Element properties = doc.createElement("properties");
+		root.appendChild(properties);
+		Element property = doc.createElement("property");
+		property.setAttribute("name", "DAV:displayname");
+		properties.appendChild(property);
+		root.appendChild(doc.createTextNode("text"));
+
+		StringWriter out = new StringWriter();
+		XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out);
+		writer.writeStartElement("archive");
+		Xml.writeElement(writer, root);
+		writer.writeEndElement();
+		writer.close();
+
+		Element read = Xml.readDocumentFromString(out.toString()).getDocumentElement();
+		Element collection = (Element) read.getFirstChild();
+		assertEquals("/group/site/<a & b>/", collection.getAttribute("id"));
+		assertEquals("DAV:displayname", ((Element) collection.getFirstChild().getFirstChild()).getAttribute("name"));
+		assertEquals("text", collection.getLastChild().getNodeValue());
+	}
+}
@@ -222,6 +222,10 @@ public interface SimplePageToolDao {
     // on several pages, the same group controls all of the appearances
 	public SimplePageGroup findGroup(String itemId);
 
+    // findGroup for many sakaiIds at once, for resolving a whole page in one query.
+    // ids without a group are simply missing from the result
+	public List<SimplePageGroup> findGroups(Collection<String> itemIds);
+
     // constructors, so code doesn't have to use the Impl's directly
     public SimplePage makePage(String toolId, String siteId, String title, Long parent, Long topParent);
 
@@ -1069,6 +1069,20 @@ public class SimplePageToolDaoImpl extends HibernateDaoSupport implements Simple
 		}
 	}
 
+	public List<SimplePageGroup> findGroups(Collection<String> itemIds) {
+		List<SimplePageGroup> ret = new ArrayList<SimplePageGroup>();
+		if (itemIds == null || itemIds.isEmpty())
+			return ret;
+		// Oracle won't take more than 1000 entries in an in clause
+		List<String> ids = new ArrayList<String>(itemIds);
+		for (int i = 0; i < ids.size(); i += 1000) {
+			DetachedCriteria d = DetachedCriteria.forClass(SimplePageGroup.class)
+				.add(Restrictions.in("itemId", ids.subList(i, Math.min(i + 1000, ids.size()))));
+			ret.addAll((List<SimplePageGroup>) getHibernateTemplate().findByCriteria(d));
+		}
+		return ret;
+	}
+
 	public SimplePage makePage(String toolId, String siteId, String title, Long parent, Long topParent) {
 		return new SimplePageImpl(toolId, siteId, title, parent, topParent);
 	}
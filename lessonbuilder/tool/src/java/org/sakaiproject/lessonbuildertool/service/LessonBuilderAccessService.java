@@ -210,6 +210,12 @@ public class LessonBuilderAccessService {
 		gradebookIfc = g;
 	}
 
+	private LessonsCompletionGraph completionGraph = null;
+
+	public void setCompletionGraph(LessonsCompletionGraph g) {
+		completionGraph = g;
+	}
+
 	private AuthzGroupService authzGroupService;
 
 	public void setAuthzGroupService(AuthzGroupService a) {
@@ -591,6 +597,7 @@ public class LessonBuilderAccessService {
 						simplePageBean.setAssignmentEntity(assignmentEntity);
 						simplePageBean.setBltiEntity(bltiEntity);
 						simplePageBean.setGradebookIfc(gradebookIfc);
+						simplePageBean.setCompletionGraph(completionGraph);
 						simplePageBean.setCurrentSiteId(currentPage.getSiteId());
 						simplePageBean.setCurrentPage(currentPage);
 						simplePageBean.setCurrentPageId(currentPage.getPageId());
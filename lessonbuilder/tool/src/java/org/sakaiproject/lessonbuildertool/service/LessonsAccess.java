@@ -406,19 +406,7 @@ public class LessonsAccess {
 
 			simplePageBean = makeSimplePageBean(simplePageBean, siteId, currentPage);
 
-			List<SimplePageItem> items = dao.findItemsInSite(siteId);
-			// sorted by SQL
-
-			boolean ok = true;
-			for (SimplePageItem i : items) {
-			    if (i.getId() == path.itemId)
-				break; //ok
-			    if (i.isRequired() && !simplePageBean.isItemComplete(i) && simplePageBean.isItemVisible(i)) {
-				ok = false;
-				break;
-			    }
-			}
-			if (!ok) {
+			if (!simplePageBean.isTopLevelItemAvailable(path.itemId, siteId)) {
 			    continue;
 			}
 		    }
@@ -466,6 +454,7 @@ public class LessonsAccess {
 	    simplePageBean.setAssignmentEntity(assignmentEntity);
 	    simplePageBean.setBltiEntity(bltiEntity);
 	    simplePageBean.setGradebookIfc(gradebookIfc);
+	    simplePageBean.setCompletionGraph(completionGraph);
 	    simplePageBean.setCurrentSiteId(siteId);
 	    simplePageBean.setCurrentPage(currentPage);
 	    simplePageBean.setCurrentPageId(currentPage.getPageId());
@@ -644,4 +633,10 @@ public class LessonsAccess {
 	gradebookIfc = g;
     }
 
+    private LessonsCompletionGraph completionGraph = null;
+
+    public void setCompletionGraph(LessonsCompletionGraph g) {
+	completionGraph = g;
+    }
+
 }
@@ -0,0 +1,175 @@
+/**********************************************************************************
+ * Copyright (c) 2018 Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.lessonbuildertool.service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.api.EventTrackingService;
+import org.sakaiproject.lessonbuildertool.SimplePageItem;
+import org.sakaiproject.lessonbuildertool.api.LessonBuilderEvents;
+import org.sakaiproject.memory.api.Cache;
+import org.sakaiproject.memory.api.MemoryService;
+import org.sakaiproject.memory.util.GenerationalCache;
+
+// Completion state of the items in a site for one student, kept across requests.
+//   SimplePageBean.isItemComplete is called for every required item above the one being
+// checked, both when a page is shown and when LessonsAccess decides whether a page can be
+// reached, and for assignments, tests and forums each call goes out to the other tool
+// through a LessonEntity. Those answers only change when the student submits something,
+// when somebody grades, or when the item itself is edited, all of which post events. So we
+// remember the answers per (student, site) and listen for those events instead of asking
+// again on every page view.
+//   A submission drops everything cached for the student, grading or editing Lessons drops
+// everything for the site. Both go through GenerationalCache scopes, so neither has to find
+// the entries it affects.
+@Slf4j
+public class LessonsCompletionGraph implements Observer {
+
+    // events posted for the student doing the work
+    private static final String[] STUDENT_EVENTS = {
+	"asn.submit.submission",
+	"sam.assessment.submit",
+	"forums.new",
+	"forums.response",
+    };
+    // events posted by an instructor that can change any student's state in the site
+    private static final String[] SITE_EVENTS = {
+	"asn.grade.submission",
+	"sam.total.score.update",
+	"sam.student.score.update",
+	"sam.question.score.update",
+	LessonBuilderEvents.ITEM_CREATE,
+	LessonBuilderEvents.ITEM_UPDATE,
+	LessonBuilderEvents.ITEM_DELETE,
+	LessonBuilderEvents.PAGE_UPDATE,
+    };
+
+    private static Cache<String, Object> cache = null;
+    private static GenerationalCache states = null;
+
+    private MemoryService memoryService;
+    private EventTrackingService eventTrackingService;
+
+    public void setMemoryService(MemoryService m) {
+	memoryService = m;
+    }
+
+    public void setEventTrackingService(EventTrackingService e) {
+	eventTrackingService = e;
+    }
+
+    public void init() {
+	cache = memoryService
+	    .getCache("org.sakaiproject.lessonbuildertool.service.LessonsCompletionGraph.cache");
+	states = new GenerationalCache(cache);
+	eventTrackingService.addObserver(this);
+	log.info("init()");
+    }
+
+    public void destroy() {
+	log.info("destroy()");
+	eventTrackingService.deleteObserver(this);
+	states = null;
+	cache.close();
+	cache = null;
+    }
+
+    // only items whose completion is decided by another tool are kept here. Everything else
+    // is a single lookup in our own tables and is left to the request cache in SimplePageBean
+    public static boolean isTracked(SimplePageItem item) {
+	int type = item.getType();
+	return type == SimplePageItem.ASSIGNMENT || type == SimplePageItem.ASSESSMENT || type == SimplePageItem.FORUM;
+    }
+
+    // null means we don't know, the caller has to compute it and call setComplete
+    public Boolean getComplete(String userId, String siteId, long itemId) {
+	if (states == null || userId == null || siteId == null)
+	    return null;
+	Map<Long, Boolean> items = states.get(stateKey(userId, siteId));
+	if (items == null)
+	    return null;
+	return items.get(itemId);
+    }
+
+    // the map is changed under the cache's lock, so two requests adding different items
+    // don't lose each other's answer
+    public void setComplete(String userId, String siteId, long itemId, boolean complete) {
+	if (states == null || userId == null || siteId == null)
+	    return;
+	states.compute(stateKey(userId, siteId), (Map<Long, Boolean> items) -> {
+	    if (items != null && Boolean.valueOf(complete).equals(items.get(itemId)))
+		return items;
+	    // copy, the cached map may be in use by another request
+	    Map<Long, Boolean> updated = items == null ? new HashMap<Long, Boolean>() : new HashMap<Long, Boolean>(items);
+	    updated.put(itemId, complete);
+	    return updated;
+	});
+    }
+
+    public void invalidateUser(String userId) {
+	if (states != null)
+	    states.invalidate(userScope(userId));
+    }
+
+    public void invalidateSite(String siteId) {
+	if (states != null)
+	    states.invalidate(siteScope(siteId));
+    }
+
+    public void update(Observable o, Object arg) {
+	if (!(arg instanceof Event))
+	    return;
+	Event event = (Event) arg;
+	String name = event.getEvent();
+	if (name == null)
+	    return;
+	if (startsWithAny(name, STUDENT_EVENTS)) {
+	    if (event.getUserId() != null)
+		invalidateUser(event.getUserId());
+	} else if (startsWithAny(name, SITE_EVENTS)) {
+	    if (event.getContext() != null)
+		invalidateSite(event.getContext());
+	}
+    }
+
+    private static boolean startsWithAny(String name, String[] prefixes) {
+	for (String prefix: prefixes) {
+	    if (name.startsWith(prefix))
+		return true;
+	}
+	return false;
+    }
+
+    private String stateKey(String userId, String siteId) {
+	return states.key("complete", userScope(userId), siteScope(siteId));
+    }
+
+    private static String userScope(String userId) {
+	return "user:" + userId;
+    }
+
+    private static String siteScope(String siteId) {
+	return "site:" + siteId;
+    }
+}
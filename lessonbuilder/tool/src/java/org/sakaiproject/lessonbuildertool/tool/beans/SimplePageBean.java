@@ -433,6 +433,13 @@ public class SimplePageBean {
 	private Map<String, SimplePageLogEntry> logCache = new HashMap<String, SimplePageLogEntry>();
 	private Map<Long, Boolean> completeCache = new HashMap<Long, Boolean>();
 	private Map<Long, Boolean> visibleCache = new HashMap<Long, Boolean>();
+    // pageId => sequence of the first required, visible item on the page the user hasn't completed,
+    // Integer.MAX_VALUE if there is none. Lets isItemAvailable answer for every item on the page
+    // from one pass instead of rescanning the items above each one.
+	private Map<Long, Integer> firstBlockerCache = new HashMap<Long, Integer>();
+    // siteId => ids of the items in the site, in the order LessonsAccess checks top level
+    // prerequisites, up to and including the first blocking one. null if nothing blocks.
+	private Map<String, Set<Long>> siteBlockerCache = new HashMap<String, Set<Long>>();
 	// this one needs to be global
 	static MemoryService memoryService = (MemoryService)org.sakaiproject.component.cover.ComponentManager.get("org.sakaiproject.memory.api.MemoryService");
 	private static Cache<String, Object> groupCache = memoryService.getCache("org.sakaiproject.lessonbuildertool.tool.beans.SimplePageBean.groupCache");  // itemId => grouplist
@@ -619,6 +626,7 @@ public class SimplePageBean {
 	private SimplePageToolDao simplePageToolDao;
 	private LessonsAccess lessonsAccess;
         private LessonBuilderAccessService lessonBuilderAccessService;
+	private LessonsCompletionGraph completionGraph;
 
 	private MessageLocator messageLocator;
 	public void setMessageLocator(MessageLocator x) {
@@ -1882,6 +1890,10 @@ public class SimplePageBean {
 		lessonBuilderAccessService = a;
 	}
 
+	public void setCompletionGraph(LessonsCompletionGraph g) {
+		completionGraph = g;
+	}
+
 	public List<SimplePageItem>  getItemsOnPage(long pageid) {
 		List<SimplePageItem>items = itemsCache.get(pageid);
 		if (items != null)
@@ -3070,6 +3082,8 @@ public class SimplePageBean {
 		if (sakaiId.equals(SimplePageItem.DUMMY) || sakaiId.startsWith("/sam_core/"))
 		    return;
 
+		// the group may be created or removed below
+		prefetchedGroups.remove(sakaiId);
 		SimplePageGroup group = simplePageToolDao.findGroup(i.getSakaiId());
 		String ourGroupName = null;
 		try {
@@ -3631,7 +3645,8 @@ public class SimplePageBean {
 	   }
 
 
-	   SimplePageGroup simplePageGroup = simplePageToolDao.findGroup(i.getSakaiId());
+	   SimplePageGroup simplePageGroup = prefetchedGroups.containsKey(i.getSakaiId()) ?
+	       prefetchedGroups.get(i.getSakaiId()) : simplePageToolDao.findGroup(i.getSakaiId());
 	   if (simplePageGroup != null) {
 	       String groups = simplePageGroup.getGroups();
 	       if (groups != null && !groups.equals(""))
@@ -3723,15 +3738,31 @@ public class SimplePageBean {
 
 		   advisor = pushAdvisorAlways();
     	   
-    		   Collection<String> ret = null;
-
     		   ContentResource resource = null;
     		   try {
     			   resource = contentHostingService.getResource(i.getSakaiId());
     		   } catch (Exception ignore) {
 		       throw new IdUnusedException(i.toString());
     		   }
+
+    		   Collection<String> ret = getResourceGroups(resource, inheritingPubView);
+
+    		   if (!nocache) {
+    			   if (ret == null)
+    				   groupCache.put(i.getSakaiId(), "*");
+    			   else
+    				   groupCache.put(i.getSakaiId(), ret);
+    		   }
     		   
+    		   return ret;
+    	   }finally {
+    		  popAdvisor(advisor);
+    	   }
+   	}
+
+    // the part of getResourceGroups that works from a resource we already have
+       private Collection<String>getResourceGroups (ContentResource resource, boolean inheritingPubView) {
+    		   Collection<String> ret = null;
     		   Collection<String>groups = null;
     		   AccessMode access = resource.getAccess();
     		   if(AccessMode.INHERITED.equals(access) || inheritingPubView) {
@@ -3760,19 +3791,99 @@ public class SimplePageBean {
     			   }
     		   }
     		   
-    		   if (!nocache) {
-    			   if (ret == null)
-    				   groupCache.put(i.getSakaiId(), "*");
-    			   else
-    				   groupCache.put(i.getSakaiId(), ret);
-    		   }
-    		   
     		   return ret;
-    	   }finally {
-    		  popAdvisor(advisor);
-    	   }
    	}
 
+    // isItemVisible asks for the groups of one item at a time, and every miss in groupCache costs
+    // a query for the SimplePageGroup plus a call into content hosting or the tool. So the first
+    // miss on a page resolves all the items on it together: one query for every SimplePageGroup,
+    // and one listing per folder for resources. Anything not settled here (groups kept by the tool
+    // itself, objects that have gone away) is left to getItemGroups to do the usual way.
+    //   Items from other tools still have to go through getItemGroups, which checks that the
+    // object exists before caching anything for it. So their SimplePageGroups are only kept for
+    // this request, in prefetchedGroups, where getItemGroups finds them instead of querying.
+	private Set<Long> groupsPrefetched = new HashSet<Long>();
+    // sakaiId => its SimplePageGroup, or null if it has none
+	private Map<String, SimplePageGroup> prefetchedGroups = new HashMap<String, SimplePageGroup>();
+
+       public void prefetchItemGroups(long pageId) {
+	   if (pageId <= 0 || !groupsPrefetched.add(pageId))
+	       return;
+
+	   Set<String> toolIds = new HashSet<String>();
+	   Map<String, Set<String>> resourcesByFolder = new HashMap<String, Set<String>>();
+	   for (SimplePageItem i: getItemsOnPage(pageId)) {
+	       String sakaiId = i.getSakaiId();
+	       if (sakaiId == null || sakaiId.equals(SimplePageItem.DUMMY) || groupCache.get(sakaiId) != null)
+		   continue;
+	       switch (i.getType()) {
+	       case SimplePageItem.ASSIGNMENT:
+	       case SimplePageItem.FORUM:
+	       case SimplePageItem.ASSESSMENT:
+		   // getItemGroups may need to fix up the sakaiId of these first
+		   if (!sakaiId.startsWith("/sam_core"))
+		       toolIds.add(sakaiId);
+		   break;
+	       case SimplePageItem.MULTIMEDIA:
+		   String displayType = i.getAttribute("multimediaDisplayType");
+		   if ("1".equals(displayType) || "3".equals(displayType))
+		       break;
+		   // fall through
+	       case SimplePageItem.RESOURCE:
+		   int slash = sakaiId.lastIndexOf("/");
+		   if (i.getAttribute("multimediaUrl") == null && slash > 0) {
+		       String folder = sakaiId.substring(0, slash + 1);
+		       if (!resourcesByFolder.containsKey(folder))
+			   resourcesByFolder.put(folder, new HashSet<String>());
+		       resourcesByFolder.get(folder).add(sakaiId);
+		   }
+		   break;
+	       }
+	   }
+
+	   if (!toolIds.isEmpty()) {
+	       for (String toolId: toolIds)
+		   prefetchedGroups.put(toolId, null);
+	       for (SimplePageGroup simplePageGroup: simplePageToolDao.findGroups(toolIds))
+		   prefetchedGroups.put(simplePageGroup.getItemId(), simplePageGroup);
+	   }
+
+	   // getResourceGroups sets this as a side effect; don't disturb whoever called us
+	   boolean wasInherited = inherited;
+	   for (Map.Entry<String, Set<String>> folder: resourcesByFolder.entrySet()) {
+	       Set<String> wanted = folder.getValue();
+	       // a single file isn't worth a listing, and neither is a big folder we only want a few files from
+	       if (wanted.size() < 2)
+		   continue;
+	       // must be checked before the advisor is pushed, see getResourceGroups
+	       Map<String, Boolean> inheritingPubView = new HashMap<String, Boolean>();
+	       for (String id: wanted)
+		   inheritingPubView.put(id, contentHostingService.isInheritingPubView(id));
+	       SecurityAdvisor advisor = null;
+	       try {
+		   advisor = pushAdvisorAlways();
+		   ContentCollection collection = contentHostingService.getCollection(folder.getKey());
+		   if (collection.getMemberCount() > wanted.size() * 4)
+		       continue;
+		   for (ContentEntity member: collection.getMemberResources()) {
+		       if (member instanceof ContentResource && wanted.contains(member.getId())) {
+			   Collection<String> groups = getResourceGroups((ContentResource) member, inheritingPubView.get(member.getId()));
+			   if (groups == null)
+			       groupCache.put(member.getId(), "*");
+			   else
+			       groupCache.put(member.getId(), groups);
+		       }
+		   }
+	       } catch (Exception e) {
+		   // leave these to getResourceGroups
+		   log.debug("Could not list " + folder.getKey() + " " + e);
+	       } finally {
+		   popAdvisor(advisor);
+	       }
+	   }
+	   inherited = wasInherited;
+       }
+
     // no obvious need to cache
        public Collection<String>getLBItemGroups (SimplePageItem i) {
 	   List<String> ret = null;
@@ -3863,6 +3974,7 @@ public class SimplePageBean {
 			       groupString = groupString + "," + groupId;
 		       }
 
+		       prefetchedGroups.remove(i.getSakaiId());
 		       SimplePageGroup simplePageGroup = simplePageToolDao.findGroup(i.getSakaiId());
 		       simplePageGroup.setGroups(groupString);
 		       update(simplePageGroup);
@@ -5111,6 +5223,7 @@ public class SimplePageBean {
 			}
 		    }
 		    // entity can be null. passing the actual entity just avoids a second lookup
+		    prefetchItemGroups(item.getPageId());
 		    itemGroups = getItemGroups(item, entity, false);
 		} catch (IdUnusedException exc) {
 		    visibleCache.put(item.getId(), false);
@@ -5156,7 +5269,8 @@ public class SimplePageBean {
 
 
     // this is called in a loop to see whether items are available. Since computing it can require
-    // database transactions, we cache the results
+    // database transactions, we cache the results. Items that depend on another tool are also
+    // kept in the completion graph, which lasts across requests and is reset by that tool's events
 	public boolean isItemComplete(SimplePageItem item) {
 		if (!item.isRequired()) {
 			// We don't care if it has been completed if it isn't required.
@@ -5166,6 +5280,20 @@ public class SimplePageBean {
 		Boolean cached = completeCache.get(itemId);
 		if (cached != null)
 		    return (boolean)cached;
+		if (completionGraph == null || !LessonsCompletionGraph.isTracked(item))
+		    return computeItemComplete(item);
+		cached = completionGraph.getComplete(getCurrentUserId(), getCurrentSiteId(), itemId);
+		if (cached != null) {
+		    completeCache.put(itemId, cached);
+		    return (boolean)cached;
+		}
+		boolean complete = computeItemComplete(item);
+		completionGraph.setComplete(getCurrentUserId(), getCurrentSiteId(), itemId, complete);
+		return complete;
+	}
+
+	private boolean computeItemComplete(SimplePageItem item) {
+		Long itemId = item.getId();
 		if (item.getType() == SimplePageItem.RESOURCE || item.getType() == SimplePageItem.URL || item.getType() == SimplePageItem.BLTI) {
 			// Resource. Completed if viewed.
 			if (hasLogEntry(item.getId())) {
@@ -5490,6 +5618,8 @@ public class SimplePageBean {
 
 		// All of them were complete.
 		completeCache.put(itemId, true);
+		firstBlockerCache.clear();
+		siteBlockerCache.clear();
 		return true;
 	}
 
@@ -5594,35 +5724,53 @@ public class SimplePageBean {
 
 	public boolean isItemAvailable(SimplePageItem item, long pageId) {
 		if (item.isPrerequisite()) {
-			List<SimplePageItem> items = getItemsOnPage(pageId);
-
-			for (SimplePageItem i : items) {
-			    // log.info(i.getSequence() + " " + i.isRequired() + " " + isItemVisible(i) + " " + isItemComplete(i));
-				if (i.getSequence() >= item.getSequence()) {
-				    break;
-				} else if (i.isRequired() && isItemVisible(i)) {
-				    if (!isItemComplete(i)) {
-				    	return false;
-				    }
-				} 
-			}
+			return item.getSequence() <= firstBlockerOnPage(pageId);
 		}
 		return true;
 	}
 
     // weird variant that works even if current item doesn't have prereq.
 	public boolean wouldItemBeAvailable(SimplePageItem item, long pageId) {
-		List<SimplePageItem> items = getItemsOnPage(pageId);
+		return item.getSequence() <= firstBlockerOnPage(pageId);
+	}
 
-		for (SimplePageItem i : items) {
-			if (i.getSequence() >= item.getSequence()) {
+    // an item with prerequisites is available if nothing above it blocks, i.e. if its sequence is
+    // not past the first blocking item. Completion only goes from false to true during a request,
+    // and whoever sets it to true clears this cache, so a cached answer is never too generous.
+	private int firstBlockerOnPage(long pageId) {
+		Integer cached = firstBlockerCache.get(pageId);
+		if (cached != null)
+		    return cached;
+		int blocker = Integer.MAX_VALUE;
+		for (SimplePageItem i : getItemsOnPage(pageId)) {
+			if (i.isRequired() && isItemVisible(i) && !isItemComplete(i)) {
+				blocker = i.getSequence();
 				break;
-			} else if (i.isRequired() && isItemVisible(i)) {
-				if (!isItemComplete(i))
-					return false;
 			}
 		}
-		return true;
+		firstBlockerCache.put(pageId, blocker);
+		return blocker;
+	}
+
+    // the same for a top level page with prerequisites, which depends on the items of every
+    // page that comes before it in the site. LessonsAccess asks this for each path to a page,
+    // so the items in the site are only read and checked once per request.
+	public boolean isTopLevelItemAvailable(long itemId, String siteId) {
+		if (!siteBlockerCache.containsKey(siteId)) {
+			Set<Long> reachable = new HashSet<Long>();
+			boolean blocked = false;
+			// sorted by SQL
+			for (SimplePageItem i : simplePageToolDao.findItemsInSite(siteId)) {
+				reachable.add(i.getId());
+				if (i.isRequired() && isItemVisible(i) && !isItemComplete(i)) {
+					blocked = true;
+					break;
+				}
+			}
+			siteBlockerCache.put(siteId, blocked ? reachable : null);
+		}
+		Set<Long> reachable = siteBlockerCache.get(siteId);
+		return reachable == null || reachable.contains(itemId);
 	}
 
 	public String getNameOfSakaiItem(SimplePageItem i) {
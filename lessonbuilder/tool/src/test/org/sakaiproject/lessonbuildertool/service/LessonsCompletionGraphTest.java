@@ -0,0 +1,148 @@
+/**
+ * Copyright (c) 2003-2018 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.lessonbuildertool.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.api.EventTrackingService;
+import org.sakaiproject.lessonbuildertool.SimplePageItem;
+import org.sakaiproject.lessonbuildertool.api.LessonBuilderEvents;
+import org.sakaiproject.memory.api.Cache;
+import org.sakaiproject.memory.api.MemoryService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+
+public class LessonsCompletionGraphTest {
+
+    private LessonsCompletionGraph graph;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        Map<String, Object> entries = new ConcurrentHashMap<>();
+        Cache<String, Object> cache = Mockito.mock(Cache.class);
+        Mockito.when(cache.get(anyString())).thenAnswer(i -> entries.get(i.getArgument(0)));
+        Mockito.doAnswer(i -> entries.put(i.getArgument(0), i.getArgument(1))).when(cache).put(anyString(), any());
+        Mockito.when(cache.remove(anyString())).thenAnswer(i -> entries.remove(i.getArgument(0)) != null);
+        MemoryService memoryService = Mockito.mock(MemoryService.class);
+        Mockito.when(memoryService.<String, Object>getCache(anyString())).thenReturn(cache);
+
+        graph = new LessonsCompletionGraph();
+        graph.setMemoryService(memoryService);
+        graph.setEventTrackingService(Mockito.mock(EventTrackingService.class));
+        graph.init();
+    }
+
+    @After
+    public void tearDown() {
+        graph.destroy();
+    }
+
+    @Test
+    public void testSetAndGet() {
+        assertNull(graph.getComplete("user", "site", 1L));
+        graph.setComplete("user", "site", 1L, false);
+        graph.setComplete("user", "site", 2L, true);
+        assertFalse(graph.getComplete("user", "site", 1L));
+        assertTrue(graph.getComplete("user", "site", 2L));
+
+        graph.setComplete("user", "site", 1L, true);
+        assertTrue(graph.getComplete("user", "site", 1L));
+        assertNull(graph.getComplete("other", "site", 1L));
+        assertNull(graph.getComplete("user", "other", 1L));
+    }
+
+    @Test
+    public void testSubmissionDropsOnlyThatStudent() {
+        graph.setComplete("user", "site", 1L, false);
+        graph.setComplete("other", "site", 1L, false);
+        graph.update(null, event("asn.submit.submission", "user", "site"));
+        assertNull(graph.getComplete("user", "site", 1L));
+        assertFalse(graph.getComplete("other", "site", 1L));
+    }
+
+    @Test
+    public void testGradingDropsTheSite() {
+        graph.setComplete("user", "site", 1L, false);
+        graph.setComplete("other", "site", 1L, false);
+        graph.setComplete("user", "elsewhere", 1L, false);
+        graph.update(null, event("asn.grade.submission", "instructor", "site"));
+        assertNull(graph.getComplete("user", "site", 1L));
+        assertNull(graph.getComplete("other", "site", 1L));
+        assertFalse(graph.getComplete("user", "elsewhere", 1L));
+
+        graph.setComplete("user", "site", 1L, true);
+        graph.update(null, event(LessonBuilderEvents.ITEM_UPDATE, "instructor", "site"));
+        assertNull(graph.getComplete("user", "site", 1L));
+
+        // anything else is ignored
+        graph.setComplete("user", "site", 1L, true);
+        graph.update(null, event("content.read", "user", "site"));
+        graph.update(null, "not an event");
+        assertTrue(graph.getComplete("user", "site", 1L));
+    }
+
+    @Test
+    public void testConcurrentAnswersAreKept() throws Exception {
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final long first = t * 100L;
+            Thread thread = new Thread(() -> {
+                for (long itemId = first; itemId < first + 100; itemId++) {
+                    graph.setComplete("user", "site", itemId, true);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (long itemId = 0; itemId < 800; itemId++) {
+            assertEquals(Boolean.TRUE, graph.getComplete("user", "site", itemId));
+        }
+    }
+
+    @Test
+    public void testTracked() {
+        SimplePageItem item = Mockito.mock(SimplePageItem.class);
+        Mockito.when(item.getType()).thenReturn(SimplePageItem.ASSIGNMENT);
+        assertTrue(LessonsCompletionGraph.isTracked(item));
+        Mockito.when(item.getType()).thenReturn(SimplePageItem.RESOURCE);
+        assertFalse(LessonsCompletionGraph.isTracked(item));
+    }
+
+    private static Event event(String name, String userId, String context) {
+        Event event = Mockito.mock(Event.class);
+        Mockito.when(event.getEvent()).thenReturn(name);
+        Mockito.when(event.getUserId()).thenReturn(userId);
+        Mockito.when(event.getContext()).thenReturn(context);
+        return event;
+    }
+}
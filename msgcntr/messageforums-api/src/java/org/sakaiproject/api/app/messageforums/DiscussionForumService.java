@@ -59,6 +59,8 @@ public interface DiscussionForumService extends EntityProducer
 
 	public static final String EVENT_FORUMS_READ = "forums.read";
 
+	public static final String EVENT_FORUMS_UNREAD = "forums.unread";
+
 	public static final String EVENT_FORUMS_TOPIC_READ = "forums.topic.read";
 
 	public static final String EVENT_FORUMS_RESPONSE = "forums.response";
@@ -71,6 +73,8 @@ public interface DiscussionForumService extends EntityProducer
 	
 	public static final String EVENT_FORUMS_REVISE = "forums.revise";
 
+	public static final String EVENT_FORUMS_APPROVE = "forums.approve";
+
 	public static final String EVENT_FORUMS_FORUM_REVISE = "forums.reviseforum";
 
 	public static final String EVENT_FORUMS_TOPIC_REVISE = "forums.revisetopic";
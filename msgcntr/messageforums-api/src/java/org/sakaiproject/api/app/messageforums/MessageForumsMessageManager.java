@@ -191,6 +191,31 @@ public interface MessageForumsMessageManager {
     public List findMessagesByTopicId(Long topicId);
   
     public List findUndeletedMessagesByTopicId(Long topicId);
+
+    /**
+     * Returns one page of the thread heads (top level messages) of a topic, most recently
+     * active thread first. Draft messages are left out, deleted ones are kept so the view
+     * can show their replies.
+     */
+    public List<Message> findThreadsByTopicId(Long topicId, int firstResult, int maxResults);
+
+    /**
+     * @return the number of thread heads in the topic, see {@link #findThreadsByTopicId(Long, int, int)}
+     */
+    public int findThreadCountByTopicId(Long topicId);
+
+    /**
+     * @param threadIds ids of thread heads
+     * @return A list of arrays with three values for each thread that has replies: index 0, a Long,
+     * is the thread id, index 1, a Number, the count of non draft, non deleted replies and index 2,
+     * a Date, the creation date of the latest such reply.
+     */
+    public List<Object[]> findThreadReplyStatsByThreadIds(Collection<Long> threadIds);
+
+    /**
+     * @return every non draft reply in a thread, oldest first, so a subtree can be built on demand
+     */
+    public List<Message> findMessagesByThreadId(Long threadId);
     
     public Attachment getAttachmentById(Long attachmentId);
     
@@ -47,12 +47,29 @@ public interface SynopticMsgcntrManager {
 	
 	public void decrementForumSynopticToolInfo(List<String> userIds, String siteId);
 	
+	/**
+	 * Adds differenceCount (which may be negative) to the messages or forums unread count of the given users,
+	 * never going below 0. Users without an item yet get one with their actual counts.
+	 * 
+	 * @param userIds
+	 * @param siteId
+	 * @param messages true for the Messages count, false for the Forums count
+	 * @param differenceCount
+	 */
+	public void updateDifferenceSynopticToolInfo(List<String> userIds, String siteId, boolean messages, int differenceCount);
+	
 	public void setMessagesSynopticInfoHelper(String userId, String siteId, int newMessageCount);
 	
 	public void setForumSynopticInfoHelper(String userId, String siteId, int newMessageCount);
 		
 	public void resetMessagesAndForumSynopticInfo(List<String> userIds, String siteId, List<SynopticMsgcntrItem> items);
 	
+	/**
+	 * Recomputes the counts of every member of the site. When asynchronous counters are enabled
+	 * (msgcntr.synoptic.async.enabled) this only queues a throttled background repair of the site.
+	 * 
+	 * @param siteId
+	 */
 	public void resetAllUsersSynopticInfoInSite(String siteId);
 	
 	public void resetAllUsersSynopticInfoInSite(String siteId, List<String> users);
@@ -60,6 +77,14 @@ public interface SynopticMsgcntrManager {
 	public void deleteSynopticMsgcntrItem(SynopticMsgcntrItem item);
 
 	public void createOrUpdateSynopticToolInfo(List<String> userIds, String siteId, String siteTitle, Map<String, Integer[]> unreadCounts);
+
+	/**
+	 * The counters of the asynchronous pipeline (msgcntr.synoptic.async.enabled), also published over JMX
+	 * as org.sakaiproject.api.app.messageforums:name=SynopticMsgcntrManager.
+	 * 
+	 * @return the metrics by name, empty when counts are maintained synchronously
+	 */
+	public Map<String, Long> getCounterPipelineMetrics();
 	
 	/**
 	 * This method is used to get live information regarding the new message count per user for a forum ID
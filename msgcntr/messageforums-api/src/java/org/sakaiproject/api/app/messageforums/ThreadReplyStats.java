@@ -0,0 +1,48 @@
+/**
+ * Copyright (c) 2003-2018 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.api.app.messageforums;
+
+import java.util.Date;
+
+/**
+ * The non draft, non deleted replies of one thread, counted in the database rather than by loading them.
+ */
+public class ThreadReplyStats {
+	private final Long threadId;
+	private final int replyCount;
+	private final Date latestReply;
+
+	public ThreadReplyStats(Long threadId, int replyCount, Date latestReply) {
+		this.threadId = threadId;
+		this.replyCount = replyCount;
+		this.latestReply = latestReply;
+	}
+
+	public Long getThreadId() {
+		return threadId;
+	}
+
+	public int getReplyCount() {
+		return replyCount;
+	}
+
+	/**
+	 * @return when the latest reply was created
+	 */
+	public Date getLatestReply() {
+		return latestReply;
+	}
+}
@@ -32,6 +32,7 @@ import org.sakaiproject.api.app.messageforums.DBMembershipItem;
 import org.sakaiproject.api.app.messageforums.DiscussionForum;
 import org.sakaiproject.api.app.messageforums.DiscussionTopic;
 import org.sakaiproject.api.app.messageforums.Message;
+import org.sakaiproject.api.app.messageforums.ThreadReplyStats;
 import org.sakaiproject.api.app.messageforums.Topic;
 import org.sakaiproject.user.api.User;
 
@@ -203,6 +204,31 @@ public interface DiscussionForumManager
    */
   public List getMessagesByTopicId(Long topicId);
 
+  /**
+   * Loads one page of thread heads for a topic, most recently active first, so large
+   * topics can be displayed without loading every message.
+   * @param topicId
+   * @param firstResult
+   * @param maxResults
+   * @return
+   */
+  public List<Message> getThreadsByTopicId(Long topicId, int firstResult, int maxResults);
+
+  public int getThreadCountByTopicId(Long topicId);
+
+  /**
+   * @param threadIds ids of thread heads
+   * @return thread id to the count and latest date of its replies, threads without replies are left out
+   */
+  public Map<Long, ThreadReplyStats> getThreadReplyStats(Collection<Long> threadIds);
+
+  /**
+   * Loads the replies of a single thread when it is expanded.
+   * @param threadId
+   * @return
+   */
+  public List<Message> getMessagesByThreadId(Long threadId);
+
   /**
    * @param topicId
    * @return
@@ -88,6 +88,7 @@ import org.sakaiproject.api.app.messageforums.Rank;
 import org.sakaiproject.api.app.messageforums.RankImage;
 import org.sakaiproject.api.app.messageforums.RankManager;
 import org.sakaiproject.api.app.messageforums.SynopticMsgcntrManager;
+import org.sakaiproject.api.app.messageforums.ThreadReplyStats;
 import org.sakaiproject.api.app.messageforums.Topic;
 import org.sakaiproject.api.app.messageforums.UserPreferencesManager;
 import org.sakaiproject.api.app.messageforums.cover.ForumScheduleNotificationCover;
@@ -198,6 +199,14 @@ public class DiscussionForumTool
   private DiscussionForumBean selectedForum;
   private DiscussionTopicBean selectedTopic;
   private DiscussionTopicBean searchResults;
+
+  // one page of the conversations of selectedTopic, see isThreadPaging()
+  private static final String THREAD_PAGE_SIZE = "msgcntr.forums.threadPageSize";
+  private DiscussionTopicBean threadPageTopic;
+  private int threadPageFirst;
+  private Integer threadCount;
+  private List<DiscussionMessageBean> threadPage;
+  private Map<Long, Boolean> expandedThreads = new HashMap<>();
   private DiscussionMessageBean selectedMessage;
   private String selectedGradedUserId;
   private DiscussionAreaBean template;
@@ -2465,6 +2474,9 @@ private String editorRows;
 	  if (selectedTopic == null) {
 	      log.warn("selectedTopic null in getNeedToPostFirst");
 	      return true;
+	  } else if (!selectedTopic.getTopic().getPostFirst()) {
+	      // no need to load the messages of the topic
+	      return false;
 	  } else {
 	      return getNeedToPostFirst(currentUser, selectedTopic.getTopic(), selectedTopic.getMessages()).contains(currentUserId);
 	  }
@@ -3250,8 +3262,32 @@ private String editorRows;
     	{    
     		decoTopic.setPreviousTopicId(forumManager.getPreviousTopic(topic).getId());
     	}
+    	DiscussionForum forum = selectedForum.getForum();
+    	if (isThreadPageable(topic, forum) && forumManager.getThreadCountByTopicId(topic.getId()) > getThreadPageSize())
+    	{
+    		// listed a page of conversations at a time, the messages are only loaded if something asks for them
+    		int totalMsgs = messageManager.findMessageCountByTopicId(topic.getId());
+    		decoTopic.setTotalNoMessages(totalMsgs);
+    		decoTopic.setUnreadNoMessages(totalMsgs - messageManager.findReadMessageCountByTopicIdByUserId(topic.getId(),
+    				getUserId() != null ? getUserId() : ".anon"));
+    		decoTopic.setMessagesLoader(() -> addDecoratedMessages(topic, forum, decoTopic));
+    	}
+    	else
+    	{
+    		addDecoratedMessages(topic, forum, decoTopic);
+    	}
+
+	  }
+    return decoTopic;
+  }
+
+  /**
+   * Adds the messages of the topic, and those moved out of it, to the decorated topic
+   */
+  private void addDecoratedMessages(DiscussionTopic topic, DiscussionForum forum, DiscussionTopicBean decoTopic)
+  {
     	List temp_messages = null;
-    	if(uiPermissionsManager.isRead(topic, selectedForum.getForum())){
+    	if(uiPermissionsManager.isRead(topic, forum)){
     		temp_messages = forumManager.getTopicByIdWithMessagesAndAttachments(topic.getId())
     		.getMessages();
     	}
@@ -3259,7 +3295,7 @@ private String editorRows;
 		  // Now get messages moved from this topic
 
 		  List moved_messages = null;
-		  if(uiPermissionsManager.isRead(topic, selectedForum.getForum())){
+		  if(uiPermissionsManager.isRead(topic, forum)){
 			  moved_messages = messageManager.findMovedMessagesByTopicId(topic.getId());
 		  
 			  if (log.isDebugEnabled())
@@ -3306,7 +3342,7 @@ private String editorRows;
     	}
 
     	// set # read/unread msgs on topic level
-    	if (!topic.getModerated().booleanValue() || uiPermissionsManager.isModeratePostings(topic, selectedForum.getForum())) {
+    	if (!topic.getModerated().booleanValue() || uiPermissionsManager.isModeratePostings(topic, forum)) {
     		int totalMsgs = 0;
     		int totalUnread = 0;
     		for (Iterator msgIter = msgIdList.iterator(); msgIter.hasNext();) {
@@ -3410,9 +3446,6 @@ private String editorRows;
 			  }
 		  }
     	}
-
-	  }
-    return decoTopic;
   }
 
 	public void setAnonymousManager(AnonymousManager anonymousManager)
@@ -6173,6 +6206,7 @@ private String editorRows;
 
 		  List orderedList = new ArrayList();
 		  List threadList = new ArrayList();
+		  Map<Long, List<DiscussionMessageBean>> repliesByParent = indexRepliesByParent(msgsList);
 
 		  if (!ServerConfigurationService.getBoolean("msgcntr.sort.thread.update", false)) {
 
@@ -6188,7 +6222,7 @@ private String editorRows;
 						  orderedList.add(dmb);
 						  //for performance speed - operate with existing selectedTopic msgs instead of getting from manager through DB again 
 						  //use arrays so as to pass by reference during recursion
-						  recursiveGetThreadedMsgsFromListWithCounts(msgsList, orderedList, dmb, new int[1], new int[1]);
+						  recursiveGetThreadedMsgsFromListWithCounts(repliesByParent, orderedList, dmb, new int[1], new int[1]);
 					  }
 				  }
 			  }
@@ -6215,7 +6249,7 @@ private String editorRows;
 					  	orderedList.add(dmb);
 						  //for performance speed - operate with existing selectedTopic msgs instead of getting from manager through DB again 
 						  //use arrays so as to pass by reference during recursion
-						  recursiveGetThreadedMsgsFromListWithCounts(msgsList, orderedList, dmb, new int[1], new int[1]);
+						  recursiveGetThreadedMsgsFromListWithCounts(repliesByParent, orderedList, dmb, new int[1], new int[1]);
 					  
 				  }
 			  }
@@ -6264,36 +6298,49 @@ private String editorRows;
 	    }
 	  }
 
-  private void recursiveGetThreadedMsgsFromListWithCounts(List msgsList, List returnList,
+  /**
+   * Groups the replies in the list by the id of the message they answer, keeping list order,
+   * so the thread tree is built in one pass instead of rescanning every message per node.
+   */
+  private Map<Long, List<DiscussionMessageBean>> indexRepliesByParent(List msgsList)
+  {
+    Map<Long, List<DiscussionMessageBean>> repliesByParent = new HashMap<>();
+    if (msgsList != null)
+    {
+      for (Object o : msgsList)
+      {
+        DiscussionMessageBean msgBean = (DiscussionMessageBean) o;
+        Message inReplyTo = msgBean.getMessage().getInReplyTo();
+        if (inReplyTo != null)
+        {
+          repliesByParent.computeIfAbsent(inReplyTo.getId(), k -> new ArrayList<>()).add(msgBean);
+        }
+      }
+    }
+    return repliesByParent;
+  }
+
+  private void recursiveGetThreadedMsgsFromListWithCounts(Map<Long, List<DiscussionMessageBean>> repliesByParent, List returnList,
       DiscussionMessageBean currentMsg, int[] childCount, int[] childUnread)
   {
-    for (int i = 0; i < msgsList.size(); i++)
+    List<DiscussionMessageBean> replies = repliesByParent.get(currentMsg.getMessage().getId());
+    if (replies != null)
     {
-      DiscussionMessageBean thisMsgBean = (DiscussionMessageBean) msgsList
-          .get(i);
-      Message thisMsg = thisMsgBean.getMessage();
-      if (thisMsg.getInReplyTo() != null
-          && thisMsg.getInReplyTo().getId().equals(
-              currentMsg.getMessage().getId()))
+      for (DiscussionMessageBean thisMsgBean : replies)
       {
-        /*
-         * DiscussionMessageBean dmb = new DiscussionMessageBean(thisMsg, messageManager);
-         * dmb.setDepth(currentMsg.getDepth() + 1); returnList.add(dmb);
-         * this.recursiveGetThreadedMsgsFromList(msgsList, returnList, dmb);
-         */
-    	if (!thisMsgBean.getDeleted())
-    	{
-    		childCount[0]++;
-    	}
-    	
-    	if(!thisMsgBean.isRead() && !thisMsgBean.getDeleted())
-    	{
-    		childUnread[0]++;
-    	}
+        if (!thisMsgBean.getDeleted())
+        {
+          childCount[0]++;
+        }
+
+        if(!thisMsgBean.isRead() && !thisMsgBean.getDeleted())
+        {
+          childUnread[0]++;
+        }
         thisMsgBean.setDepth(currentMsg.getDepth() + 1);
         returnList.add(thisMsgBean);
         this
-            .recursiveGetThreadedMsgsFromListWithCounts(msgsList, returnList, thisMsgBean, childCount, childUnread);
+            .recursiveGetThreadedMsgsFromListWithCounts(repliesByParent, returnList, thisMsgBean, childCount, childUnread);
       }
     }
     currentMsg.setChildCount(childCount[0]);
@@ -7789,6 +7836,236 @@ private String editorRows;
 		return messages;
 	}
 
+	/**
+	 * Large topics can be listed a page of conversations at a time, with the replies to each counted in
+	 * the database and loaded when a conversation is expanded. This is done when
+	 * msgcntr.forums.threadPageSize is set and the topic has more conversations than that.
+	 */
+	public boolean isThreadPaging()
+	{
+		if (selectedTopic == null || !isThreadPageable(selectedTopic.getTopic(), selectedForum.getForum()))
+		{
+			return false;
+		}
+		return getThreadCount() > getThreadPageSize();
+	}
+
+	/**
+	 * Users who only see some of the messages of a moderated topic keep the full view, as the counts would
+	 * include messages hidden from them. So do topics where users must post first, as that is decided from
+	 * all of the messages.
+	 */
+	private boolean isThreadPageable(DiscussionTopic topic, DiscussionForum forum)
+	{
+		if (getThreadPageSize() <= 0 || topic == null || topic.getId() == null || topic.getPostFirst()
+				|| !uiPermissionsManager.isRead(topic, forum))
+		{
+			return false;
+		}
+		return !topic.getModerated() || uiPermissionsManager.isModeratePostings(topic, forum);
+	}
+
+	public int getThreadCount()
+	{
+		checkThreadPageTopic();
+		if (threadCount == null)
+		{
+			threadCount = forumManager.getThreadCountByTopicId(selectedTopic.getTopic().getId());
+		}
+		return threadCount;
+	}
+
+	/**
+	 * @return the heads of the conversations on the current page, most recently active first, with their
+	 * reply count and latest reply date
+	 */
+	public List<DiscussionMessageBean> getThreadPage()
+	{
+		checkThreadPageTopic();
+		if (threadPage != null)
+		{
+			return threadPage;
+		}
+		DiscussionTopic topic = selectedTopic.getTopic();
+		List<Message> heads = forumManager.getThreadsByTopicId(topic.getId(), threadPageFirst, getThreadPageSize());
+		List<Long> headIds = new ArrayList<>();
+		for (Message head : heads)
+		{
+			headIds.add(head.getId());
+		}
+		Map<Long, ThreadReplyStats> replyStats = forumManager.getThreadReplyStats(headIds);
+		Map readStatus = forumManager.getReadStatusForMessagesWithId(headIds, getUserId() != null ? getUserId() : ".anon");
+		boolean useAnonymousId = isUseAnonymousId(topic);
+		Map<String, String> userIdAnonIdMap = useAnonymousId ? getUserIdAnonIdMapForMessages(heads) : Collections.<String, String>emptyMap();
+
+		threadPage = new ArrayList<>();
+		for (Message head : heads)
+		{
+			ThreadReplyStats replies = replyStats.get(head.getId());
+			if (head.getDeleted() && replies == null)
+			{
+				// nothing left in the conversation to show
+				continue;
+			}
+			DiscussionMessageBean decoMsg = new DiscussionMessageBean(head, messageManager);
+			decoMsg.setDepth(0);
+			decoMsg.setRead(head.getDeleted() || Boolean.TRUE.equals(readStatus.get(head.getId())));
+			decoMsg.setUseAnonymousId(useAnonymousId);
+			if (useAnonymousId)
+			{
+				decoMsg.setAnonId(userIdAnonIdMap.get(head.getAuthorId()));
+			}
+			if (replies != null)
+			{
+				decoMsg.setChildCount(replies.getReplyCount());
+				decoMsg.setLatestReplyDate(replies.getLatestReply());
+			}
+			threadPage.add(decoMsg);
+			if (replies != null && Boolean.TRUE.equals(expandedThreads.get(head.getId())))
+			{
+				addThreadReplies(head, useAnonymousId);
+			}
+		}
+		return threadPage;
+	}
+
+	/**
+	 * Adds the replies of an expanded conversation below its head, loading only that conversation.
+	 */
+	private void addThreadReplies(Message head, boolean useAnonymousId)
+	{
+		List<Message> replies = forumManager.getMessagesByThreadId(head.getId());
+		List<Long> replyIds = new ArrayList<>();
+		for (Message reply : replies)
+		{
+			replyIds.add(reply.getId());
+		}
+		Map readStatus = forumManager.getReadStatusForMessagesWithId(replyIds, getUserId() != null ? getUserId() : ".anon");
+		Map<String, String> userIdAnonIdMap = useAnonymousId ? getUserIdAnonIdMapForMessages(replies) : Collections.<String, String>emptyMap();
+
+		// replies come oldest first, so a parent is always placed before its replies
+		Map<Long, Integer> depths = new HashMap<>();
+		depths.put(head.getId(), 0);
+		Map<Long, List<DiscussionMessageBean>> byParent = new HashMap<>();
+		for (Message reply : replies)
+		{
+			Long parentId = reply.getInReplyTo() != null ? reply.getInReplyTo().getId() : head.getId();
+			Integer parentDepth = depths.get(parentId);
+			int depth = parentDepth != null ? parentDepth + 1 : 1;
+			depths.put(reply.getId(), depth);
+
+			DiscussionMessageBean decoMsg = new DiscussionMessageBean(reply, messageManager);
+			decoMsg.setDepth(depth);
+			decoMsg.setRead(reply.getDeleted() || Boolean.TRUE.equals(readStatus.get(reply.getId())));
+			decoMsg.setUseAnonymousId(useAnonymousId);
+			if (useAnonymousId)
+			{
+				decoMsg.setAnonId(userIdAnonIdMap.get(reply.getAuthorId()));
+			}
+			byParent.computeIfAbsent(parentDepth != null ? parentId : head.getId(), k -> new ArrayList<>()).add(decoMsg);
+		}
+		addThreadReplies(head.getId(), byParent);
+	}
+
+	private void addThreadReplies(Long parentId, Map<Long, List<DiscussionMessageBean>> byParent)
+	{
+		List<DiscussionMessageBean> children = byParent.get(parentId);
+		if (children != null)
+		{
+			for (DiscussionMessageBean child : children)
+			{
+				threadPage.add(child);
+				addThreadReplies(child.getMessage().getId(), byParent);
+			}
+		}
+	}
+
+	public Map<Long, Boolean> getExpandedThreads()
+	{
+		return expandedThreads;
+	}
+
+	/**
+	 * Shows or hides the replies of one conversation of the current page.
+	 */
+	public String processActionToggleThread()
+	{
+		checkThreadPageTopic();
+		String threadId = getExternalParameterByKey(MESSAGE_ID);
+		if (StringUtils.isNotEmpty(threadId) && StringUtils.isNumeric(threadId))
+		{
+			Long id = Long.valueOf(threadId);
+			if (expandedThreads.remove(id) == null)
+			{
+				expandedThreads.put(id, Boolean.TRUE);
+			}
+			threadPage = null;
+		}
+		return ALL_MESSAGES;
+	}
+
+	public int getThreadPageStart()
+	{
+		return threadPageFirst + 1;
+	}
+
+	public int getThreadPageEnd()
+	{
+		return Math.min(threadPageFirst + getThreadPageSize(), getThreadCount());
+	}
+
+	public boolean getHasPreviousThreadPage()
+	{
+		return threadPageFirst > 0;
+	}
+
+	public boolean getHasNextThreadPage()
+	{
+		return threadPageFirst + getThreadPageSize() < getThreadCount();
+	}
+
+	public String processActionPreviousThreadPage()
+	{
+		checkThreadPageTopic();
+		threadPageFirst = Math.max(0, threadPageFirst - getThreadPageSize());
+		threadPage = null;
+		return ALL_MESSAGES;
+	}
+
+	public String processActionNextThreadPage()
+	{
+		if (getHasNextThreadPage())
+		{
+			threadPageFirst += getThreadPageSize();
+			threadPage = null;
+		}
+		return ALL_MESSAGES;
+	}
+
+	private int getThreadPageSize()
+	{
+		return ServerConfigurationService.getInt(THREAD_PAGE_SIZE, 0);
+	}
+
+	/**
+	 * The selected topic bean is rebuilt whenever the topic is displayed again, which is when the page
+	 * and count need reloading. Moving to a different topic also goes back to the first page.
+	 */
+	private void checkThreadPageTopic()
+	{
+		if (threadPageTopic != selectedTopic)
+		{
+			if (threadPageTopic == null || !threadPageTopic.getTopic().getId().equals(selectedTopic.getTopic().getId()))
+			{
+				threadPageFirst = 0;
+				expandedThreads.clear();
+			}
+			threadPageTopic = selectedTopic;
+			threadCount = null;
+			threadPage = null;
+		}
+	}
+
 	/**
 	 * Given a list of messages, will return all messages that meet at
 	 * least one of the following criteria:
@@ -21,6 +21,7 @@
 package org.sakaiproject.tool.messageforums.ui;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 
@@ -58,6 +59,7 @@ public class DiscussionMessageBean
   private boolean hasNotDeletedChild;
   private int childUnread;
   private int childCount;
+  private Date latestReplyDate;
   private boolean hasNextThread;
   private boolean hasPreThread;
   private long nextThreadId;
@@ -334,6 +336,17 @@ public class DiscussionMessageBean
 	  childCount = newValue;
   }
 
+  /**
+   * @return when the latest reply in this thread was posted, only set for the heads in a page of threads
+   */
+  public Date getLatestReplyDate(){
+	  return latestReplyDate;
+  }
+
+  public void setLatestReplyDate(Date newValue){
+	  latestReplyDate = newValue;
+  }
+
 
   public boolean getHasNextThread(){
 	  return hasNextThread;
@@ -99,6 +99,7 @@ public class DiscussionTopicBean
   private static final ResourceLoader rb = new ResourceLoader(MESSAGECENTER_BUNDLE);
   
   private List messages = new ArrayList();
+  private Runnable messagesLoader;
 
   private SimpleDateFormat ourDateFormat() {
       SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
@@ -229,6 +230,7 @@ public class DiscussionTopicBean
    */
   public List getMessages()
   {
+    loadMessages();
     return messages;
   }
 
@@ -238,15 +240,36 @@ public class DiscussionTopicBean
     {
        log.debug("setMessages(List"+ messages+")");
     }
+    this.messagesLoader = null;
     this.messages = messages;
   }
 
+  /**
+   * @param messagesLoader adds the decorated messages when they are first needed, for views that
+   * show the topic without them
+   */
+  public void setMessagesLoader(Runnable messagesLoader)
+  {
+    this.messagesLoader = messagesLoader;
+  }
+
+  private void loadMessages()
+  {
+    if (messagesLoader != null)
+    {
+      Runnable loader = messagesLoader;
+      messagesLoader = null;
+      loader.run();
+    }
+  }
+
   public void addMessage(DiscussionMessageBean decoMessage)
   {
     if(log.isDebugEnabled())
     {
        log.debug("addMessage(DiscussionMessageBean"+ decoMessage+")");
     }
+    loadMessages();
     if (!messages.contains(decoMessage))
     {
       messages.add(decoMessage);
@@ -259,6 +282,7 @@ public class DiscussionTopicBean
     {
        log.debug("insertMessage(DiscussionMessageBean"+ decoMessage+")");
     }
+    loadMessages();
     if (!messages.contains(decoMessage))
     {
     	messages.add(0, decoMessage);
@@ -743,6 +767,7 @@ public class DiscussionTopicBean
     {
        log.debug("removeMessage(DiscussionMessageBean"+ decoMessage+")");
     }
+    loadMessages();
     for (int i = 0; i < messages.size(); i++)
     {
       if (((DiscussionMessageBean) messages.get(i)).getMessage().getId()
@@ -1070,6 +1095,7 @@ public class DiscussionTopicBean
 	public List getUnreadMessages() {
 
 		ArrayList unreadMessages = new ArrayList();
+		List messages = getMessages();
 
 		for(int i = 0; i < messages.size(); i++) {
 
@@ -1086,7 +1112,7 @@ public class DiscussionTopicBean
 	public List getUnreadMessagesInThreads(){
   		//remove all the threads that have been completely read
   		
-  		return recursivelyGetUnreadMessagesInThreads(messages, 0);
+  		return recursivelyGetUnreadMessagesInThreads(getMessages(), 0);
 	}
 	
 	public List recursivelyGetUnreadMessagesInThreads(List curList, int depth){
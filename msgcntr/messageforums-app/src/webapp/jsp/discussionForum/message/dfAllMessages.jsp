@@ -267,10 +267,10 @@
    				</h:panelGroup>
 			<%--//designNote: need a rendered attribute here that will toggle the display of the table (if messages) or a textblock (class="instruction") if there are no messages--%>
 			<h:outputText styleClass="messageAlert" value="#{msgs.cdfm_postFirst_warning}" rendered="#{ForumTool.selectedTopic != null && ForumTool.needToPostFirst}"/>				
-			<h:outputText value="#{msgs.cdfm_no_messages}" rendered="#{ForumTool.selectedTopic == null || (empty ForumTool.selectedTopic.messages && !ForumTool.needToPostFirst)}"  styleClass="instruction" style="display:block"/>
+			<h:outputText value="#{msgs.cdfm_no_messages}" rendered="#{ForumTool.selectedTopic == null || (!ForumTool.threadPaging && empty ForumTool.selectedTopic.messages && !ForumTool.needToPostFirst)}"  styleClass="instruction" style="display:block"/>
 			<%--//gsilver: need a rendered attribute here that will toggle the display of the table (if messages) or a textblock (class="instruction") if there are no messages--%> 						
             <div id="checkbox">
-			<mf:hierDataTable styleClass="specialLink allMessages" id="messagesInHierDataTable" rendered="#{!empty ForumTool.messages}"  value="#{ForumTool.messages}" var="message" expanded="#{ForumTool.expanded}"
+			<mf:hierDataTable styleClass="specialLink allMessages" id="messagesInHierDataTable" rendered="#{!ForumTool.threadPaging && !empty ForumTool.messages}"  value="#{ForumTool.messages}" var="message" expanded="#{ForumTool.expanded}"
 					columnClasses="attach, attach,messageTitle,attach,bogus,bogus">		
 			<h:column id="_checkbox">
 				<f:facet name="header">
@@ -435,6 +435,61 @@
 				</h:panelGroup>
 			</h:column> 
 		</mf:hierDataTable>
+
+			<%-- large topics, one page of conversations at a time (msgcntr.forums.threadPageSize) --%>
+			<h:dataTable styleClass="specialLink allMessages" id="threadPageTable" rendered="#{ForumTool.threadPaging}" value="#{ForumTool.threadPage}" var="thread"
+					columnClasses="messageTitle,bogus,bogus,bogus">
+			<h:column>
+				<f:facet name="header">
+					<h:outputText value="#{msgs.cdfm_thread}" />
+				</f:facet>
+				<h:commandLink action="#{ForumTool.processActionToggleThread}" immediate="true" rendered="#{thread.depth == 0 && thread.childCount > 0}"
+						title="#{ForumTool.expandedThreads[thread.message.id] ? msgs.cdfm_hide_replies : msgs.cdfm_show_replies}">
+					<h:graphicImage value="/images/collapse.gif" style="vertical-align:middle" rendered="#{ForumTool.expandedThreads[thread.message.id]}" alt="#{msgs.cdfm_hide_replies}" />
+					<h:graphicImage value="/images/expand.gif" style="vertical-align:middle" rendered="#{!ForumTool.expandedThreads[thread.message.id]}" alt="#{msgs.cdfm_show_replies}" />
+					<f:param value="#{thread.message.id}" name="messageId"/>
+				</h:commandLink>
+				<h:commandLink styleClass="messagetitlelink" action="#{ForumTool.processActionDisplayThreadAnchor}" immediate="true" title="#{thread.message.title}" style="margin-left:#{thread.depth}em">
+					<h:outputText value="#{thread.message.title}" rendered="#{!thread.deleted && thread.read}" />
+					<h:outputText styleClass="unreadMsg" value="#{thread.message.title}" rendered="#{!thread.deleted && !thread.read}" />
+					<h:outputText styleClass="inactive" value="#{msgs.cdfm_msg_deleted_label}" rendered="#{thread.deleted}" />
+					<f:param value="#{thread.message.id}" name="messageId"/>
+					<f:param value="#{ForumTool.selectedTopic.topic.id}" name="topicId"/>
+					<f:param value="#{ForumTool.selectedTopic.topic.baseForum.id}" name="forumId"/>
+				</h:commandLink>
+				<h:outputText styleClass="textPanelFooter" value=" #{thread.childCount + 1} #{msgs.cdfm_lowercase_msg}" rendered="#{thread.depth == 0 && thread.childCount == 0}" />
+				<h:outputText styleClass="textPanelFooter" value=" #{thread.childCount + 1} #{msgs.cdfm_lowercase_msgs}" rendered="#{thread.depth == 0 && thread.childCount > 0}" />
+			</h:column>
+			<h:column>
+				<f:facet name="header">
+					<h:outputText value="#{msgs.cdfm_authoredby}" />
+				</f:facet>
+				<h:outputText value="#{thread.anonAwareAuthor}" rendered="#{!thread.deleted}" styleClass="#{thread.useAnonymousId ? 'anonymousAuthor' : ''}" />
+			</h:column>
+			<h:column>
+				<f:facet name="header">
+					<h:outputText value="#{msgs.cdfm_date}" />
+				</f:facet>
+				<h:outputText value="#{thread.message.created}" rendered="#{!thread.deleted}">
+					<f:convertDateTime pattern="#{msgs.date_format}" timeZone="#{ForumTool.userTimeZone}" locale="#{ForumTool.userLocale}"/>
+				</h:outputText>
+			</h:column>
+			<h:column>
+				<f:facet name="header">
+					<h:outputText value="#{msgs.cdfm_latest_reply}" />
+				</f:facet>
+				<h:outputText value="#{thread.latestReplyDate}" rendered="#{thread.latestReplyDate != null}">
+					<f:convertDateTime pattern="#{msgs.date_format}" timeZone="#{ForumTool.userTimeZone}" locale="#{ForumTool.userLocale}"/>
+				</h:outputText>
+			</h:column>
+			</h:dataTable>
+			<h:panelGroup styleClass="itemNav" rendered="#{ForumTool.threadPaging}">
+				<h:outputText styleClass="button formButtonDisabled" value="#{msgs.cdfm_previous_threads}" rendered="#{!ForumTool.hasPreviousThreadPage}" />
+				<h:commandLink styleClass="button" action="#{ForumTool.processActionPreviousThreadPage}" value="#{msgs.cdfm_previous_threads}" rendered="#{ForumTool.hasPreviousThreadPage}" />
+				<h:outputText value=" #{ForumTool.threadPageStart} - #{ForumTool.threadPageEnd} #{msgs.cdfm_of} #{ForumTool.threadCount} " />
+				<h:outputText styleClass="button formButtonDisabled" value="#{msgs.cdfm_next_threads}" rendered="#{!ForumTool.hasNextThreadPage}" />
+				<h:commandLink styleClass="button" action="#{ForumTool.processActionNextThreadPage}" value="#{msgs.cdfm_next_threads}" rendered="#{ForumTool.hasNextThreadPage}" />
+			</h:panelGroup>
 </div>
 
 <f:verbatim><br/><br/></f:verbatim>
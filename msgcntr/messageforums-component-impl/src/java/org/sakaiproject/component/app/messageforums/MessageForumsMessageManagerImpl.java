@@ -30,7 +30,10 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Observer;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import lombok.extern.slf4j.Slf4j;
 import org.hibernate.Query;
@@ -39,6 +42,9 @@ import org.hibernate.type.StringType;
 import org.springframework.orm.hibernate4.HibernateCallback;
 import org.springframework.orm.hibernate4.HibernateOptimisticLockingFailureException;
 import org.springframework.orm.hibernate4.support.HibernateDaoSupport;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import org.sakaiproject.api.app.messageforums.Attachment;
 import org.sakaiproject.api.app.messageforums.BaseForum;
@@ -61,9 +67,14 @@ import org.sakaiproject.component.app.messageforums.dao.hibernate.UnreadStatusIm
 import org.sakaiproject.component.app.messageforums.dao.hibernate.Util;
 import org.sakaiproject.component.app.messageforums.exception.LockedException;
 import org.sakaiproject.content.api.ContentHostingService;
+import org.sakaiproject.event.api.Event;
 import org.sakaiproject.event.api.EventTrackingService;
+import org.sakaiproject.event.api.UsageSessionService;
 import org.sakaiproject.exception.IdUnusedException;
 import org.sakaiproject.id.api.IdManager;
+import org.sakaiproject.memory.api.Cache;
+import org.sakaiproject.memory.api.MemoryService;
+import org.sakaiproject.memory.util.GenerationalCache;
 import org.sakaiproject.site.api.Site;
 import org.sakaiproject.site.api.SiteService;
 import org.sakaiproject.tool.api.Placement;
@@ -76,13 +87,10 @@ public class MessageForumsMessageManagerImpl extends HibernateDaoSupport impleme
     //private static final String QUERY_BY_MESSAGE_ID = "findMessageById";
     //private static final String QUERY_ATTACHMENT_BY_ID = "findAttachmentById";
     private static final String QUERY_BY_MESSAGE_ID_WITH_ATTACHMENTS = "findMessageByIdWithAttachments";
-    private static final String QUERY_COUNT_BY_READ = "findReadMessageCountByTopicId";
     private static final String QUERY_COUNT_BY_AUTHORED = "findAuhtoredMessageCountByTopicId";
     private static final String QUERY_MESSAGE_COUNTS_FOR_MAIN_PAGE = "findMessageCountsForMainPage";
     private static final String QUERY_READ_MESSAGE_COUNTS_FOR_MAIN_PAGE = "findReadMessageCountsForMainPage";
     private static final String QUERY_BY_TOPIC_ID = "findMessagesByTopicId";
-    private static final String QUERY_COUNT_VIEWABLE_BY_TOPIC_ID = "findViewableMessageCountByTopicIdByUserId";
-    private static final String QUERY_COUNT_READ_VIEWABLE_BY_TOPIC_ID = "findReadViewableMessageCountByTopicIdByUserId";
     private static final String QUERY_UNREAD_STATUS = "findUnreadStatusForMessage";
     private static final String QUERY_CHILD_MESSAGES = "finalAllChildMessages";
     private static final String QUERY_READ_STATUS_WITH_MSGS_USER = "findReadStatusByMsgIds";
@@ -92,6 +100,13 @@ public class MessageForumsMessageManagerImpl extends HibernateDaoSupport impleme
     private static final String QUERY_UNDELETED_MSG_BY_TOPIC_ID = "findUndeletedMessagesByTopicId";
     private static final String QUERY_MOVED_MESSAGES_BY_TOPICID = "findMovedMessagesByTopicId";
     private static final String QUERY_MOVED_HISTORY_BY_MESSAGEID = "findMovedHistoryByMessageId";
+    private static final String QUERY_MESSAGE_IDS_AND_APPROVAL_BY_TOPIC_ID = "findMessageIdsAndApprovalByTopicId";
+    private static final String QUERY_READ_MESSAGE_IDS_BY_TOPIC_ID = "findReadMessageIdsByTopicIdByUserId";
+    private static final String QUERY_AUTHORED_MESSAGE_IDS_BY_TOPIC_ID = "findAuthoredMessageIdsByTopicIdByUserId";
+    private static final String QUERY_THREADS_BY_TOPIC_ID = "findThreadsByTopicId";
+    private static final String QUERY_THREAD_COUNT_BY_TOPIC_ID = "findThreadCountByTopicId";
+    private static final String QUERY_THREAD_REPLY_STATS = "findThreadReplyStatsByThreadIds";
+    private static final String QUERY_MESSAGES_BY_THREAD_ID = "findMessagesByThreadId";
     //private static final String ID = "id";
 
     // Oracle's 1000 'in' clause limit
@@ -99,6 +114,19 @@ public class MessageForumsMessageManagerImpl extends HibernateDaoSupport impleme
 
     private static final String MESSAGECENTER_HELPER_TOOL_ID = "sakai.messageforums.helper";
 
+    // events that change a user's read messages, their resource ends with the user id
+    private static final Set<String> READ_EVENTS = new HashSet<>(Arrays.asList(DiscussionForumService.EVENT_FORUMS_READ,
+            DiscussionForumService.EVENT_FORUMS_UNREAD, DiscussionForumService.EVENT_MESSAGES_READ));
+
+    // events that change the messages of a topic, their resource holds the message
+    private static final Set<String> TOPIC_EVENTS = new HashSet<>(Arrays.asList(DiscussionForumService.EVENT_FORUMS_ADD,
+            DiscussionForumService.EVENT_FORUMS_RESPONSE, DiscussionForumService.EVENT_FORUMS_REVISE,
+            DiscussionForumService.EVENT_FORUMS_REMOVE, DiscussionForumService.EVENT_FORUMS_APPROVE));
+
+    private static final Pattern EVENT_MESSAGE_ID = Pattern.compile("/Message/(\\d+)");
+
+    private static final Pattern EVENT_MOVED_TOPICS = Pattern.compile("from topic (\\d+) to topic (\\d+)");
+
     private IdManager idManager;                      
 
     private MessageForumsTypeManager typeManager;
@@ -112,10 +140,37 @@ public class MessageForumsMessageManagerImpl extends HibernateDaoSupport impleme
     private SiteService siteService;
     
     private ToolManager toolManager;
+
+    private MemoryService memoryService;
+
+    private UsageSessionService usageSessionService;
+
+    /**
+     * Per topic and per (user, topic) message id bitmaps, see {@link ReadStateBitmap}.
+     * The MFR_UNREAD_STATUS_T rows stay authoritative, entries are rebuilt from them on a miss.
+     */
+    private GenerationalCache readStateCache;
+
+    private Cache<String, Object> readStateEntries;
+
+    private final Observer readStateObserver = (observable, arg) -> {
+        if (arg instanceof Event) {
+            readStateChanged((Event) arg);
+        }
+    };
     
     public void init() {
        log.info("init()");
-        ;
+       readStateEntries = memoryService.getCache("org.sakaiproject.component.app.messageforums.MessageForumsMessageManagerImpl.readStateCache");
+       readStateCache = new GenerationalCache(readStateEntries);
+       // a distributed cache already drops changed entries on every server
+       if (!readStateEntries.isDistributed()) {
+           eventTrackingService.addObserver(readStateObserver);
+       }
+    }
+
+    public void destroy() {
+       eventTrackingService.deleteObserver(readStateObserver);
     }
 
     public EventTrackingService getEventTrackingService() {
@@ -161,6 +216,14 @@ public class MessageForumsMessageManagerImpl extends HibernateDaoSupport impleme
     public void setContentHostingService(ContentHostingService contentHostingService) {
         this.contentHostingService = contentHostingService;
     }
+
+    public void setMemoryService(MemoryService memoryService) {
+        this.memoryService = memoryService;
+    }
+
+    public void setUsageSessionService(UsageSessionService usageSessionService) {
+        this.usageSessionService = usageSessionService;
+    }
  
     /**
      * FOR SYNOPTIC TOOL:
@@ -513,14 +576,7 @@ public class MessageForumsMessageManagerImpl extends HibernateDaoSupport impleme
         log.debug("findReadMessageCountByTopicIdByUserId executing with topicId: " + topicId + 
         				" and userId: " + userId);
 
-        HibernateCallback<Number> hcb = session -> {
-            Query q = session.getNamedQuery(QUERY_COUNT_BY_READ);
-            q.setLong("topicId", topicId);
-            q.setString("userId", userId);
-            return (Number) q.uniqueResult();
-        };
-
-        return getHibernateTemplate().execute(hcb).intValue();
+        return getReadMessageIds(topicId, userId).andCardinality(getLiveMessageIds(topicId));
     }
     
     public int findReadMessageCountForStudent(final String userId) {
@@ -653,14 +709,7 @@ public class MessageForumsMessageManagerImpl extends HibernateDaoSupport impleme
         log.debug("findViewableMessageCountByTopicIdByUserId executing with topicId: " + topicId + 
         				" and userId: " + userId);
 
-        HibernateCallback<Number> hcb = session -> {
-            Query q = session.getNamedQuery(QUERY_COUNT_VIEWABLE_BY_TOPIC_ID);
-            q.setLong("topicId", topicId);
-            q.setString("userId", userId);
-            return (Number) q.uniqueResult();
-        };
-
-        return getHibernateTemplate().execute(hcb).intValue();
+        return getViewableMessageIds(topicId, userId).cardinality();
     }
     
     /**
@@ -765,14 +814,7 @@ public class MessageForumsMessageManagerImpl extends HibernateDaoSupport impleme
         log.debug("findReadViewableMessageCountByTopicIdByUserId executing with topicId: " + topicId + 
         				" and userId: " + userId);
 
-        HibernateCallback<Number> hcb = session -> {
-            Query q = session.getNamedQuery(QUERY_COUNT_READ_VIEWABLE_BY_TOPIC_ID);
-            q.setLong("topicId", topicId);
-            q.setString("userId", userId);
-            return (Number) q.uniqueResult();
-        };
-
-        return getHibernateTemplate().execute(hcb).intValue();
+        return getReadMessageIds(topicId, userId).andCardinality(getViewableMessageIds(topicId, userId));
     }
     
     /**
@@ -827,22 +869,86 @@ public class MessageForumsMessageManagerImpl extends HibernateDaoSupport impleme
         return getHibernateTemplate().execute(hcb);
     }
     
-    public int findMessageCountByTopicId(final Long topicId) {
+    public List<Message> findThreadsByTopicId(final Long topicId, final int firstResult, final int maxResults) {
         if (topicId == null) {
-            log.error("findMessageCountByTopicId failed with topicId: null");
+            log.error("findThreadsByTopicId failed with topicId: null");
             throw new IllegalArgumentException("Null Argument");
         }
 
-        log.debug("findMessageCountByTopicId executing with topicId: " + topicId);
+        log.debug("findThreadsByTopicId executing with topicId: " + topicId + ", firstResult: " + firstResult + ", maxResults: " + maxResults);
+
+        HibernateCallback<List<Message>> hcb = session -> {
+            Query q = session.getNamedQuery(QUERY_THREADS_BY_TOPIC_ID);
+            q.setParameter("topicId", topicId, LongType.INSTANCE);
+            q.setFirstResult(firstResult);
+            q.setMaxResults(maxResults);
+            return q.list();
+        };
+
+        return getHibernateTemplate().execute(hcb);
+    }
+
+    public int findThreadCountByTopicId(final Long topicId) {
+        if (topicId == null) {
+            log.error("findThreadCountByTopicId failed with topicId: null");
+            throw new IllegalArgumentException("Null Argument");
+        }
+
+        log.debug("findThreadCountByTopicId executing with topicId: " + topicId);
 
         HibernateCallback<Number> hcb = session -> {
-            Query q = session.getNamedQuery("findMessageCountByTopicId");
-            q.setLong("topicId", topicId);
+            Query q = session.getNamedQuery(QUERY_THREAD_COUNT_BY_TOPIC_ID);
+            q.setParameter("topicId", topicId, LongType.INSTANCE);
             return (Number) q.uniqueResult();
         };
 
         return getHibernateTemplate().execute(hcb).intValue();
     }
+
+    public List<Object[]> findThreadReplyStatsByThreadIds(final Collection<Long> threadIds) {
+        if (threadIds == null || threadIds.isEmpty()) return new ArrayList<>();
+
+        HibernateCallback<List<Object[]>> hcb = session -> {
+            List<Long> ids = new ArrayList<>(threadIds);
+            List<Object[]> stats = new ArrayList<>(ids.size());
+            for (int i = 0; i < ids.size(); i += MAX_IN_CLAUSE_SIZE) {
+                Query q = session.getNamedQuery(QUERY_THREAD_REPLY_STATS);
+                q.setParameterList("threadIds", ids.subList(i, Math.min(i + MAX_IN_CLAUSE_SIZE, ids.size())));
+                stats.addAll(q.list());
+            }
+            return stats;
+        };
+
+        return getHibernateTemplate().execute(hcb);
+    }
+
+    public List<Message> findMessagesByThreadId(final Long threadId) {
+        if (threadId == null) {
+            log.error("findMessagesByThreadId failed with threadId: null");
+            throw new IllegalArgumentException("Null Argument");
+        }
+
+        log.debug("findMessagesByThreadId executing with threadId: " + threadId);
+
+        HibernateCallback<List<Message>> hcb = session -> {
+            Query q = session.getNamedQuery(QUERY_MESSAGES_BY_THREAD_ID);
+            q.setParameter("threadId", threadId, LongType.INSTANCE);
+            return q.list();
+        };
+
+        return getHibernateTemplate().execute(hcb);
+    }
+    
+    public int findMessageCountByTopicId(final Long topicId) {
+        if (topicId == null) {
+            log.error("findMessageCountByTopicId failed with topicId: null");
+            throw new IllegalArgumentException("Null Argument");
+        }
+
+        log.debug("findMessageCountByTopicId executing with topicId: " + topicId);
+
+        return getLiveMessageIds(topicId).cardinality();
+    }
     
     public List<Object[]> findMessageCountByForumId(final Long forumId) {
         if (forumId == null) {
@@ -1066,12 +1172,16 @@ public class MessageForumsMessageManagerImpl extends HibernateDaoSupport impleme
             	this.saveMessage(message, false, toolId, userId, context, true);
 
         	if (isMessageFromForums)
-        		eventTrackingService.post(eventTrackingService.newEvent(DiscussionForumService.EVENT_FORUMS_READ, getEventMessage(message, toolId, userId, context), false));
+        		postEventAfterCommit(DiscussionForumService.EVENT_FORUMS_READ, getEventMessage(message, toolId, userId, context));
         	else
-        		eventTrackingService.post(eventTrackingService.newEvent(DiscussionForumService.EVENT_MESSAGES_READ, getEventMessage(message, toolId, userId, context), false));
+        		postEventAfterCommit(DiscussionForumService.EVENT_MESSAGES_READ, getEventMessage(message, toolId, userId, context));
+        } else if (originalReadStatus && !read && isMessageFromForums) {
+        	// other servers only learn of read state changes from events
+        	postEventAfterCommit(DiscussionForumService.EVENT_FORUMS_UNREAD, getEventMessage(message, toolId, userId, context));
         }
         	
         getHibernateTemplate().saveOrUpdate(status);
+        updateReadState(readStateKey("read", topicId, userId), messageId, read);
        
         
         	
@@ -1322,17 +1432,26 @@ public class MessageForumsMessageManagerImpl extends HibernateDaoSupport impleme
 
         getHibernateTemplate().saveOrUpdate(message);
 
+        if (isMessageFromForums(message) && message.getTopic().getId() != null) {
+        	Long topicId = message.getTopic().getId();
+        	boolean live = !Boolean.TRUE.equals(message.getDraft()) && !Boolean.TRUE.equals(message.getDeleted());
+        	updateTopicReadState(topicId, message.getId(), live, live && Boolean.TRUE.equals(message.getApproved()));
+        	if (isNew) {
+        		updateReadState(readStateKey("authored", topicId, message.getCreatedBy()), message.getId(), true);
+        	}
+        }
+
         if (logEvent) {
         	if (isNew) {
         		if (isMessageFromForums(message))
-        			eventTrackingService.post(eventTrackingService.newEvent(DiscussionForumService.EVENT_FORUMS_ADD, getEventMessage(message, toolId, userId, contextId), false));
+        			postEventAfterCommit(DiscussionForumService.EVENT_FORUMS_ADD, getEventMessage(message, toolId, userId, contextId));
         		else
-        			eventTrackingService.post(eventTrackingService.newEvent(DiscussionForumService.EVENT_MESSAGES_ADD, getEventMessage(message, toolId, userId, contextId), false));
+        			postEventAfterCommit(DiscussionForumService.EVENT_MESSAGES_ADD, getEventMessage(message, toolId, userId, contextId));
         	} else {
         		if (isMessageFromForums(message))
-        			eventTrackingService.post(eventTrackingService.newEvent(DiscussionForumService.EVENT_FORUMS_RESPONSE, getEventMessage(message, toolId, userId, contextId), false));
+        			postEventAfterCommit(DiscussionForumService.EVENT_FORUMS_RESPONSE, getEventMessage(message, toolId, userId, contextId));
         		else
-        			eventTrackingService.post(eventTrackingService.newEvent(DiscussionForumService.EVENT_MESSAGES_RESPONSE, getEventMessage(message, toolId, userId, contextId), false));
+        			postEventAfterCommit(DiscussionForumService.EVENT_MESSAGES_RESPONSE, getEventMessage(message, toolId, userId, contextId));
         	}           
         }
         
@@ -1354,9 +1473,9 @@ public class MessageForumsMessageManagerImpl extends HibernateDaoSupport impleme
         }
         
         if (isMessageFromForums(message))
-        	eventTrackingService.post(eventTrackingService.newEvent(DiscussionForumService.EVENT_FORUMS_REMOVE, getEventMessage(message), false));
+        	postEventAfterCommit(DiscussionForumService.EVENT_FORUMS_REMOVE, getEventMessage(message));
         else
-        	eventTrackingService.post(eventTrackingService.newEvent(DiscussionForumService.EVENT_MESSAGES_REMOVE, getEventMessage(message), false));
+        	postEventAfterCommit(DiscussionForumService.EVENT_MESSAGES_REMOVE, getEventMessage(message));
 
         try {
             getSessionFactory().getCurrentSession().evict(message);
@@ -1367,6 +1486,9 @@ public class MessageForumsMessageManagerImpl extends HibernateDaoSupport impleme
         Topic topic = message.getTopic();        
         topic.removeMessage(message);
         getHibernateTemplate().saveOrUpdate(topic);
+        if (topic.getId() != null) {
+            updateTopicReadState(topic.getId(), id, false, false);
+        }
 		//getHibernateTemplate().delete(message);
 
         try {
@@ -1458,6 +1580,11 @@ public class MessageForumsMessageManagerImpl extends HibernateDaoSupport impleme
         message.setApproved(Boolean.valueOf(approved));
         
         getHibernateTemplate().saveOrUpdate(message);
+        if (isMessageFromForums(message) && message.getTopic().getId() != null) {
+            boolean live = !Boolean.TRUE.equals(message.getDraft()) && !Boolean.TRUE.equals(message.getDeleted());
+            updateTopicReadState(message.getTopic().getId(), messageId, live, live && approved);
+            postEventAfterCommit(DiscussionForumService.EVENT_FORUMS_APPROVE, getEventMessage(message));
+        }
     }
 
 
@@ -1932,6 +2059,11 @@ public class MessageForumsMessageManagerImpl extends HibernateDaoSupport impleme
 
 		getHibernateTemplate().saveOrUpdate(mhist);
 
+		// every bitmap of both topics may now be wrong, start new generations rather than hunting down user entries
+		afterCompletion(() -> {
+			readStateCache.invalidate("topic:" + sourceTopicId);
+			readStateCache.invalidate("topic:" + desttopicId);
+		}, null);
 
 	}
 
@@ -2009,4 +2141,185 @@ public class MessageForumsMessageManagerImpl extends HibernateDaoSupport impleme
 
 	}
 	   
+
+	/**
+	 * Non draft, non deleted messages of a topic
+	 */
+	private ReadStateBitmap getLiveMessageIds(final Long topicId) {
+		return getTopicReadState(topicId)[0];
+	}
+
+	/**
+	 * Messages of a topic the given user may see: approved ones plus anything they authored
+	 */
+	private ReadStateBitmap getViewableMessageIds(final Long topicId, final String userId) {
+		ReadStateBitmap[] topicState = getTopicReadState(topicId);
+		return topicState[1].or(topicState[0].and(getUserMessageIds(QUERY_AUTHORED_MESSAGE_IDS_BY_TOPIC_ID, "authored", topicId, userId)));
+	}
+
+	private ReadStateBitmap getReadMessageIds(final Long topicId, final String userId) {
+		return getUserMessageIds(QUERY_READ_MESSAGE_IDS_BY_TOPIC_ID, "read", topicId, userId);
+	}
+
+	/**
+	 * The live and approved messages of a topic are kept in one entry, so that a message changing both
+	 * is seen to change both at once.
+	 */
+	private ReadStateBitmap[] getTopicReadState(final Long topicId) {
+		return readStateCache.load(readStateKey("topic", topicId, null), () -> {
+			HibernateCallback<List<Object[]>> hcb = session -> {
+				Query q = session.getNamedQuery(QUERY_MESSAGE_IDS_AND_APPROVAL_BY_TOPIC_ID);
+				q.setParameter("topicId", topicId, LongType.INSTANCE);
+				return q.list();
+			};
+
+			ReadStateBitmap live = new ReadStateBitmap();
+			ReadStateBitmap approved = new ReadStateBitmap();
+			for (Object[] row : getHibernateTemplate().execute(hcb)) {
+				long messageId = ((Number) row[0]).longValue();
+				live.add(messageId);
+				if (Boolean.TRUE.equals(row[1])) {
+					approved.add(messageId);
+				}
+			}
+			return new ReadStateBitmap[] { live, approved };
+		});
+	}
+
+	/**
+	 * Loads a (user, topic) bitmap on a cache miss. This doubles as the migration from the existing
+	 * read status rows, so no upgrade step is needed when the cache is first enabled.
+	 */
+	private ReadStateBitmap getUserMessageIds(final String queryName, final String kind, final Long topicId, final String userId) {
+		return readStateCache.load(readStateKey(kind, topicId, userId), () -> {
+			HibernateCallback<List<Number>> hcb = session -> {
+				Query q = session.getNamedQuery(queryName);
+				q.setParameter("topicId", topicId, LongType.INSTANCE);
+				q.setParameter("userId", userId, StringType.INSTANCE);
+				return q.list();
+			};
+			return ReadStateBitmap.of(getHibernateTemplate().execute(hcb));
+		});
+	}
+
+	/**
+	 * Applies a single change to a cached bitmap once the transaction making it has committed. Cached
+	 * instances are shared so they are copied first, a missing entry is left alone and will be loaded
+	 * with the change already in the database.
+	 */
+	private void updateReadState(String key, Long messageId, boolean present) {
+		if (messageId == null) {
+			return;
+		}
+		afterCompletion(() -> readStateCache.update(key, (ReadStateBitmap ids) -> withMessage(ids, messageId, present)),
+				() -> readStateCache.remove(key));
+	}
+
+	private void updateTopicReadState(Long topicId, Long messageId, boolean live, boolean approved) {
+		if (messageId == null) {
+			return;
+		}
+		String key = readStateKey("topic", topicId, null);
+		afterCompletion(() -> readStateCache.update(key, (ReadStateBitmap[] topicState) -> {
+			ReadStateBitmap[] updated = { withMessage(topicState[0], messageId, live), withMessage(topicState[1], messageId, approved) };
+			return updated[0] == topicState[0] && updated[1] == topicState[1] ? topicState : updated;
+		}), () -> readStateCache.remove(key));
+	}
+
+	private static ReadStateBitmap withMessage(ReadStateBitmap ids, long messageId, boolean present) {
+		if (ids.contains(messageId) == present) {
+			return ids;
+		}
+		ReadStateBitmap updated = new ReadStateBitmap(ids);
+		if (present) {
+			updated.add(messageId);
+		} else {
+			updated.remove(messageId);
+		}
+		return updated;
+	}
+
+	/**
+	 * Runs the cache change once the current transaction has committed, so other threads never see a change
+	 * that may yet be rolled back. On a rollback the other action runs instead, as an entry loaded within the
+	 * transaction may hold its uncommitted rows.
+	 */
+	private void afterCompletion(final Runnable committed, final Runnable rolledBack) {
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int status) {
+					if (status == TransactionSynchronization.STATUS_COMMITTED) {
+						committed.run();
+					} else if (rolledBack != null) {
+						rolledBack.run();
+					}
+				}
+			});
+		} else {
+			committed.run();
+		}
+	}
+
+	/**
+	 * Posts an event once the current transaction has committed, so that a server acting on it reads the change.
+	 */
+	private void postEventAfterCommit(final String event, final String resource) {
+		afterCompletion(() -> eventTrackingService.post(eventTrackingService.newEvent(event, resource, false)), null);
+	}
+
+	/**
+	 * The cache is local to each server, so changes made on other servers are picked up from the events
+	 * posted for them. Events of a request on this server are skipped, the request applied its changes
+	 * to the cache directly.
+	 */
+	private void readStateChanged(Event event) {
+		String name = event.getEvent();
+		boolean read = READ_EVENTS.contains(name);
+		boolean moved = DiscussionForumService.EVENT_FORUMS_MOVE_THREAD.equals(name);
+		if (!read && !moved && !TOPIC_EVENTS.contains(name)) {
+			return;
+		}
+		String sessionId = usageSessionService.getSessionId();
+		if (sessionId != null && sessionId.equals(event.getSessionId())) {
+			return;
+		}
+
+		try {
+			String resource = event.getResource();
+			if (read) {
+				readStateCache.invalidate("user:" + resource.substring(resource.lastIndexOf('/') + 1));
+			} else if (moved) {
+				Matcher topics = EVENT_MOVED_TOPICS.matcher(resource);
+				if (topics.find()) {
+					readStateCache.invalidate("topic:" + topics.group(1));
+					readStateCache.invalidate("topic:" + topics.group(2));
+				}
+			} else {
+				Matcher messageId = EVENT_MESSAGE_ID.matcher(resource);
+				if (messageId.find()) {
+					Message message = getMessageById(Long.valueOf(messageId.group(1)));
+					if (message != null && message.getTopic() != null) {
+						readStateCache.invalidate("topic:" + message.getTopic().getId());
+					} else if (message == null) {
+						// deleted along with the link to its topic, this is rare enough to drop everything
+						readStateEntries.clear();
+					}
+				}
+			}
+		} catch (Exception e) {
+			log.warn("Could not drop the read state changed by event " + event.getEvent() + " " + event.getResource(), e);
+		}
+	}
+
+	/**
+	 * Keys carry the generation of their topic so that a whole topic can be dropped at once, and those of a
+	 * user the generation of the user so that a read on another server drops the entries of that user.
+	 */
+	private String readStateKey(String kind, Long topicId, String userId) {
+		if (userId == null) {
+			return readStateCache.key(kind, "topic:" + topicId);
+		}
+		return readStateCache.key(kind + ":" + userId, "topic:" + topicId, "user:" + userId);
+	}
 }
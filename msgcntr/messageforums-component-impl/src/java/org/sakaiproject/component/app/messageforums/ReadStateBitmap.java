@@ -0,0 +1,438 @@
+/**********************************************************************************
+ * Copyright (c) 2018 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+package org.sakaiproject.component.app.messageforums;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A compressed set of message ids, laid out like a roaring bitmap.
+ * <p>
+ * Ids are split into a high part (id &gt;&gt;&gt; 16) which selects a container and a
+ * 16 bit low part stored inside it. Sparse containers keep a sorted <code>char[]</code>,
+ * dense ones switch to a 65536 bit <code>long[]</code> bitmap.
+ * <p>
+ * The ids are the raw message ids, which come from one sequence shared by every topic and site.
+ * A topic therefore gets one container for each block of 65536 ids its messages fall in, and
+ * those containers are mostly sparse arrays of a few entries each. Sets of this kind are combined
+ * container by container without expanding arrays into bitmaps.
+ * <p>
+ * Instances are not thread safe; callers that share one through a cache copy it before mutating.
+ */
+public class ReadStateBitmap implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** An array container larger than this is converted to a bitmap container */
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1024;
+
+    private long[] keys = new long[0];
+    private Object[] containers = new Object[0];
+    private int[] cardinalities = new int[0];
+
+    public ReadStateBitmap() {
+    }
+
+    public ReadStateBitmap(ReadStateBitmap other) {
+        keys = other.keys.clone();
+        cardinalities = other.cardinalities.clone();
+        containers = new Object[other.containers.length];
+        for (int i = 0; i < containers.length; i++) {
+            Object c = other.containers[i];
+            containers[i] = c instanceof long[] ? ((long[]) c).clone() : ((char[]) c).clone();
+        }
+    }
+
+    public static ReadStateBitmap of(Iterable<? extends Number> ids) {
+        ReadStateBitmap bitmap = new ReadStateBitmap();
+        for (Number id : ids) {
+            if (id != null) {
+                bitmap.add(id.longValue());
+            }
+        }
+        return bitmap;
+    }
+
+    public boolean contains(long id) {
+        int i = Arrays.binarySearch(keys, id >>> 16);
+        if (i < 0) {
+            return false;
+        }
+        char low = (char) id;
+        Object c = containers[i];
+        if (c instanceof long[]) {
+            return (((long[]) c)[low >>> 6] & (1L << low)) != 0;
+        }
+        return Arrays.binarySearch((char[]) c, 0, cardinalities[i], low) >= 0;
+    }
+
+    /**
+     * @return true if the id was not already present
+     */
+    public boolean add(long id) {
+        long high = id >>> 16;
+        char low = (char) id;
+        int i = Arrays.binarySearch(keys, high);
+        if (i < 0) {
+            i = insertContainer(-i - 1, high);
+        }
+        Object c = containers[i];
+        if (c instanceof long[]) {
+            long[] words = (long[]) c;
+            long before = words[low >>> 6];
+            words[low >>> 6] = before | (1L << low);
+            if (before == words[low >>> 6]) {
+                return false;
+            }
+            cardinalities[i]++;
+            return true;
+        }
+        char[] values = (char[]) c;
+        int card = cardinalities[i];
+        int pos = Arrays.binarySearch(values, 0, card, low);
+        if (pos >= 0) {
+            return false;
+        }
+        pos = -pos - 1;
+        if (card == ARRAY_MAX) {
+            long[] words = toWords(values, card);
+            words[low >>> 6] |= 1L << low;
+            containers[i] = words;
+        } else {
+            if (card == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, Math.max(4, card * 2)));
+                containers[i] = values;
+            }
+            System.arraycopy(values, pos, values, pos + 1, card - pos);
+            values[pos] = low;
+        }
+        cardinalities[i] = card + 1;
+        return true;
+    }
+
+    /**
+     * @return true if the id was present
+     */
+    public boolean remove(long id) {
+        int i = Arrays.binarySearch(keys, id >>> 16);
+        if (i < 0) {
+            return false;
+        }
+        char low = (char) id;
+        Object c = containers[i];
+        int card = cardinalities[i];
+        if (c instanceof long[]) {
+            long[] words = (long[]) c;
+            long before = words[low >>> 6];
+            words[low >>> 6] = before & ~(1L << low);
+            if (before == words[low >>> 6]) {
+                return false;
+            }
+            card--;
+            if (card <= ARRAY_MAX) {
+                containers[i] = toValues(words, card);
+            }
+        } else {
+            char[] values = (char[]) c;
+            int pos = Arrays.binarySearch(values, 0, card, low);
+            if (pos < 0) {
+                return false;
+            }
+            System.arraycopy(values, pos + 1, values, pos, card - pos - 1);
+            card--;
+        }
+        if (card == 0) {
+            removeContainer(i);
+        } else {
+            cardinalities[i] = card;
+        }
+        return true;
+    }
+
+    public int cardinality() {
+        int total = 0;
+        for (int card : cardinalities) {
+            total += card;
+        }
+        return total;
+    }
+
+    public boolean isEmpty() {
+        return keys.length == 0;
+    }
+
+    /**
+     * Counts the ids present in both bitmaps without materializing the intersection.
+     */
+    public int andCardinality(ReadStateBitmap other) {
+        int total = 0;
+        int i = 0, j = 0;
+        while (i < keys.length && j < other.keys.length) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                total += andCardinality(containers[i], cardinalities[i], other.containers[j], other.cardinalities[j]);
+                i++;
+                j++;
+            }
+        }
+        return total;
+    }
+
+    public ReadStateBitmap and(ReadStateBitmap other) {
+        ReadStateBitmap result = new ReadStateBitmap();
+        int i = 0, j = 0;
+        while (i < keys.length && j < other.keys.length) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                result.appendContainer(keys[i], and(containers[i], cardinalities[i], other.containers[j], other.cardinalities[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    public ReadStateBitmap or(ReadStateBitmap other) {
+        ReadStateBitmap result = new ReadStateBitmap();
+        int i = 0, j = 0;
+        while (i < keys.length || j < other.keys.length) {
+            if (j == other.keys.length || (i < keys.length && keys[i] < other.keys[j])) {
+                result.appendContainer(keys[i], copy(containers[i], cardinalities[i]));
+                i++;
+            } else if (i == keys.length || keys[i] > other.keys[j]) {
+                result.appendContainer(other.keys[j], copy(other.containers[j], other.cardinalities[j]));
+                j++;
+            } else {
+                result.appendContainer(keys[i], or(containers[i], cardinalities[i], other.containers[j], other.cardinalities[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the intersection of two containers, as a bitmap only if both are bitmaps and it is dense
+     */
+    private static Object and(Object a, int aCard, Object b, int bCard) {
+        if (a instanceof long[] && b instanceof long[]) {
+            long[] x = (long[]) a, y = (long[]) b;
+            long[] words = new long[BITMAP_WORDS];
+            int card = 0;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                words[w] = x[w] & y[w];
+                card += Long.bitCount(words[w]);
+            }
+            return card > ARRAY_MAX ? words : toValues(words, card);
+        }
+        if (a instanceof long[]) {
+            return and(b, bCard, a, aCard);
+        }
+        char[] values = (char[]) a;
+        char[] result = new char[Math.min(aCard, bCard)];
+        int card = 0;
+        if (b instanceof long[]) {
+            long[] words = (long[]) b;
+            for (int k = 0; k < aCard; k++) {
+                if ((words[values[k] >>> 6] & (1L << values[k])) != 0) {
+                    result[card++] = values[k];
+                }
+            }
+        } else {
+            char[] other = (char[]) b;
+            int i = 0, j = 0;
+            while (i < aCard && j < bCard) {
+                if (values[i] < other[j]) {
+                    i++;
+                } else if (values[i] > other[j]) {
+                    j++;
+                } else {
+                    result[card++] = values[i];
+                    i++;
+                    j++;
+                }
+            }
+        }
+        return Arrays.copyOf(result, card);
+    }
+
+    /**
+     * @return the union of two containers, arrays are merged and become a bitmap only once too large
+     */
+    private static Object or(Object a, int aCard, Object b, int bCard) {
+        if (a instanceof long[] && b instanceof long[]) {
+            long[] words = ((long[]) a).clone();
+            long[] y = (long[]) b;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                words[w] |= y[w];
+            }
+            return words;
+        }
+        if (a instanceof long[]) {
+            return or(b, bCard, a, aCard);
+        }
+        char[] values = (char[]) a;
+        if (b instanceof long[]) {
+            long[] words = ((long[]) b).clone();
+            for (int k = 0; k < aCard; k++) {
+                words[values[k] >>> 6] |= 1L << values[k];
+            }
+            return words;
+        }
+        char[] other = (char[]) b;
+        char[] result = new char[aCard + bCard];
+        int card = 0;
+        int i = 0, j = 0;
+        while (i < aCard || j < bCard) {
+            if (j == bCard || (i < aCard && values[i] < other[j])) {
+                result[card++] = values[i++];
+            } else if (i == aCard || values[i] > other[j]) {
+                result[card++] = other[j++];
+            } else {
+                result[card++] = values[i];
+                i++;
+                j++;
+            }
+        }
+        return card > ARRAY_MAX ? toWords(result, card) : Arrays.copyOf(result, card);
+    }
+
+    private static Object copy(Object c, int card) {
+        return c instanceof long[] ? ((long[]) c).clone() : Arrays.copyOf((char[]) c, card);
+    }
+
+    private static int andCardinality(Object a, int aCard, Object b, int bCard) {
+        if (a instanceof long[] && b instanceof long[]) {
+            long[] x = (long[]) a, y = (long[]) b;
+            int card = 0;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                card += Long.bitCount(x[w] & y[w]);
+            }
+            return card;
+        }
+        if (a instanceof long[]) {
+            return andCardinality(b, bCard, a, aCard);
+        }
+        char[] values = (char[]) a;
+        int card = 0;
+        if (b instanceof long[]) {
+            long[] words = (long[]) b;
+            for (int k = 0; k < aCard; k++) {
+                if ((words[values[k] >>> 6] & (1L << values[k])) != 0) {
+                    card++;
+                }
+            }
+            return card;
+        }
+        char[] other = (char[]) b;
+        int i = 0, j = 0;
+        while (i < aCard && j < bCard) {
+            if (values[i] < other[j]) {
+                i++;
+            } else if (values[i] > other[j]) {
+                j++;
+            } else {
+                card++;
+                i++;
+                j++;
+            }
+        }
+        return card;
+    }
+
+    private static long[] toWords(char[] values, int card) {
+        long[] words = new long[BITMAP_WORDS];
+        for (int k = 0; k < card; k++) {
+            words[values[k] >>> 6] |= 1L << values[k];
+        }
+        return words;
+    }
+
+    private static char[] toValues(long[] words, int card) {
+        char[] values = new char[card];
+        int k = 0;
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+            long word = words[w];
+            while (word != 0) {
+                values[k++] = (char) ((w << 6) + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Adds a container after the last one, skipping it if empty.
+     */
+    private void appendContainer(long key, Object container) {
+        int card = 0;
+        if (container instanceof long[]) {
+            for (long word : (long[]) container) {
+                card += Long.bitCount(word);
+            }
+        } else {
+            card = ((char[]) container).length;
+        }
+        if (card > 0) {
+            int i = insertContainer(keys.length, key);
+            containers[i] = container;
+            cardinalities[i] = card;
+        }
+    }
+
+    private int insertContainer(int pos, long key) {
+        int n = keys.length;
+        long[] newKeys = new long[n + 1];
+        Object[] newContainers = new Object[n + 1];
+        int[] newCards = new int[n + 1];
+        System.arraycopy(keys, 0, newKeys, 0, pos);
+        System.arraycopy(containers, 0, newContainers, 0, pos);
+        System.arraycopy(cardinalities, 0, newCards, 0, pos);
+        System.arraycopy(keys, pos, newKeys, pos + 1, n - pos);
+        System.arraycopy(containers, pos, newContainers, pos + 1, n - pos);
+        System.arraycopy(cardinalities, pos, newCards, pos + 1, n - pos);
+        newKeys[pos] = key;
+        newContainers[pos] = new char[4];
+        keys = newKeys;
+        containers = newContainers;
+        cardinalities = newCards;
+        return pos;
+    }
+
+    private void removeContainer(int pos) {
+        int n = keys.length;
+        long[] newKeys = new long[n - 1];
+        Object[] newContainers = new Object[n - 1];
+        int[] newCards = new int[n - 1];
+        System.arraycopy(keys, 0, newKeys, 0, pos);
+        System.arraycopy(containers, 0, newContainers, 0, pos);
+        System.arraycopy(cardinalities, 0, newCards, 0, pos);
+        System.arraycopy(keys, pos + 1, newKeys, pos, n - pos - 1);
+        System.arraycopy(containers, pos + 1, newContainers, pos, n - pos - 1);
+        System.arraycopy(cardinalities, pos + 1, newCards, pos, n - pos - 1);
+        keys = newKeys;
+        containers = newContainers;
+        cardinalities = newCards;
+    }
+}
@@ -0,0 +1,330 @@
+/**
+ * Copyright (c) 2005-2018 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.component.app.messageforums;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Asynchronous maintenance of the MFR_SYNOPTIC_ITEM unread counters.
+ * <p>
+ * Increments and decrements coming from message post, read and delete are queued per
+ * (site, user) and coalesced, so a user reading twenty messages in a row becomes a single
+ * "-20" update. A flush thread writes the pending deltas in batches, one statement per
+ * (site, counter, delta) group.
+ * <p>
+ * Full recomputation of a site is no longer done inline. Callers {@link #requestSiteRepair(String)}
+ * instead, and a repair thread works through the requested sites one at a time, no more often
+ * than the configured interval. Requests for a site that is already waiting are merged.
+ * <p>
+ * A repair counts from the database, which already holds the changes behind the deltas still
+ * waiting for that site, so those are dropped when the repair starts. Flushing and repairing a site
+ * hold the same guard, so a delta claimed by a flush is written before a repair of its site begins.
+ */
+@Slf4j
+public class SynopticCounterPipeline {
+
+	/**
+	 * Applies a coalesced delta to the stored counters of the given users.
+	 */
+	public interface DeltaWriter {
+		void apply(String siteId, boolean messages, int delta, List<String> userIds);
+	}
+
+	/**
+	 * Recomputes every counter of a site from scratch.
+	 */
+	public interface SiteRepairer {
+		void repair(String siteId);
+	}
+
+	private static final int MESSAGES = 0;
+	private static final int FORUMS = 1;
+	private static final int GUARDS = 64;
+
+	private final DeltaWriter deltaWriter;
+	private final SiteRepairer siteRepairer;
+	private final long flushIntervalMs;
+	private final long repairIntervalMs;
+
+	private final ConcurrentHashMap<CounterKey, int[]> pending = new ConcurrentHashMap<>();
+	/** site id to the time of its latest repair request, oldest request first */
+	private final LinkedHashMap<String, Long> repairQueue = new LinkedHashMap<>();
+	/** sites are flushed and repaired holding one of these */
+	private final Object[] siteGuards = new Object[GUARDS];
+
+	private ScheduledExecutorService executor;
+
+	private final AtomicLong deltasQueued = new AtomicLong();
+	private final AtomicLong deltasCoalesced = new AtomicLong();
+	private final AtomicLong flushesRun = new AtomicLong();
+	private final AtomicLong rowsFlushed = new AtomicLong();
+	private final AtomicLong statementsFlushed = new AtomicLong();
+	private final AtomicLong flushFailures = new AtomicLong();
+	private final AtomicLong lastFlushMillis = new AtomicLong();
+	private final AtomicLong repairsRequested = new AtomicLong();
+	private final AtomicLong repairsMerged = new AtomicLong();
+	private final AtomicLong repairsRun = new AtomicLong();
+	private final AtomicLong rowsDroppedByRepair = new AtomicLong();
+	private final AtomicLong lastRepairMillis = new AtomicLong();
+
+	public SynopticCounterPipeline(DeltaWriter deltaWriter, SiteRepairer siteRepairer, long flushIntervalMs, long repairIntervalMs) {
+		this.deltaWriter = deltaWriter;
+		this.siteRepairer = siteRepairer;
+		this.flushIntervalMs = flushIntervalMs;
+		this.repairIntervalMs = repairIntervalMs;
+		for (int i = 0; i < GUARDS; i++) {
+			siteGuards[i] = new Object();
+		}
+	}
+
+	public void start() {
+		ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(2, r -> {
+			Thread t = new Thread(r, "msgcntr-synoptic-counters");
+			t.setDaemon(true);
+			return t;
+		});
+		pool.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		executor = pool;
+		executor.scheduleWithFixedDelay(this::flushSafely, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+		executor.scheduleWithFixedDelay(this::repairNextSafely, repairIntervalMs, repairIntervalMs, TimeUnit.MILLISECONDS);
+		log.info("Synoptic counter pipeline started, flushing every {}ms, repairing at most one site every {}ms", flushIntervalMs, repairIntervalMs);
+	}
+
+	/**
+	 * Stops the background threads after writing out whatever is still pending.
+	 */
+	public void stop() {
+		if (executor != null) {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(flushIntervalMs * 2, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			flushSafely();
+			executor = null;
+		}
+	}
+
+	public void addDelta(List<String> userIds, String siteId, boolean messages, int delta) {
+		if (userIds == null || siteId == null || delta == 0) {
+			return;
+		}
+		int column = messages ? MESSAGES : FORUMS;
+		for (String userId : userIds) {
+			if (userId == null) {
+				continue;
+			}
+			pending.merge(new CounterKey(siteId, userId), delta(column, delta), (current, add) -> {
+				deltasCoalesced.incrementAndGet();
+				current[MESSAGES] += add[MESSAGES];
+				current[FORUMS] += add[FORUMS];
+				return current;
+			});
+			deltasQueued.incrementAndGet();
+		}
+	}
+
+	public void requestSiteRepair(String siteId) {
+		if (siteId == null) {
+			return;
+		}
+		repairsRequested.incrementAndGet();
+		synchronized (repairQueue) {
+			// re-inserting moves the site to the back so it waits for the latest change to commit
+			if (repairQueue.remove(siteId) != null) {
+				repairsMerged.incrementAndGet();
+			}
+			repairQueue.put(siteId, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Writes all pending deltas, one site at a time. Rows are claimed with an atomic remove so concurrent
+	 * {@link #addDelta} calls either land in this flush or start a fresh entry for the next one.
+	 */
+	void flush() {
+		if (pending.isEmpty()) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		Map<String, List<CounterKey>> sites = new HashMap<>();
+		for (CounterKey key : pending.keySet()) {
+			sites.computeIfAbsent(key.siteId, k -> new ArrayList<>()).add(key);
+		}
+		for (Map.Entry<String, List<CounterKey>> site : sites.entrySet()) {
+			synchronized (guard(site.getKey())) {
+				Map<Integer, List<String>> messageGroups = new HashMap<>();
+				Map<Integer, List<String>> forumGroups = new HashMap<>();
+				for (CounterKey key : site.getValue()) {
+					int[] delta = pending.remove(key);
+					if (delta == null) {
+						// dropped by a repair of the site
+						continue;
+					}
+					group(messageGroups, key.userId, delta[MESSAGES]);
+					group(forumGroups, key.userId, delta[FORUMS]);
+				}
+				write(site.getKey(), messageGroups, true);
+				write(site.getKey(), forumGroups, false);
+			}
+		}
+		flushesRun.incrementAndGet();
+		lastFlushMillis.set(System.currentTimeMillis() - start);
+		log.debug("Synoptic counter flush took {}ms: {}", lastFlushMillis.get(), getMetrics());
+	}
+
+	/**
+	 * Runs a full recomputation for the oldest requested site, provided its request is
+	 * at least one repair interval old.
+	 */
+	void repairNext() {
+		String siteId = null;
+		synchronized (repairQueue) {
+			Iterator<Map.Entry<String, Long>> i = repairQueue.entrySet().iterator();
+			if (i.hasNext()) {
+				Map.Entry<String, Long> oldest = i.next();
+				if (System.currentTimeMillis() - oldest.getValue() >= repairIntervalMs) {
+					siteId = oldest.getKey();
+					i.remove();
+				}
+			}
+		}
+		if (siteId != null) {
+			synchronized (guard(siteId)) {
+				long start = System.currentTimeMillis();
+				for (CounterKey key : pending.keySet()) {
+					if (key.siteId.equals(siteId) && pending.remove(key) != null) {
+						rowsDroppedByRepair.incrementAndGet();
+					}
+				}
+				siteRepairer.repair(siteId);
+				repairsRun.incrementAndGet();
+				lastRepairMillis.set(System.currentTimeMillis() - start);
+			}
+			log.info("Repaired synoptic counters for site {} in {}ms", siteId, lastRepairMillis.get());
+		}
+	}
+
+	/**
+	 * @return counts since startup: deltas queued and how many of them were merged into a row already
+	 * pending, rows and statements written, flush failures, repairs, and the current queue sizes
+	 */
+	public Map<String, Long> getMetrics() {
+		Map<String, Long> metrics = new LinkedHashMap<>();
+		metrics.put("pendingRows", (long) pending.size());
+		metrics.put("deltasQueued", deltasQueued.get());
+		metrics.put("deltasCoalesced", deltasCoalesced.get());
+		metrics.put("flushesRun", flushesRun.get());
+		metrics.put("rowsFlushed", rowsFlushed.get());
+		metrics.put("statementsFlushed", statementsFlushed.get());
+		metrics.put("flushFailures", flushFailures.get());
+		metrics.put("lastFlushMillis", lastFlushMillis.get());
+		synchronized (repairQueue) {
+			metrics.put("pendingRepairs", (long) repairQueue.size());
+		}
+		metrics.put("repairsRequested", repairsRequested.get());
+		metrics.put("repairsMerged", repairsMerged.get());
+		metrics.put("repairsRun", repairsRun.get());
+		metrics.put("rowsDroppedByRepair", rowsDroppedByRepair.get());
+		metrics.put("lastRepairMillis", lastRepairMillis.get());
+		return metrics;
+	}
+
+	private void write(String siteId, Map<Integer, List<String>> groups, boolean messages) {
+		for (Map.Entry<Integer, List<String>> group : groups.entrySet()) {
+			try {
+				deltaWriter.apply(siteId, messages, group.getKey(), group.getValue());
+				rowsFlushed.addAndGet(group.getValue().size());
+				statementsFlushed.incrementAndGet();
+			} catch (Exception e) {
+				// the delta is lost, so fall back to recomputing the site
+				flushFailures.incrementAndGet();
+				log.warn("Could not apply synoptic delta {} to {} users in site {}, scheduling a repair: {}",
+						group.getKey(), group.getValue().size(), siteId, e.toString());
+				requestSiteRepair(siteId);
+			}
+		}
+	}
+
+	private void flushSafely() {
+		try {
+			flush();
+		} catch (Exception e) {
+			log.error("Synoptic counter flush failed", e);
+		}
+	}
+
+	private void repairNextSafely() {
+		try {
+			repairNext();
+		} catch (Exception e) {
+			log.error("Synoptic counter repair failed", e);
+		}
+	}
+
+	private static void group(Map<Integer, List<String>> groups, String userId, int delta) {
+		if (delta != 0) {
+			groups.computeIfAbsent(delta, k -> new ArrayList<>()).add(userId);
+		}
+	}
+
+	private Object guard(String siteId) {
+		return siteGuards[Math.floorMod(siteId.hashCode(), GUARDS)];
+	}
+
+	private static int[] delta(int column, int delta) {
+		int[] d = new int[2];
+		d[column] = delta;
+		return d;
+	}
+
+	private static final class CounterKey {
+		private final String siteId;
+		private final String userId;
+
+		private CounterKey(String siteId, String userId) {
+			this.siteId = siteId;
+			this.userId = userId;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof CounterKey)) {
+				return false;
+			}
+			CounterKey other = (CounterKey) o;
+			return siteId.equals(other.siteId) && userId.equals(other.userId);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * siteId.hashCode() + userId.hashCode();
+		}
+	}
+}
@@ -41,12 +41,14 @@ import org.sakaiproject.api.app.messageforums.MessageForumsMessageManager;
 import org.sakaiproject.api.app.messageforums.MessageForumsTypeManager;
 import org.sakaiproject.api.app.messageforums.SynopticMsgcntrItem;
 import org.sakaiproject.api.app.messageforums.SynopticMsgcntrManager;
+import org.sakaiproject.api.app.messageforums.cover.SynopticMsgcntrManagerCover;
 import org.sakaiproject.api.app.messageforums.ui.DiscussionForumManager;
 import org.sakaiproject.api.app.messageforums.ui.PrivateMessageManager;
 import org.sakaiproject.api.app.messageforums.ui.UIPermissionsManager;
 import org.sakaiproject.authz.api.Member;
 import org.sakaiproject.authz.api.SecurityService;
 import org.sakaiproject.component.app.messageforums.dao.hibernate.SynopticMsgcntrItemImpl;
+import org.sakaiproject.component.cover.ServerConfigurationService;
 import org.sakaiproject.db.api.SqlService;
 import org.sakaiproject.exception.IdUnusedException;
 import org.sakaiproject.site.api.Site;
@@ -87,11 +89,41 @@ public class SynopticMsgcntrManagerImpl extends HibernateDaoSupport implements S
 	
 	private static int ORACLE_IN_CLAUSE_SIZE_LIMIT = 1000;
 
+	private static final String ASYNC_COUNTERS_ENABLED = "msgcntr.synoptic.async.enabled";
+	private static final String ASYNC_FLUSH_INTERVAL = "msgcntr.synoptic.async.flushInterval";
+	private static final String ASYNC_REPAIR_INTERVAL = "msgcntr.synoptic.async.repairInterval";
+	//sites with more members than this get a background repair instead of an inline forum recount
+	private static final String ASYNC_REPAIR_THRESHOLD = "msgcntr.synoptic.async.repairThreshold";
+
+	private SynopticCounterPipeline counterPipeline;
+	private int repairThreshold;
+
 	
 	public SynopticMsgcntrManagerImpl() {}
 	
 	public void init() {
 		log.info("init()");
+		if (ServerConfigurationService.getBoolean(ASYNC_COUNTERS_ENABLED, true)) {
+			repairThreshold = ServerConfigurationService.getInt(ASYNC_REPAIR_THRESHOLD, 500);
+			// both callbacks go through the cover so they run inside the transactional proxy
+			counterPipeline = new SynopticCounterPipeline(
+					(siteId, messages, delta, userIds) -> SynopticMsgcntrManagerCover.getInstance().updateDifferenceSynopticToolInfo(userIds, siteId, messages, delta),
+					siteId -> SynopticMsgcntrManagerCover.getInstance().resetAllUsersSynopticInfoInSite(siteId, getSiteMemberIds(siteId)),
+					ServerConfigurationService.getInt(ASYNC_FLUSH_INTERVAL, 2000),
+					ServerConfigurationService.getInt(ASYNC_REPAIR_INTERVAL, 30000));
+			counterPipeline.start();
+		}
+	}
+
+	public void destroy() {
+		if (counterPipeline != null) {
+			counterPipeline.stop();
+			log.info("Synoptic counter pipeline stopped: " + counterPipeline.getMetrics());
+		}
+	}
+
+	public Map<String, Long> getCounterPipelineMetrics() {
+		return counterPipeline != null ? counterPipeline.getMetrics() : new HashMap<String, Long>();
 	}
 
 	public List<SynopticMsgcntrItem> getWorkspaceSynopticMsgcntrItems(final String userId) {
@@ -154,7 +186,15 @@ public class SynopticMsgcntrManagerImpl extends HibernateDaoSupport implements S
 	}
 	
 	private void incAndDecSynopticToolInfo(List<String> userIds, String siteId, boolean messages, boolean increment){
-		if(userIds == null || userIds.size() == 0){
+		if(counterPipeline != null){
+			counterPipeline.addDelta(userIds, siteId, messages, increment ? 1 : -1);
+		}else{
+			updateDifferenceSynopticToolInfo(userIds, siteId, messages, increment ? 1 : -1);
+		}
+	}
+	
+	public void updateDifferenceSynopticToolInfo(List<String> userIds, String siteId, boolean messages, int differenceCount){
+		if(userIds == null || userIds.size() == 0 || differenceCount == 0){
 			return;
 		}
 		  List<SynopticMsgcntrItem> items = getSiteSynopticMsgcntrItems(userIds, siteId);
@@ -171,35 +211,32 @@ public class SynopticMsgcntrManagerImpl extends HibernateDaoSupport implements S
 		  resetMessagesAndForumSynopticInfo(missingUsers, siteId, items);
 		  
 		  if(foundUsers != null && foundUsers.size() > 0){
-			  //now take the existing list of found items and decrement them
-			  String[] userIdsArr = foundUsers.toArray(new String[]{});
-			  int subArrayIndex = 0;
-				do{
-					int subArraySize = ORACLE_IN_CLAUSE_SIZE_LIMIT;
-					if(subArrayIndex + subArraySize > userIdsArr.length){
-						subArraySize = (userIdsArr.length - subArrayIndex);
-					}
-					String[] subSiteRefs = Arrays.copyOfRange(userIdsArr, subArrayIndex, subArrayIndex + subArraySize);
-					String COL = messages ? "NEW_MESSAGES_COUNT" : "NEW_FORUM_COUNT";
-					String symbol = increment ? "+" : "-";
-					String decWhere = increment ? "" : " AND " + COL + " > 0";
-					String query = "UPDATE MFR_SYNOPTIC_ITEM SET " + COL + " = " + COL + " " + symbol + " 1 WHERE USER_ID in (?) and SITE_ID = '" + siteId + "'" + decWhere;
-					String inParams = "(";
-					for(int i = 0; i < subSiteRefs.length; i++){
-						inParams += "'" + subSiteRefs[i].replace("'", "''") + "'"; //escape apostrophe
-						if(i < subSiteRefs.length - 1){
-							inParams += ",";
-						}
+			  //now take the existing list of found items and apply the difference to them
+			  String COL = messages ? "NEW_MESSAGES_COUNT" : "NEW_FORUM_COUNT";
+			  //counts never go below 0
+			  String newValue = differenceCount > 0 ? COL + " + ?" : "CASE WHEN " + COL + " + ? < 0 THEN 0 ELSE " + COL + " + ? END";
+			  for (int subArrayIndex = 0; subArrayIndex < foundUsers.size(); subArrayIndex += ORACLE_IN_CLAUSE_SIZE_LIMIT) {
+					List<String> subUserIds = foundUsers.subList(subArrayIndex, Math.min(subArrayIndex + ORACLE_IN_CLAUSE_SIZE_LIMIT, foundUsers.size()));
+					StringBuilder inParams = new StringBuilder();
+					for(int i = 0; i < subUserIds.size(); i++){
+						inParams.append(i == 0 ? "?" : ",?");
 					}
-					inParams += ")";
-					query = query.replace("(?)", inParams);
+					String query = "UPDATE MFR_SYNOPTIC_ITEM SET " + COL + " = " + newValue + " WHERE SITE_ID = ? and USER_ID in (" + inParams + ")";
 					
 					Connection clConnection = null;  	
-					//Statement statement = null;
 					PreparedStatement updateStatement = null;
 					try {
 						clConnection = sqlService.borrowConnection();
 						updateStatement = clConnection.prepareStatement(query);
+						int param = 1;
+						updateStatement.setInt(param++, differenceCount);
+						if(differenceCount < 0){
+							updateStatement.setInt(param++, differenceCount);
+						}
+						updateStatement.setString(param++, siteId);
+						for(String userId : subUserIds){
+							updateStatement.setString(param++, userId);
+						}
 						updateStatement.execute();
 						//in case autosubmit isn't true, commit this right away
 						clConnection.commit();
@@ -215,9 +252,7 @@ public class SynopticMsgcntrManagerImpl extends HibernateDaoSupport implements S
 						}
 						sqlService.returnConnection(clConnection);
 					}					
-					
-					subArrayIndex = subArrayIndex + subArraySize;
-				}while(subArrayIndex < userIdsArr.length);
+			  }
 		  }		 
 	}
 	
@@ -408,22 +443,27 @@ public class SynopticMsgcntrManagerImpl extends HibernateDaoSupport implements S
 	}
 	
 	public void resetAllUsersSynopticInfoInSite(String siteId){
+		if(counterPipeline != null){
+			counterPipeline.requestSiteRepair(siteId);
+		}else{
+			resetAllUsersSynopticInfoInSite(siteId, getSiteMemberIds(siteId));
+		}
+	}
+
+	private List<String> getSiteMemberIds(String siteId){
 		List<String> users = new ArrayList<String>();
-		Site site;
 		try {
-			site = getSite(siteId);
+			Site site = getSite(siteId);
 
 			for (Iterator iterator = site.getMembers().iterator(); iterator.hasNext();) {
 				Member member = (Member) iterator.next();
 				String userId = member.getUserId();
 				users.add(userId);
 			}
-			
-			resetAllUsersSynopticInfoInSite(siteId, users);
-			
 		} catch (IdUnusedException e) {
 			log.error(e.getMessage(), e);
 		}
+		return users;
 	}
 	
 	public void resetAllUsersSynopticInfoInSite(String siteId, List<String> users){
@@ -543,6 +583,13 @@ public class SynopticMsgcntrManagerImpl extends HibernateDaoSupport implements S
 				users.add(userId);
 			}
 			
+			//a before/after comparison over every member of a large site is too slow for the request thread,
+			//so recount the whole site in the background instead. Callers skip the comparison on null.
+			if(counterPipeline != null && users.size() > repairThreshold){
+				counterPipeline.requestSiteRepair(siteId);
+				return null;
+			}
+			
 			
 			
 			
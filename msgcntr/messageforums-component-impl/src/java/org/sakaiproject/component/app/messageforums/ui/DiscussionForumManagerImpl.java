@@ -23,6 +23,7 @@ package org.sakaiproject.component.app.messageforums.ui;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -55,6 +56,7 @@ import org.sakaiproject.api.app.messageforums.MessagePermissions;
 import org.sakaiproject.api.app.messageforums.PermissionLevel;
 import org.sakaiproject.api.app.messageforums.PermissionLevelManager;
 import org.sakaiproject.api.app.messageforums.PermissionManager;
+import org.sakaiproject.api.app.messageforums.ThreadReplyStats;
 import org.sakaiproject.api.app.messageforums.Topic;
 import org.sakaiproject.api.app.messageforums.TopicControlPermission;
 import org.sakaiproject.api.app.messageforums.ui.DiscussionForumManager;
@@ -673,6 +675,40 @@ public class DiscussionForumManagerImpl extends HibernateDaoSupport implements
     return messageManager.findMessagesByTopicId(topicId);
   }
 
+  public List<Message> getThreadsByTopicId(Long topicId, int firstResult, int maxResults)
+  {
+    if (log.isDebugEnabled())
+    {
+      log.debug("getThreadsByTopicId(Long" + topicId + ", " + firstResult + ", " + maxResults + ")");
+    }
+    return messageManager.findThreadsByTopicId(topicId, firstResult, maxResults);
+  }
+
+  public int getThreadCountByTopicId(Long topicId)
+  {
+    return messageManager.findThreadCountByTopicId(topicId);
+  }
+
+  public Map<Long, ThreadReplyStats> getThreadReplyStats(Collection<Long> threadIds)
+  {
+    Map<Long, ThreadReplyStats> stats = new HashMap<>();
+    for (Object[] stat : messageManager.findThreadReplyStatsByThreadIds(threadIds))
+    {
+      Long threadId = (Long) stat[0];
+      stats.put(threadId, new ThreadReplyStats(threadId, ((Number) stat[1]).intValue(), (Date) stat[2]));
+    }
+    return stats;
+  }
+
+  public List<Message> getMessagesByThreadId(Long threadId)
+  {
+    if (log.isDebugEnabled())
+    {
+      log.debug("getMessagesByThreadId(Long" + threadId + ")");
+    }
+    return messageManager.findMessagesByThreadId(threadId);
+  }
+
   /*
    * (non-Javadoc)
    * 
@@ -0,0 +1,174 @@
+/**
+ * Copyright (c) 2018 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.component.app.messageforums;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class ReadStateBitmapTest {
+
+	@Test
+	public void testAddContainsRemove() {
+		ReadStateBitmap bitmap = new ReadStateBitmap();
+		assertTrue(bitmap.isEmpty());
+		assertTrue(bitmap.add(5));
+		assertFalse(bitmap.add(5));
+		assertTrue(bitmap.add(70000));
+		assertTrue(bitmap.contains(5));
+		assertTrue(bitmap.contains(70000));
+		assertFalse(bitmap.contains(6));
+		assertFalse(bitmap.contains(65541));
+		assertEquals(2, bitmap.cardinality());
+
+		assertTrue(bitmap.remove(5));
+		assertFalse(bitmap.remove(5));
+		assertFalse(bitmap.remove(123456789));
+		assertTrue(bitmap.remove(70000));
+		assertTrue(bitmap.isEmpty());
+		assertEquals(0, bitmap.cardinality());
+	}
+
+	@Test
+	public void testDenseContainer() {
+		// Crosses the array size limit so the container becomes a bitmap, then drops back below it
+		ReadStateBitmap bitmap = new ReadStateBitmap();
+		for (long id = 0; id < 10000; id += 2) {
+			bitmap.add(id);
+		}
+		assertEquals(5000, bitmap.cardinality());
+		for (long id = 0; id < 10000; id++) {
+			assertEquals(id % 2 == 0, bitmap.contains(id));
+		}
+		for (long id = 0; id < 2000; id += 2) {
+			assertTrue(bitmap.remove(id));
+		}
+		assertEquals(4000, bitmap.cardinality());
+		assertFalse(bitmap.contains(0));
+		assertTrue(bitmap.contains(2000));
+		assertTrue(bitmap.add(1));
+		assertTrue(bitmap.contains(1));
+		assertEquals(4001, bitmap.cardinality());
+	}
+
+	@Test
+	public void testCopyIsIndependent() {
+		ReadStateBitmap bitmap = ReadStateBitmap.of(Arrays.asList(1L, 2L, null, 3L));
+		ReadStateBitmap copy = new ReadStateBitmap(bitmap);
+		copy.add(4);
+		copy.remove(1);
+		assertEquals(3, bitmap.cardinality());
+		assertTrue(bitmap.contains(1));
+		assertFalse(bitmap.contains(4));
+		assertEquals(3, copy.cardinality());
+	}
+
+	@Test
+	public void testSetOperations() {
+		Random random = new Random(42);
+		Set<Long> a = new HashSet<>();
+		Set<Long> b = new HashSet<>();
+		// Mixes sparse and dense containers over a few high keys
+		for (int i = 0; i < 20000; i++) {
+			a.add((long) random.nextInt(200000));
+			b.add((long) random.nextInt(i % 2 == 0 ? 200000 : 10000));
+		}
+		ReadStateBitmap x = ReadStateBitmap.of(a);
+		ReadStateBitmap y = ReadStateBitmap.of(b);
+		assertEquals(a.size(), x.cardinality());
+		assertEquals(b.size(), y.cardinality());
+
+		Set<Long> and = new HashSet<>(a);
+		and.retainAll(b);
+		Set<Long> or = new HashSet<>(a);
+		or.addAll(b);
+
+		assertEquals(and.size(), x.andCardinality(y));
+		assertEquals(and.size(), y.andCardinality(x));
+		assertSame(and, x.and(y), 200000);
+		assertSame(or, x.or(y), 200000);
+		// Neither side is changed
+		assertEquals(a.size(), x.cardinality());
+		assertEquals(b.size(), y.cardinality());
+	}
+
+	@Test
+	public void testSparseSetOperations() {
+		// Ids from a global sequence, a few in each of many containers, against one dense container
+		Set<Long> a = new HashSet<>();
+		Set<Long> b = new HashSet<>();
+		for (long high = 0; high < 50; high++) {
+			a.add((high << 16) + 3);
+			a.add((high << 16) + 900);
+			b.add((high << 16) + (high % 2 == 0 ? 3 : 4));
+		}
+		for (long id = 0; id < 6000; id++) {
+			b.add(id);
+		}
+		ReadStateBitmap x = ReadStateBitmap.of(a);
+		ReadStateBitmap y = ReadStateBitmap.of(b);
+		Set<Long> and = new HashSet<>(a);
+		and.retainAll(b);
+		Set<Long> or = new HashSet<>(a);
+		or.addAll(b);
+
+		ReadStateBitmap both = x.and(y);
+		ReadStateBitmap either = y.or(x);
+		assertSame(and, both, 50L << 16);
+		assertSame(or, either, 50L << 16);
+		// The results can still be changed without touching their inputs
+		assertTrue(both.add(5));
+		assertTrue(either.remove(3));
+		assertTrue(either.add(7000));
+		assertFalse(x.contains(5));
+		assertTrue(x.contains(3));
+		assertFalse(y.contains(7000));
+		assertEquals(and.size() + 1, both.cardinality());
+		assertEquals(or.size(), either.cardinality());
+	}
+
+	@Test
+	public void testSerialization() throws Exception {
+		ReadStateBitmap bitmap = ReadStateBitmap.of(Arrays.asList(1L, 100000L, 7L));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(bitmap);
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			ReadStateBitmap read = (ReadStateBitmap) in.readObject();
+			assertEquals(3, read.cardinality());
+			assertTrue(read.contains(100000));
+		}
+	}
+
+	private static void assertSame(Set<Long> expected, ReadStateBitmap actual, long max) {
+		assertEquals(expected.size(), actual.cardinality());
+		for (long id = 0; id < max; id++) {
+			assertEquals("id " + id, expected.contains(id), actual.contains(id));
+		}
+	}
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright (c) 2005-2018 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.component.app.messageforums;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SynopticCounterPipelineTest {
+
+	private List<String> writes;
+	private List<String> repairs;
+	private boolean failWrites;
+	private SynopticCounterPipeline pipeline;
+
+	@Before
+	public void setUp() {
+		writes = new ArrayList<>();
+		repairs = new ArrayList<>();
+		pipeline = new SynopticCounterPipeline(
+				(siteId, messages, delta, userIds) -> {
+					if (failWrites) {
+						throw new IllegalStateException("database down");
+					}
+					List<String> sorted = new ArrayList<>(userIds);
+					Collections.sort(sorted);
+					writes.add(siteId + (messages ? " messages " : " forums ") + delta + " " + sorted);
+				},
+				siteId -> repairs.add(siteId),
+				1000, 0);
+	}
+
+	@Test
+	public void testCoalescing() {
+		for (int i = 0; i < 20; i++) {
+			pipeline.addDelta(Arrays.asList("a"), "site", false, -1);
+		}
+		pipeline.addDelta(Arrays.asList("b", null), "site", false, -1);
+		pipeline.addDelta(Arrays.asList("a", "b"), "site", true, 1);
+		// Cancels out, nothing should be written for it
+		pipeline.addDelta(Arrays.asList("c"), "site", true, 1);
+		pipeline.addDelta(Arrays.asList("c"), "site", true, -1);
+		pipeline.addDelta(Arrays.asList("c"), "site", true, 0);
+		pipeline.addDelta(Arrays.asList("c"), null, true, 1);
+
+		Map<String, Long> metrics = pipeline.getMetrics();
+		assertEquals(Long.valueOf(3), metrics.get("pendingRows"));
+		assertEquals(Long.valueOf(25), metrics.get("deltasQueued"));
+		assertEquals(Long.valueOf(22), metrics.get("deltasCoalesced"));
+
+		pipeline.flush();
+		assertEquals(new HashSet<>(Arrays.asList(
+				"site forums -20 [a]",
+				"site forums -1 [b]",
+				"site messages 1 [a, b]")), new HashSet<>(writes));
+		metrics = pipeline.getMetrics();
+		assertEquals(Long.valueOf(0), metrics.get("pendingRows"));
+		assertEquals(Long.valueOf(4), metrics.get("rowsFlushed"));
+		assertEquals(Long.valueOf(3), metrics.get("statementsFlushed"));
+		assertEquals(Long.valueOf(1), metrics.get("flushesRun"));
+
+		// A later flush starts from scratch
+		writes.clear();
+		pipeline.addDelta(Arrays.asList("a"), "other", true, 2);
+		pipeline.flush();
+		assertEquals(Collections.singletonList("other messages 2 [a]"), writes);
+	}
+
+	@Test
+	public void testFailedFlushRequestsRepair() {
+		pipeline.addDelta(Arrays.asList("a"), "site", true, 1);
+		failWrites = true;
+		pipeline.flush();
+		assertEquals(Long.valueOf(1), pipeline.getMetrics().get("flushFailures"));
+		assertEquals(Long.valueOf(1), pipeline.getMetrics().get("pendingRepairs"));
+
+		pipeline.repairNext();
+		assertEquals(Collections.singletonList("site"), repairs);
+		assertEquals(Long.valueOf(0), pipeline.getMetrics().get("pendingRepairs"));
+	}
+
+	@Test
+	public void testRepairsAreMerged() {
+		pipeline.requestSiteRepair("a");
+		pipeline.requestSiteRepair("b");
+		pipeline.requestSiteRepair("a");
+		pipeline.requestSiteRepair(null);
+		Map<String, Long> metrics = pipeline.getMetrics();
+		assertEquals(Long.valueOf(3), metrics.get("repairsRequested"));
+		assertEquals(Long.valueOf(1), metrics.get("repairsMerged"));
+
+		// One site per run, and a repeated request moves the site to the back
+		pipeline.repairNext();
+		assertEquals(Collections.singletonList("b"), repairs);
+		pipeline.repairNext();
+		pipeline.repairNext();
+		assertEquals(Arrays.asList("b", "a"), repairs);
+		assertEquals(Long.valueOf(2), pipeline.getMetrics().get("repairsRun"));
+	}
+
+	@Test
+	public void testRepairDropsPendingDeltas() {
+		// a new message is already in the database, its increment is still waiting to be flushed
+		Map<String, Integer> database = new HashMap<>();
+		Map<String, Integer> counters = new HashMap<>();
+		database.put("site/a", 1);
+		database.put("other/a", 1);
+		SynopticCounterPipeline counting = new SynopticCounterPipeline(
+				(siteId, messages, delta, userIds) -> userIds.forEach(u -> counters.merge(siteId + "/" + u, delta, Integer::sum)),
+				siteId -> database.forEach((k, v) -> { if (k.startsWith(siteId + "/")) counters.put(k, v); }),
+				1000, 0);
+		counting.addDelta(Arrays.asList("a"), "site", true, 1);
+		counting.addDelta(Arrays.asList("a"), "other", true, 1);
+
+		counting.requestSiteRepair("site");
+		counting.repairNext();
+		counting.flush();
+
+		assertEquals(Integer.valueOf(1), counters.get("site/a"));
+		// other sites keep their deltas
+		assertEquals(Integer.valueOf(1), counters.get("other/a"));
+		assertEquals(Long.valueOf(1), counting.getMetrics().get("rowsDroppedByRepair"));
+	}
+
+	@Test
+	public void testRepairWaitsForFlushOfItsSite() throws Exception {
+		List<String> order = Collections.synchronizedList(new ArrayList<>());
+		CountDownLatch writing = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		SynopticCounterPipeline blocking = new SynopticCounterPipeline(
+				(siteId, messages, delta, userIds) -> {
+					writing.countDown();
+					try {
+						release.await(5, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					order.add("write");
+				},
+				siteId -> order.add("repair"),
+				1000, 0);
+		blocking.addDelta(Arrays.asList("a"), "site", true, 1);
+		blocking.requestSiteRepair("site");
+
+		Thread flusher = new Thread(blocking::flush);
+		flusher.start();
+		assertTrue(writing.await(5, TimeUnit.SECONDS));
+		Thread repairer = new Thread(blocking::repairNext);
+		repairer.start();
+		repairer.join(200);
+		// the claimed delta has to be written before the site is counted again
+		assertTrue(repairer.isAlive());
+
+		release.countDown();
+		flusher.join(5000);
+		repairer.join(5000);
+		assertEquals(Arrays.asList("write", "repair"), order);
+	}
+
+	@Test
+	public void testRepairWaitsForInterval() {
+		SynopticCounterPipeline slow = new SynopticCounterPipeline((siteId, messages, delta, userIds) -> { },
+				siteId -> repairs.add(siteId), 1000, 60000);
+		slow.requestSiteRepair("a");
+		slow.repairNext();
+		assertTrue(repairs.isEmpty());
+		assertEquals(Long.valueOf(1), slow.getMetrics().get("pendingRepairs"));
+	}
+
+	@Test
+	public void testStopFlushes() {
+		SynopticCounterPipeline started = new SynopticCounterPipeline(
+				(siteId, messages, delta, userIds) -> writes.add(siteId + (messages ? " messages " : " forums ") + delta + " " + userIds),
+				siteId -> repairs.add(siteId), 60000, 60000);
+		started.start();
+		started.addDelta(Arrays.asList("a"), "site", true, 1);
+		started.stop();
+		assertEquals(Collections.singletonList("site messages 1 [a]"), writes);
+	}
+}
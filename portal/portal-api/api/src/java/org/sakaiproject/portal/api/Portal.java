@@ -22,6 +22,7 @@
 package org.sakaiproject.portal.api;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 
 import javax.servlet.ServletContext;
@@ -341,6 +342,19 @@ public interface Portal
 	Map includeTool(HttpServletResponse res, HttpServletRequest req,
 			ToolConfiguration placement, boolean inlineTool) throws IOException;
 
+	/**
+	 * Start rendering the tools of a page ahead of the includeTool calls for
+	 * them, so they can be rendered at the same time. Portals that don't
+	 * support this do nothing.
+	 * 
+	 * @param res
+	 * @param req
+	 * @param placements
+	 *        the placements that are about to be included, in page order
+	 */
+	void prefetchTools(HttpServletResponse res, HttpServletRequest req,
+			List<ToolConfiguration> placements);
+
 	/**
 	 * Get the context name of the portal. This is the name used to identify the
 	 * portal implimentation in the portal service and to other parts of the
@@ -0,0 +1,472 @@
+/**
+ * Copyright (c) 2003-2018 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.portal.charon;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.apache.commons.lang.BooleanUtils;
+import org.sakaiproject.portal.render.api.RenderResult;
+import org.sakaiproject.site.api.ToolConfiguration;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
+import org.sakaiproject.tool.api.Session;
+import org.sakaiproject.tool.api.SessionManager;
+import org.sakaiproject.util.RequestFilter;
+
+/**
+ * Renders the buffered (renderInline) tools of a page side by side.
+ * <p>
+ * Normally includeTool renders the tools of a page one after the other, so a page with
+ * several synoptic tools takes as long as all of them put together. The page handler can
+ * hand the page's placements to {@link #prefetch} first; the inline tools are then dispatched
+ * on a small pool and includeTool collects each result, in page order, when it gets to that
+ * tool. A tool that does not finish in time is shown in an iframe instead, and a tool that
+ * doesn't fit in the pool is simply rendered inline later, as before.
+ * <p>
+ * Workers run with the caller's session and request bound thread locals. Each one gets its
+ * own request, holding a copy of the request attributes taken before it started, and its own
+ * response, which keeps headers away from the page's. Both reach the real request and
+ * response through a handle that is cut when the tool is given up on, so a tool still running
+ * after its timeout can no longer touch a request the container may have recycled.
+ */
+@Slf4j
+public class ParallelToolRenderer
+{
+	/** Thread local holding the prefetched renders of the current request */
+	private static final String PREFETCHED = "sakai:portal:prefetched-renders";
+
+	/** Request bindings made by the RequestFilter that the tool dispatch reads */
+	private static final String[] PROPAGATED = {
+		RequestFilter.CURRENT_SERVLET_CONTEXT,
+		"org.sakaiproject.util.RequestFilter.http_session",
+		"org.sakaiproject.util.RequestFilter.context",
+		"org.sakaiproject.util.RequestFilter.remote_user",
+		"sakai:inline-tool"
+	};
+
+	/**
+	 * Renders a single placement, as getInlineRenderingForTool would.
+	 */
+	interface InlineRenderer
+	{
+		RenderResult render(HttpServletRequest req, HttpServletResponse res, Session session,
+				ToolConfiguration placement, String toolPathInfo);
+	}
+
+	private final InlineRenderer renderer;
+	private final ThreadLocalManager threadLocalManager;
+	private final SessionManager sessionManager;
+	private final long timeout;
+	private final ThreadPoolExecutor executor;
+
+	public ParallelToolRenderer(InlineRenderer renderer, ThreadLocalManager threadLocalManager, SessionManager sessionManager,
+			int threads, int queueSize, long timeout)
+	{
+		this.renderer = renderer;
+		this.threadLocalManager = threadLocalManager;
+		this.sessionManager = sessionManager;
+		this.timeout = timeout;
+		AtomicInteger count = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), r -> {
+					Thread t = new Thread(r, "portal-tool-render-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}, new ThreadPoolExecutor.AbortPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		log.info("Rendering inline tools on {} threads with a {}ms timeout", threads, timeout);
+	}
+
+	public void destroy()
+	{
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Start rendering the inline tools among these placements. Does nothing unless there are
+	 * at least two of them, as there is nothing to overlap otherwise.
+	 */
+	public void prefetch(HttpServletRequest req, HttpServletResponse res, List<ToolConfiguration> placements, String toolPathInfo)
+	{
+		Map<String, ToolConfiguration> inline = new LinkedHashMap<>();
+		for (ToolConfiguration placement : placements)
+		{
+			if (BooleanUtils.toBoolean(placement.getConfig().getProperty("renderInline")))
+			{
+				inline.put(placement.getId(), placement);
+			}
+		}
+		if (inline.size() < 2) return;
+
+		// read the parameters now, the request isn't safe to parse from several threads
+		req.getParameterMap();
+		Session session = sessionManager.getCurrentSession();
+		Map<String, Object> bindings = new HashMap<>();
+		for (String name : PROPAGATED)
+		{
+			Object value = threadLocalManager.get(name);
+			if (value != null) bindings.put(name, value);
+		}
+
+		long deadline = System.currentTimeMillis() + timeout;
+		Map<String, Prefetched> prefetched = new ConcurrentHashMap<>();
+		for (ToolConfiguration placement : inline.values())
+		{
+			Detachable<HttpServletRequest> realReq = new Detachable<>(HttpServletRequest.class, req);
+			Detachable<HttpServletResponse> realRes = new Detachable<>(HttpServletResponse.class, res);
+			DetachedRequest toolReq = new DetachedRequest(realReq.proxy, req);
+			DetachedResponse toolRes = new DetachedResponse(realRes.proxy);
+			try
+			{
+				Future<RenderResult> future = executor.submit(() -> {
+					try
+					{
+						for (Map.Entry<String, Object> binding : bindings.entrySet())
+						{
+							threadLocalManager.set(binding.getKey(), binding.getValue());
+						}
+						threadLocalManager.set(RequestFilter.CURRENT_HTTP_REQUEST, toolReq);
+						threadLocalManager.set(RequestFilter.CURRENT_HTTP_RESPONSE, toolRes);
+						sessionManager.setCurrentSession(session);
+						return renderer.render(toolReq, toolRes, session, placement, toolPathInfo);
+					}
+					finally
+					{
+						threadLocalManager.clear();
+					}
+				});
+				prefetched.put(placement.getId(), new Prefetched(future, toolRes, deadline, realReq, realRes));
+			}
+			catch (RejectedExecutionException e)
+			{
+				log.debug("Render pool is full, {} will be rendered inline", placement.getId());
+			}
+		}
+		threadLocalManager.set(PREFETCHED, prefetched);
+	}
+
+	/**
+	 * @return true if {@link #prefetch} started rendering this placement in the current request
+	 */
+	public boolean isPrefetched(String placementId)
+	{
+		Map<String, Prefetched> prefetched = (Map<String, Prefetched>) threadLocalManager.get(PREFETCHED);
+		return prefetched != null && prefetched.containsKey(placementId);
+	}
+
+	/**
+	 * Wait for a prefetched placement.
+	 *
+	 * @return the rendered tool, or null if it failed or didn't finish in time
+	 */
+	public RenderResult await(String placementId)
+	{
+		Map<String, Prefetched> prefetched = (Map<String, Prefetched>) threadLocalManager.get(PREFETCHED);
+		Prefetched p = prefetched == null ? null : prefetched.remove(placementId);
+		if (p == null) return null;
+		try
+		{
+			RenderResult result = p.future.get(Math.max(0, p.deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			p.response.replayCookies();
+			return result;
+		}
+		catch (TimeoutException e)
+		{
+			log.warn("Tool {} did not render within {}ms, falling back to an iframe", placementId, timeout);
+			p.abandon();
+			return null;
+		}
+		catch (ExecutionException e)
+		{
+			log.warn("Failed to render tool {}", placementId, e.getCause());
+			return null;
+		}
+		catch (InterruptedException e)
+		{
+			p.abandon();
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	private static class Prefetched
+	{
+		private final Future<RenderResult> future;
+		private final DetachedResponse response;
+		private final long deadline;
+		private final Detachable<HttpServletRequest> realRequest;
+		private final Detachable<HttpServletResponse> realResponse;
+
+		private Prefetched(Future<RenderResult> future, DetachedResponse response, long deadline,
+				Detachable<HttpServletRequest> realRequest, Detachable<HttpServletResponse> realResponse)
+		{
+			this.future = future;
+			this.response = response;
+			this.deadline = deadline;
+			this.realRequest = realRequest;
+			this.realResponse = realResponse;
+		}
+
+		/**
+		 * The page goes on without this tool. Cut it off from the real request and response
+		 * first, so that whatever it does until it notices the interrupt goes nowhere.
+		 */
+		private void abandon()
+		{
+			realRequest.detach();
+			realResponse.detach();
+			future.cancel(true);
+		}
+	}
+
+	/**
+	 * Stands in for the real request or response. Calls go through to it until it is detached,
+	 * after which they do nothing and return empty values.
+	 */
+	private static class Detachable<T> implements InvocationHandler
+	{
+		private static final PrintWriter NOWHERE = new PrintWriter(new Writer()
+		{
+			@Override
+			public void write(char[] buf, int off, int len)
+			{
+			}
+
+			@Override
+			public void flush()
+			{
+			}
+
+			@Override
+			public void close()
+			{
+			}
+		});
+
+		private final T proxy;
+		private volatile T target;
+
+		private Detachable(Class<T> type, T target)
+		{
+			this.target = target;
+			this.proxy = type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, this));
+		}
+
+		private void detach()
+		{
+			target = null;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+		{
+			T current = target;
+			if (current != null)
+			{
+				try
+				{
+					return method.invoke(current, args);
+				}
+				catch (InvocationTargetException e)
+				{
+					throw e.getCause();
+				}
+			}
+			return empty(method.getReturnType());
+		}
+
+		private static Object empty(Class<?> type)
+		{
+			if (type == Void.TYPE) return null;
+			if (type.isPrimitive()) return Array.get(Array.newInstance(type, 1), 0);
+			if (type == Enumeration.class) return Collections.emptyEnumeration();
+			if (type == Map.class) return Collections.emptyMap();
+			if (type == Set.class) return Collections.emptySet();
+			if (type == Collection.class || type == List.class) return Collections.emptyList();
+			if (type == PrintWriter.class) return NOWHERE;
+			return null;
+		}
+	}
+
+	/**
+	 * Keeps the attributes of one tool to itself. They start as a copy of the request's, taken
+	 * on the request thread, as the real request's attributes aren't safe to read while the page
+	 * goes on changing them.
+	 */
+	private static class DetachedRequest extends HttpServletRequestWrapper
+	{
+		private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+
+		private DetachedRequest(HttpServletRequest request, HttpServletRequest original)
+		{
+			super(request);
+			for (Enumeration<String> e = original.getAttributeNames(); e.hasMoreElements();)
+			{
+				String name = e.nextElement();
+				Object value = original.getAttribute(name);
+				if (value != null) attributes.put(name, value);
+			}
+		}
+
+		@Override
+		public Object getAttribute(String name)
+		{
+			return attributes.get(name);
+		}
+
+		@Override
+		public Enumeration<String> getAttributeNames()
+		{
+			return Collections.enumeration(new ArrayList<String>(attributes.keySet()));
+		}
+
+		@Override
+		public void setAttribute(String name, Object value)
+		{
+			if (value == null)
+			{
+				attributes.remove(name);
+			}
+			else
+			{
+				attributes.put(name, value);
+			}
+		}
+
+		@Override
+		public void removeAttribute(String name)
+		{
+			attributes.remove(name);
+		}
+	}
+
+	/**
+	 * Keeps the headers set while rendering one tool away from the real response, which is
+	 * still being used by the page. A buffered tool's body is captured by bufferContent, only
+	 * the content type is needed to decide whether it can be inlined. Cookies are kept and
+	 * added to the real response by the request thread once the tool is collected.
+	 */
+	private static class DetachedResponse extends HttpServletResponseWrapper
+	{
+		private String contentType;
+		private final List<Cookie> cookies = Collections.synchronizedList(new ArrayList<Cookie>());
+
+		private DetachedResponse(HttpServletResponse response)
+		{
+			super(response);
+		}
+
+		@Override
+		public String getContentType()
+		{
+			return contentType;
+		}
+
+		@Override
+		public void setContentType(String type)
+		{
+			contentType = type;
+		}
+
+		@Override
+		public void setCharacterEncoding(String charset)
+		{
+		}
+
+		@Override
+		public void setHeader(String name, String value)
+		{
+		}
+
+		@Override
+		public void addHeader(String name, String value)
+		{
+		}
+
+		@Override
+		public void setDateHeader(String name, long date)
+		{
+		}
+
+		@Override
+		public void addDateHeader(String name, long date)
+		{
+		}
+
+		@Override
+		public void setIntHeader(String name, int value)
+		{
+		}
+
+		@Override
+		public void addIntHeader(String name, int value)
+		{
+		}
+
+		@Override
+		public void addCookie(Cookie cookie)
+		{
+			cookies.add(cookie);
+		}
+
+		private void replayCookies()
+		{
+			synchronized (cookies)
+			{
+				for (Cookie cookie : cookies)
+				{
+					((HttpServletResponse) getResponse()).addCookie(cookie);
+				}
+			}
+		}
+
+		@Override
+		public void setStatus(int sc)
+		{
+		}
+	}
+}
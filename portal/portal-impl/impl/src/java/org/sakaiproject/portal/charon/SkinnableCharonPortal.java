@@ -213,6 +213,8 @@ public class SkinnableCharonPortal extends HttpServlet implements Portal
 
 	private SiteHandler siteHandler;
 
+	private ParallelToolRenderer parallelRenderer;
+
 	private String portalContext;
 
 	private String PROP_PARENT_ID = SiteService.PROP_PARENT_ID;
@@ -259,6 +261,14 @@ public class SkinnableCharonPortal extends HttpServlet implements Portal
 	{
 		log.info("destroy()");
 		portalService.removePortal(this);
+		if (siteHelper instanceof PortalSiteHelperImpl)
+		{
+			((PortalSiteHelperImpl) siteHelper).destroy();
+		}
+		if (parallelRenderer != null)
+		{
+			parallelRenderer.destroy();
+		}
 
 		super.destroy();
 	}
@@ -2008,6 +2018,15 @@ public class SkinnableCharonPortal extends HttpServlet implements Portal
 		worksiteHandler = new WorksiteHandler();
 		siteHandler = new SiteHandler();
 
+		if (ServerConfigurationService.getBoolean("portal.render.parallel.enabled", false))
+		{
+			parallelRenderer = new ParallelToolRenderer(this::bufferInlineRendering,
+					ThreadLocalManager.getInstance(), SessionManager.getInstance(),
+					ServerConfigurationService.getInt("portal.render.parallel.threads", 4),
+					ServerConfigurationService.getInt("portal.render.parallel.queue.size", 100),
+					ServerConfigurationService.getInt("portal.render.parallel.timeout", 10000));
+		}
+
 		addHandler(siteHandler);
 		addHandler(new SiteResetHandler());
 
@@ -2311,25 +2330,55 @@ public class SkinnableCharonPortal extends HttpServlet implements Portal
 			
 		if(renderInline) {
 			
-			//build tool context path directly to the tool
-			String toolContextPath = req.getContextPath() + req.getServletPath() + "/site/" + placement.getSiteId() + "/tool/" + placement.getId();
-			
+			// already being rendered alongside the rest of the page
+			if (parallelRenderer != null && parallelRenderer.isPrefetched(placement.getId())) {
+				return parallelRenderer.await(placement.getId());
+			}
+
 			// setup the rest of the params
 			String[] parts = getParts(req);
 			String toolPathInfo = Web.makePath(parts, 5, parts.length);
 			Session session = SessionManager.getCurrentSession();
 
-			// get the buffered content
-			Object buffer = this.siteHandler.bufferContent(req, res, session, placement.getId(), toolContextPath, toolPathInfo, placement);
-			
-			if (buffer instanceof Map) {
-				Map<String,String> bufferMap = (Map<String,String>) buffer;
-				rval = new BufferedContentRenderResult(placement, bufferMap.get("responseHead"), bufferMap.get("responseBody"));
-			}
+			rval = bufferInlineRendering(req, res, session, placement, toolPathInfo);
 		}
 		
 		return rval;
 	}
+
+	/**
+	 * Buffers the output of a renderInline tool.
+	 * @return {@link BufferedContentRenderResult} or null if the tool could not be buffered
+	 */
+	RenderResult bufferInlineRendering(HttpServletRequest req, HttpServletResponse res, Session session,
+			ToolConfiguration placement, String toolPathInfo) {
+
+		//build tool context path directly to the tool
+		String toolContextPath = req.getContextPath() + req.getServletPath() + "/site/" + placement.getSiteId() + "/tool/" + placement.getId();
+
+		// get the buffered content
+		Object buffer = this.siteHandler.bufferContent(req, res, session, placement.getId(), toolContextPath, toolPathInfo, placement);
+
+		if (buffer instanceof Map) {
+			Map<String,String> bufferMap = (Map<String,String>) buffer;
+			return new BufferedContentRenderResult(placement, bufferMap.get("responseHead"), bufferMap.get("responseBody"));
+		}
+		return null;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.sakaiproject.portal.api.Portal#prefetchTools(javax.servlet.http.HttpServletResponse,
+	 *      javax.servlet.http.HttpServletRequest, java.util.List)
+	 */
+	public void prefetchTools(HttpServletResponse res, HttpServletRequest req, List<ToolConfiguration> placements)
+	{
+		// a reset clears the tool state as part of rendering, leave that to the request thread
+		if (parallelRenderer == null || portalService.isResetRequested(req)) return;
+		String[] parts = getParts(req);
+		parallelRenderer.prefetch(req, res, placements, Web.makePath(parts, 5, parts.length));
+	}
 	
 	/**
 	 * Checks if current user is being impersonated (via become user/sutool) and returns displayId of
@@ -215,19 +215,41 @@ public class PageHandler extends BasePortalHandler
 				if (log.isTraceEnabled())
 					log.trace("includePage unable to find site for page " + page.getId());
 			}
+			List<ToolConfiguration> column0 = new ArrayList<ToolConfiguration>();
+			for (Iterator i = page.getTools(0).iterator(); i.hasNext();)
 			{
-				List<Map> toolList = new ArrayList<Map>();
-				List tools = page.getTools(0);
-				for (Iterator i = tools.iterator(); i.hasNext();)
+				ToolConfiguration placement = (ToolConfiguration) i.next();
+
+				if (site != null)
+				{
+					boolean thisTool = portal.getSiteHelper().allowTool(site,placement);
+					if (!thisTool) continue; // Skip this tool if not allowed
+				}
+				column0.add(placement);
+			}
+
+			List<ToolConfiguration> column1 = new ArrayList<ToolConfiguration>();
+			if (page.getLayout() == SitePage.LAYOUT_DOUBLE_COL)
+			{
+				for (Iterator i = page.getTools(1).iterator(); i.hasNext();)
 				{
 					ToolConfiguration placement = (ToolConfiguration) i.next();
+					boolean thisTool = portal.getSiteHelper().allowTool(site,
+								placement);
+					if (!thisTool) continue; // Skip this tool if not allowed
+					column1.add(placement);
+				}
+			}
 
-					if (site != null)
-					{
-						boolean thisTool = portal.getSiteHelper().allowTool(site,placement);
-						if (!thisTool) continue; // Skip this tool if not allowed
-					}
+			// let the portal start on all the tools of the page at once
+			List<ToolConfiguration> placements = new ArrayList<ToolConfiguration>(column0);
+			placements.addAll(column1);
+			portal.prefetchTools(res, req, placements);
 
+			{
+				List<Map> toolList = new ArrayList<Map>();
+				for (ToolConfiguration placement : column0)
+				{
 					//Get the tool data map.
 					Map m = portal.includeTool(res, req, placement);
 					if (m != null)
@@ -246,14 +268,8 @@ public class PageHandler extends BasePortalHandler
 			if (page.getLayout() == SitePage.LAYOUT_DOUBLE_COL)
 			{
 				List<Map> toolList = new ArrayList<Map>();
-				List tools = page.getTools(1);
-				for (Iterator i = tools.iterator(); i.hasNext();)
+				for (ToolConfiguration placement : column1)
 				{
-					ToolConfiguration placement = (ToolConfiguration) i.next();
-					boolean thisTool = portal.getSiteHelper().allowTool(site,
-								placement);
-					if (!thisTool) continue; // Skip this tool if not allowed
-					
 					//Get the tool data map.
 					Map m = portal.includeTool(res, req, placement);
 					if (m != null)
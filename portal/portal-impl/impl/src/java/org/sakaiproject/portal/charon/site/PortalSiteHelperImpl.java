@@ -53,8 +53,10 @@ import org.sakaiproject.entity.api.Reference;
 import org.sakaiproject.entity.api.ResourceProperties;
 import org.sakaiproject.entity.api.Summary;
 import org.sakaiproject.entity.cover.EntityManager;
+import org.sakaiproject.event.api.EventTrackingService;
 import org.sakaiproject.exception.IdUnusedException;
 import org.sakaiproject.exception.PermissionException;
+import org.sakaiproject.memory.api.MemoryService;
 import org.sakaiproject.portal.api.PageFilter;
 import org.sakaiproject.portal.api.Portal;
 import org.sakaiproject.portal.api.PortalSiteHelper;
@@ -121,6 +123,8 @@ public class PortalSiteHelperImpl implements PortalSiteHelper
 
 	private ToolManager toolManager;
 
+	private SiteNavigationCache navigationCache;
+
 	public ToolManager getToolManager() {
 		//To work around injection for test case
 		if (toolManager==null) {
@@ -153,6 +157,20 @@ public class PortalSiteHelperImpl implements PortalSiteHelper
 		this.portal = portal;
 		this.lookForPageAliases = lookForPageAliases;
 		aliasService = ComponentManager.get(AliasService.class);
+		if (ServerConfigurationService.getBoolean("portal.navigation.cache.enabled", true))
+		{
+			navigationCache = new SiteNavigationCache(ComponentManager.get(MemoryService.class),
+					ComponentManager.get(EventTrackingService.class));
+		}
+	}
+
+	public void destroy()
+	{
+		if (navigationCache != null)
+		{
+			navigationCache.destroy();
+			navigationCache = null;
+		}
 	}
 
 	/* (non-Javadoc)
@@ -305,8 +323,21 @@ public class PortalSiteHelperImpl implements PortalSiteHelper
                         }
                 }
 
+		// Provider ids are only needed to build titles, which the navigation cache already has
+		String userId = session == null ? null : session.getUserId();
+		List<Site> uncachedSites = new ArrayList<Site>();
+		for (Object o : mySites)
+		{
+			Site s = (Site) o;
+			if (navigationCache == null || navigationCache.get(userId, s.getId()) == null)
+			{
+				uncachedSites.add(s);
+			}
+		}
+		Map<String, List<String>> realmProviderMap = uncachedSites.isEmpty()
+				? Collections.<String, List<String>>emptyMap() : getProviderIDsForSites(uncachedSites);
+
 		// Determine the depths of the child sites if needed
-		Map<String, List<String>> realmProviderMap = getProviderIDsForSites(mySites);
 		for (Iterator i = mySites.iterator(); i.hasNext();)
 		{
 			Site s = (Site) i.next();
@@ -445,40 +476,31 @@ public class PortalSiteHelperImpl implements PortalSiteHelper
 		if (s == null) return null;
 		Map<String, Object> m = new HashMap<>();
 
+		String userId = SessionManager.getCurrentSessionUserId();
+		Map<String, Object> cached = navigationCache == null ? null : navigationCache.get(userId, s.getId());
+		if (cached == null)
+		{
+			cached = siteToNavigationMap(s, siteProviders);
+			if (navigationCache != null) navigationCache.put(userId, s.getId(), cached);
+		}
+		m.putAll(cached);
+
 		// In case the effective is different than the actual site
-		String effectiveSite = getSiteEffectiveId(s);
+		String effectiveSite = (String) cached.get("effectiveSiteId");
 
 		boolean isCurrentSite = currentSiteId != null
 				&& (s.getId().equals(currentSiteId) || effectiveSite
 						.equals(currentSiteId));
 		m.put("isCurrentSite", Boolean.valueOf(isCurrentSite));
-		m.put("isPublished", s.isPublished());
 		m.put("isMyWorkspace", Boolean.valueOf(myWorkspaceSiteId != null
 				&& (s.getId().equals(myWorkspaceSiteId) || effectiveSite
 						.equals(myWorkspaceSiteId))));
-		
-		String siteTitle = getUserSpecificSiteTitle(s, false, false, siteProviders);
-		String siteTitleTruncated = FormattedText.makeShortenedText(siteTitle, null, null, null);
-		m.put("siteTitle", siteTitle);
-		m.put("siteTitleTrunc", siteTitleTruncated);
-		m.put("fullTitle", siteTitle);
-		
-		m.put("siteDescription", s.getHtmlDescription());
-
-		if ( s.getShortDescription() !=null && s.getShortDescription().trim().length()>0 ){
-			// SAK-23895:  Allow display of site description in the tab instead of site title
-			String shortDesc = s.getShortDescription(); 
-			String shortDesc_trimmed = FormattedText.makeShortenedText(shortDesc, null, null, null);
-			m.put("shortDescription", Web.escapeHtml(shortDesc_trimmed));
-		}
 
 		String siteUrl = Web.serverUrl(req)
 				+ ServerConfigurationService.getString("portalPath") + "/";
 		if (prefix != null) siteUrl = siteUrl + prefix + "/";
 		// siteUrl = siteUrl + Web.escapeUrl(siteHelper.getSiteEffectiveId(s));
-		m.put("siteUrl", siteUrl + Web.escapeUrl(getSiteEffectiveId(s)));
-		m.put("siteType", s.getType());
-		m.put("siteId", s.getId());
+		m.put("siteUrl", siteUrl + Web.escapeUrl(effectiveSite));
 
 		// TODO: This should come from the site neighbourhood.
 		ResourceProperties rp = s.getProperties();
@@ -537,6 +559,36 @@ public class PortalSiteHelperImpl implements PortalSiteHelper
 		return m;
 	}
 
+	/**
+	 * The parts of {@link #convertSiteToMap} that only depend on the site and the user,
+	 * and so can be kept in the navigation cache.
+	 */
+	private Map<String, Object> siteToNavigationMap(Site s, List<String> siteProviders)
+	{
+		Map<String, Object> m = new HashMap<>();
+		m.put("effectiveSiteId", getSiteEffectiveId(s));
+		m.put("isPublished", s.isPublished());
+
+		String siteTitle = getUserSpecificSiteTitle(s, false, false, siteProviders);
+		String siteTitleTruncated = FormattedText.makeShortenedText(siteTitle, null, null, null);
+		m.put("siteTitle", siteTitle);
+		m.put("siteTitleTrunc", siteTitleTruncated);
+		m.put("fullTitle", siteTitle);
+		
+		m.put("siteDescription", s.getHtmlDescription());
+
+		if ( s.getShortDescription() !=null && s.getShortDescription().trim().length()>0 ){
+			// SAK-23895:  Allow display of site description in the tab instead of site title
+			String shortDesc = s.getShortDescription(); 
+			String shortDesc_trimmed = FormattedText.makeShortenedText(shortDesc, null, null, null);
+			m.put("shortDescription", Web.escapeHtml(shortDesc_trimmed));
+		}
+
+		m.put("siteType", s.getType());
+		m.put("siteId", s.getId());
+		return m;
+	}
+
 	/**
 	 * Gets the path of sites back to the root of the tree.
 	 * @param s
@@ -1200,6 +1252,15 @@ public class PortalSiteHelperImpl implements PortalSiteHelper
 	 * @return
 	 */
 	public List getPermittedPagesInOrder(Site site)
+	{
+		if (navigationCache == null)
+		{
+			return findPermittedPagesInOrder(site);
+		}
+		return navigationCache.getPages(SessionManager.getCurrentSessionUserId(), site, () -> findPermittedPagesInOrder(site));
+	}
+
+	private List<SitePage> findPermittedPagesInOrder(Site site)
 	{
 		// Get all of the pages
 		List<SitePage> pages = site.getOrderedPages();
@@ -1325,6 +1386,15 @@ public class PortalSiteHelperImpl implements PortalSiteHelper
 		{
 			return null;
 		}
+		if (navigationCache != null)
+		{
+			return navigationCache.getPageAlias(siteId, page.getId(), () -> findPageAlias(siteId, page));
+		}
+		return findPageAlias(siteId, page);
+	}
+
+	private String findPageAlias(String siteId, SitePage page)
+	{
 		String alias = null;
 		List<Alias> aliases = aliasService.getAliases(page.getReference());
 		if (aliases.size() > 0)
@@ -0,0 +1,213 @@
+/**
+ * Copyright (c) 2003-2018 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.portal.charon.site;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.function.Supplier;
+
+import org.sakaiproject.alias.api.AliasService;
+import org.sakaiproject.authz.api.AuthzGroupService;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.api.EventTrackingService;
+import org.sakaiproject.memory.api.MemoryService;
+import org.sakaiproject.memory.util.GenerationalCache;
+import org.sakaiproject.site.api.Site;
+import org.sakaiproject.site.api.SitePage;
+import org.sakaiproject.site.api.SiteService;
+import org.sakaiproject.user.api.PreferencesService;
+import org.sakaiproject.user.api.UserDirectoryService;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Per user navigation model for the portal.
+ * <p>
+ * Holds, for each user and site:
+ * <ul>
+ * <li>the parts of {@link PortalSiteHelperImpl#convertSiteToMap} that do not depend on the request: titles
+ * (which need the realm's provider ids), descriptions, effective site id and so on.</li>
+ * <li>the ids of the pages the user may see, in order, from {@link PortalSiteHelperImpl#getPermittedPagesInOrder}.</li>
+ * </ul>
+ * and for each page of a site its alias. The request specific parts, current site, urls and breadcrumbs,
+ * are still added on every render.
+ * <p>
+ * Entries are kept in a {@link GenerationalCache} scoped by site and user. Changes to a site, its pages,
+ * its realm or its groups drop the site's entries, preference and user changes drop the user's, and alias
+ * changes drop the aliases of the site's pages.
+ */
+@Slf4j
+public class SiteNavigationCache implements Observer
+{
+	private static final String SITE_REF = SiteService.REFERENCE_ROOT + "/";
+	private static final String REALM_SITE_REF = AuthzGroupService.REFERENCE_ROOT + "/" + SITE_REF;
+	private static final String PREFS_REF = PreferencesService.REFERENCE_ROOT + "/";
+	private static final String USER_REF = UserDirectoryService.REFERENCE_ROOT + "/";
+	// page aliases are /alias//pagealias/{siteId}/{alias}
+	private static final String PAGE_ALIAS_REF = "/pagealias/";
+	// cached for a page without an alias, as the cache can't hold null
+	private static final String NO_ALIAS = "";
+
+	private final GenerationalCache cache;
+	private final EventTrackingService eventTrackingService;
+
+	public SiteNavigationCache(MemoryService memoryService, EventTrackingService eventTrackingService)
+	{
+		this.cache = new GenerationalCache(memoryService.getCache("org.sakaiproject.portal.charon.site.SiteNavigationCache"));
+		this.eventTrackingService = eventTrackingService;
+		eventTrackingService.addObserver(this);
+	}
+
+	public void destroy()
+	{
+		eventTrackingService.deleteObserver(this);
+	}
+
+	/**
+	 * @return the cached, unmodifiable entry for the site, or null if there isn't a current one
+	 */
+	public Map<String, Object> get(String userId, String siteId)
+	{
+		if (userId == null) return null;
+		return cache.get(siteKey(userId, siteId));
+	}
+
+	public void put(String userId, String siteId, Map<String, Object> values)
+	{
+		if (userId == null) return;
+		Map<String, Object> entry = Collections.unmodifiableMap(new HashMap<>(values));
+		cache.load(siteKey(userId, siteId), () -> entry);
+	}
+
+	/**
+	 * @param lookup finds the pages the current user may see when they aren't cached
+	 * @return the pages of the site the user may see, in order
+	 */
+	public List<SitePage> getPages(String userId, Site site, Supplier<List<SitePage>> lookup)
+	{
+		if (userId == null) return lookup.get();
+		String key = cache.key("pages", userScope(userId), siteScope(site.getId()));
+		List<String> pageIds = cache.get(key);
+		if (pageIds != null)
+		{
+			List<SitePage> pages = new ArrayList<>(pageIds.size());
+			for (String pageId : pageIds)
+			{
+				SitePage page = site.getPage(pageId);
+				// the site object doesn't match the cached ids, so go with the site object
+				if (page == null) return lookup.get();
+				pages.add(page);
+			}
+			return pages;
+		}
+
+		List<SitePage> pages = lookup.get();
+		List<String> ids = new ArrayList<>(pages.size());
+		for (SitePage page : pages)
+		{
+			ids.add(page.getId());
+		}
+		cache.load(key, () -> ids);
+		return pages;
+	}
+
+	/**
+	 * @param lookup finds the alias when it isn't cached, returning null if the page has none
+	 * @return the alias of the page, null if it has none
+	 */
+	public String getPageAlias(String siteId, String pageId, Supplier<String> lookup)
+	{
+		String alias = cache.load(cache.key("alias:" + pageId, aliasScope(siteId)), () -> {
+			String found = lookup.get();
+			return found == null ? NO_ALIAS : found;
+		});
+		return NO_ALIAS.equals(alias) ? null : alias;
+	}
+
+	public void update(Observable o, Object arg)
+	{
+		if (!(arg instanceof Event)) return;
+		Event event = (Event) arg;
+		// site.visit and friends happen on every page view and change nothing
+		if (!event.getModify()) return;
+		String resource = event.getResource();
+		String name = event.getEvent();
+		if (resource == null || name == null) return;
+
+		// page and tool changes are posted against the site, or a reference under it
+		if (name.startsWith("site.") && resource.startsWith(SITE_REF))
+		{
+			invalidate(siteScope(firstSegment(resource, SITE_REF.length())));
+		}
+		else if (name.startsWith("realm.") && resource.startsWith(REALM_SITE_REF))
+		{
+			invalidate(siteScope(firstSegment(resource, REALM_SITE_REF.length())));
+		}
+		else if (name.startsWith("prefs.") && resource.startsWith(PREFS_REF))
+		{
+			invalidate(userScope(firstSegment(resource, PREFS_REF.length())));
+		}
+		else if (name.startsWith("user.") && resource.startsWith(USER_REF))
+		{
+			invalidate(userScope(firstSegment(resource, USER_REF.length())));
+		}
+		else if (name.startsWith("alias.") && resource.startsWith(AliasService.REFERENCE_ROOT))
+		{
+			int start = resource.indexOf(PAGE_ALIAS_REF);
+			if (start >= 0)
+			{
+				invalidate(aliasScope(firstSegment(resource, start + PAGE_ALIAS_REF.length())));
+			}
+		}
+	}
+
+	private static String firstSegment(String resource, int start)
+	{
+		int end = resource.indexOf('/', start);
+		return end < 0 ? resource.substring(start) : resource.substring(start, end);
+	}
+
+	private void invalidate(String scope)
+	{
+		log.debug("Invalidating navigation for {}", scope);
+		cache.invalidate(scope);
+	}
+
+	private String siteKey(String userId, String siteId)
+	{
+		return cache.key("site", userScope(userId), siteScope(siteId));
+	}
+
+	private static String userScope(String userId)
+	{
+		return "user:" + userId;
+	}
+
+	private static String siteScope(String siteId)
+	{
+		return "site:" + siteId;
+	}
+
+	private static String aliasScope(String siteId)
+	{
+		return "aliases:" + siteId;
+	}
+}
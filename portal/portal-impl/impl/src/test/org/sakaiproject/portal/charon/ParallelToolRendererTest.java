@@ -0,0 +1,169 @@
+/**
+ * Copyright (c) 2003-2018 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.portal.charon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.portal.render.api.RenderResult;
+import org.sakaiproject.site.api.ToolConfiguration;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
+import org.sakaiproject.tool.api.SessionManager;
+
+public class ParallelToolRendererTest {
+
+	private ParallelToolRenderer renderer;
+	private Map<String, ParallelToolRenderer.InlineRenderer> tools;
+	private ThreadLocalManager threadLocalManager;
+	private HttpServletRequest req;
+	private HttpServletResponse res;
+
+	@Before
+	public void setUp() {
+		tools = new ConcurrentHashMap<>();
+		threadLocalManager = new ThreadLocalManager() {
+			private final ThreadLocal<Map<String, Object>> values = ThreadLocal.withInitial(HashMap::new);
+
+			public void set(String name, Object value) {
+				values.get().put(name, value);
+			}
+
+			public void clear() {
+				values.get().clear();
+			}
+
+			public Object get(String name) {
+				return values.get().get(name);
+			}
+		};
+		renderer = new ParallelToolRenderer((req, res, session, placement, toolPathInfo) ->
+				tools.get(placement.getId()).render(req, res, session, placement, toolPathInfo),
+				threadLocalManager, mock(SessionManager.class), 2, 10, 500);
+
+		req = mock(HttpServletRequest.class);
+		when(req.getAttributeNames()).thenReturn(Collections.enumeration(Arrays.asList("shared")));
+		when(req.getAttribute("shared")).thenReturn("page");
+		res = mock(HttpServletResponse.class);
+	}
+
+	@After
+	public void tearDown() {
+		renderer.destroy();
+	}
+
+	@Test
+	public void testToolsGetTheirOwnAttributes() {
+		RenderResult a = mock(RenderResult.class);
+		RenderResult b = mock(RenderResult.class);
+		tools.put("a", (req, res, session, placement, path) -> {
+			assertEquals("page", req.getAttribute("shared"));
+			req.setAttribute("shared", "a");
+			assertEquals("a", req.getAttribute("shared"));
+			return a;
+		});
+		tools.put("b", (req, res, session, placement, path) -> {
+			req.removeAttribute("shared");
+			assertNull(req.getAttribute("shared"));
+			assertFalse(req.getAttributeNames().hasMoreElements());
+			return b;
+		});
+
+		renderer.prefetch(req, res, Arrays.asList(placement("a"), placement("b"), placement("iframe", false)), "");
+		assertTrue(renderer.isPrefetched("a"));
+		assertFalse(renderer.isPrefetched("iframe"));
+		assertSame(a, renderer.await("a"));
+		assertSame(b, renderer.await("b"));
+		verify(req, never()).setAttribute(anyString(), org.mockito.ArgumentMatchers.any());
+		verify(req, never()).removeAttribute(anyString());
+	}
+
+	@Test
+	public void testSlowToolIsCancelledAndCutOff() throws Exception {
+		CountDownLatch interrupted = new CountDownLatch(1);
+		CountDownLatch detached = new CountDownLatch(1);
+		HttpServletRequest[] toolReq = new HttpServletRequest[1];
+		tools.put("fast", (req, res, session, placement, path) -> mock(RenderResult.class));
+		tools.put("slow", (req, res, session, placement, path) -> {
+			toolReq[0] = req;
+			try {
+				Thread.sleep(60000);
+			} catch (InterruptedException e) {
+				interrupted.countDown();
+			}
+			// the page has moved on, the real request must not be reached any more
+			try {
+				assertNull(req.getParameter("p"));
+				assertNull(req.getSession(false));
+				res.setHeader("X-Late", "1");
+				assertNull(res.encodeURL("/late"));
+				detached.countDown();
+			} catch (Throwable t) {
+				// leave the latch unset
+			}
+			return mock(RenderResult.class);
+		});
+		when(req.getParameter("p")).thenReturn("live");
+
+		renderer.prefetch(req, res, Arrays.asList(placement("fast"), placement("slow")), "");
+		assertTrue(renderer.await("fast") != null);
+		long start = System.currentTimeMillis();
+		// falls back to an iframe
+		assertNull(renderer.await("slow"));
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertFalse(renderer.isPrefetched("slow"));
+
+		assertTrue("the worker should be interrupted", interrupted.await(5, TimeUnit.SECONDS));
+		assertTrue("the worker should be cut off from the request", detached.await(5, TimeUnit.SECONDS));
+		verify(req, never()).getParameter("p");
+		verify(res, never()).encodeURL("/late");
+	}
+
+	private static ToolConfiguration placement(String id) {
+		return placement(id, true);
+	}
+
+	private static ToolConfiguration placement(String id, boolean inline) {
+		ToolConfiguration placement = mock(ToolConfiguration.class);
+		when(placement.getId()).thenReturn(id);
+		Properties config = new Properties();
+		config.setProperty("renderInline", String.valueOf(inline));
+		when(placement.getConfig()).thenReturn(config);
+		return placement;
+	}
+}
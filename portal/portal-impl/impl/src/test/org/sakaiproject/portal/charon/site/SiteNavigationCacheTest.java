@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2003-2018 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.portal.charon.site;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.api.EventTrackingService;
+import org.sakaiproject.memory.api.Cache;
+import org.sakaiproject.memory.api.MemoryService;
+import org.sakaiproject.site.api.Site;
+import org.sakaiproject.site.api.SitePage;
+
+public class SiteNavigationCacheTest {
+
+	private SiteNavigationCache navigationCache;
+	private Site site;
+	private SitePage page1;
+	private SitePage page2;
+	private AtomicInteger lookups;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void setUp() {
+		Map<String, Object> entries = new ConcurrentHashMap<>();
+		Cache<String, Object> cache = mock(Cache.class);
+		when(cache.get(anyString())).thenAnswer(i -> entries.get(i.getArgument(0)));
+		doAnswer(i -> entries.put(i.getArgument(0), i.getArgument(1))).when(cache).put(anyString(), any());
+		when(cache.remove(anyString())).thenAnswer(i -> entries.remove(i.getArgument(0)) != null);
+		MemoryService memoryService = mock(MemoryService.class);
+		when(memoryService.<String, Object>getCache(anyString())).thenReturn(cache);
+		navigationCache = new SiteNavigationCache(memoryService, mock(EventTrackingService.class));
+
+		page1 = page("p1");
+		page2 = page("p2");
+		site = mock(Site.class);
+		when(site.getId()).thenReturn("site");
+		when(site.getPage("p1")).thenReturn(page1);
+		when(site.getPage("p2")).thenReturn(page2);
+		lookups = new AtomicInteger();
+	}
+
+	@Test
+	public void testSiteEntry() {
+		assertNull(navigationCache.get("user", "site"));
+		navigationCache.put("user", "site", Collections.singletonMap("siteTitle", "Title"));
+		assertEquals("Title", navigationCache.get("user", "site").get("siteTitle"));
+		assertNull(navigationCache.get("other", "site"));
+
+		// anything else about the site is left alone
+		navigationCache.update(null, event("site.visit", "/site/site", false));
+		navigationCache.update(null, event("site.upd", "/site/other", true));
+		assertNotNull(navigationCache.get("user", "site"));
+
+		navigationCache.update(null, event("site.upd", "/site/site", true));
+		assertNull(navigationCache.get("user", "site"));
+
+		navigationCache.put("user", "site", Collections.singletonMap("siteTitle", "Title"));
+		navigationCache.update(null, event("realm.upd", "/realm//site/site/group/g", true));
+		assertNull(navigationCache.get("user", "site"));
+
+		navigationCache.put("user", "site", Collections.singletonMap("siteTitle", "Title"));
+		navigationCache.update(null, event("prefs.upd", "/prefs/user/sakai:portal:sitenav", true));
+		assertNull(navigationCache.get("user", "site"));
+	}
+
+	@Test
+	public void testPagesDroppedOnPageChange() {
+		assertEquals(Arrays.asList(page1, page2), pages());
+		assertEquals(Arrays.asList(page1, page2), pages());
+		assertEquals(1, lookups.get());
+
+		// a tool placement or page change is posted against a reference in the site
+		navigationCache.update(null, event("site.upd", "/site/site/page/p2", true));
+		assertEquals(Arrays.asList(page1, page2), pages());
+		assertEquals(2, lookups.get());
+
+		// so is a membership change, which can change what the user may see
+		navigationCache.update(null, event("site.upd.site.mbrshp", "/site/site", true));
+		pages();
+		assertEquals(3, lookups.get());
+	}
+
+	@Test
+	public void testPagesNotInSite() {
+		pages();
+		// the site has lost a page the cache still lists
+		when(site.getPage("p2")).thenReturn(null);
+		pages();
+		assertEquals(2, lookups.get());
+	}
+
+	@Test
+	public void testPageAlias() {
+		assertEquals("home", navigationCache.getPageAlias("site", "p1", () -> alias("home")));
+		assertEquals("home", navigationCache.getPageAlias("site", "p1", () -> alias("other")));
+		assertNull(navigationCache.getPageAlias("site", "p2", () -> alias(null)));
+		assertNull(navigationCache.getPageAlias("site", "p2", () -> alias("other")));
+		assertEquals(2, lookups.get());
+
+		navigationCache.update(null, event("alias.add", "/alias//pagealias/other/x", true));
+		assertEquals("home", navigationCache.getPageAlias("site", "p1", () -> alias("other")));
+		navigationCache.update(null, event("alias.add", "/alias//pagealias/site/x", true));
+		assertEquals("renamed", navigationCache.getPageAlias("site", "p1", () -> alias("renamed")));
+	}
+
+	private List<SitePage> pages() {
+		return navigationCache.getPages("user", site, () -> {
+			lookups.incrementAndGet();
+			return Arrays.asList(page1, page2);
+		});
+	}
+
+	private String alias(String alias) {
+		lookups.incrementAndGet();
+		return alias;
+	}
+
+	private static SitePage page(String id) {
+		SitePage page = mock(SitePage.class);
+		when(page.getId()).thenReturn(id);
+		return page;
+	}
+
+	private static Event event(String name, String resource, boolean modify) {
+		Event event = mock(Event.class);
+		when(event.getEvent()).thenReturn(name);
+		when(event.getResource()).thenReturn(resource);
+		when(event.getModify()).thenReturn(modify);
+		return event;
+	}
+}
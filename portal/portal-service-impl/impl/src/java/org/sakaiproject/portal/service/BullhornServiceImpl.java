@@ -18,7 +18,14 @@ package org.sakaiproject.portal.service;
 import java.lang.reflect.Method;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.sql.Connection;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 
 import org.apache.commons.lang.StringUtils;
 
@@ -59,6 +66,7 @@ import org.sakaiproject.profile2.util.ProfileConstants;
 import org.sakaiproject.site.api.Site;
 import org.sakaiproject.site.api.SitePage;
 import org.sakaiproject.site.api.SiteService;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
 import org.sakaiproject.time.api.Time;
 import org.sakaiproject.tool.api.Session;
 import org.sakaiproject.tool.api.SessionManager;
@@ -123,6 +131,8 @@ public class BullhornServiceImpl implements BullhornService, Observer {
     private SqlService sqlService;
     @Setter
     private SessionFactory sessionFactory;
+    @Setter
+    private ThreadLocalManager threadLocalManager;
 
     private Object commonsManager = null;
     private Method commonsManagerGetPostMethod = null;
@@ -135,6 +145,25 @@ public class BullhornServiceImpl implements BullhornService, Observer {
 
     private Cache<String, Map> countCache = null;
 
+    // Alerts are worked out and written on a small pool of threads fed from a bounded queue. If
+    // the queue is full the event is dropped and counted straight away: the observer is called on
+    // the thread that posted the event, often a request, so it must not wait. It never runs the
+    // work itself either, as that switches the current session's user.
+    private ThreadPoolExecutor alertExecutor = null;
+    private int queueSize = 10000;
+    private int batchSize = 500;
+
+    private static final long DROP_WARNING_INTERVAL = 60000L;
+
+    private final AtomicLong eventsQueued = new AtomicLong();
+    private final AtomicLong eventsHandled = new AtomicLong();
+    private final AtomicLong eventsDropped = new AtomicLong();
+    private final AtomicLong lastDropWarning = new AtomicLong();
+    private final AtomicLong alertsWritten = new AtomicLong();
+    private final AtomicLong batchesWritten = new AtomicLong();
+    private final AtomicLong lastFanOutMillis = new AtomicLong();
+    private final AtomicLong maxFanOutMillis = new AtomicLong();
+
     public void init() {
 
         try {
@@ -168,6 +197,11 @@ public class BullhornServiceImpl implements BullhornService, Observer {
             log.debug("Failed to setup stubs for commons tool", e);
         }
 
+        int workers = serverConfigurationService.getInt("portal.bullhorns.workers", 2);
+        queueSize = serverConfigurationService.getInt("portal.bullhorns.queue.size", 10000);
+        batchSize = serverConfigurationService.getInt("portal.bullhorns.batch.size", 500);
+        alertExecutor = createAlertExecutor(workers, queueSize);
+
         if (serverConfigurationService.getBoolean("portal.bullhorns.enabled", true)) {
             HANDLED_EVENTS.add(ProfileConstants.EVENT_STATUS_UPDATE);
             HANDLED_EVENTS.add(ProfileConstants.EVENT_FRIEND_REQUEST);
@@ -189,6 +223,67 @@ public class BullhornServiceImpl implements BullhornService, Observer {
         countCache = memoryService.getCache("bullhorn_alert_count_cache");
     }
 
+    ThreadPoolExecutor createAlertExecutor(int workers, int queueSize) {
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(queueSize), r -> {
+                Thread t = new Thread(r, "bullhorn-alerts-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }, (r, e) -> {
+                long dropped = eventsDropped.incrementAndGet();
+                // one warning a minute is enough to notice, a busy server could drop thousands
+                long now = System.currentTimeMillis();
+                long last = lastDropWarning.get();
+                if (now - last >= DROP_WARNING_INTERVAL && lastDropWarning.compareAndSet(last, now)) {
+                    log.warn("Bullhorn alert queue is full, {} events dropped so far. Metrics: {}", dropped, getMetrics());
+                }
+            }) {
+                @Override
+                protected void afterExecute(Runnable r, Throwable t) {
+                    // pool threads are reused, don't let one event's session leak into the next
+                    threadLocalManager.clear();
+                }
+            };
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    public void destroy() {
+
+        eventTrackingService.deleteObserver(this);
+        if (alertExecutor != null) {
+            alertExecutor.shutdown();
+            try {
+                alertExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return counters describing the alert pipeline: backlog and room left in the queue, throughput,
+     * events dropped because the queue was full and how long the last and slowest fan-outs took, from
+     * event to alerts written. Also exported over JMX as org.sakaiproject.portal.api:name=BullhornService
+     */
+    public Map<String, Long> getMetrics() {
+
+        Map<String, Long> metrics = new LinkedHashMap<>();
+        metrics.put("backlog", alertExecutor == null ? 0L : (long) alertExecutor.getQueue().size());
+        metrics.put("queueRemaining", alertExecutor == null ? 0L : (long) alertExecutor.getQueue().remainingCapacity());
+        metrics.put("queueSize", (long) queueSize);
+        metrics.put("activeWorkers", alertExecutor == null ? 0L : (long) alertExecutor.getActiveCount());
+        metrics.put("eventsQueued", eventsQueued.get());
+        metrics.put("eventsHandled", eventsHandled.get());
+        metrics.put("eventsDropped", eventsDropped.get());
+        metrics.put("alertsWritten", alertsWritten.get());
+        metrics.put("batchesWritten", batchesWritten.get());
+        metrics.put("lastFanOutMillis", lastFanOutMillis.get());
+        metrics.put("maxFanOutMillis", maxFanOutMillis.get());
+        return metrics;
+    }
+
     public void update(Observable o, final Object arg) {
 
         if (arg instanceof Event) {
@@ -203,7 +298,9 @@ public class BullhornServiceImpl implements BullhornService, Observer {
                     // This will be thrown if there is no current Hibernate session. Nothing to do.
                 }
 
-                new Thread(() -> {
+                eventsQueued.incrementAndGet();
+                alertExecutor.execute(() -> {
+                    AlertBatch alerts = new AlertBatch();
                     String ref = e.getResource();
                     String context = e.getContext();
                     String[] pathParts = ref.split("/");
@@ -216,8 +313,7 @@ public class BullhornServiceImpl implements BullhornService, Observer {
                             for (User connection : connections) {
                                 String to = connection.getId();
                                 String url = profileLinkLogic.getInternalDirectUrlToUserProfile(to, from);
-                                doSocialInsert(from, to, event, ref, e.getEventTime(), url);
-                                countCache.remove(to);
+                                alerts.addSocial(from, to, event, ref, e.getEventTime(), url);
                             }
                         } else if (ProfileConstants.EVENT_FRIEND_REQUEST.equals(event)) {
                             String to = pathParts[2];
@@ -226,17 +322,15 @@ public class BullhornServiceImpl implements BullhornService, Observer {
                             String toolId = site.getToolForCommonId("sakai.profile2").getId();
                             String url = serverConfigurationService.getPortalUrl() + "/site/" + siteId
                                                                         + "/tool/" + toolId + "/connections";
-                            doSocialInsert(from, to, event, ref, e.getEventTime(), url);
-                            countCache.remove(to);
+                            alerts.addSocial(from, to, event, ref, e.getEventTime(), url);
                         } else if (ProfileConstants.EVENT_FRIEND_CONFIRM.equals(event)
                                     || ProfileConstants.EVENT_FRIEND_IGNORE.equals(event)) {
                             String to = pathParts[2];
                             sqlService.dbWrite("DELETE FROM BULLHORN_ALERTS WHERE EVENT = ? AND FROM_USER = ?"
                                     , new Object[] {ProfileConstants.EVENT_FRIEND_REQUEST, to});
                             String url = profileLinkLogic.getInternalDirectUrlToUserConnections(to);
-                            doSocialInsert(from, to, event, ref, e.getEventTime(), url);
-                            countCache.remove(from);
-                            countCache.remove(to);
+                            alerts.addSocial(from, to, event, ref, e.getEventTime(), url);
+                            alerts.recipients.add(from);
                         } else if (ProfileConstants.EVENT_MESSAGE_SENT.equals(event)) {
                             String to = pathParts[2];
                             String siteId = "~" + to;
@@ -244,8 +338,7 @@ public class BullhornServiceImpl implements BullhornService, Observer {
                             String toolId = site.getToolForCommonId("sakai.profile2").getId();
                             String url = serverConfigurationService.getPortalUrl() + "/site/" + siteId
                                                                         + "/tool/" + toolId + "/messages";
-                            doSocialInsert(from, to, event, ref, e.getEventTime(), url);
-                            countCache.remove(to);
+                            alerts.addSocial(from, to, event, ref, e.getEventTime(), url);
                         } else if (commonsInstalled && COMMONS_COMMENT_CREATED.equals(event)) {
                             String type = pathParts[2];
                             String postId = pathParts[4];
@@ -261,7 +354,7 @@ public class BullhornServiceImpl implements BullhornService, Observer {
                                     to = (String) commonsCommentGetCreatorIdMethod.invoke(comment, new Object[] {});
                                     tos.add(to);
                                 }
-                                sendCommentAlerts(from, event, ref, e, siteId, postId, tos);
+                                sendCommentAlerts(alerts, from, event, ref, e, siteId, postId, tos);
                             }
                         } else if (AnnouncementService.SECURE_ANNC_ADD.equals(event)) {
                             String siteId = pathParts[3];
@@ -286,8 +379,7 @@ public class BullhornServiceImpl implements BullhornService, Observer {
                                     // Get all the members of the site with read ability
                                     for (String  to : site.getUsersIsAllowed(AnnouncementService.SECURE_ANNC_READ)) {
                                         if (!from.equals(to) && !securityService.isSuperUser(to)) {
-                                            doAcademicInsert(from, to, event, ref, title, siteId, e.getEventTime(), url);
-                                            countCache.remove(to);
+                                            alerts.addAcademic(from, to, event, ref, title, siteId, e.getEventTime(), url);
                                         }
                                     }
                                 }
@@ -312,8 +404,7 @@ public class BullhornServiceImpl implements BullhornService, Observer {
                                     // Get all the members of the site with read ability
                                     for (String  to : site.getUsersIsAllowed(AssignmentServiceConstants.SECURE_ACCESS_ASSIGNMENT)) {
                                         if (!from.equals(to) && !securityService.isSuperUser(to)) {
-                                            doAcademicInsert(from, to, event, ref, title, siteId, e.getEventTime(), url);
-                                            countCache.remove(to);
+                                            alerts.addAcademic(from, to, event, ref, title, siteId, e.getEventTime(), url);
                                         }
                                     }
                                 }
@@ -342,8 +433,7 @@ public class BullhornServiceImpl implements BullhornService, Observer {
                                     String title = assignment.getTitle();
                                     String url = assignmentService.getDeepLink(siteId, assignment.getId());
                                     submission.getSubmitters().forEach(to -> {
-                                        doAcademicInsert(from, to.getSubmitter(), event, ref, title, siteId, e.getEventTime(), url);
-                                        countCache.remove(to.getSubmitter());
+                                        alerts.addAcademic(from, to.getSubmitter(), event, ref, title, siteId, e.getEventTime(), url);
                                     });
                                 }
                             } catch (IdUnusedException idue) {
@@ -367,9 +457,8 @@ public class BullhornServiceImpl implements BullhornService, Observer {
                                     for (User receiver : receivers) {
                                         String to = receiver.getId();
                                         if (!to.equals(from)) {
-                                            doAcademicInsert(from, to, event, ref, "title", context, e.getEventTime(), url);
+                                            alerts.addAcademic(from, to, event, ref, "title", context, e.getEventTime(), url);
                                             done.add(to);
-                                            countCache.remove(to);
                                         }
                                     }
 
@@ -383,9 +472,8 @@ public class BullhornServiceImpl implements BullhornService, Observer {
                                         for (SimplePageComment c : comments) {
                                             String to = c.getAuthor();
                                             if (!to.equals(from) && !done.contains(to)) {
-                                                doAcademicInsert(from, to, event, ref, "title", context, e.getEventTime(), url);
+                                                alerts.addAcademic(from, to, event, ref, "title", context, e.getEventTime(), url);
                                                 done.add(to);
-                                                countCache.remove(to);
                                             }
                                         }
                                     }
@@ -396,10 +484,18 @@ public class BullhornServiceImpl implements BullhornService, Observer {
                                 log.error("Caught number format exception whilst handling events", nfe);
                             }
                         }
+                        alerts.write();
                     } catch (Exception ex) {
                         log.error("Caught exception whilst handling events", ex);
+                    } finally {
+                        countCache.removeAll(alerts.recipients);
                     }
-                }).start();
+                    long took = System.currentTimeMillis() - at;
+                    lastFanOutMillis.set(took);
+                    maxFanOutMillis.accumulateAndGet(took, Math::max);
+                    eventsHandled.incrementAndGet();
+                    log.debug("Bullhorn fan-out for {} wrote {} alerts in {}ms", event, alerts.written, took);
+                });
             }
         }
     }
@@ -432,24 +528,58 @@ public class BullhornServiceImpl implements BullhornService, Observer {
         securityService.popAdvisor(securityAdvisor);
     }
 
-    private void doAcademicInsert(String from, String to, String event, String ref
+    /**
+     * The alerts produced by one event. Recipients are coalesced, so nobody gets the same alert
+     * twice, and the rows go to the database in JDBC batches once the fan-out is complete.
+     */
+    private class AlertBatch {
+
+        private final List<Object[]> rows = new ArrayList<>();
+        // everybody whose alert counts have changed
+        private final Set<String> recipients = new HashSet<>();
+        private int written = 0;
+
+        private void addAcademic(String from, String to, String event, String ref
                                             , String title, String siteId, Date eventTime ,String url) {
 
-        sqlService.dbInsert(null
-            , BULLHORN_INSERT_SQL
-            , new Object[] {ACADEMIC, from, to, event, ref, title, siteId, eventTime, url}
-            , "ID");
-    }
+            if (recipients.add(to)) {
+                rows.add(new Object[] {ACADEMIC, from, to, event, ref, title, siteId, eventTime, url});
+            }
+        }
 
-    private void doSocialInsert(String from, String to, String event, String ref, Date eventTime ,String url) {
+        private void addSocial(String from, String to, String event, String ref, Date eventTime ,String url) {
 
-        sqlService.dbInsert(null
-            , BULLHORN_INSERT_SQL
-            , new Object[] {SOCIAL, from, to, event, ref, "", "", eventTime, url}
-            , "ID");
+            if (recipients.add(to)) {
+                rows.add(new Object[] {SOCIAL, from, to, event, ref, "", "", eventTime, url});
+            }
+        }
+
+        private void write() throws SQLException {
+
+            for (int i = 0; i < rows.size(); i += batchSize) {
+                List<Object[]> batch = rows.subList(i, Math.min(i + batchSize, rows.size()));
+                Connection conn = sqlService.borrowConnection();
+                boolean wasCommit = conn.getAutoCommit();
+                try {
+                    conn.setAutoCommit(false);
+                    if (sqlService.dbWriteBatch(conn, BULLHORN_INSERT_SQL, batch)) {
+                        conn.commit();
+                        written += batch.size();
+                        alertsWritten.addAndGet(batch.size());
+                        batchesWritten.incrementAndGet();
+                    } else {
+                        conn.rollback();
+                        log.warn("Failed to write a batch of {} bullhorn alerts", batch.size());
+                    }
+                } finally {
+                    conn.setAutoCommit(wasCommit);
+                    sqlService.returnConnection(conn);
+                }
+            }
+        }
     }
 
-    private void sendCommentAlerts(String from, String event, String ref, Event e, String siteId, String postId, Set<String> tos) {
+    private void sendCommentAlerts(AlertBatch alerts, String from, String event, String ref, Event e, String siteId, String postId, Set<String> tos) {
 
         log.debug("sending comment alerts: from is {}, tos is {}, siteId is {}", from, tos, siteId);
         boolean isSocial = siteId.equals("SOCIAL");
@@ -471,12 +601,11 @@ public class BullhornServiceImpl implements BullhornService, Observer {
                     String url = serverConfigurationService.getPortalUrl() + "/directtool/"
                                  + toolId + "/posts/" + postId;
                     if (isSocial) {
-                        doSocialInsert(from, to, event, ref, e.getEventTime(), url);
+                        alerts.addSocial(from, to, event, ref, e.getEventTime(), url);
                     } else {
                         String title = "";
-                        doAcademicInsert(from, to, event, ref, title, siteId, e.getEventTime(), url);
+                        alerts.addAcademic(from, to, event, ref, title, siteId, e.getEventTime(), url);
                     }
-                    countCache.remove(to);
                 }
             }
         }
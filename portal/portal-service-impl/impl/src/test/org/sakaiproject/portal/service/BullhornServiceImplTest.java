@@ -0,0 +1,63 @@
+/**
+ * Copyright (c) 2003-2018 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.portal.service;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import static org.mockito.Mockito.*;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
+
+public class BullhornServiceImplTest extends TestCase {
+
+	public void testFullQueueDropsWithoutWaiting() throws Exception {
+		BullhornServiceImpl bullhornService = new BullhornServiceImpl();
+		ThreadLocalManager threadLocalManager = mock(ThreadLocalManager.class);
+		bullhornService.setThreadLocalManager(threadLocalManager);
+		ThreadPoolExecutor executor = bullhornService.createAlertExecutor(1, 1);
+
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Runnable blocked = () -> {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		};
+		executor.execute(blocked);
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		// fills the queue
+		executor.execute(() -> { });
+
+		long start = System.currentTimeMillis();
+		executor.execute(() -> fail("should have been dropped"));
+		executor.execute(() -> fail("should have been dropped"));
+		assertTrue("the observer must not wait for room", System.currentTimeMillis() - start < 1000);
+		assertEquals(Long.valueOf(2), bullhornService.getMetrics().get("eventsDropped"));
+
+		release.countDown();
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+		assertEquals(0, executor.getQueue().size());
+		// each finished task clears the worker's thread locals
+		verify(threadLocalManager, times(2)).clear();
+	}
+}
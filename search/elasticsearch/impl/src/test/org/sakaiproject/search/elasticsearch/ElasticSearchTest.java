@@ -200,6 +200,7 @@ public class ElasticSearchTest {
         elasticSearchIndexBuilder.setSiteService(siteService);
         elasticSearchIndexBuilder.setServerConfigurationService(serverConfigurationService);
         elasticSearchIndexBuilder.setEventTrackingService(eventTrackingService);
+        elasticSearchIndexBuilder.setThreadLocalManager(threadLocalManager);
         elasticSearchIndexBuilder.setUserDirectoryService(userDirectoryService);
         elasticSearchIndexBuilder.setSiteService(siteService);
         elasticSearchIndexBuilder.setFilter(filter);
@@ -268,6 +269,11 @@ public class ElasticSearchTest {
                 "                \"analyzer\": \"snowball\",\n" +
                 "                \"index\": \"analyzed\",\n" +
                 "                \"store\": \"no\"\n" +
+                "            },\n" +
+                "            \"checksum\": {\n" +
+                "                \"type\": \"string\",\n" +
+                "                \"index\": \"no\",\n" +
+                "                \"store\": \"yes\"\n" +
                 "            }\n" +
                 "        }\n" +
                 "    }\n" +
@@ -526,6 +532,74 @@ public class ElasticSearchTest {
         assertTrue("num doc=" + elasticSearchService.getNDocs() + ", expecting 106.", elasticSearchService.getNDocs() == 106);
     }
 
+    @Test
+    public void testRebuildSiteIndexSkipsUnchangedDocs() {
+        elasticSearchIndexBuilder.addResource(notification, event);
+        addResources();
+        elasticSearchIndexBuilder.refreshIndex();
+
+        elasticSearchIndexBuilder.rebuildIndex(siteId);
+        elasticSearchIndexBuilder.refreshIndex();
+
+        // only one of the docs belongs to the site being rebuilt, the others are routed to their own sites
+        assertEquals(1, elasticSearchIndexBuilder.getIndexingStats().getUnchanged());
+        assertEquals(106, elasticSearchService.getNDocs());
+    }
+
+    @Test
+    public void testRebuildSiteIndexUpdatesChangedDocs() throws InvalidSearchQueryException {
+        elasticSearchIndexBuilder.addResource(notification, event);
+        elasticSearchIndexBuilder.refreshIndex();
+
+        when(entityContentProducer.getContent(resourceName)).thenReturn("zebra crossing");
+        when(entityContentProducer.getSiteContentIterator(siteId)).thenReturn(Collections.singletonList(resourceName).iterator());
+        elasticSearchIndexBuilder.rebuildIndex(siteId);
+        elasticSearchIndexBuilder.refreshIndex();
+
+        assertEquals(0, elasticSearchIndexBuilder.getIndexingStats().getUnchanged());
+        SearchList list = elasticSearchService.search("zebra", siteIds, 0, 10);
+        assertEquals(1, list.size());
+        assertEquals(resourceName, list.get(0).getReference());
+    }
+
+    @Test
+    public void testRebuildSiteIndexRemovesDeletedDocs() {
+        elasticSearchIndexBuilder.addResource(notification, event);
+        elasticSearchIndexBuilder.refreshIndex();
+        assertEquals(1, elasticSearchService.getNDocs());
+
+        when(entityContentProducer.getSiteContentIterator(siteId)).thenReturn(Collections.<String>emptyIterator());
+        elasticSearchIndexBuilder.rebuildIndex(siteId);
+        elasticSearchIndexBuilder.refreshIndex();
+
+        assertEquals(0, elasticSearchService.getNDocs());
+    }
+
+    @Test
+    public void testCapturedChanges() {
+        // changes are only captured outside of test mode, the flush is run by hand below
+        elasticSearchIndexBuilder.setTestMode(false);
+
+        elasticSearchIndexBuilder.addResource(notification, event);
+        addResources();
+        elasticSearchIndexBuilder.refreshIndex();
+        assertEquals(106, elasticSearchIndexBuilder.getPendingChangeCount());
+        assertEquals(0, elasticSearchService.getNDocs());
+
+        elasticSearchIndexBuilder.flushPendingChanges();
+        elasticSearchIndexBuilder.refreshIndex();
+        assertEquals(0, elasticSearchIndexBuilder.getPendingChangeCount());
+        assertEquals(106, elasticSearchIndexBuilder.getIndexingStats().getIndexed());
+        assertEquals(106, elasticSearchService.getNDocs());
+        assertEquals(0, elasticSearchService.getPendingDocs());
+
+        // same content again, nothing is rewritten
+        addResources();
+        elasticSearchIndexBuilder.flushPendingChanges();
+        assertEquals(106, elasticSearchIndexBuilder.getIndexingStats().getIndexed());
+        assertEquals(106, elasticSearchIndexBuilder.getIndexingStats().getUnchanged());
+    }
+
     public class Resource {
         private String content;
         private String siteId;
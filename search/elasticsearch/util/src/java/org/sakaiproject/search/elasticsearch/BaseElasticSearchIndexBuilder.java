@@ -17,10 +17,13 @@ package org.sakaiproject.search.elasticsearch;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
 import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
@@ -37,6 +40,9 @@ import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.count.CountResponse;
 import org.elasticsearch.action.delete.DeleteRequestBuilder;
 import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
 import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.search.SearchRequestBuilder;
@@ -49,6 +55,7 @@ import org.elasticsearch.common.lang3.tuple.ImmutablePair;
 import org.elasticsearch.common.lang3.tuple.Pair;
 import org.elasticsearch.common.settings.loader.JsonSettingsLoader;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.get.GetField;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.indices.IndexAlreadyExistsException;
@@ -68,10 +75,12 @@ import org.sakaiproject.search.api.SearchStatus;
 import org.sakaiproject.search.elasticsearch.filter.SearchItemFilter;
 import org.sakaiproject.search.model.SearchBuilderItem;
 import org.sakaiproject.search.elasticsearch.ElasticSearchConstants;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
 import org.springframework.util.Assert;
 
 import java.io.IOException;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -79,12 +88,23 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
@@ -120,6 +140,12 @@ public abstract class BaseElasticSearchIndexBuilder implements ElasticSearchInde
     protected static final String DELETE_RESOURCE_KEY_DOCUMENT_ID = "DOCUMENT_ID";
     protected static final String DELETE_RESOURCE_KEY_ENTITY_REFERENCE = "ENTITY_REFERENCE";
 
+    /**
+     * Stored, unindexed field holding a digest of a document's content and metadata, see
+     * {@link #computeChecksum(String, EntityContentProducer, String)}
+     */
+    protected static final String FIELD_CHECKSUM = "checksum";
+
     protected final static SecurityAdvisor allowAllAdvisor =
             (userId, function, reference) -> SecurityAdvisor.SecurityAdvice.ALLOWED;
 
@@ -127,6 +153,7 @@ public abstract class BaseElasticSearchIndexBuilder implements ElasticSearchInde
     protected SecurityService securityService;
     protected ServerConfigurationService serverConfigurationService;
     protected EventTrackingService eventTrackingService;
+    protected ThreadLocalManager threadLocalManager;
 
 
     /**
@@ -189,6 +216,52 @@ public abstract class BaseElasticSearchIndexBuilder implements ElasticSearchInde
      */
     protected int bulkRequestSize = 10;
 
+    /**
+     * Max estimated size in bytes of one elasticsearch bulk index call (defaults to 5MB). A bulk request
+     * is sent as soon as it reaches either this or {@link #bulkRequestSize}, so a few large documents don't
+     * pile up in memory waiting for the batch to fill.
+     */
+    protected long bulkRequestMaxBytes = 5 * 1024 * 1024;
+
+    /**
+     * Max number of milliseconds a document waits in a partially filled bulk request before the request is
+     * sent anyway (defaults to 5 seconds)
+     */
+    protected long bulkRequestMaxWait = 5000;
+
+    /**
+     * Number of times the items of a bulk request that elasticsearch rejected because its bulk queue was full
+     * are sent again (defaults to 3). The wait before each retry doubles, starting at
+     * {@link #bulkRequestRetryBackoff} milliseconds.
+     */
+    protected int bulkRequestMaxRetries = 3;
+
+    protected long bulkRequestRetryBackoff = 500;
+
+    /**
+     * Number of threads digesting content in parallel (defaults to 2). No more than twice this many digested
+     * documents are held in memory outside the bulk request being built.
+     */
+    protected int contentDigestionThreads = 2;
+
+    /**
+     * how often in seconds the add and delete events captured since the last run are indexed (defaults to 5).
+     * Events for the same document within that window are coalesced into one change. Set this to 0 to index
+     * each event as it arrives.
+     */
+    protected int changeFlushPeriod = 5;
+
+    /**
+     * Max number of captured changes held in memory (defaults to 1000). When there are more the changes are
+     * written to the index as pending documents for the {@link BulkContentIndexerTask} to pick up instead.
+     */
+    protected int maxPendingChanges = 1000;
+
+    /**
+     * set to false to always rewrite documents even when their content and metadata are unchanged
+     */
+    protected boolean useChecksums = true;
+
     /**
      * number seconds of wait after startup before starting the BulkContentIndexerTask (defaults to 3 minutes)
      */
@@ -255,6 +328,21 @@ public abstract class BaseElasticSearchIndexBuilder implements ElasticSearchInde
      */
     protected Timer backgroundScheduler = null;
 
+    /**
+     * runs the {@link ChangeFlushTask}, apart from {@link #backgroundScheduler} so that long rebuilds don't
+     * hold up indexing of new changes
+     */
+    protected Timer changeFlushScheduler = null;
+
+    protected ExecutorService digestionExecutor = null;
+
+    /**
+     * changes captured from events and not yet indexed, keyed by document id, oldest first
+     */
+    protected final Map<String, ContentChange> pendingChanges = new LinkedHashMap<>();
+
+    protected final IndexingStats indexingStats = new IndexingStats();
+
     protected Set<EntityContentProducer> producers = Sets.newConcurrentHashSet();
 
     protected Set<String> triggerFunctions = Sets.newHashSet();
@@ -268,6 +356,24 @@ public abstract class BaseElasticSearchIndexBuilder implements ElasticSearchInde
 
     @Override
     public void destroy() {
+        if (changeFlushScheduler != null) {
+            changeFlushScheduler.cancel();
+        }
+        if (client != null) {
+            // don't lose captured changes, leave them in the content queue for the next start
+            final List<ContentChange> changes = drainPendingChanges();
+            if (!changes.isEmpty()) {
+                try {
+                    queueChanges(changes);
+                } catch (Exception e) {
+                    getLog().warn("Could not queue " + changes.size() + " captured changes for index builder ["
+                            + getName() + "] at shutdown", e);
+                }
+            }
+        }
+        if (digestionExecutor != null) {
+            digestionExecutor.shutdownNow();
+        }
         this.client = null;
         this.eventRegistrar = null;
     }
@@ -302,6 +408,13 @@ public abstract class BaseElasticSearchIndexBuilder implements ElasticSearchInde
         this.backgroundScheduler = initializeBackgroundScheduler();
         backgroundScheduler.schedule(initializeContentQueueProcessingTask(), (delay * 1000), (period * 1000));
 
+        this.digestionExecutor = initializeDigestionExecutor();
+
+        if (isCapturingChanges()) {
+            this.changeFlushScheduler = new Timer("[elasticsearch change capture " + getName() + "]", true);
+            changeFlushScheduler.schedule(new ChangeFlushTask(), (changeFlushPeriod * 1000), (changeFlushPeriod * 1000));
+        }
+
         initializeIndex();
 
         this.eventRegistrar.updateEventsFor(this);
@@ -402,6 +515,18 @@ public abstract class BaseElasticSearchIndexBuilder implements ElasticSearchInde
         return new Timer("[elasticsearch content indexer " + getName() + "]", true);
     }
 
+    protected ExecutorService initializeDigestionExecutor() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(Math.max(1, contentDigestionThreads), r -> {
+            final Thread thread = new Thread(r, "[elasticsearch content digester " + getName() + " "
+                    + threadCount.incrementAndGet() + "]");
+            thread.setDaemon(true);
+            // let's not hog the whole CPU, digesting large files can take a while
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        });
+    }
+
     protected TimerTask initializeContentQueueProcessingTask() {
         return testMode ? new NoOpTask() : newBulkContentIndexerTask();
     }
@@ -437,6 +562,24 @@ public abstract class BaseElasticSearchIndexBuilder implements ElasticSearchInde
         return new BulkContentIndexerTask();
     }
 
+    /**
+     * Indexes the changes captured from events since the last run. This timer task is run by the change
+     * capture timer thread every {@link #changeFlushPeriod} seconds.
+     */
+    protected class ChangeFlushTask extends TimerTask {
+        @Override
+        public void run() {
+            try {
+                enableAzgSecurityAdvisor();
+                flushPendingChanges();
+            } catch (Exception e) {
+                getLog().error("Failed to index captured changes for index builder [" + getName() + "]", e);
+            } finally {
+                disableAzgSecurityAdvisor();
+            }
+        }
+    }
+
     protected class RebuildIndexTask extends TimerTask {
         /**
          * Rebuild the index from the entities own stored state {@inheritDoc}
@@ -473,36 +616,29 @@ public abstract class BaseElasticSearchIndexBuilder implements ElasticSearchInde
         SearchResponse response = findContentQueue();
 
         SearchHit[] hits = response.getHits().hits();
-        List<NoContentException> noContentExceptions = new ArrayList();
         getLog().debug(getPendingDocuments() + " pending docs for index builder [" + getName() + "]");
 
-        BulkRequestBuilder bulkRequest = newContentQueueBulkUpdateRequestBuilder();
+        List<ContentChange> changes = new ArrayList<>(hits.length);
 
         for (SearchHit hit : hits) {
+            String reference = getFieldFromSearchHit(SearchService.FIELD_REFERENCE, hit);
+            EntityContentProducer ecp = newEntityContentProducer(reference);
 
-            if (bulkRequest.numberOfActions() < bulkRequestSize) {
+            if (ecp != null) {
+                // the doc is still in the queue if digesting fails, so there is nothing to requeue
+                changes.add(new ContentChange(IndexAction.ADD, reference, ecp, hit.getId(), null, false));
+            } else {
                 try {
-                    processContentQueueEntry(hit, bulkRequest);
-                } catch ( NoContentException e ) {
-                    noContentExceptions.add(e);
+                    noContentProducerForContentQueueEntry(hit, reference);
+                } catch (NoContentException e) {
+                    changes.add(new ContentChange(IndexAction.DELETE, reference, null, hit.getId(),
+                            extractDeleteDocumentParams(e), false));
                 }
-            } else {
-                executeBulkRequest(bulkRequest);
-                bulkRequest = newContentQueueBulkUpdateRequestBuilder();
             }
         }
 
-        // execute any remaining bulks requests not executed yet
-        if (bulkRequest.numberOfActions() > 0) {
-            executeBulkRequest(bulkRequest);
-        }
-
-        // remove any docs without content, so we don't try to index them again
-        if (!noContentExceptions.isEmpty()) {
-            for (NoContentException noContentException : noContentExceptions) {
-                deleteDocument(noContentException);
-            }
-        }
+        // queued docs have no content yet, so there is nothing to compare checksums with
+        indexChanges(changes.iterator(), Collections.emptyMap());
 
         lastLoad = System.currentTimeMillis();
 
@@ -513,6 +649,126 @@ public abstract class BaseElasticSearchIndexBuilder implements ElasticSearchInde
 
     }
 
+    /**
+     * Digests the content of the given changes in parallel and sends the resulting documents to the index in
+     * bulk. Documents whose checksum is the one in {@code knownChecksums} for their id are left as they are,
+     * documents without content are removed from the index. Only a small window of digested documents is held
+     * in memory, so while a bulk request is being sent digestion waits for it rather than running ahead.
+     *
+     * @param changes the changes to index, consumed lazily
+     * @param knownChecksums checksums of the documents already in the index, by document id
+     * @return the number of changes handled, whether written or skipped
+     */
+    protected int indexChanges(Iterator<ContentChange> changes, Map<String, String> knownChecksums) {
+        final long start = System.currentTimeMillis();
+        final BulkIndexBuffer buffer = new BulkIndexBuffer();
+        final CompletionService<DigestedContent> digestions = new ExecutorCompletionService<>(digestionExecutor);
+        final int window = Math.max(1, contentDigestionThreads * 2);
+        int inFlight = 0;
+        int handled = 0;
+
+        try {
+            while (inFlight > 0 || changes.hasNext()) {
+                while (inFlight < window && changes.hasNext()) {
+                    final ContentChange change = changes.next();
+                    if (IndexAction.DELETE.equals(change.getAction())) {
+                        buffer.add(prepareDeleteDocument(change.getDeleteParams()));
+                        handled++;
+                    } else {
+                        digestions.submit(() -> digest(change));
+                        inFlight++;
+                    }
+                }
+                if (inFlight == 0) {
+                    break;
+                }
+
+                Future<DigestedContent> digested;
+                while ((digested = digestions.poll(bulkRequestMaxWait, TimeUnit.MILLISECONDS)) == null) {
+                    // a slow digestion shouldn't hold back the documents already waiting in the bulk request
+                    buffer.flushIfStale();
+                }
+                inFlight--;
+                handled++;
+
+                try {
+                    bufferDigestedContent(buffer, digested.get(), knownChecksums);
+                } catch (ExecutionException e) {
+                    indexingStats.documentFailed();
+                    getLog().error("Failed to digest content in index builder [" + getName() + "]", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            getLog().warn("Interrupted while indexing content in index builder [" + getName() + "], "
+                    + inFlight + " docs were being digested");
+            Thread.currentThread().interrupt();
+        } finally {
+            // send whatever made it into the bulk request, even if we are bailing out
+            buffer.flush();
+        }
+
+        indexingStats.recordRun(handled, System.currentTimeMillis() - start);
+        return handled;
+    }
+
+    /**
+     * Gets the content of a change from its {@link EntityContentProducer}. Runs on one of the digestion threads.
+     */
+    protected DigestedContent digest(ContentChange change) {
+        try {
+            enableAzgSecurityAdvisor();
+            final String content = change.getContentProducer().getContent(change.getReference());
+            return new DigestedContent(change, content,
+                    computeChecksum(change.getReference(), change.getContentProducer(), content), null);
+        } catch (Exception e) {
+            return new DigestedContent(change, null, null, e);
+        } finally {
+            disableAzgSecurityAdvisor();
+            if (threadLocalManager != null) {
+                // producers can leave request scoped caches behind, which would otherwise live as long as the thread
+                threadLocalManager.clear();
+            }
+        }
+    }
+
+    protected void bufferDigestedContent(BulkIndexBuffer buffer, DigestedContent digested, Map<String, String> knownChecksums) {
+        final ContentChange change = digested.getChange();
+        final String reference = change.getReference();
+        final EntityContentProducer ecp = change.getContentProducer();
+
+        if (digested.getFailure() != null) {
+            indexingStats.documentFailed();
+            getLog().error("Failed to digest content for [" + reference + "] in index builder [" + getName() + "]",
+                    digested.getFailure());
+            if (change.isRequeueOnFailure()) {
+                try {
+                    // leave it for the BulkContentIndexerTask to try again
+                    buffer.add(prepareIndex(reference, ecp, false));
+                } catch (Exception e) {
+                    getLog().error("Failed to queue [" + reference + "] in index builder [" + getName() + "]", e);
+                }
+            }
+            return;
+        }
+
+        if (digested.getChecksum() != null && digested.getChecksum().equals(knownChecksums.get(change.getId()))) {
+            getLog().debug("Content of [" + reference + "] is unchanged in index builder [" + getName() + "]");
+            indexingStats.documentUnchanged();
+            return;
+        }
+
+        try {
+            buffer.add(prepareIndex(reference, ecp, digested.getContent(), digested.getChecksum()));
+        } catch (NoContentException e) {
+            // if there is no content to index remove the doc, its pointless to have it included in the index
+            // and we will just waste cycles looking at it again everytime this thread runs
+            buffer.add(prepareDeleteDocument(extractDeleteDocumentParams(e)));
+        } catch (Exception e) {
+            indexingStats.documentFailed();
+            getLog().error("Failed to index [" + reference + "] in index builder [" + getName() + "]", e);
+        }
+    }
+
     protected void processContentQueueEntry(SearchHit hit, BulkRequestBuilder bulkRequest) throws NoContentException {
         String reference = getFieldFromSearchHit(SearchService.FIELD_REFERENCE, hit);
         EntityContentProducer ecp = newEntityContentProducer(reference);
@@ -534,39 +790,75 @@ public abstract class BaseElasticSearchIndexBuilder implements ElasticSearchInde
     }
 
     protected void executeBulkRequest(BulkRequestBuilder bulkRequest) {
-        BulkResponse bulkResponse = bulkRequest.execute().actionGet();
+        for (int attempt = 0; ; attempt++) {
+            BulkResponse bulkResponse = bulkRequest.execute().actionGet();
+            indexingStats.bulkRequestSent(bulkRequest.request().estimatedSizeInBytes());
 
-        getLog().info("Bulk request of batch size: " + bulkRequest.numberOfActions() + " took "
-                + bulkResponse.getTookInMillis() + " ms in index builder: " + getName());
+            getLog().info("Bulk request of batch size: " + bulkRequest.numberOfActions() + " took "
+                    + bulkResponse.getTookInMillis() + " ms in index builder: " + getName());
 
-        for (BulkItemResponse response : bulkResponse.getItems()) {
-            if (response.getResponse() instanceof DeleteResponse) {
-                DeleteResponse deleteResponse = response.getResponse();
+            List<ActionRequest> requests = bulkRequest.request().requests();
+            BulkRequestBuilder rejected = newContentQueueBulkUpdateRequestBuilder();
 
+            for (BulkItemResponse response : bulkResponse.getItems()) {
                 if (response.isFailed()) {
-                    getLog().error("Problem deleting doc: " + response.getId() + " in index builder: " + getName()
-                            + " error: " + response.getFailureMessage());
-                } else if (!deleteResponse.isFound()) {
-                    getLog().debug("ES could not find a doc with id: " + deleteResponse.getId()
-                            + " to delete in index builder: " + getName());
-                } else {
-                    getLog().debug("ES deleted a doc with id: " + deleteResponse.getId() + " in index builder: "
-                            + getName());
-                }
-            } else if (response.getResponse() instanceof IndexResponse) {
-                IndexResponse indexResponse = response.getResponse();
-
-                if (response.isFailed()) {
-                    getLog().error("Problem updating content for doc: " + response.getId() + " in index builder: "
-                            + getName() + " error: " + response.getFailureMessage());
-                } else {
+                    if (attempt < bulkRequestMaxRetries && isRejected(response)) {
+                        rejected.request().add(requests.get(response.getItemId()));
+                    } else {
+                        indexingStats.documentFailed();
+                        getLog().error("Problem with " + response.getOpType() + " of doc: " + response.getId()
+                                + " in index builder: " + getName() + " error: " + response.getFailureMessage());
+                    }
+                } else if (response.getResponse() instanceof DeleteResponse) {
+                    DeleteResponse deleteResponse = response.getResponse();
+
+                    if (!deleteResponse.isFound()) {
+                        getLog().debug("ES could not find a doc with id: " + deleteResponse.getId()
+                                + " to delete in index builder: " + getName());
+                    } else {
+                        indexingStats.documentDeleted();
+                        getLog().debug("ES deleted a doc with id: " + deleteResponse.getId() + " in index builder: "
+                                + getName());
+                    }
+                } else if (response.getResponse() instanceof IndexResponse) {
+                    IndexResponse indexResponse = response.getResponse();
+
+                    indexingStats.documentIndexed();
                     getLog().debug("ES indexed content for doc with id: " + indexResponse.getId()
                             + " in index builder: " + getName());
                 }
             }
+
+            if (rejected.numberOfActions() == 0) {
+                return;
+            }
+
+            // ES is telling us to slow down, so back off before trying the rejected items again
+            long backoff = bulkRequestRetryBackoff << attempt;
+            getLog().warn(rejected.numberOfActions() + " items of a bulk request were rejected in index builder: "
+                    + getName() + ", retrying in " + backoff + " ms");
+            indexingStats.bulkRequestRetried();
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                getLog().error("Interrupted, dropping " + rejected.numberOfActions()
+                        + " rejected items in index builder: " + getName());
+                Thread.currentThread().interrupt();
+                return;
+            }
+            bulkRequest = rejected;
         }
     }
 
+    /**
+     * @return true if the item failed because the bulk thread pool of the node was full, rather than
+     * because of something wrong with the item itself
+     */
+    protected boolean isRejected(BulkItemResponse response) {
+        return response.getFailureMessage() != null
+                && response.getFailureMessage().contains("EsRejectedExecutionException");
+    }
+
     protected void noContentProducerForContentQueueEntry(SearchHit hit, String reference) throws NoContentException {
         // if there is no content to index remove the doc, its pointless to have it included in the index
         // and we will just waste cycles looking at it again everytime this thread runs, and will probably
@@ -752,6 +1044,23 @@ public abstract class BaseElasticSearchIndexBuilder implements ElasticSearchInde
         return completeIndexRequestBuilder(requestBuilder, resourceName, ecp, includeContent);
     }
 
+    /**
+     * Same as {@link #prepareIndex(String, EntityContentProducer, boolean)} with content included, for content
+     * that has already been digested.
+     */
+    protected IndexRequestBuilder prepareIndex(String resourceName, EntityContentProducer ecp, String content,
+                                               String checksum)
+            throws IOException, NoContentException {
+        IndexRequestBuilder requestBuilder = newIndexRequestBuilder(resourceName, ecp, true);
+        XContentBuilder requestContentSource = newIndexRequestContentSourceBuilder(resourceName, ecp, true);
+        requestContentSource = addFields(requestContentSource, resourceName, ecp, true);
+        requestContentSource = addCustomProperties(requestContentSource, resourceName, ecp, true);
+        requestContentSource = addDigestedContent(requestContentSource, resourceName, ecp, content, checksum);
+        requestContentSource = completeIndexRequestContentSourceBuilder(requestContentSource, resourceName, ecp, true);
+        requestBuilder = requestBuilder.setSource(requestContentSource);
+        return completeIndexRequestBuilder(requestBuilder, resourceName, ecp, true);
+    }
+
     protected IndexRequestBuilder newIndexRequestBuilder(String resourceName, EntityContentProducer ecp,
                                                          boolean includeContent)
             throws IOException {
@@ -796,20 +1105,53 @@ public abstract class BaseElasticSearchIndexBuilder implements ElasticSearchInde
                                          boolean includeContent) throws NoContentException, IOException {
         if (includeContent || testMode) {
             String content = ecp.getContent(resourceName);
-            // some of the ecp impls produce content with nothing but whitespace, its waste of time to index those
-            if (StringUtils.isNotBlank(content)) {
-                return contentSourceBuilder
-                        // cannot rely on ecp for providing something reliable to maintain index state
-                        // indexed indicates if the document was indexed
-                        .field(SearchService.FIELD_INDEXED, true)
-                        .field(SearchService.FIELD_CONTENTS, content);
-            } else {
-                return noContentForIndexRequest(contentSourceBuilder, resourceName, ecp, includeContent);
-            }
+            return addDigestedContent(contentSourceBuilder, resourceName, ecp, content,
+                    computeChecksum(resourceName, ecp, content));
         }
         return contentSourceBuilder;
     }
 
+    protected XContentBuilder addDigestedContent(XContentBuilder contentSourceBuilder, String resourceName,
+                                                 EntityContentProducer ecp, String content, String checksum)
+            throws NoContentException, IOException {
+        // some of the ecp impls produce content with nothing but whitespace, its waste of time to index those
+        if (StringUtils.isNotBlank(content)) {
+            contentSourceBuilder = contentSourceBuilder
+                    // cannot rely on ecp for providing something reliable to maintain index state
+                    // indexed indicates if the document was indexed
+                    .field(SearchService.FIELD_INDEXED, true)
+                    .field(SearchService.FIELD_CONTENTS, content);
+            return checksum == null ? contentSourceBuilder : contentSourceBuilder.field(FIELD_CHECKSUM, checksum);
+        } else {
+            return noContentForIndexRequest(contentSourceBuilder, resourceName, ecp, true);
+        }
+    }
+
+    /**
+     * Digest of everything that goes into the document for the given resource, so that a document can be
+     * left alone when nothing about it has changed. Returns null if checksums are turned off or there is no
+     * content.
+     */
+    protected String computeChecksum(String resourceName, EntityContentProducer ecp, String content) {
+        if (!useChecksums || StringUtils.isBlank(content)) {
+            return null;
+        }
+        final Hasher hasher = Hashing.sha1().newHasher().putString(content, StandardCharsets.UTF_8);
+        for (String field : new String[] { ecp.getSiteId(resourceName), ecp.getTitle(resourceName),
+                ecp.getUrl(resourceName), ecp.getTool(), ecp.getContainer(resourceName), ecp.getType(resourceName) }) {
+            hasher.putChar('\u0000').putString(String.valueOf(field), StandardCharsets.UTF_8);
+        }
+        // sorted, the producers' maps don't guarantee an order
+        for (Map.Entry<String, Collection<String>> property
+                : new TreeMap<>(extractCustomProperties(resourceName, ecp)).entrySet()) {
+            hasher.putChar('\u0000').putString(property.getKey(), StandardCharsets.UTF_8);
+            for (String value : property.getValue()) {
+                hasher.putChar('\u0001').putString(String.valueOf(value), StandardCharsets.UTF_8);
+            }
+        }
+        return hasher.hash().toString();
+    }
+
     protected abstract XContentBuilder noContentForIndexRequest(XContentBuilder contentSourceBuilder,
                                                                 String resourceName, EntityContentProducer ecp,
                                                                 boolean includeContent)
@@ -981,6 +1323,14 @@ public abstract class BaseElasticSearchIndexBuilder implements ElasticSearchInde
         getLog().debug("Action on '" + resourceName + "' detected as " + indexAction.name() + " in index builder "
                 + getName());
 
+        if (isCapturingChanges() && isSupportedIndexAction(indexAction)) {
+            captureChange(new ContentChange(indexAction, resourceName, ecp,
+                    (String)validationContext.get(ADD_RESOURCE_VALIDATION_KEY_ENTITY_ID),
+                    IndexAction.DELETE.equals(indexAction) ? extractDeleteDocumentParams(validationContext) : null,
+                    true));
+            return;
+        }
+
         switch (indexAction) {
             case ADD:
                 indexAdd(resourceName, ecp);
@@ -1000,6 +1350,126 @@ public abstract class BaseElasticSearchIndexBuilder implements ElasticSearchInde
         return params;
     }
 
+    protected boolean isCapturingChanges() {
+        return !testMode && changeFlushPeriod > 0;
+    }
+
+    /**
+     * Holds on to a change until the next {@link ChangeFlushTask} run, replacing any earlier change to the same
+     * document. If too many changes are waiting they are written to the content queue right away, which keeps
+     * memory bounded and slows down whoever is posting the events rather than losing changes.
+     */
+    protected void captureChange(ContentChange change) {
+        List<ContentChange> overflow = null;
+        synchronized (pendingChanges) {
+            pendingChanges.remove(change.getId());
+            pendingChanges.put(change.getId(), change);
+            if (pendingChanges.size() > maxPendingChanges) {
+                overflow = new ArrayList<>(pendingChanges.values());
+                pendingChanges.clear();
+            }
+        }
+        if (overflow != null) {
+            getLog().info("More than " + maxPendingChanges + " changes captured in index builder [" + getName()
+                    + "], queuing them for the content indexing task");
+            queueChanges(overflow);
+        }
+    }
+
+    protected List<ContentChange> drainPendingChanges() {
+        synchronized (pendingChanges) {
+            final List<ContentChange> changes = new ArrayList<>(pendingChanges.values());
+            pendingChanges.clear();
+            return changes;
+        }
+    }
+
+    public int getPendingChangeCount() {
+        synchronized (pendingChanges) {
+            return pendingChanges.size();
+        }
+    }
+
+    /**
+     * Indexes the changes captured since the last run, skipping documents whose checksum hasn't changed.
+     */
+    protected void flushPendingChanges() {
+        final List<ContentChange> changes = drainPendingChanges();
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        indexChanges(changes.iterator(), findChecksums(changes));
+
+        // the first change is the one that has been waiting the longest
+        indexingStats.recordLag(System.currentTimeMillis() - changes.get(0).getCapturedAt());
+        getLog().debug("Indexed " + changes.size() + " captured changes in index builder [" + getName() + "]");
+    }
+
+    /**
+     * Writes changes to the index without their content, the way events were handled before changes were
+     * captured, so the {@link BulkContentIndexerTask} digests them later.
+     */
+    protected void queueChanges(Collection<ContentChange> changes) {
+        final BulkIndexBuffer buffer = new BulkIndexBuffer();
+        for (ContentChange change : changes) {
+            try {
+                if (IndexAction.DELETE.equals(change.getAction())) {
+                    buffer.add(prepareDeleteDocument(change.getDeleteParams()));
+                } else {
+                    buffer.add(prepareIndex(change.getReference(), change.getContentProducer(), false));
+                }
+            } catch (Exception e) {
+                getLog().error("Problem queuing content indexing in index builder: " + getName()
+                        + " for entity: " + change.getReference(), e);
+            }
+        }
+        buffer.flush();
+    }
+
+    /**
+     * Looks up the checksums of the documents already in the index for the given changes, in a single request.
+     *
+     * @return the checksums by document id, documents without one are left out
+     */
+    protected Map<String, String> findChecksums(Collection<ContentChange> changes) {
+        final Map<String, String> checksums = Maps.newHashMap();
+        if (!useChecksums) {
+            return checksums;
+        }
+
+        final MultiGetRequestBuilder request = client.prepareMultiGet();
+        int items = 0;
+        for (ContentChange change : changes) {
+            if (IndexAction.ADD.equals(change.getAction())) {
+                request.add(completeChecksumLookupItem(
+                        new MultiGetRequest.Item(indexName, indexedDocumentType, change.getId()).fields(FIELD_CHECKSUM),
+                        change));
+                items++;
+            }
+        }
+        if (items == 0) {
+            return checksums;
+        }
+
+        for (MultiGetItemResponse item : request.execute().actionGet()) {
+            if (!item.isFailed() && item.getResponse().isExists()) {
+                final GetField field = item.getResponse().getField(FIELD_CHECKSUM);
+                if (field != null && field.getValue() != null) {
+                    checksums.put(item.getId(), field.getValue().toString());
+                }
+            }
+        }
+        return checksums;
+    }
+
+    /**
+     * Gives subclasses a chance to add routing to the checksum lookup of a document.
+     */
+    protected MultiGetRequest.Item completeChecksumLookupItem(MultiGetRequest.Item item, ContentChange change) {
+        return item;
+    }
+
     /**
      * Extract properties from the given {@link EntityContentProducer}
      * <p>
@@ -1271,6 +1741,8 @@ public abstract class BaseElasticSearchIndexBuilder implements ElasticSearchInde
                 " Flush Time: " + status.getFlushStats().getTotalTimeInMillis() + "ms" +
                 " Merge Time: " + status.getMergeStats().getTotalTimeInMillis() + "ms");
 
+        into.append(" Captured changes: " + getPendingChangeCount() + " " + indexingStats);
+
         return into;
     }
 
@@ -1563,6 +2035,42 @@ public abstract class BaseElasticSearchIndexBuilder implements ElasticSearchInde
         this.bulkRequestSize = bulkRequestSize;
     }
 
+    public void setBulkRequestMaxBytes(long bulkRequestMaxBytes) {
+        this.bulkRequestMaxBytes = bulkRequestMaxBytes;
+    }
+
+    public void setBulkRequestMaxWait(long bulkRequestMaxWait) {
+        this.bulkRequestMaxWait = bulkRequestMaxWait;
+    }
+
+    public void setBulkRequestMaxRetries(int bulkRequestMaxRetries) {
+        this.bulkRequestMaxRetries = bulkRequestMaxRetries;
+    }
+
+    public void setBulkRequestRetryBackoff(long bulkRequestRetryBackoff) {
+        this.bulkRequestRetryBackoff = bulkRequestRetryBackoff;
+    }
+
+    public void setContentDigestionThreads(int contentDigestionThreads) {
+        this.contentDigestionThreads = contentDigestionThreads;
+    }
+
+    public void setChangeFlushPeriod(int changeFlushPeriod) {
+        this.changeFlushPeriod = changeFlushPeriod;
+    }
+
+    public void setMaxPendingChanges(int maxPendingChanges) {
+        this.maxPendingChanges = maxPendingChanges;
+    }
+
+    public void setUseChecksums(boolean useChecksums) {
+        this.useChecksums = useChecksums;
+    }
+
+    public IndexingStats getIndexingStats() {
+        return indexingStats;
+    }
+
     public void setSecurityService(SecurityService securityService) {
         this.securityService = securityService;
     }
@@ -1575,6 +2083,10 @@ public abstract class BaseElasticSearchIndexBuilder implements ElasticSearchInde
         this.eventTrackingService = eventTrackingService;
     }
 
+    public void setThreadLocalManager(ThreadLocalManager threadLocalManager) {
+        this.threadLocalManager = threadLocalManager;
+    }
+
     public void setTriggerFunctions(Collection<String> triggerFunctions) {
         this.triggerFunctions = (triggerFunctions instanceof Set)
                 ? (Set)triggerFunctions : Sets.newHashSet(triggerFunctions);
@@ -1592,6 +2104,139 @@ public abstract class BaseElasticSearchIndexBuilder implements ElasticSearchInde
 
     protected abstract Logger getLog();
 
+    /**
+     * Accumulates index and delete requests and sends them to elasticsearch once there are
+     * {@link #bulkRequestSize} of them, they add up to {@link #bulkRequestMaxBytes}, or the oldest has waited
+     * {@link #bulkRequestMaxWait} milliseconds, whichever comes first. Sending is synchronous, which is what
+     * holds back whoever is filling the buffer when elasticsearch is slow.
+     */
+    protected class BulkIndexBuffer {
+        private BulkRequestBuilder bulkRequest = newContentQueueBulkUpdateRequestBuilder();
+        private long oldest = 0;
+
+        public void add(IndexRequestBuilder request) {
+            bulkRequest.add(request);
+            added();
+        }
+
+        public void add(DeleteRequestBuilder request) {
+            bulkRequest.add(request);
+            added();
+        }
+
+        private void added() {
+            if (oldest == 0) {
+                oldest = System.currentTimeMillis();
+            }
+            if (bulkRequest.numberOfActions() >= bulkRequestSize
+                    || bulkRequest.request().estimatedSizeInBytes() >= bulkRequestMaxBytes) {
+                flush();
+            } else {
+                flushIfStale();
+            }
+        }
+
+        public void flushIfStale() {
+            if (oldest != 0 && System.currentTimeMillis() - oldest >= bulkRequestMaxWait) {
+                flush();
+            }
+        }
+
+        public void flush() {
+            if (bulkRequest.numberOfActions() > 0) {
+                executeBulkRequest(bulkRequest);
+                bulkRequest = newContentQueueBulkUpdateRequestBuilder();
+            }
+            oldest = 0;
+        }
+    }
+
+    /**
+     * An add or delete of one document, captured from an event, found in the content queue or walked
+     * during a rebuild.
+     */
+    protected static class ContentChange {
+        private final IndexAction action;
+        private final String reference;
+        private final EntityContentProducer contentProducer;
+        private final String id;
+        private final Map<String, Object> deleteParams;
+        private final boolean requeueOnFailure;
+        private final long capturedAt = System.currentTimeMillis();
+
+        /**
+         * @param deleteParams as for {@link BaseElasticSearchIndexBuilder#prepareDeleteDocument(Map)}, only needed for deletes
+         * @param requeueOnFailure true to put the document in the content queue if its content can't be digested
+         */
+        public ContentChange(IndexAction action, String reference, EntityContentProducer contentProducer, String id,
+                             Map<String, Object> deleteParams, boolean requeueOnFailure) {
+            this.action = action;
+            this.reference = reference;
+            this.contentProducer = contentProducer;
+            this.id = id;
+            this.deleteParams = deleteParams;
+            this.requeueOnFailure = requeueOnFailure;
+        }
+
+        public IndexAction getAction() {
+            return action;
+        }
+
+        public String getReference() {
+            return reference;
+        }
+
+        public EntityContentProducer getContentProducer() {
+            return contentProducer;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public Map<String, Object> getDeleteParams() {
+            return deleteParams;
+        }
+
+        public boolean isRequeueOnFailure() {
+            return requeueOnFailure;
+        }
+
+        public long getCapturedAt() {
+            return capturedAt;
+        }
+    }
+
+    protected static class DigestedContent {
+        private final ContentChange change;
+        private final String content;
+        private final String checksum;
+        private final Exception failure;
+
+        public DigestedContent(ContentChange change, String content, String checksum, Exception failure) {
+            this.change = change;
+            this.content = content;
+            this.checksum = checksum;
+            this.failure = failure;
+        }
+
+        public ContentChange getChange() {
+            return change;
+        }
+
+        public String getContent() {
+            return content;
+        }
+
+        public String getChecksum() {
+            return checksum;
+        }
+
+        public Exception getFailure() {
+            return failure;
+        }
+    }
+
 
     public enum IndexAction {
         /**
@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2003-2017 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.search.elasticsearch;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running totals for the indexing pipeline of one index builder, reported by
+ * {@link ElasticSearchIndexBuilder#getStatus(StringBuilder)}. Counts are since startup.
+ */
+public class IndexingStats {
+
+    private final AtomicLong indexed = new AtomicLong();
+    private final AtomicLong unchanged = new AtomicLong();
+    private final AtomicLong deleted = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bulkRequests = new AtomicLong();
+    private final AtomicLong bulkRetries = new AtomicLong();
+    private final AtomicLong bulkBytes = new AtomicLong();
+
+    private volatile double throughput;
+    private volatile long lag;
+    private volatile long maxLag;
+
+    public void documentIndexed() {
+        indexed.incrementAndGet();
+    }
+
+    public void documentUnchanged() {
+        unchanged.incrementAndGet();
+    }
+
+    public void documentDeleted() {
+        deleted.incrementAndGet();
+    }
+
+    public void documentFailed() {
+        failed.incrementAndGet();
+    }
+
+    public void bulkRequestSent(long bytes) {
+        bulkRequests.incrementAndGet();
+        bulkBytes.addAndGet(bytes);
+    }
+
+    public void bulkRequestRetried() {
+        bulkRetries.incrementAndGet();
+    }
+
+    /**
+     * @param documents number of documents handled by a pipeline run, whether written or skipped
+     * @param millis how long the run took
+     */
+    public void recordRun(int documents, long millis) {
+        if (documents > 0) {
+            throughput = documents * 1000d / Math.max(1, millis);
+        }
+    }
+
+    /**
+     * @param millis time between a change being captured and it being acknowledged by elasticsearch
+     */
+    public void recordLag(long millis) {
+        lag = millis;
+        if (millis > maxLag) {
+            maxLag = millis;
+        }
+    }
+
+    public long getIndexed() {
+        return indexed.get();
+    }
+
+    public long getUnchanged() {
+        return unchanged.get();
+    }
+
+    public long getDeleted() {
+        return deleted.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getBulkRequests() {
+        return bulkRequests.get();
+    }
+
+    public long getBulkRetries() {
+        return bulkRetries.get();
+    }
+
+    public long getBulkBytes() {
+        return bulkBytes.get();
+    }
+
+    /**
+     * @return documents per second handled by the most recent pipeline run
+     */
+    public double getThroughput() {
+        return throughput;
+    }
+
+    public long getLag() {
+        return lag;
+    }
+
+    public long getMaxLag() {
+        return maxLag;
+    }
+
+    @Override
+    public String toString() {
+        return "Indexed: " + getIndexed() + " Unchanged: " + getUnchanged() + " Deleted: " + getDeleted()
+                + " Failed: " + getFailed() + " Bulk requests: " + getBulkRequests() + " (" + getBulkRetries()
+                + " retried, " + (getBulkBytes() / 1024) + " KB)"
+                + " Throughput: " + Math.round(getThroughput()) + " docs/s"
+                + " Lag: " + getLag() + "ms (max " + getMaxLag() + "ms)";
+    }
+}
@@ -29,21 +29,25 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimerTask;
 import java.util.stream.Collectors;
 
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang.StringUtils;
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.delete.DeleteRequestBuilder;
 import org.elasticsearch.action.deletebyquery.DeleteByQueryResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
 import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.common.lang3.ArrayUtils;
 import org.elasticsearch.common.lang3.tuple.Pair;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.OrFilterBuilder;
@@ -78,6 +82,8 @@ public class SiteElasticSearchIndexBuilder extends BaseElasticSearchIndexBuilder
     protected static final String ADD_RESOURCE_VALIDATION_KEY_SITE_ID = "SITE_ID";
     protected static final String DELETE_RESOURCE_KEY_SITE_ID = "SITE_ID";
 
+    private static final TimeValue SCROLL_KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+
     private SiteService siteService;
     private UserDirectoryService userDirectoryService;
 
@@ -232,50 +238,42 @@ public class SiteElasticSearchIndexBuilder extends BaseElasticSearchIndexBuilder
         return searchRequestBuilder;
     }
 
+    /**
+     * Brings the index in line with the content of a site. Documents whose content and metadata haven't changed
+     * are left alone, and documents for content that no longer exists are removed.
+     */
     protected void rebuildSiteIndex(String siteId)  {
         getLog().info("Rebuilding the index for '" + siteId + "'");
 
         try {
             enableAzgSecurityAdvisor();
-            deleteAllDocumentForSite(siteId);
 
             long start = System.currentTimeMillis();
-            int numberOfDocs = 0;
-
-            BulkRequestBuilder bulkRequest = client.prepareBulk();
-
-            for (final EntityContentProducer ecp : producers) {
-
-                for (Iterator<String> i = ecp.getSiteContentIterator(siteId); i.hasNext(); ) {
-
-                    if (bulkRequest.numberOfActions() < bulkRequestSize) {
-                        String reference = i.next();
-
-                        if (StringUtils.isNotBlank(ecp.getContent(reference))) {
-                            //updating was causing issues without a _source, so doing delete and re-add
-                            try {
-                                deleteDocument(ecp.getId(reference), ecp.getSiteId(reference));
-                                bulkRequest.add(prepareIndex(reference, ecp, false));
-                                numberOfDocs++;
-                            } catch (Exception e) {
-                                getLog().error(e.getMessage(), e);
-                            }
-                        }
 
-                    } else {
-                        executeBulkRequest(bulkRequest);
-                        bulkRequest = client.prepareBulk();
-                    }
+            final Map<String, String> indexedChecksums = findSiteChecksums(siteId);
+            final Set<String> currentIds = Sets.newHashSet();
+
+            final Iterator<ContentChange> changes = Iterators.concat(Iterators.transform(producers.iterator(),
+                    ecp -> Iterators.transform(ecp.getSiteContentIterator(siteId), reference -> {
+                        final String id = ecp.getId(reference);
+                        currentIds.add(id);
+                        return new ContentChange(IndexAction.ADD, reference, ecp, id, null, false);
+                    })));
+
+            int numberOfDocs = indexChanges(changes, indexedChecksums);
+
+            final BulkIndexBuffer buffer = new BulkIndexBuffer();
+            for (String id : indexedChecksums.keySet()) {
+                if (!currentIds.contains(id)) {
+                    final Map<String, Object> params = Maps.newHashMap();
+                    params.put(DELETE_RESOURCE_KEY_DOCUMENT_ID, id);
+                    params.put(DELETE_RESOURCE_KEY_SITE_ID, siteId);
+                    buffer.add(prepareDeleteDocument(params));
                 }
-
-                // execute any remaining bulks requests not executed yet
-                if (bulkRequest.numberOfActions() > 0) {
-                    executeBulkRequest(bulkRequest);
-                }
-
             }
+            buffer.flush();
 
-            getLog().info("Queued " + numberOfDocs + " docs for indexing from site: " + siteId + " in " + (System.currentTimeMillis() - start) + " ms");
+            getLog().info("Indexed " + numberOfDocs + " docs from site: " + siteId + " in " + (System.currentTimeMillis() - start) + " ms");
 
             //flushIndex();
             //refreshIndex();
@@ -286,6 +284,45 @@ public class SiteElasticSearchIndexBuilder extends BaseElasticSearchIndexBuilder
         }
     }
 
+    /**
+     * Get the checksums of all documents indexed for a site
+     *
+     * @return checksums by document id, null for documents that don't have one
+     */
+    protected Map<String, String> findSiteChecksums(String siteId) {
+        final Map<String, String> checksums = Maps.newHashMap();
+
+        SearchResponse response = client.prepareSearch(indexName)
+                .setSearchType(SearchType.SCAN)
+                .setScroll(SCROLL_KEEP_ALIVE)
+                .setRouting(siteId)
+                .setQuery(termQuery(SearchService.FIELD_SITEID, siteId))
+                .setTypes(indexedDocumentType)
+                .setSize(contentIndexBatchSize)
+                .addFields(FIELD_CHECKSUM)
+                .execute()
+                .actionGet();
+
+        while (true) {
+            response = client.prepareSearchScroll(response.getScrollId())
+                    .setScroll(SCROLL_KEEP_ALIVE)
+                    .execute()
+                    .actionGet();
+            if (response.getHits().hits().length == 0) {
+                break;
+            }
+            for (SearchHit hit : response.getHits().hits()) {
+                checksums.put(hit.getId(), getFieldFromSearchHit(FIELD_CHECKSUM, hit));
+            }
+        }
+        return checksums;
+    }
+
+    @Override
+    protected MultiGetRequest.Item completeChecksumLookupItem(MultiGetRequest.Item item, ContentChange change) {
+        return item.routing(change.getContentProducer().getSiteId(change.getReference()));
+    }
+
     @Override
     protected void rebuildIndexImmediately() {
         // rebuild index
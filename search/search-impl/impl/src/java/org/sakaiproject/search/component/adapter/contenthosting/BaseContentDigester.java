@@ -35,6 +35,8 @@ public abstract class BaseContentDigester implements ContentDigester
 	
 	protected int maxDigestSize = 1024 * 1024 * 5; // 10M
 
+	private static final int DEFAULT_DIGEST_CHARACTER_LIMIT = 1024 * 1024;
+
 
 	public void init()
 	{
@@ -100,6 +102,22 @@ public abstract class BaseContentDigester implements ContentDigester
 		this.contentProducer = contentProducer;
 	}
 
+	/**
+	 * @return the most characters this digester should extract from one resource
+	 */
+	protected int getDigestCharacterLimit()
+	{
+		return (contentProducer == null) ? DEFAULT_DIGEST_CHARACTER_LIMIT : contentProducer.getDigestCharacterLimit();
+	}
+
+	/**
+	 * @return a writer for extracted text that stops the parser at the character limit
+	 */
+	protected CharacterLimitWriter newContentWriter()
+	{
+		return new CharacterLimitWriter(getDigestCharacterLimit());
+	}
+
 	/**
 	 * @return Returns the maxDigestSize.
 	 */
@@ -0,0 +1,101 @@
+/**
+ * Copyright (c) 2003-2017 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.search.component.adapter.contenthosting;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Collects extracted text up to a fixed number of characters. Once the limit is reached the
+ * text so far is kept and every further write fails with a {@link LimitReachedException}, so
+ * the parser feeding it stops instead of working through the rest of the document.
+ */
+public class CharacterLimitWriter extends Writer
+{
+
+	private final StringBuilder buffer = new StringBuilder();
+
+	private final int limit;
+
+	private boolean limitReached = false;
+
+	public CharacterLimitWriter(int limit)
+	{
+		this.limit = limit;
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException
+	{
+		if (limitReached)
+		{
+			throw new LimitReachedException(limit);
+		}
+		int room = limit - buffer.length();
+		if (len > room)
+		{
+			buffer.append(cbuf, off, room);
+			limitReached = true;
+			throw new LimitReachedException(limit);
+		}
+		buffer.append(cbuf, off, len);
+	}
+
+	@Override
+	public void flush()
+	{
+	}
+
+	@Override
+	public void close()
+	{
+	}
+
+	/**
+	 * @return true if text was dropped because the limit was reached
+	 */
+	public boolean isLimitReached()
+	{
+		return limitReached;
+	}
+
+	public int length()
+	{
+		return buffer.length();
+	}
+
+	public char[] toCharArray()
+	{
+		char[] chars = new char[buffer.length()];
+		buffer.getChars(0, buffer.length(), chars, 0);
+		return chars;
+	}
+
+	@Override
+	public String toString()
+	{
+		return buffer.toString();
+	}
+
+	public static class LimitReachedException extends IOException
+	{
+
+		public LimitReachedException(int limit)
+		{
+			super("Digest limit of " + limit + " characters reached");
+		}
+	}
+}
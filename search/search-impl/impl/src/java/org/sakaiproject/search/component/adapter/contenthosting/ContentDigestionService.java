@@ -0,0 +1,469 @@
+/**
+ * Copyright (c) 2003-2017 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.search.component.adapter.contenthosting;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import org.sakaiproject.content.api.ContentResource;
+import org.sakaiproject.entity.api.ResourceProperties;
+import org.sakaiproject.memory.api.Cache;
+import org.sakaiproject.memory.api.MemoryService;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
+
+/**
+ * Runs content digesters on a dedicated, bounded pool of worker threads so that a slow or
+ * oversized document cannot hold an indexing thread for longer than the digest timeout.
+ * Most parsers ignore interrupts, so a digest that times out may keep its thread busy. The
+ * pool is given a replacement thread for each of these, up to maxStuckDigests, which goes
+ * away again once the stuck digest finishes.
+ * <p>
+ * Extracted text is cached by a hash of the resource body, so identical files (copies in
+ * duplicated sites, rebuilds of unchanged content) are only parsed once. The hash of each
+ * version of a resource is remembered, so a body is read to hash it once rather than before
+ * every digest, and bodies over maxHashedBytes are cached by version without hashing.
+ *
+ * @see ContentHostingContentProducer#setDigestionService(ContentDigestionService)
+ */
+@Slf4j
+public class ContentDigestionService
+{
+
+	private static final String CACHE_NAME = "org.sakaiproject.search.component.adapter.contenthosting.ContentDigestionService.cache";
+
+	private MemoryService memoryService;
+
+	private ThreadLocalManager threadLocalManager;
+
+	private int digestionThreads = 2;
+
+	private int maxQueuedDigests = 20;
+
+	private int digestTimeout = 60; // seconds
+
+	private boolean cacheDigests = true;
+
+	private int maxCachedCharacters = 200000;
+
+	private long maxHashedBytes = 20L * 1024 * 1024;
+
+	private int maxStuckDigests = 2;
+
+	private int stuckDigests = 0;
+
+	private ThreadPoolExecutor executor;
+
+	private Cache<String, String> digestCache;
+
+	private final ConcurrentMap<String, DigestionStats> statistics = new ConcurrentHashMap<String, DigestionStats>();
+
+	public void init()
+	{
+		final AtomicInteger threadCount = new AtomicInteger();
+		executor = new ThreadPoolExecutor(Math.max(1, digestionThreads), Math.max(1, digestionThreads),
+				0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, maxQueuedDigests)), r -> {
+					Thread thread = new Thread(r, "[search content digester " + threadCount.incrementAndGet() + "]");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.NORM_PRIORITY - 1);
+					return thread;
+				}, (r, pool) -> {
+					// a full queue holds the indexing thread back rather than dropping the document,
+					// but only for as long as it would have waited on the digest itself
+					try
+					{
+						if (pool.isShutdown() || !pool.getQueue().offer(r, digestTimeout, TimeUnit.SECONDS))
+						{
+							throw new RejectedExecutionException("Content digestion queue is full");
+						}
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						throw new RejectedExecutionException("Interrupted waiting for the content digestion queue", e);
+					}
+				});
+		if (cacheDigests && memoryService != null)
+		{
+			digestCache = memoryService.getCache(CACHE_NAME);
+		}
+		log.info("Digesting content with " + digestionThreads + " threads, timeout " + digestTimeout + "s, cache "
+				+ (digestCache == null ? "off" : "on"));
+	}
+
+	public void destroy()
+	{
+		if (executor != null)
+		{
+			executor.shutdownNow();
+		}
+		log.info("Content digestion statistics: {}", getStatistics());
+	}
+
+	/**
+	 * Extract the text of a resource with the digester, on a worker thread.
+	 *
+	 * @param contentResource
+	 *        the resource to digest
+	 * @param digester
+	 *        the digester to use
+	 * @param characterLimit
+	 *        the most characters the digester will return, used to count truncated documents
+	 * @return the extracted text
+	 * @throws RuntimeException
+	 *         if the digester fails, does not finish within the timeout or the pool is saturated
+	 */
+	public String digest(final ContentResource contentResource, final ContentDigester digester,
+			final int characterLimit)
+	{
+		final DigestionStats stats = getStatistics(contentResource.getContentType());
+		final long start = System.currentTimeMillis();
+		final DigestState state = new DigestState();
+		Future<String> future;
+		try
+		{
+			future = executor.submit(() -> {
+				long begin = System.currentTimeMillis();
+				try
+				{
+					synchronized (state)
+					{
+						state.running = true;
+					}
+					String key = getCacheKey(contentResource, digester);
+					String content = (key == null) ? null : digestCache.get(key);
+					if (content != null)
+					{
+						stats.documentCached();
+						return content;
+					}
+					content = digester.getContent(contentResource);
+					if (content == null)
+					{
+						content = "";
+					}
+					stats.documentDigested(content.length(), System.currentTimeMillis() - begin,
+							content.length() >= characterLimit);
+					if (key != null && content.length() <= maxCachedCharacters)
+					{
+						digestCache.put(key, content);
+					}
+					return content;
+				}
+				finally
+				{
+					if (threadLocalManager != null)
+					{
+						threadLocalManager.clear();
+					}
+					synchronized (state)
+					{
+						state.running = false;
+						if (state.replaced)
+						{
+							releaseThread();
+						}
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			stats.documentFailed(System.currentTimeMillis() - start);
+			throw new RuntimeException("Unable to digest " + contentResource.getReference() + ": " + e.getMessage(), e);
+		}
+
+		try
+		{
+			return future.get(digestTimeout, TimeUnit.SECONDS);
+		}
+		catch (TimeoutException e)
+		{
+			future.cancel(true);
+			synchronized (state)
+			{
+				// most parsers don't check for interrupts, so let another thread take over from this one
+				if (state.running && addThread())
+				{
+					state.replaced = true;
+				}
+			}
+			stats.documentTimedOut(System.currentTimeMillis() - start);
+			throw new RuntimeException("Digesting " + contentResource.getReference() + " with " + digester
+					+ " took longer than " + digestTimeout + "s");
+		}
+		catch (ExecutionException e)
+		{
+			stats.documentFailed(System.currentTimeMillis() - start);
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+			{
+				throw (RuntimeException) cause;
+			}
+			throw new RuntimeException("Failed to digest " + contentResource.getReference(), cause);
+		}
+		catch (InterruptedException e)
+		{
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted digesting " + contentResource.getReference(), e);
+		}
+	}
+
+	/**
+	 * @return a key made from the body hash, or null if caching is off or the body can't be read
+	 */
+	private String getCacheKey(ContentResource contentResource, ContentDigester digester)
+	{
+		if (digestCache == null)
+		{
+			return null;
+		}
+		// the hash of this version of the resource, if it has been read before
+		String version = "version:" + contentResource.getReference() + ":" + contentResource.getContentLength() + ":"
+				+ contentResource.getProperties().getProperty(ResourceProperties.PROP_MODIFIED_DATE);
+		String hash = digestCache.get(version);
+		if (hash == null)
+		{
+			hash = (contentResource.getContentLength() > maxHashedBytes) ? version : hashContent(contentResource);
+			if (hash == null)
+			{
+				return null;
+			}
+			digestCache.put(version, hash);
+		}
+		return hash + ":" + digester.getClass().getName();
+	}
+
+	private String hashContent(ContentResource contentResource)
+	{
+		InputStream contentStream = null;
+		try
+		{
+			contentStream = contentResource.streamContent();
+			if (contentStream == null)
+			{
+				return null;
+			}
+			return "sha256:" + DigestUtils.sha256Hex(contentStream);
+		}
+		catch (Exception e)
+		{
+			log.debug("Unable to hash {}: {}", contentResource.getReference(), e.toString());
+			return null;
+		}
+		finally
+		{
+			if (contentStream != null)
+			{
+				try
+				{
+					contentStream.close();
+				}
+				catch (IOException e)
+				{
+					log.debug(e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds a thread to the pool to stand in for one held by a digest that timed out.
+	 *
+	 * @return false if there are already maxStuckDigests replacement threads
+	 */
+	private synchronized boolean addThread()
+	{
+		if (stuckDigests >= maxStuckDigests)
+		{
+			log.warn("{} content digests are stuck, not adding another thread", stuckDigests);
+			return false;
+		}
+		stuckDigests++;
+		// grow the maximum first, it may never be below the core size
+		executor.setMaximumPoolSize(executor.getMaximumPoolSize() + 1);
+		executor.setCorePoolSize(executor.getCorePoolSize() + 1);
+		return true;
+	}
+
+	/**
+	 * Takes the pool back down once a stuck digest has finished, the idle thread left over exits.
+	 */
+	private synchronized void releaseThread()
+	{
+		stuckDigests--;
+		executor.setCorePoolSize(executor.getCorePoolSize() - 1);
+		executor.setMaximumPoolSize(executor.getMaximumPoolSize() - 1);
+	}
+
+	private DigestionStats getStatistics(String contentType)
+	{
+		String type = (contentType == null) ? "unknown" : contentType;
+		DigestionStats stats = statistics.get(type);
+		if (stats == null)
+		{
+			statistics.putIfAbsent(type, new DigestionStats());
+			stats = statistics.get(type);
+		}
+		return stats;
+	}
+
+	/**
+	 * @return digestion statistics keyed by content type
+	 */
+	public Map<String, DigestionStats> getStatistics()
+	{
+		return new TreeMap<String, DigestionStats>(statistics);
+	}
+
+	/**
+	 * @return the statistics of each content type as type.counter, and the state of the pool, for JMX
+	 */
+	public Map<String, Long> getMetrics()
+	{
+		Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+		metrics.put("queuedDigests", (long) getQueuedDigests());
+		metrics.put("activeDigests", (executor == null) ? 0L : (long) executor.getActiveCount());
+		metrics.put("stuckDigests", (long) getStuckDigests());
+		for (Map.Entry<String, DigestionStats> entry : getStatistics().entrySet())
+		{
+			String type = entry.getKey();
+			DigestionStats stats = entry.getValue();
+			metrics.put(type + ".digested", stats.getDigested());
+			metrics.put(type + ".cached", stats.getCached());
+			metrics.put(type + ".truncated", stats.getTruncated());
+			metrics.put(type + ".failed", stats.getFailed());
+			metrics.put(type + ".timedOut", stats.getTimedOut());
+			metrics.put(type + ".characters", stats.getCharacters());
+			metrics.put(type + ".millis", stats.getMillis());
+		}
+		return metrics;
+	}
+
+	/**
+	 * @return the number of digests waiting for a worker thread
+	 */
+	public int getQueuedDigests()
+	{
+		return (executor == null) ? 0 : executor.getQueue().size();
+	}
+
+	/**
+	 * @return the number of digests that timed out but are still holding a thread
+	 */
+	public synchronized int getStuckDigests()
+	{
+		return stuckDigests;
+	}
+
+	public void setMemoryService(MemoryService memoryService)
+	{
+		this.memoryService = memoryService;
+	}
+
+	public void setThreadLocalManager(ThreadLocalManager threadLocalManager)
+	{
+		this.threadLocalManager = threadLocalManager;
+	}
+
+	/**
+	 * @param digestionThreads
+	 *        the number of documents digested at the same time
+	 */
+	public void setDigestionThreads(int digestionThreads)
+	{
+		this.digestionThreads = digestionThreads;
+	}
+
+	/**
+	 * @param maxQueuedDigests
+	 *        the number of documents that may wait for a digestion thread
+	 */
+	public void setMaxQueuedDigests(int maxQueuedDigests)
+	{
+		this.maxQueuedDigests = maxQueuedDigests;
+	}
+
+	/**
+	 * @param digestTimeout
+	 *        seconds to wait for a document to be digested
+	 */
+	public void setDigestTimeout(int digestTimeout)
+	{
+		this.digestTimeout = digestTimeout;
+	}
+
+	/**
+	 * @param cacheDigests
+	 *        whether extracted text is cached by content hash
+	 */
+	public void setCacheDigests(boolean cacheDigests)
+	{
+		this.cacheDigests = cacheDigests;
+	}
+
+	/**
+	 * @param maxCachedCharacters
+	 *        the longest extracted text that is cached
+	 */
+	public void setMaxCachedCharacters(int maxCachedCharacters)
+	{
+		this.maxCachedCharacters = maxCachedCharacters;
+	}
+
+	/**
+	 * @param maxHashedBytes
+	 *        the largest body that is hashed to share its text with copies, larger ones are cached by version
+	 */
+	public void setMaxHashedBytes(long maxHashedBytes)
+	{
+		this.maxHashedBytes = maxHashedBytes;
+	}
+
+	/**
+	 * @param maxStuckDigests
+	 *        the most threads added to stand in for digests that timed out and are still running
+	 */
+	public void setMaxStuckDigests(int maxStuckDigests)
+	{
+		this.maxStuckDigests = maxStuckDigests;
+	}
+
+	/**
+	 * Whether a digest is running on a worker thread, and whether that thread has been replaced
+	 */
+	private static class DigestState
+	{
+		boolean running;
+		boolean replaced;
+	}
+}
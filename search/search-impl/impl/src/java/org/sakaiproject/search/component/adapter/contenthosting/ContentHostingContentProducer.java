@@ -92,6 +92,13 @@ public class ContentHostingContentProducer implements EntityContentProducer, Sto
 
 	private int digesterSizeLimit = 1024 * 1024 * 5; // (5M)
 
+	private int digestCharacterLimit = 1024 * 1024; // (1M characters)
+
+	/**
+	 * config injected dep, digesters run on the calling thread without it
+	 */
+	private ContentDigestionService digestionService;
+
 	/**
 	 * A list of custom properties in the form indexkey.entitykey;indexkey.entitykey;indexkey.entitykey;
 	 */
@@ -229,7 +236,8 @@ public class ContentHostingContentProducer implements EntityContentProducer, Sto
 		Reader reader = null;
 		try
 		{
-			reader = digester.getContentReader(contentResource);
+			reader = isDigestedInPool(digester) ? new StringReader(digest(contentResource, digester))
+					: digester.getContentReader(contentResource);
 		}
 		catch (Exception ex)
 		{
@@ -301,7 +309,7 @@ public class ContentHostingContentProducer implements EntityContentProducer, Sto
 		String content = null;
 		try
 		{
-			content = digester.getContent(contentResource);
+			content = digest(contentResource, digester);
 		}
 		catch (Exception ex)
 		{
@@ -344,6 +352,24 @@ public class ContentHostingContentProducer implements EntityContentProducer, Sto
 
 	}
 
+	/**
+	 * The default digester only reads properties and small text bodies, so it stays on the
+	 * calling thread as the fallback when a pooled digest fails or times out.
+	 */
+	private boolean isDigestedInPool(ContentDigester digester)
+	{
+		return digestionService != null && !digester.equals(defaultDigester);
+	}
+
+	private String digest(ContentResource contentResource, ContentDigester digester)
+	{
+		if (isDigestedInPool(digester))
+		{
+			return digestionService.digest(contentResource, digester, digestCharacterLimit);
+		}
+		return digester.getContent(contentResource);
+	}
+
 	public ContentDigester getDigester(ContentResource cr)
 	{
 		
@@ -710,6 +736,33 @@ public class ContentHostingContentProducer implements EntityContentProducer, Sto
 		this.digesterSizeLimit = digesterSizeLimit;
 	}
 
+	/**
+	 * @return the most characters a digester extracts from one resource
+	 */
+	public int getDigestCharacterLimit()
+	{
+		return digestCharacterLimit;
+	}
+
+	/**
+	 * @param digestCharacterLimit
+	 *        the most characters a digester extracts from one resource
+	 */
+	public void setDigestCharacterLimit(int digestCharacterLimit)
+	{
+		this.digestCharacterLimit = digestCharacterLimit;
+	}
+
+	public ContentDigestionService getDigestionService()
+	{
+		return digestionService;
+	}
+
+	public void setDigestionService(ContentDigestionService digestionService)
+	{
+		this.digestionService = digestionService;
+	}
+
 	private Reference getReference(String reference)
 	{
 		try
@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2003-2017 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.search.component.adapter.contenthosting;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running totals for the documents of one content type digested by the
+ * {@link ContentDigestionService}. Counts are since startup.
+ */
+public class DigestionStats
+{
+
+	private final AtomicLong digested = new AtomicLong();
+	private final AtomicLong cached = new AtomicLong();
+	private final AtomicLong truncated = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong timedOut = new AtomicLong();
+	private final AtomicLong characters = new AtomicLong();
+	private final AtomicLong millis = new AtomicLong();
+
+	public void documentDigested(int length, long time, boolean wasTruncated)
+	{
+		digested.incrementAndGet();
+		characters.addAndGet(length);
+		millis.addAndGet(time);
+		if (wasTruncated)
+		{
+			truncated.incrementAndGet();
+		}
+	}
+
+	public void documentCached()
+	{
+		cached.incrementAndGet();
+	}
+
+	public void documentFailed(long time)
+	{
+		failed.incrementAndGet();
+		millis.addAndGet(time);
+	}
+
+	public void documentTimedOut(long time)
+	{
+		timedOut.incrementAndGet();
+		millis.addAndGet(time);
+	}
+
+	public long getDigested()
+	{
+		return digested.get();
+	}
+
+	public long getCached()
+	{
+		return cached.get();
+	}
+
+	public long getTruncated()
+	{
+		return truncated.get();
+	}
+
+	public long getFailed()
+	{
+		return failed.get();
+	}
+
+	public long getTimedOut()
+	{
+		return timedOut.get();
+	}
+
+	public long getCharacters()
+	{
+		return characters.get();
+	}
+
+	public long getMillis()
+	{
+		return millis.get();
+	}
+
+	/**
+	 * @return documents per second spent extracting, failures and timeouts included
+	 */
+	public double getThroughput()
+	{
+		long attempts = getDigested() + getFailed() + getTimedOut();
+		return attempts * 1000d / Math.max(1, getMillis());
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Digested: " + getDigested() + " Cached: " + getCached() + " Truncated: " + getTruncated()
+				+ " Failed: " + getFailed() + " Timed out: " + getTimedOut()
+				+ " Characters: " + getCharacters() + " Throughput: " + Math.round(getThroughput()) + " docs/s";
+	}
+}
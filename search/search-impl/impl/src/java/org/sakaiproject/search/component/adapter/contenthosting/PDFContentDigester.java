@@ -21,7 +21,6 @@
 package org.sakaiproject.search.component.adapter.contenthosting;
 
 import java.io.BufferedInputStream;
-import java.io.CharArrayWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
@@ -50,16 +49,20 @@ public class PDFContentDigester extends BaseContentDigester
 
 		InputStream contentStream = null;
 		PDDocument pddoc = null;
+		CharacterLimitWriter cw = newContentWriter();
 		try {
 			contentStream = contentResource.streamContent();
 			pddoc = PDDocument.load(contentStream);
 			if (pddoc != null) {
 				PDFTextStripper stripper = new PDFTextStripper();
 				stripper.setLineSeparator("\n");		
-				CharArrayWriter cw = new CharArrayWriter();
 				stripper.writeText(pddoc, cw);
 				return SearchUtils.appendCleanString(cw.toCharArray(),null).toString();
 			}
+		} catch (CharacterLimitWriter.LimitReachedException e) {
+			// keep what was extracted before the limit, the rest of the document is not read
+			log.debug("Truncated {} at {} characters", contentResource.getReference(), cw.length());
+			return SearchUtils.appendCleanString(cw.toCharArray(),null).toString();
 		} catch (ServerOverloadException e) {
 			String eMessage = e.getMessage();
 			if (eMessage == null) {
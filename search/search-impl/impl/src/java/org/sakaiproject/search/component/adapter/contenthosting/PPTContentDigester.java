@@ -59,7 +59,13 @@ public class PPTContentDigester extends BaseContentDigester
 		if (contentResource == null) {
 			throw new RuntimeException("Null contentResource passed to getContent");
 		}
+		if (contentResource.getContentLength() > maxDigestSize)
+		{
+			throw new RuntimeException("Attempt to get too much content as a string on "
+					+ contentResource.getReference());
+		}
 		InputStream contentStream = null;
+		final int limit = getDigestCharacterLimit();
 
 		try
 		{
@@ -80,7 +86,7 @@ public class PPTContentDigester extends BaseContentDigester
 						DocumentInputStream input = event.getStream();
 						byte[] buffer = new byte[input.available()];
 						input.read(buffer, 0, input.available());
-						for (int i = 0; i < buffer.length - 20; i++)
+						for (int i = 0; i < buffer.length - 20 && os.size() < limit; i++)
 						{
 							long type = LittleEndian.getUShort(buffer, i + 2);
 							long size = LittleEndian.getUInt(buffer, i + 4);
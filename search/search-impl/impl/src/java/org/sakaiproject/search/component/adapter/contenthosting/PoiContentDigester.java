@@ -69,7 +69,13 @@ public class PoiContentDigester extends BaseContentDigester
 			contentStream = contentResource.streamContent();			
 			POITextExtractor DocExt = ExtractorFactory.createExtractor(contentStream);
 
-			return DocExt.getText();
+			String text = DocExt.getText();
+			if (text != null && text.length() > getDigestCharacterLimit())
+			{
+				log.debug("Truncated {} at {} characters", contentResource.getReference(), getDigestCharacterLimit());
+				return text.substring(0, getDigestCharacterLimit());
+			}
+			return text;
 		}
 		catch (Exception e)
 		{
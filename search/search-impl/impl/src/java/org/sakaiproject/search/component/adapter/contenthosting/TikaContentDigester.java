@@ -56,6 +56,7 @@ public class TikaContentDigester extends BaseContentDigester
 		}
 
 		InputStream contentStream = null;
+		CharacterLimitWriter writer = newContentWriter();
 
 		try
 		{
@@ -64,14 +65,19 @@ public class TikaContentDigester extends BaseContentDigester
 			Metadata metadata = new Metadata();
 			
 			metadata.set(Metadata.CONTENT_TYPE, contentResource.getContentType());
-			ContentHandler handler = new BodyContentHandler();
+			ContentHandler handler = new BodyContentHandler(writer);
 			Parser parser = new AutoDetectParser();
 				
 			parser.parse(contentStream, handler, metadata, new ParseContext());
-			return handler.toString();
+			return writer.toString();
 		}
 		catch (Exception e)
 		{
+			if (writer.isLimitReached())
+			{
+				log.debug("Truncated {} at {} characters", contentResource.getReference(), writer.length());
+				return writer.toString();
+			}
 			log.debug("Cannot index", e);
 			throw new RuntimeException("Failed to read content for indexing ", e);
 		}
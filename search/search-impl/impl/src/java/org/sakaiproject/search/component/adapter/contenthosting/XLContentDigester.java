@@ -21,7 +21,6 @@
 package org.sakaiproject.search.component.adapter.contenthosting;
 
 import java.io.CharArrayReader;
-import java.io.CharArrayWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
@@ -103,6 +102,10 @@ public class XLContentDigester extends BaseContentDigester
             }
 
 		}
+		catch (CharacterLimitWriter.LimitReachedException e)
+		{
+			log.debug("Truncated {}: {}", contentResource.getReference(), e.getMessage());
+		}
 		catch (Exception e)
 		{
 			throw new RuntimeException("Failed to read content for indexing ",
@@ -133,7 +136,7 @@ public class XLContentDigester extends BaseContentDigester
 	
 	public Reader getContentReader(ContentResource contentResource)
 	{
-		CharArrayWriter writer = new CharArrayWriter();
+		CharacterLimitWriter writer = newContentWriter();
 		loadContent(writer, contentResource);
 		return new CharArrayReader(writer.toCharArray());
 	}
@@ -143,9 +146,9 @@ public class XLContentDigester extends BaseContentDigester
 	 */
 	public String getContent(ContentResource contentResource)
 	{
-		CharArrayWriter writer = new CharArrayWriter();
+		CharacterLimitWriter writer = newContentWriter();
 		loadContent(writer, contentResource);
-		return new String(writer.toCharArray());
+		return writer.toString();
 	}
 	
 	
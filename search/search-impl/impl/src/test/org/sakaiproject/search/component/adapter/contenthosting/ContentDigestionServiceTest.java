@@ -0,0 +1,222 @@
+/**
+ * Copyright (c) 2003-2017 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.search.component.adapter.contenthosting;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.content.api.ContentResource;
+import org.sakaiproject.entity.api.ResourceProperties;
+import org.sakaiproject.memory.api.Cache;
+import org.sakaiproject.memory.api.MemoryService;
+
+public class ContentDigestionServiceTest
+{
+
+	private ContentDigestionService service;
+
+	private final Map<Object, Object> cached = new ConcurrentHashMap<Object, Object>();
+
+	private final AtomicInteger bodyReads = new AtomicInteger();
+
+	private final AtomicInteger digests = new AtomicInteger();
+
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	@Before
+	public void setUp()
+	{
+		service = new ContentDigestionService();
+		service.setMemoryService(proxy(MemoryService.class, (method, args) ->
+				"getCache".equals(method) ? proxy(Cache.class, (cacheMethod, cacheArgs) -> {
+					if ("get".equals(cacheMethod))
+					{
+						return cached.get(cacheArgs[0]);
+					}
+					if ("put".equals(cacheMethod))
+					{
+						cached.put(cacheArgs[0], cacheArgs[1]);
+					}
+					return null;
+				}) : null));
+		service.setDigestionThreads(1);
+		service.setDigestTimeout(1);
+		service.init();
+	}
+
+	@After
+	public void tearDown()
+	{
+		release.countDown();
+		service.destroy();
+	}
+
+	@Test
+	public void testStuckDigestIsReplaced() throws Exception
+	{
+		try
+		{
+			service.digest(resource("/stuck", "1"), digester, 1000);
+			fail("should have timed out");
+		}
+		catch (RuntimeException e)
+		{
+			assertTrue(e.getMessage(), e.getMessage().contains("took longer than"));
+		}
+		assertEquals(1, service.getStuckDigests());
+
+		// the only pool thread is still busy, the stand in digests this
+		assertEquals("text of /ok", service.digest(resource("/ok", "1"), digester, 1000));
+
+		release.countDown();
+		for (int i = 0; i < 100 && service.getStuckDigests() > 0; i++)
+		{
+			Thread.sleep(20);
+		}
+		assertEquals(0, service.getStuckDigests());
+		assertEquals("text of /ok2", service.digest(resource("/ok2", "1"), digester, 1000));
+	}
+
+	@Test
+	public void testBodyHashedOncePerVersion()
+	{
+		assertEquals("text of /a", service.digest(resource("/a", "1"), digester, 1000));
+		assertEquals("text of /a", service.digest(resource("/a", "1"), digester, 1000));
+		assertEquals(1, bodyReads.get());
+		assertEquals(1, digests.get());
+
+		// a copy with the same body is hashed but not parsed again
+		assertEquals("text of /a", service.digest(resource("/copy", "1", "/a"), digester, 1000));
+		assertEquals(2, bodyReads.get());
+		assertEquals(1, digests.get());
+
+		// a new version is hashed again
+		service.digest(resource("/a", "2"), digester, 1000);
+		assertEquals(3, bodyReads.get());
+	}
+
+	@Test
+	public void testLargeBodiesAreNotHashed()
+	{
+		service.setMaxHashedBytes(1);
+		service.digest(resource("/a", "1"), digester, 1000);
+		service.digest(resource("/a", "1"), digester, 1000);
+		assertEquals(0, bodyReads.get());
+		assertEquals(1, digests.get());
+	}
+
+	@Test
+	public void testMetrics()
+	{
+		service.digest(resource("/a", "1"), digester, 1000);
+		service.digest(resource("/a", "1"), digester, 1000);
+		Map<String, Long> metrics = service.getMetrics();
+		assertEquals(Long.valueOf(1), metrics.get("text/plain.digested"));
+		assertEquals(Long.valueOf(1), metrics.get("text/plain.cached"));
+		assertEquals(Long.valueOf(0), metrics.get("stuckDigests"));
+	}
+
+	/**
+	 * Returns the text of the reference, and ignores interrupts on /stuck until released
+	 */
+	private final ContentDigester digester = new ContentDigester()
+	{
+		public boolean accept(String mimeType)
+		{
+			return true;
+		}
+
+		public String getContent(ContentResource contentResource)
+		{
+			if ("/stuck".equals(contentResource.getReference()))
+			{
+				boolean done = false;
+				while (!done)
+				{
+					try
+					{
+						done = release.await(10, java.util.concurrent.TimeUnit.SECONDS);
+					}
+					catch (InterruptedException e)
+					{
+						// like most parsers
+					}
+				}
+			}
+			digests.incrementAndGet();
+			return "text of " + contentResource.getReference();
+		}
+
+		public Reader getContentReader(ContentResource contentResource)
+		{
+			return new StringReader(getContent(contentResource));
+		}
+	};
+
+	private ContentResource resource(String reference, String modified)
+	{
+		return resource(reference, modified, reference);
+	}
+
+	private ContentResource resource(String reference, String modified, String body)
+	{
+		ResourceProperties properties = proxy(ResourceProperties.class, (method, args) ->
+				"getProperty".equals(method) && ResourceProperties.PROP_MODIFIED_DATE.equals(args[0]) ? modified : null);
+		return proxy(ContentResource.class, (method, args) -> {
+			switch (method)
+			{
+				case "getReference":
+					return reference;
+				case "getContentType":
+					return "text/plain";
+				case "getContentLength":
+					return 4L;
+				case "getProperties":
+					return properties;
+				case "streamContent":
+					bodyReads.incrementAndGet();
+					return new ByteArrayInputStream(body.getBytes());
+				default:
+					return null;
+			}
+		});
+	}
+
+	private interface Handler
+	{
+		Object invoke(String method, Object[] args) throws Exception;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T proxy(Class<T> type, Handler handler)
+	{
+		return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+				(p, method, args) -> handler.invoke(method.getName(), args));
+	}
+}
@@ -0,0 +1,131 @@
+package org.sakaiproject.sitemanage.api;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The progress of copying tool content into a site, by duplication or import. Each step is the copy of one tool's
+ * content from one source site.
+ */
+public class SiteCopyProgress implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum Status { QUEUED, RUNNING, COMPLETED, FAILED }
+
+    private final String siteId;
+    private final long started;
+    private final List<String> toolIds = new ArrayList<>();
+    private final List<String> fromSiteIds = new ArrayList<>();
+    private final List<Status> statuses = new ArrayList<>();
+    private volatile long finished;
+
+    public SiteCopyProgress(String siteId) {
+        this.siteId = siteId;
+        this.started = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the index of the new step
+     */
+    public synchronized int addStep(String toolId, String fromSiteId) {
+        toolIds.add(toolId);
+        fromSiteIds.add(fromSiteId);
+        statuses.add(Status.QUEUED);
+        return statuses.size() - 1;
+    }
+
+    public synchronized void setStatus(int step, Status status) {
+        statuses.set(step, status);
+    }
+
+    public synchronized Status getStatus(int step) {
+        return statuses.get(step);
+    }
+
+    public synchronized String getToolId(int step) {
+        return toolIds.get(step);
+    }
+
+    public synchronized String getFromSiteId(int step) {
+        return fromSiteIds.get(step);
+    }
+
+    public void finish() {
+        finished = System.currentTimeMillis();
+    }
+
+    public String getSiteId() {
+        return siteId;
+    }
+
+    public long getStarted() {
+        return started;
+    }
+
+    /**
+     * @return when the copy finished, or 0 while it is running
+     */
+    public long getFinished() {
+        return finished;
+    }
+
+    public boolean isFinished() {
+        return finished > 0;
+    }
+
+    public synchronized int getTotalSteps() {
+        return statuses.size();
+    }
+
+    public synchronized int getCompletedSteps() {
+        return count(Status.COMPLETED);
+    }
+
+    public synchronized int getFailedSteps() {
+        return count(Status.FAILED);
+    }
+
+    /**
+     * @return the tools being copied right now
+     */
+    public synchronized List<String> getRunningToolIds() {
+        List<String> running = new ArrayList<>();
+        for (int i = 0; i < statuses.size(); i++) {
+            if (statuses.get(i) == Status.RUNNING && !running.contains(toolIds.get(i))) {
+                running.add(toolIds.get(i));
+            }
+        }
+        return running;
+    }
+
+    /**
+     * @return the tools that failed to copy, which are copied again when the same copy is repeated
+     */
+    public synchronized List<String> getFailedToolIds() {
+        List<String> failed = new ArrayList<>();
+        for (int i = 0; i < statuses.size(); i++) {
+            if (statuses.get(i) == Status.FAILED && !failed.contains(toolIds.get(i))) {
+                failed.add(toolIds.get(i));
+            }
+        }
+        return failed;
+    }
+
+    private int count(Status status) {
+        int count = 0;
+        for (Status s : statuses) {
+            if (s == status) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Site " + siteId + ": " + getCompletedSteps() + " of " + getTotalSteps() + " tools copied, "
+                + getFailedSteps() + " failed" + (isFinished() ? "" : ", running " + getRunningToolIds());
+    }
+}
@@ -61,4 +61,15 @@ public interface SiteManageService {
      * @return the new migrated resource url
      */
     String transferSiteResource(String oSiteId, String nSiteId, String siteAttribute);
+
+    /**
+     * The progress of the latest duplication or import into a site.
+     * <br/>
+     * Tools whose content was copied are remembered until the whole copy succeeds, so repeating a copy that
+     * failed part way only copies the tools that did not finish.
+     *
+     * @param siteId the site content is copied into
+     * @return the progress, or null if no copy into the site is known
+     */
+    SiteCopyProgress getSiteCopyProgress(String siteId);
 }
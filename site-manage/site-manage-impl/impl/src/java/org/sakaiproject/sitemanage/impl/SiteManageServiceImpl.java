@@ -1,7 +1,9 @@
 package org.sakaiproject.sitemanage.impl;
 
+import java.io.Serializable;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -11,11 +13,16 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
@@ -33,14 +40,18 @@ import org.sakaiproject.entity.api.Reference;
 import org.sakaiproject.event.api.EventTrackingService;
 import org.sakaiproject.exception.IdUnusedException;
 import org.sakaiproject.exception.PermissionException;
+import org.sakaiproject.memory.api.Cache;
+import org.sakaiproject.memory.api.MemoryService;
 import org.sakaiproject.shortenedurl.api.ShortenedUrlService;
 import org.sakaiproject.site.api.Site;
 import org.sakaiproject.site.api.SitePage;
 import org.sakaiproject.site.api.SiteService;
 import org.sakaiproject.site.api.ToolConfiguration;
+import org.sakaiproject.sitemanage.api.SiteCopyProgress;
 import org.sakaiproject.sitemanage.api.SiteManageConstants;
 import org.sakaiproject.sitemanage.api.SiteManageService;
 import org.sakaiproject.sitemanage.api.UserNotificationProvider;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
 import org.sakaiproject.tool.api.Session;
 import org.sakaiproject.tool.api.SessionManager;
 import org.sakaiproject.tool.api.Tool;
@@ -63,21 +74,30 @@ public class SiteManageServiceImpl implements SiteManageService {
     @Setter private EntityManager entityManager;
     @Setter private EventTrackingService eventTrackingService;
     @Setter private LinkMigrationHelper linkMigrationHelper;
+    @Setter private MemoryService memoryService;
     @Setter private PreferencesService preferencesService;
     @Setter private SecurityService securityService;
     @Setter private ServerConfigurationService serverConfigurationService;
     @Setter private SessionManager sessionManager;
     @Setter private ShortenedUrlService shortenedUrlService;
     @Setter private SiteService siteService;
+    @Setter private ThreadLocalManager threadLocalManager;
     @Setter private ToolManager toolManager;
     @Setter private TransactionTemplate transactionTemplate;
     @Setter private UserDirectoryService userDirectoryService;
     @Setter private UserNotificationProvider userNotificationProvider;
 
     @Setter private Integer siteImportThreadCount;
+    @Setter private Integer siteCopyThreadCount;
+
+    private static final String SITE_COPY_CACHE = "org.sakaiproject.sitemanage.api.SiteManageService.siteCopy";
+    private static final String[] DEFAULT_COPY_STAGES = {"sakai.resources", "sakai.gradebookng,sakai.gradebook.tool", "*", "sakai.lessonbuildertool"};
+    private static final int DEFAULT_CHECKPOINT_TTL = 3600;
 
     private ExecutorService executorService;
+    private ExecutorService copyExecutorService;
     private Set<String> currentSiteImports;
+    private Cache<String, Object> siteCopyCache;
 
     public void init() {
         // while this Set isn't cluster wide sessions are node specific
@@ -85,6 +105,15 @@ public class SiteManageServiceImpl implements SiteManageService {
         // which is a really low percentage
         currentSiteImports = new ConcurrentSkipListSet<>();
         executorService = Executors.newFixedThreadPool(siteImportThreadCount);
+        if (siteCopyThreadCount != null && siteCopyThreadCount > 1) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            copyExecutorService = Executors.newFixedThreadPool(siteCopyThreadCount, r -> {
+                Thread thread = new Thread(r, "site-copy-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        siteCopyCache = memoryService.getCache(SITE_COPY_CACHE);
     }
 
     public void destroy() {
@@ -98,6 +127,9 @@ public class SiteManageServiceImpl implements SiteManageService {
                 executorService.shutdownNow();
             }
         }
+        if (copyExecutorService != null) {
+            copyExecutorService.shutdownNow();
+        }
     }
 
     @Override
@@ -156,51 +188,47 @@ public class SiteManageServiceImpl implements SiteManageService {
             securityService.pushAdvisor(securityAdvisor);
         }
 
-        List<SitePage> pageList = site.getPages();
-        Set<String> toolsCopied = new HashSet<>();
-
-        Map<String, String> transversalMap = new HashMap<>();
-
-        if (pageList != null) {
-            for (SitePage page : pageList) {
-                List<ToolConfiguration> pageToolList = page.getTools();
-                if (pageToolList != null) {
-                    Tool tool = pageToolList.get(0).getTool();
-                    String toolId = tool != null ? tool.getId() : "";
-                    if (toolId.equalsIgnoreCase("sakai.resources")) {
-                        // special handleling for resources
-                        Map<String, String> entityMap = transferCopyEntities(
-                                toolId,
-                                contentHostingService.getSiteCollection(oSiteId),
-                                contentHostingService.getSiteCollection(nSiteId),
-                                false);
-                        if (entityMap != null) {
-                            transversalMap.putAll(entityMap);
+        try {
+            List<SitePage> pageList = site.getPages();
+            List<String> toolsCopied = new ArrayList<>();
+            List<CopyStep> steps = new ArrayList<>();
+
+            if (pageList != null) {
+                for (SitePage page : pageList) {
+                    List<ToolConfiguration> pageToolList = page.getTools();
+                    if (pageToolList != null) {
+                        Tool tool = pageToolList.get(0).getTool();
+                        String toolId = tool != null ? tool.getId() : "";
+                        if (toolsCopied.contains(toolId)) {
+                            // SAK-19686 - copy each tool once
+                            continue;
                         }
-                    } else if (toolId.equalsIgnoreCase(SiteManageConstants.SITE_INFO_TOOL_ID)) {
-                        // handle Home tool specially, need to update the site infomration display url if needed
-                        String newSiteInfoUrl = transferSiteResource(oSiteId, nSiteId, site.getInfoUrl());
-                        site.setInfoUrl(newSiteInfoUrl);
-                    } else {
-                        // other
-                        // tools
-                        // SAK-19686 - added if statement and toolsCopied.add
-                        if (!toolsCopied.contains(toolId)) {
-                            Map<String, String> entityMap = transferCopyEntities(toolId, oSiteId, nSiteId, false);
-                            if (entityMap != null) {
-                                transversalMap.putAll(entityMap);
-                            }
-                            toolsCopied.add(toolId);
+                        toolsCopied.add(toolId);
+                        if (toolId.equalsIgnoreCase("sakai.resources")) {
+                            // special handleling for resources
+                            steps.add(new CopyStep(toolId, oSiteId,
+                                    contentHostingService.getSiteCollection(oSiteId),
+                                    contentHostingService.getSiteCollection(nSiteId)));
+                        } else if (toolId.equalsIgnoreCase(SiteManageConstants.SITE_INFO_TOOL_ID)) {
+                            // handle Home tool specially, need to update the site infomration display url if needed
+                            String newSiteInfoUrl = transferSiteResource(oSiteId, nSiteId, site.getInfoUrl());
+                            site.setInfoUrl(newSiteInfoUrl);
+                        } else {
+                            steps.add(new CopyStep(toolId, oSiteId, oSiteId, nSiteId));
                         }
                     }
-
-                    updateEntityReferences(toolId, nSiteId, transversalMap, site);
                 }
             }
-        }
 
-        if (bypassSecurity) {
-            securityService.popAdvisor(securityAdvisor);
+            Map<String, String> transversalMap = copyToolContent(nSiteId, steps, false, securityAdvisor);
+
+            for (String toolId : toolsCopied) {
+                updateEntityReferences(toolId, nSiteId, transversalMap, site);
+            }
+        } finally {
+            if (bypassSecurity) {
+                securityService.popAdvisor(securityAdvisor);
+            }
         }
     }
 
@@ -333,49 +361,30 @@ public class SiteManageServiceImpl implements SiteManageService {
                 toolIds.addAll(importTools.keySet());
             }
 
-            Map<String, String> transversalMap = new HashMap<>();
-
-            // import resources first
-            boolean resourcesImported = false;
-            for (int i = 0; i < toolIds.size() && !resourcesImported; i++) {
-                String toolId = toolIds.get(i);
-
-                if (toolId.equalsIgnoreCase("sakai.resources")
-                        && importTools.containsKey(toolId)) {
-                    List<String> importSiteIds = importTools.get(toolId);
-
-                    for (String fromSiteId : importSiteIds) {
-                        String toSiteId = site.getId();
-
-                        String fromSiteCollectionId = contentHostingService.getSiteCollection(fromSiteId);
-                        String toSiteCollectionId = contentHostingService.getSiteCollection(toSiteId);
-
-                        Map<String, String> entityMap = transferCopyEntities(toolId, fromSiteCollectionId, toSiteCollectionId, cleanup);
-                        if (entityMap != null) {
-                            transversalMap.putAll(entityMap);
+            String toSiteId = site.getId();
+            List<CopyStep> steps = new ArrayList<>();
+            List<String> siteInfoSiteIds = new ArrayList<>();
+            for (String toolId : toolIds) {
+                if (importTools.containsKey(toolId)) {
+                    for (String fromSiteId : importTools.get(toolId)) {
+                        if (toolId.equalsIgnoreCase("sakai.resources")) {
+                            steps.add(new CopyStep(toolId, fromSiteId,
+                                    contentHostingService.getSiteCollection(fromSiteId),
+                                    contentHostingService.getSiteCollection(toSiteId)));
+                        } else if (SiteManageConstants.SITE_INFO_TOOL_ID.equals(toolId)) {
+                            siteInfoSiteIds.add(fromSiteId);
+                        } else {
+                            steps.add(new CopyStep(toolId, fromSiteId, fromSiteId, toSiteId));
                         }
-                        resourcesImported = true;
                     }
                 }
             }
 
-            // import other tools then
-            for (String toolId : toolIds) {
-                if (!toolId.equalsIgnoreCase("sakai.resources") && importTools.containsKey(toolId)) {
-                    List<String> importSiteIds = importTools.get(toolId);
+            // resources are copied first, so their new references are known to the tools after them
+            Map<String, String> transversalMap = copyToolContent(toSiteId, steps, cleanup, null);
 
-                    for (String fromSiteId : importSiteIds) {
-                        String toSiteId = site.getId();
-                        if (SiteManageConstants.SITE_INFO_TOOL_ID.equals(toolId)) {
-                            site = copySiteInformation(fromSiteId, toSiteId);
-                        } else {
-                            Map<String, String> entityMap = transferCopyEntities(toolId, fromSiteId, toSiteId, cleanup);
-                            if (entityMap != null) {
-                                transversalMap.putAll(entityMap);
-                            }
-                        }
-                    }
-                }
+            for (String fromSiteId : siteInfoSiteIds) {
+                site = copySiteInformation(fromSiteId, toSiteId);
             }
 
             //update entity references
@@ -383,7 +392,6 @@ public class SiteManageServiceImpl implements SiteManageService {
                 if (importTools.containsKey(toolId)) {
                     List<String> importSiteIds = importTools.get(toolId);
                     for (int k = 0; k < importSiteIds.size(); k++) {
-                        String toSiteId = site.getId();
                         updateEntityReferences(toolId, toSiteId, transversalMap, site);
                     }
                 }
@@ -405,15 +413,225 @@ public class SiteManageServiceImpl implements SiteManageService {
         }
     }
 
+    @Override
+    public SiteCopyProgress getSiteCopyProgress(String siteId) {
+        return (SiteCopyProgress) siteCopyCache.get("progress:" + siteId);
+    }
+
+    /**
+     * Copy tool content in stages. Stages run one after the other, in the order of site.copy.stages, and the tools
+     * within a stage are copied at the same time. Each finished step is remembered with its references, so when the
+     * same copy is repeated after a failure the steps that succeeded are not copied again. These checkpoints belong to
+     * the copy job, which is the same site, steps and cleanup, and are removed when the job succeeds or when they are
+     * older than site.copy.checkpoint.ttl seconds.
+     *
+     * @param toSiteId         the site content is copied into
+     * @param steps            the tool content to copy
+     * @param cleanup          remove existing content in destination first
+     * @param securityAdvisor  an advisor the steps run with, or null
+     * @return the references of copied entities, old to new
+     */
+    private Map<String, String> copyToolContent(String toSiteId, List<CopyStep> steps, boolean cleanup, SecurityAdvisor securityAdvisor) {
+        SiteCopyProgress progress = new SiteCopyProgress(toSiteId);
+        List<List<CopyStep>> stages = new ArrayList<>();
+        String[] configuredStages = serverConfigurationService.getStrings("site.copy.stages");
+        if (configuredStages == null || configuredStages.length == 0) {
+            configuredStages = DEFAULT_COPY_STAGES;
+        }
+        int otherStage = configuredStages.length;
+        for (int i = 0; i < configuredStages.length; i++) {
+            stages.add(new ArrayList<>());
+            if ("*".equals(configuredStages[i].trim())) {
+                otherStage = i;
+            }
+        }
+        stages.add(new ArrayList<>());
+        for (CopyStep step : steps) {
+            step.index = progress.addStep(step.toolId, step.fromSiteId);
+            int stage = otherStage;
+            for (int i = 0; i < configuredStages.length; i++) {
+                if (ArrayUtil.contains(StringUtils.split(configuredStages[i], ", "), step.toolId)) {
+                    stage = i;
+                    break;
+                }
+            }
+            stages.get(stage).add(step);
+        }
+        siteCopyCache.put("progress:" + toSiteId, progress);
+
+        String jobId = getCopyJobId(toSiteId, steps, cleanup);
+        long checkpointTtl = TimeUnit.SECONDS.toMillis(serverConfigurationService.getInt("site.copy.checkpoint.ttl", DEFAULT_CHECKPOINT_TTL));
+        for (CopyStep step : steps) {
+            step.checkpointKey = "step:" + jobId + ":" + step.getStepKey();
+        }
+
+        final Session session = sessionManager.getCurrentSession();
+        final ToolSession toolSession = sessionManager.getCurrentToolSession();
+        for (List<CopyStep> stage : stages) {
+            if (copyExecutorService == null || stage.size() < 2) {
+                for (CopyStep step : stage) {
+                    try {
+                        runCopyStep(step, progress, cleanup, checkpointTtl);
+                    } catch (RuntimeException re) {
+                        log.warn("Copying {} into site {} failed, {}", step.toolId, toSiteId, re.getMessage());
+                        step.failed = true;
+                        progress.setStatus(step.index, SiteCopyProgress.Status.FAILED);
+                    }
+                }
+                siteCopyCache.put("progress:" + toSiteId, progress);
+                continue;
+            }
+            List<Future<?>> futures = new ArrayList<>();
+            for (CopyStep step : stage) {
+                futures.add(copyExecutorService.submit(() -> {
+                    sessionManager.setCurrentSession(session);
+                    sessionManager.setCurrentToolSession(toolSession);
+                    if (securityAdvisor != null) {
+                        securityService.pushAdvisor(securityAdvisor);
+                    }
+                    try {
+                        runCopyStep(step, progress, cleanup, checkpointTtl);
+                    } finally {
+                        if (securityAdvisor != null) {
+                            securityService.popAdvisor(securityAdvisor);
+                        }
+                        threadLocalManager.clear();
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException ee) {
+                    log.warn("Copying {} into site {} failed, {}", stage.get(i).toolId, toSiteId, ee.getMessage());
+                    stage.get(i).failed = true;
+                    progress.setStatus(stage.get(i).index, SiteCopyProgress.Status.FAILED);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    log.warn("Interrupted waiting for {} to be copied into site {}", stage.get(i).toolId, toSiteId);
+                    stage.get(i).failed = true;
+                    progress.setStatus(stage.get(i).index, SiteCopyProgress.Status.FAILED);
+                }
+            }
+            siteCopyCache.put("progress:" + toSiteId, progress);
+        }
+
+        Map<String, String> transversalMap = new HashMap<>();
+        boolean failed = false;
+        for (CopyStep step : steps) {
+            if (step.entityMap != null) {
+                transversalMap.putAll(step.entityMap);
+            }
+            failed |= step.failed;
+        }
+        if (!failed) {
+            for (CopyStep step : steps) {
+                siteCopyCache.remove(step.checkpointKey);
+            }
+        }
+        progress.finish();
+        siteCopyCache.put("progress:" + toSiteId, progress);
+        log.info("Copied tool content: {}", progress);
+        return transversalMap;
+    }
+
+    /**
+     * Identifies a copy job, a repeat of the same copy gets the same id so it can find the checkpoints of the last try.
+     */
+    private static String getCopyJobId(String toSiteId, List<CopyStep> steps, boolean cleanup) {
+        Set<String> stepKeys = new TreeSet<>();
+        for (CopyStep step : steps) {
+            stepKeys.add(step.getStepKey());
+        }
+        String job = toSiteId + "|" + cleanup + "|" + String.join("|", stepKeys);
+        return UUID.nameUUIDFromBytes(job.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    /**
+     * Copy one tool's content in a transaction, or take its references from the checkpoint of an earlier try of the
+     * job that finished it. The checkpoint is only kept once the transaction has committed.
+     */
+    private void runCopyStep(CopyStep step, SiteCopyProgress progress, boolean cleanup, long checkpointTtl) {
+        Checkpoint checkpoint = (Checkpoint) siteCopyCache.get(step.checkpointKey);
+        if (checkpoint != null) {
+            if (checkpoint.created + checkpointTtl > System.currentTimeMillis()) {
+                log.debug("Tool {} was already copied from {} to {}, skipping", step.toolId, step.fromContext, step.toContext);
+                step.entityMap = checkpoint.entityMap;
+                progress.setStatus(step.index, SiteCopyProgress.Status.COMPLETED);
+                return;
+            }
+            siteCopyCache.remove(step.checkpointKey);
+        }
+
+        progress.setStatus(step.index, SiteCopyProgress.Status.RUNNING);
+        siteCopyCache.put("progress:" + progress.getSiteId(), progress);
+        List<String> failedProducers = new ArrayList<>();
+        transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                step.entityMap = transferCopyEntities(step.toolId, step.fromContext, step.toContext, cleanup, failedProducers);
+            }
+        });
+        if (failedProducers.isEmpty()) {
+            if (checkpointTtl > 0) {
+                siteCopyCache.put(step.checkpointKey, new Checkpoint(step.entityMap));
+            }
+            progress.setStatus(step.index, SiteCopyProgress.Status.COMPLETED);
+        } else {
+            step.failed = true;
+            progress.setStatus(step.index, SiteCopyProgress.Status.FAILED);
+        }
+        siteCopyCache.put("progress:" + progress.getSiteId(), progress);
+    }
+
+    /**
+     * The copy of one tool's content from one context to another.
+     */
+    private static class CopyStep {
+        private final String toolId;
+        private final String fromSiteId;
+        private final String fromContext;
+        private final String toContext;
+        private int index;
+        private String checkpointKey;
+        private volatile Map<String, String> entityMap;
+        private volatile boolean failed;
+
+        private CopyStep(String toolId, String fromSiteId, String fromContext, String toContext) {
+            this.toolId = toolId;
+            this.fromSiteId = fromSiteId;
+            this.fromContext = fromContext;
+            this.toContext = toContext;
+        }
+
+        private String getStepKey() {
+            return toolId + ":" + fromContext + ":" + toContext;
+        }
+    }
+
+    /**
+     * The references of a finished step, kept for the next try of its copy job.
+     */
+    private static class Checkpoint implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final long created = System.currentTimeMillis();
+        private final HashMap<String, String> entityMap;
+
+        private Checkpoint(Map<String, String> entityMap) {
+            this.entityMap = new HashMap<>(entityMap);
+        }
+    }
+
     /**
      * Transfer a copy of all entites from another context for any entity
      * producer that claims this tool id.
      *
-     * @param toolId      The tool id.
-     * @param fromContext The context to import from.
-     * @param toContext   The context to import into.
+     * @param toolId          The tool id.
+     * @param fromContext     The context to import from.
+     * @param toContext       The context to import into.
+     * @param failedProducers The labels of the producers that failed to copy are added to this list.
      */
-    private Map<String, String> transferCopyEntities(String toolId, String fromContext, String toContext, boolean cleanup) {
+    private Map<String, String> transferCopyEntities(String toolId, String fromContext, String toContext, boolean cleanup, List<String> failedProducers) {
         // TODO: used to offer to resources first - why? still needed? -ggolden
 
         Map<String, String> transversalMap = new HashMap<>();
@@ -438,6 +656,7 @@ public class SiteManageServiceImpl implements SiteManageService {
                     }
                 } catch (Exception e) {
                     log.error("Error encountered while asking EntityTransfer to transferCopyEntities from: {} to: {}, {}", fromContext, toContext, e.getMessage());
+                    failedProducers.add(ep.getLabel());
                 }
             }
         }
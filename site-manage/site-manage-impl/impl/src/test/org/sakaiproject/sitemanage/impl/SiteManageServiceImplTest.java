@@ -0,0 +1,249 @@
+/**
+ * Copyright (c) 2003-2018 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.sitemanage.impl;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.content.api.ContentHostingService;
+import org.sakaiproject.entity.api.EntityManager;
+import org.sakaiproject.entity.api.EntityProducer;
+import org.sakaiproject.entity.api.EntityTransferrer;
+import org.sakaiproject.entity.api.EntityTransferrerRefMigrator;
+import org.sakaiproject.memory.api.Cache;
+import org.sakaiproject.memory.api.MemoryService;
+import org.sakaiproject.site.api.Site;
+import org.sakaiproject.site.api.SiteService;
+import org.sakaiproject.sitemanage.api.SiteCopyProgress;
+import org.sakaiproject.tool.api.SessionManager;
+import org.springframework.transaction.TransactionSystemException;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+public class SiteManageServiceImplTest {
+
+    private static final String RESOURCES = "sakai.resources";
+    private static final String ASSIGNMENTS = "sakai.assignment.grades";
+    private static final String LESSONS = "sakai.lessonbuildertool";
+
+    private SiteManageServiceImpl service;
+    private ServerConfigurationService serverConfigurationService;
+    private TransactionTemplate transactionTemplate;
+    private final Map<Object, Object> cached = new HashMap<>();
+    private final List<String> copied = new ArrayList<>();
+    private final Map<String, AtomicInteger> failures = new HashMap<>();
+    private final AtomicInteger transactions = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        @SuppressWarnings("unchecked")
+        Cache<String, Object> cache = mock(Cache.class);
+        when(cache.get(anyString())).thenAnswer(i -> cached.get(i.getArgument(0)));
+        when(cache.remove(anyString())).thenAnswer(i -> cached.remove(i.getArgument(0)) != null);
+        doAnswer(i -> cached.put(i.getArgument(0), i.getArgument(1))).when(cache).put(anyString(), any());
+        MemoryService memoryService = mock(MemoryService.class);
+        when(memoryService.<String, Object>getCache(anyString())).thenReturn(cache);
+
+        ContentHostingService contentHostingService = mock(ContentHostingService.class);
+        when(contentHostingService.getSiteCollection(anyString())).thenAnswer(i -> "/group/" + i.getArgument(0) + "/");
+
+        List<EntityProducer> producers = Arrays.asList(producer(LESSONS), producer(ASSIGNMENTS), producer(RESOURCES));
+        EntityManager entityManager = mock(EntityManager.class);
+        when(entityManager.getEntityProducers()).thenReturn(producers);
+
+        transactionTemplate = mock(TransactionTemplate.class);
+        when(transactionTemplate.execute(any())).thenAnswer(i -> {
+            transactions.incrementAndGet();
+            return ((TransactionCallback<?>) i.getArgument(0)).doInTransaction(null);
+        });
+
+        serverConfigurationService = mock(ServerConfigurationService.class);
+        when(serverConfigurationService.getInt(eq("site.copy.checkpoint.ttl"), anyInt())).thenReturn(3600);
+
+        service = new SiteManageServiceImpl();
+        service.setContentHostingService(contentHostingService);
+        service.setEntityManager(entityManager);
+        service.setMemoryService(memoryService);
+        service.setServerConfigurationService(serverConfigurationService);
+        service.setSessionManager(mock(SessionManager.class));
+        service.setSiteService(mock(SiteService.class));
+        service.setTransactionTemplate(transactionTemplate);
+        service.setSiteImportThreadCount(1);
+        service.init();
+    }
+
+    @After
+    public void tearDown() {
+        service.destroy();
+    }
+
+    @Test
+    public void testStagesRunInOrder() {
+        importTools(LESSONS, ASSIGNMENTS, RESOURCES);
+
+        Assert.assertEquals(Arrays.asList(RESOURCES, ASSIGNMENTS, LESSONS), copied);
+        // each step of the sequential path has its own transaction
+        Assert.assertEquals(3, transactions.get());
+        SiteCopyProgress progress = service.getSiteCopyProgress("to");
+        Assert.assertTrue(progress.isFinished());
+        Assert.assertEquals(3, progress.getCompletedSteps());
+        Assert.assertEquals(0, progress.getFailedSteps());
+    }
+
+    @Test
+    public void testRepeatedCopySkipsFinishedSteps() {
+        failures.put(ASSIGNMENTS, new AtomicInteger(1));
+        importTools(RESOURCES, ASSIGNMENTS);
+        SiteCopyProgress progress = service.getSiteCopyProgress("to");
+        Assert.assertEquals(Collections.singletonList(ASSIGNMENTS), progress.getFailedToolIds());
+
+        copied.clear();
+        importTools(RESOURCES, ASSIGNMENTS);
+        Assert.assertEquals(Collections.singletonList(ASSIGNMENTS), copied);
+        Assert.assertEquals(2, service.getSiteCopyProgress("to").getCompletedSteps());
+
+        // the job succeeded so its checkpoints are gone
+        Assert.assertTrue(cached.keySet().stream().noneMatch(k -> k.toString().startsWith("step:")));
+        copied.clear();
+        importTools(RESOURCES, ASSIGNMENTS);
+        Assert.assertEquals(Arrays.asList(RESOURCES, ASSIGNMENTS), copied);
+    }
+
+    @Test
+    public void testCheckpointsBelongToOneJob() {
+        failures.put(ASSIGNMENTS, new AtomicInteger(1));
+        importTools(RESOURCES, ASSIGNMENTS);
+
+        // a different copy into the same site does not take the references of the failed one
+        copied.clear();
+        importTools(RESOURCES, LESSONS);
+        Assert.assertEquals(Arrays.asList(RESOURCES, LESSONS), copied);
+    }
+
+    @Test
+    public void testExpiredCheckpointsAreIgnored() {
+        failures.put(ASSIGNMENTS, new AtomicInteger(1));
+        importTools(RESOURCES, ASSIGNMENTS);
+
+        // the checkpoint of resources is now older than the ttl
+        when(serverConfigurationService.getInt(eq("site.copy.checkpoint.ttl"), anyInt())).thenReturn(0);
+        copied.clear();
+        importTools(RESOURCES, ASSIGNMENTS);
+        Assert.assertEquals(Arrays.asList(RESOURCES, ASSIGNMENTS), copied);
+    }
+
+    @Test
+    public void testFailedTransactionFailsTheStep() {
+        doAnswer(i -> {
+            Object result = ((TransactionCallback<?>) i.getArgument(0)).doInTransaction(null);
+            if (copied.size() == 1) {
+                throw new TransactionSystemException("commit failed");
+            }
+            return result;
+        }).when(transactionTemplate).execute(any());
+        importTools(RESOURCES, ASSIGNMENTS);
+
+        // the other steps still run
+        Assert.assertEquals(Arrays.asList(RESOURCES, ASSIGNMENTS), copied);
+        SiteCopyProgress progress = service.getSiteCopyProgress("to");
+        Assert.assertEquals(Collections.singletonList(RESOURCES), progress.getFailedToolIds());
+        Assert.assertEquals(1, progress.getCompletedSteps());
+
+        // nothing is remembered for the step whose transaction failed
+        copied.clear();
+        doAnswer(i -> ((TransactionCallback<?>) i.getArgument(0)).doInTransaction(null)).when(transactionTemplate).execute(any());
+        importTools(RESOURCES, ASSIGNMENTS);
+        Assert.assertEquals(Collections.singletonList(RESOURCES), copied);
+    }
+
+    @Test
+    public void testProgress() {
+        SiteCopyProgress progress = new SiteCopyProgress("site");
+        int first = progress.addStep(RESOURCES, "a");
+        int second = progress.addStep(ASSIGNMENTS, "a");
+        int third = progress.addStep(ASSIGNMENTS, "b");
+        Assert.assertEquals(3, progress.getTotalSteps());
+        Assert.assertEquals(SiteCopyProgress.Status.QUEUED, progress.getStatus(first));
+        Assert.assertEquals("b", progress.getFromSiteId(third));
+
+        progress.setStatus(first, SiteCopyProgress.Status.COMPLETED);
+        progress.setStatus(second, SiteCopyProgress.Status.RUNNING);
+        progress.setStatus(third, SiteCopyProgress.Status.RUNNING);
+        Assert.assertEquals(Collections.singletonList(ASSIGNMENTS), progress.getRunningToolIds());
+        Assert.assertFalse(progress.isFinished());
+
+        progress.setStatus(second, SiteCopyProgress.Status.FAILED);
+        progress.setStatus(third, SiteCopyProgress.Status.FAILED);
+        progress.finish();
+        Assert.assertEquals(1, progress.getCompletedSteps());
+        Assert.assertEquals(2, progress.getFailedSteps());
+        Assert.assertEquals(Collections.singletonList(ASSIGNMENTS), progress.getFailedToolIds());
+        Assert.assertTrue(progress.isFinished());
+        Assert.assertTrue(progress.getFinished() >= progress.getStarted());
+    }
+
+    private void importTools(String... toolIds) {
+        Site site = mock(Site.class);
+        when(site.getId()).thenReturn("to");
+        Map<String, List<String>> importTools = new LinkedHashMap<>();
+        for (String toolId : toolIds) {
+            importTools.put(toolId, Collections.singletonList("from"));
+        }
+        service.importToolsIntoSite(site, new ArrayList<>(importTools.keySet()), importTools, false);
+    }
+
+    /**
+     * A producer for one tool which notes the copies it makes and fails while it has failures left.
+     */
+    private EntityProducer producer(String toolId) throws Exception {
+        EntityProducer producer = mock(EntityProducer.class,
+                withSettings().extraInterfaces(EntityTransferrer.class, EntityTransferrerRefMigrator.class));
+        when(producer.getLabel()).thenReturn(toolId);
+        when(((EntityTransferrer) producer).myToolIds()).thenReturn(new String[] {toolId});
+        when(((EntityTransferrerRefMigrator) producer).transferCopyEntitiesRefMigrator(anyString(), anyString(), anyList(), anyBoolean()))
+                .thenAnswer(i -> {
+                    copied.add(toolId);
+                    AtomicInteger left = failures.get(toolId);
+                    if (left != null && left.getAndDecrement() > 0) {
+                        throw new IllegalStateException("copy of " + toolId + " failed");
+                    }
+                    return Collections.singletonMap("/" + toolId + "/" + i.getArgument(0), "/" + toolId + "/" + i.getArgument(1));
+                });
+        return producer;
+    }
+}
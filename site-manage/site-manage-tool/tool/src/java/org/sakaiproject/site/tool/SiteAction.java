@@ -134,6 +134,7 @@ import org.sakaiproject.site.util.SiteTextEditUtil;
 import org.sakaiproject.site.util.SiteTypeUtil;
 import org.sakaiproject.site.util.ToolComparator;
 import org.sakaiproject.sitemanage.api.SectionField;
+import org.sakaiproject.sitemanage.api.SiteCopyProgress;
 import org.sakaiproject.sitemanage.api.SiteHelper;
 import org.sakaiproject.sitemanage.api.SiteManageConstants;
 import org.sakaiproject.sitemanage.api.SiteManageService;
@@ -2239,6 +2240,11 @@ public class SiteAction extends PagedResourceActionII {
 						context.put("importQueuedNoEmail", true);
 					}
 				}
+
+				SiteCopyProgress copyProgress = siteManageService.getSiteCopyProgress(siteId);
+				if (copyProgress != null && (!copyProgress.isFinished() || copyProgress.getFailedSteps() > 0)) {
+					context.put("siteCopyProgress", copyProgress);
+				}
 				
 				if (((String) state.getAttribute(STATE_SITE_MODE))
 						.equalsIgnoreCase(SITE_MODE_SITESETUP)) {
@@ -33,4 +33,20 @@ public interface StatsUpdateManagerMXBean {
     double getNumberOfEventsGeneratedPerSec();
 
     long getAverageTimeInEventProcessingPerEvent();
+
+    /** Number of events waiting for the collect thread. */
+    int getQueueSize();
+
+    /** How long, in milliseconds, the oldest event waiting for the collect thread has been waiting. */
+    long getQueueLag();
+
+    /** Number of rows counted since the last db update. */
+    int getNumberOfPendingCounters();
+
+    long getNumberOfFlushes();
+
+    long getNumberOfFailedFlushes();
+
+    /** Time taken, in milliseconds, by the last db update. */
+    long getLastFlushDuration();
 }
@@ -38,6 +38,7 @@ import java.text.DateFormat;
 import java.text.NumberFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 
@@ -121,6 +122,7 @@ public class ServerWideReportManagerImpl implements ServerWideReportManager
 
 	private String dbVendor;
 	private String externalDbName;
+	private boolean useRollups;
 
 	public void init (){
 		//setup the vendor
@@ -134,6 +136,12 @@ public class ServerWideReportManagerImpl implements ServerWideReportManager
 		} else {
 			log.info("ServerWideReportManagerImpl will query for Sitestats data in the main Sakai database");
 		}
+
+		//read the login and activity reports from the tables kept by ServerWideRollupJobImpl
+		useRollups = serverConfigurationService.getBoolean("sitestats.serverWide.rollups.enabled", false);
+		if(useRollups){
+			log.info("ServerWideReportManagerImpl will read login and activity reports from the server wide rollup tables");
+		}
 		
 	}
 
@@ -145,6 +153,9 @@ public class ServerWideReportManagerImpl implements ServerWideReportManager
 	 * @see org.sakaiproject.sitestats.api.ServerWideReportManager#getMonthlyTotalLogins()
 	 */
 	public List<ServerWideStatsRecord> getMonthlyTotalLogins() {
+		if(useRollups){
+			return getRollupLogins(ServerWideRollupJobImpl.MONTH, "sum(LOGINS)", 0);
+		}
 		
 		String mysql = "select STR_TO_DATE(date_format(ACTIVITY_DATE, '%Y-%m-01'),'%Y-%m-%d') as period," +
 				" sum(ACTIVITY_COUNT) as user_logins" +
@@ -185,6 +196,9 @@ public class ServerWideReportManagerImpl implements ServerWideReportManager
 	 * @see org.sakaiproject.sitestats.api.ServerWideReportManager#getMonthlyUniqueLogins()
 	 */
 	public List<ServerWideStatsRecord> getMonthlyUniqueLogins() {
+		if(useRollups){
+			return getRollupLogins(ServerWideRollupJobImpl.MONTH, "count(*)", 0);
+		}
 		
 		String mysql = "select STR_TO_DATE(date_format(LOGIN_DATE, '%Y-%m-01'),'%Y-%m-%d') as period," +
 				" count(distinct user_id) as unique_users" +
@@ -223,6 +237,9 @@ public class ServerWideReportManagerImpl implements ServerWideReportManager
 	 * @see org.sakaiproject.sitestats.api.ServerWideReportManager#getWeeklyTotalLogins()
 	 */
 	public List<ServerWideStatsRecord> getWeeklyTotalLogins() {
+		if(useRollups){
+			return getRollupLogins(ServerWideRollupJobImpl.WEEK, "sum(LOGINS)", 0);
+		}
 		
 		
 		String mysql = "select STR_TO_DATE(concat(date_format(ACTIVITY_DATE, '%x-%v'), ' Monday'),'%x-%v %W') as week_start," +
@@ -264,6 +281,9 @@ public class ServerWideReportManagerImpl implements ServerWideReportManager
 	 * @see org.sakaiproject.sitestats.api.ServerWideReportManager#getWeeklyUniqueLogins()
 	 */
 	public List<ServerWideStatsRecord> getWeeklyUniqueLogins() {
+		if(useRollups){
+			return getRollupLogins(ServerWideRollupJobImpl.WEEK, "count(*)", 0);
+		}
 		
 		String mysql = "select STR_TO_DATE(concat(date_format(LOGIN_DATE, '%x-%v'), ' Monday'),'%x-%v %W') as week_start," +
 				" count(distinct user_id) as unique_users" +
@@ -302,6 +322,9 @@ public class ServerWideReportManagerImpl implements ServerWideReportManager
 	 * @see org.sakaiproject.sitestats.api.ServerWideReportManager#getDailyTotalLogins()
 	 */
 	public List<ServerWideStatsRecord> getDailyTotalLogins() {
+		if(useRollups){
+			return getRollupLogins(ServerWideRollupJobImpl.DAY, "sum(LOGINS)", 90);
+		}
 		
 		String mysql = "select date(ACTIVITY_DATE) as session_date, " +
 				" ACTIVITY_COUNT as user_logins" +
@@ -344,6 +367,9 @@ public class ServerWideReportManagerImpl implements ServerWideReportManager
 	 * @see org.sakaiproject.sitestats.api.ServerWideReportManager#getDailyUniqueLogins()
 	 */
 	public List<ServerWideStatsRecord> getDailyUniqueLogins() {
+		if(useRollups){
+			return getRollupLogins(ServerWideRollupJobImpl.DAY, "count(*)", 90);
+		}
 		
 		String mysql = "select date(LOGIN_DATE) as session_date, " +
 				" count(distinct user_id) as unique_users" +
@@ -514,6 +540,10 @@ public class ServerWideReportManagerImpl implements ServerWideReportManager
 
 	public List<ServerWideStatsRecord> getTop20Activities()
 	{
+		if(useRollups){
+			return getRollupTop20Activities();
+		}
+
 		String mysql = "SELECT event_id, "
 				+ "sum(if(event_date > DATE_SUB(CURDATE(), INTERVAL 7 DAY),1,0))/7 as last7, "
 				+ "sum(if(event_date > DATE_SUB(CURDATE(), INTERVAL 30 DAY),1,0))/30 as last30, "
@@ -560,6 +590,10 @@ public class ServerWideReportManagerImpl implements ServerWideReportManager
 
 	public List<ServerWideStatsRecord> getWeeklyRegularUsers ()
 	{
+		if(useRollups){
+			return getRollupWeeklyRegularUsers();
+		}
+
 		String mysql = "select s.week_start, sum(if(s.user_logins >= 5,1,0)) as five_plus, "
 				+ "sum(if(s.user_logins = 4,1,0)) as four, "
 				+ "sum(if(s.user_logins = 3,1,0)) as three, "
@@ -610,8 +644,13 @@ public class ServerWideReportManagerImpl implements ServerWideReportManager
 
 	// this has not been reimplemented in STAT-299 because the data is not tracked at an hourly level
 	// in any case, the data is only shown for a 30 day period so you could think about retaining the data for 30 days, perhaps.
+	// The rollup tables do keep hourly logins for about that long, see getRollupHourlyUsagePattern().
 	public List<ServerWideStatsRecord> getHourlyUsagePattern ()
 	{
+		if(useRollups){
+			return getRollupHourlyUsagePattern();
+		}
+
 		String mysql = "select date(SESSION_START) as session_date, "
 				+ "hour(session_start) as hour_start, "
 				+ "count(distinct SESSION_USER) as unique_users "
@@ -1597,6 +1636,166 @@ public class ServerWideReportManagerImpl implements ServerWideReportManager
 		return Color.white;
 	}
 	
+	/**
+	 * Logins per period from the rollup tables, oldest first.
+	 * @param periodType one of the ServerWideRollupJobImpl period types
+	 * @param aggregate sum(LOGINS) for the total logins, count(*) for the unique users
+	 * @param days only periods starting in the last number of days, 0 for all of them
+	 */
+	private List<ServerWideStatsRecord> getRollupLogins(String periodType, String aggregate, int days) {
+		String sql = "select PERIOD_START, " + aggregate +
+				" from " + ServerWideRollupJobImpl.USERS_TABLE +
+				" where PERIOD_TYPE = ? and PERIOD_START > ?" +
+				" group by PERIOD_START" +
+				" order by PERIOD_START";
+		Object[] fields = new Object[] {periodType, days > 0 ? daysAgo(days) : new Date(0)};
+
+		List result = sqlService.dbRead (sql, fields, new SqlReader () {
+			public Object readSqlResultRecord (ResultSet result)
+			{
+				ServerWideStatsRecord info = new ServerWideStatsRecordImpl ();
+				try {
+					info.add (readPeriodStart (result));
+					info.add (result.getLong (2));
+				}
+				catch (SQLException e) {
+					log.error("getRollupLogins() exception: " + e.getClass() + ": " + e.getMessage());
+					return null;
+				}
+				return info;
+			}
+		});
+
+		// remove the last entry, as it might not be a complete period
+		if (!result.isEmpty()) {
+			result.remove (result.size () - 1);
+		}
+
+		return result;
+	}
+
+	private List<ServerWideStatsRecord> getRollupTop20Activities() {
+		String sql = "select EVENT_ID," +
+				" sum(case when PERIOD_START > ? then EVENT_COUNT else 0 end) / 7.0 as last7," +
+				" sum(case when PERIOD_START > ? then EVENT_COUNT else 0 end) / 30.0 as last30," +
+				" sum(EVENT_COUNT) / 365.0 as last365" +
+				" from " + ServerWideRollupJobImpl.EVENTS_TABLE +
+				" where PERIOD_TYPE = ? and PERIOD_START > ?" +
+				" and EVENT_ID not in ('content.read', 'user.login', 'user.logout', 'pres.begin', 'pres.end', 'realm.upd', 'realm.add', 'realm.del', 'realm.upd.own', 'site.add', 'site.del', 'user.add', 'user.del')" +
+				" group by EVENT_ID" +
+				" order by 2 desc, 3 desc, 4 desc";
+		Object[] fields = new Object[] {daysAgo(7), daysAgo(30), ServerWideRollupJobImpl.DAY, daysAgo(365)};
+
+		List result = sqlService.dbRead (sql, fields, new SqlReader () {
+			public Object readSqlResultRecord (ResultSet result)
+			{
+				ServerWideStatsRecord info = new ServerWideStatsRecordImpl ();
+				try {
+					info.add (result.getString (1));
+					info.add (result.getDouble (2));
+					info.add (result.getDouble (3));
+					info.add (result.getDouble (4));
+				}
+				catch (SQLException e) {
+					log.error("getRollupTop20Activities() exception: " + e.getClass() + ": " + e.getMessage());
+					return null;
+				}
+				return info;
+			}
+		});
+
+		return result.size() > 20 ? new ArrayList<ServerWideStatsRecord>(result.subList(0, 20)) : result;
+	}
+
+	private List<ServerWideStatsRecord> getRollupWeeklyRegularUsers() {
+		String sql = "select PERIOD_START," +
+				" sum(case when LOGINS >= 5 then 1 else 0 end) as five_plus," +
+				" sum(case when LOGINS = 4 then 1 else 0 end) as four," +
+				" sum(case when LOGINS = 3 then 1 else 0 end) as three," +
+				" sum(case when LOGINS = 2 then 1 else 0 end) as twice," +
+				" sum(case when LOGINS = 1 then 1 else 0 end) as once" +
+				" from " + ServerWideRollupJobImpl.USERS_TABLE +
+				" where PERIOD_TYPE = ?" +
+				" group by PERIOD_START" +
+				" order by PERIOD_START";
+
+		List result = sqlService.dbRead (sql, new Object[] {ServerWideRollupJobImpl.WEEK}, new SqlReader () {
+			public Object readSqlResultRecord (ResultSet result)
+			{
+				ServerWideStatsRecord info = new ServerWideStatsRecordImpl ();
+				try {
+					info.add (readPeriodStart (result));
+					info.add (result.getLong (2));
+					info.add (result.getLong (3));
+					info.add (result.getLong (4));
+					info.add (result.getLong (5));
+					info.add (result.getLong (6));
+				}
+				catch (SQLException e) {
+					log.error("getRollupWeeklyRegularUsers() exception: " + e.getClass() + ": " + e.getMessage());
+					return null;
+				}
+				return info;
+			}
+		});
+
+		// remove the last entry, as it might not be a complete period
+		if (!result.isEmpty()) {
+			result.remove (result.size () - 1);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Unlike the SAKAI_SESSION query this counts the users that logged in during each hour,
+	 * rather than the users whose session started in it.
+	 */
+	private List<ServerWideStatsRecord> getRollupHourlyUsagePattern() {
+		String sql = "select PERIOD_START, count(*)" +
+				" from " + ServerWideRollupJobImpl.USERS_TABLE +
+				" where PERIOD_TYPE = ? and PERIOD_START > ?" +
+				" group by PERIOD_START" +
+				" order by PERIOD_START";
+		Object[] fields = new Object[] {ServerWideRollupJobImpl.HOUR, daysAgo(30)};
+
+		List result = sqlService.dbRead (sql, fields, new SqlReader () {
+			public Object readSqlResultRecord (ResultSet result)
+			{
+				ServerWideStatsRecord info = new ServerWideStatsRecordImpl ();
+				try {
+					Calendar c = Calendar.getInstance();
+					c.setTime (readPeriodStart (result));
+					int hour = c.get (Calendar.HOUR_OF_DAY);
+					c.set (Calendar.HOUR_OF_DAY, 0);
+					info.add (new java.sql.Date (c.getTimeInMillis ()));
+					info.add (hour);
+					info.add (result.getLong (2));
+				}
+				catch (SQLException e) {
+					log.error("getRollupHourlyUsagePattern() exception: " + e.getClass() + ": " + e.getMessage());
+					return null;
+				}
+				return info;
+			}
+		});
+
+		return result;
+	}
+
+	/**
+	 * The rollup job writes the period starts as GMT timestamps, as SqlService does for Dates
+	 */
+	private Date readPeriodStart(ResultSet result) throws SQLException {
+		return new java.sql.Date (result.getTimestamp (1, sqlService.getCal ()).getTime ());
+	}
+
+	private Date daysAgo(int days) {
+		Calendar c = Calendar.getInstance();
+		c.add(Calendar.DATE, -days);
+		return c.getTime();
+	}
+
 	/**
 	 * Helper method to return the appropriate SQL for the DB vendor
 	 * Everything should be lowercase.
@@ -0,0 +1,353 @@
+/**
+ * Copyright (c) 2006-2018 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.sitestats.impl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.StatefulJob;
+
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.db.api.SqlService;
+
+/**
+ * Maintains the rollup tables the server wide reports are read from when
+ * sitestats.serverWide.rollups.enabled is set.
+ * <p>
+ * Each run reads the SAKAI_EVENT rows added since the last one, counts them per event and
+ * day/month in SST_SERVERWIDE_EVENTS, and the logins per user and hour/day/week/month in
+ * SST_SERVERWIDE_USERS. The counts and the last event id processed are committed together, so
+ * a run that fails part way is simply picked up again from the last committed block.
+ * <p>
+ * Event ids are handed out before the events are committed, so a newer event can be seen while one
+ * with a lower id is still on its way. Runs therefore only go as far as the newest event older
+ * than settleSeconds, and the next run reads the tail after it again.
+ * <p>
+ * The rollup tables live in the main Sakai database, next to SAKAI_EVENT.
+ */
+@Slf4j
+public class ServerWideRollupJobImpl implements StatefulJob {
+	public final static String	EVENTS_TABLE		= "SST_SERVERWIDE_EVENTS";
+	public final static String	USERS_TABLE			= "SST_SERVERWIDE_USERS";
+	public final static String	WATERMARK_TABLE		= "SST_SERVERWIDE_WATERMARK";
+
+	public final static String	HOUR				= "H";
+	public final static String	DAY					= "D";
+	public final static String	WEEK				= "W";
+	public final static String	MONTH				= "M";
+
+	private final static String	WATERMARK			= "events";
+	private final static String	LOGIN_EVENT			= "user.login";
+
+	private final static String	LAST_EVENT_ID		= "select max(EVENT_ID) from SAKAI_EVENT";
+	private final static String	LAST_SETTLED_ID		= "select max(EVENT_ID) from SAKAI_EVENT where EVENT_ID > ? and EVENT_DATE <= ?";
+	private final static String	GET_WATERMARK		= "select LAST_EVENT_ID from " + WATERMARK_TABLE + " where NAME = ?";
+	private final static String	UPDATE_WATERMARK	= "update " + WATERMARK_TABLE + " set LAST_EVENT_ID = ?, LAST_RUN = ? where NAME = ?";
+	private final static String	INSERT_WATERMARK	= "insert into " + WATERMARK_TABLE + " (LAST_EVENT_ID, LAST_RUN, NAME) values (?, ?, ?)";
+	private final static String	GET_EVENTS			= "select e.EVENT_ID, e.EVENT_DATE, e.EVENT, s.SESSION_USER " +
+														"from SAKAI_EVENT e left join SAKAI_SESSION s on e.SESSION_ID = s.SESSION_ID " +
+														"where e.EVENT_ID > ? and e.EVENT_ID <= ?";
+	private final static String	UPDATE_EVENTS		= "update " + EVENTS_TABLE + " set EVENT_COUNT = EVENT_COUNT + ? " +
+														"where PERIOD_TYPE = ? and PERIOD_START = ? and EVENT_ID = ?";
+	private final static String	INSERT_EVENTS		= "insert into " + EVENTS_TABLE + " (EVENT_COUNT, PERIOD_TYPE, PERIOD_START, EVENT_ID) values (?, ?, ?, ?)";
+	private final static String	UPDATE_USERS		= "update " + USERS_TABLE + " set LOGINS = LOGINS + ? " +
+														"where PERIOD_TYPE = ? and PERIOD_START = ? and USER_ID = ?";
+	private final static String	INSERT_USERS		= "insert into " + USERS_TABLE + " (LOGINS, PERIOD_TYPE, PERIOD_START, USER_ID) values (?, ?, ?, ?)";
+	private final static String	PRUNE_HOURS			= "delete from " + USERS_TABLE + " where PERIOD_TYPE = '" + HOUR + "' and PERIOD_START < ?";
+
+	// Spring fields
+	/** Maximum number of events read per job run */
+	@Setter private int			maxEventsPerRun		= 500000;
+	/** Range of event ids read and committed at a time */
+	@Setter private int			sqlBlockSize		= 10000;
+	/** Event id to start from on the first run, everything in SAKAI_EVENT is rolled up by default */
+	@Setter private long		startEventId		= 0;
+	/** Events younger than this are left for a later run, in case ones with lower ids are not committed yet */
+	@Setter private int			settleSeconds		= 300;
+	/** Hourly rows are only used for the last 30 days of the usage pattern report */
+	@Setter private int			hourlyRetentionDays	= 35;
+
+	// Services
+	@Setter private SqlService	sqlService;
+	@Setter private ServerConfigurationService serverConfigurationService;
+
+	public void init() {
+		if(serverConfigurationService.getBoolean("auto.ddl", true)) {
+			sqlService.ddl(this.getClass().getClassLoader(), "sst_serverwide_rollups");
+		}
+	}
+
+	public void execute(JobExecutionContext context) throws JobExecutionException {
+		log.info("Starting job: " + context.getJobDetail().getKey().getName());
+		try{
+			long processed = updateRollups();
+			log.info("Summary: rolled up " + processed + " events");
+		}catch(SQLException e){
+			log.error("Summary: job run failed", e);
+		}
+	}
+
+	/**
+	 * Rolls up the events added since the last run.
+	 * @return the number of events read
+	 */
+	public long updateRollups() throws SQLException {
+		long start = System.currentTimeMillis();
+		long processed = 0;
+		Connection connection = sqlService.borrowConnection();
+		boolean autoCommit = connection.getAutoCommit();
+		try{
+			connection.setAutoCommit(false);
+			Long watermark = readLong(connection, GET_WATERMARK, WATERMARK);
+			long from = watermark != null ? watermark : startEventId;
+			boolean watermarkExists = watermark != null;
+			long lastEventId = getSettledEventId(connection, from);
+
+			while(from < lastEventId && processed < maxEventsPerRun) {
+				long to = Math.min(from + sqlBlockSize, lastEventId);
+				Rollup rollup = new Rollup();
+				processed += readEvents(connection, from, to, rollup);
+				writeCounts(connection, UPDATE_EVENTS, INSERT_EVENTS, rollup.events);
+				writeCounts(connection, UPDATE_USERS, INSERT_USERS, rollup.users);
+				writeWatermark(connection, to, watermarkExists);
+				connection.commit();
+				watermarkExists = true;
+				from = to;
+			}
+
+			if(hourlyRetentionDays > 0) {
+				Calendar c = Calendar.getInstance();
+				c.add(Calendar.DATE, -hourlyRetentionDays);
+				try(PreparedStatement st = connection.prepareStatement(PRUNE_HOURS)) {
+					st.setTimestamp(1, new Timestamp(c.getTimeInMillis()), sqlService.getCal());
+					st.executeUpdate();
+				}
+				connection.commit();
+			}
+		}catch(SQLException e){
+			connection.rollback();
+			throw e;
+		}finally{
+			try{
+				connection.setAutoCommit(autoCommit);
+			}finally{
+				sqlService.returnConnection(connection);
+			}
+		}
+		log.debug("Rolled up " + processed + " events in " + (System.currentTimeMillis() - start) + " ms");
+		return processed;
+	}
+
+	/**
+	 * @return the id of the newest event older than settleSeconds. Lower ids were handed out before it, so
+	 * their events have had at least that long to be committed.
+	 */
+	private long getSettledEventId(Connection connection, long from) throws SQLException {
+		if(settleSeconds <= 0) {
+			Long lastEventId = readLong(connection, LAST_EVENT_ID, null);
+			return lastEventId != null ? lastEventId : from;
+		}
+		// reads the range the run is about to read anyway, through the primary key
+		try(PreparedStatement st = connection.prepareStatement(LAST_SETTLED_ID)) {
+			st.setLong(1, from);
+			st.setTimestamp(2, new Timestamp(System.currentTimeMillis() - settleSeconds * 1000L), sqlService.getCal());
+			try(ResultSet rs = st.executeQuery()) {
+				if(rs.next()) {
+					long lastSettled = rs.getLong(1);
+					if(!rs.wasNull()) {
+						return lastSettled;
+					}
+				}
+			}
+		}
+		return from;
+	}
+
+	private int readEvents(Connection connection, long from, long to, Rollup rollup) throws SQLException {
+		int count = 0;
+		try(PreparedStatement st = connection.prepareStatement(GET_EVENTS)) {
+			st.setLong(1, from);
+			st.setLong(2, to);
+			try(ResultSet rs = st.executeQuery()) {
+				while(rs.next()) {
+					count++;
+					Timestamp date = rs.getTimestamp(2, sqlService.getCal());
+					String event = rs.getString(3);
+					String userId = rs.getString(4);
+					if(date == null || event == null) {
+						continue;
+					}
+					rollup.addEvent(date, event);
+					if(LOGIN_EVENT.equals(event) && userId != null) {
+						rollup.addLogin(date, userId);
+					}
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Adds the counts to the existing rows, inserting the rows that aren't there yet.
+	 */
+	private void writeCounts(Connection connection, String updateSql, String insertSql, Map<RollupKey, long[]> counts) throws SQLException {
+		if(counts.isEmpty()) {
+			return;
+		}
+		List<RollupKey> keys = new ArrayList<RollupKey>(counts.keySet());
+		List<RollupKey> missing = new ArrayList<RollupKey>();
+		try(PreparedStatement update = connection.prepareStatement(updateSql)) {
+			for(RollupKey key : keys) {
+				bind(update, key, counts.get(key)[0]);
+				update.addBatch();
+			}
+			int[] updated = update.executeBatch();
+			for(int i=0; i<keys.size(); i++) {
+				if(updated[i] == Statement.SUCCESS_NO_INFO) {
+					// the driver can't tell, so ask again for this one
+					bind(update, keys.get(i), counts.get(keys.get(i))[0]);
+					if(update.executeUpdate() == 0) {
+						missing.add(keys.get(i));
+					}
+				}else if(updated[i] == 0) {
+					missing.add(keys.get(i));
+				}
+			}
+		}
+		if(!missing.isEmpty()) {
+			try(PreparedStatement insert = connection.prepareStatement(insertSql)) {
+				for(RollupKey key : missing) {
+					bind(insert, key, counts.get(key)[0]);
+					insert.addBatch();
+				}
+				insert.executeBatch();
+			}
+		}
+	}
+
+	private void bind(PreparedStatement st, RollupKey key, long count) throws SQLException {
+		st.setLong(1, count);
+		st.setString(2, key.periodType);
+		st.setTimestamp(3, new Timestamp(key.periodStart), sqlService.getCal());
+		st.setString(4, key.id);
+	}
+
+	private void writeWatermark(Connection connection, long eventId, boolean exists) throws SQLException {
+		try(PreparedStatement st = connection.prepareStatement(exists ? UPDATE_WATERMARK : INSERT_WATERMARK)) {
+			st.setLong(1, eventId);
+			st.setTimestamp(2, new Timestamp(System.currentTimeMillis()), sqlService.getCal());
+			st.setString(3, WATERMARK);
+			st.executeUpdate();
+		}
+	}
+
+	private Long readLong(Connection connection, String sql, String param) throws SQLException {
+		try(PreparedStatement st = connection.prepareStatement(sql)) {
+			if(param != null) {
+				st.setString(1, param);
+			}
+			try(ResultSet rs = st.executeQuery()) {
+				if(rs.next()) {
+					long value = rs.getLong(1);
+					return rs.wasNull() ? null : value;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The counts of one block of events, keyed by row of the rollup tables.
+	 */
+	private static class Rollup {
+		final Map<RollupKey, long[]>	events	= new HashMap<RollupKey, long[]>();
+		final Map<RollupKey, long[]>	users	= new HashMap<RollupKey, long[]>();
+		final Calendar					c		= Calendar.getInstance();
+
+		void addEvent(Date date, String event) {
+			increment(events, DAY, truncate(date, DAY), event);
+			increment(events, MONTH, truncate(date, MONTH), event);
+		}
+
+		void addLogin(Date date, String userId) {
+			for(String period : new String[] {HOUR, DAY, WEEK, MONTH}) {
+				increment(users, period, truncate(date, period), userId);
+			}
+		}
+
+		private static void increment(Map<RollupKey, long[]> counts, String periodType, long periodStart, String id) {
+			counts.computeIfAbsent(new RollupKey(periodType, periodStart, id), k -> new long[1])[0]++;
+		}
+
+		/** Start of the period the date falls in, weeks start on Monday as in the reports */
+		private long truncate(Date date, String periodType) {
+			c.setTime(date);
+			c.set(Calendar.MINUTE, 0);
+			c.set(Calendar.SECOND, 0);
+			c.set(Calendar.MILLISECOND, 0);
+			if(!HOUR.equals(periodType)) {
+				c.set(Calendar.HOUR_OF_DAY, 0);
+			}
+			if(WEEK.equals(periodType)) {
+				int daysFromMonday = (c.get(Calendar.DAY_OF_WEEK) + 5) % 7;
+				c.add(Calendar.DATE, -daysFromMonday);
+			}else if(MONTH.equals(periodType)) {
+				c.set(Calendar.DAY_OF_MONTH, 1);
+			}
+			return c.getTimeInMillis();
+		}
+	}
+
+	private static final class RollupKey {
+		final String	periodType;
+		final long		periodStart;
+		final String	id;
+
+		RollupKey(String periodType, long periodStart, String id) {
+			this.periodType = periodType;
+			this.periodStart = periodStart;
+			this.id = id;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof RollupKey)) {
+				return false;
+			}
+			RollupKey k = (RollupKey) o;
+			return periodStart == k.periodStart && periodType.equals(k.periodType) && id.equals(k.id);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * periodType.hashCode() + Long.hashCode(periodStart)) + id.hashCode();
+		}
+	}
+}
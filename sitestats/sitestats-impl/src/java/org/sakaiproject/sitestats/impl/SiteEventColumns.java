@@ -0,0 +1,492 @@
+/**
+ * Copyright (c) 2006-2018 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.sitestats.impl;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.sakaiproject.sitestats.api.StatsManager;
+
+/**
+ * The consolidated events (SST_EVENTS rows) of one site held column by column, so the event
+ * reports of the site can be filtered, grouped and counted in memory.
+ * <p>
+ * Users and events are dictionary encoded and dates are kept as an index into the sorted list
+ * of days the site has events on, so a row is three ints and a long. A query is a single pass
+ * over those arrays: the event, user and date conditions are turned into lookup tables and a
+ * range of day codes beforehand, and rows are grouped on a key packed from their codes.
+ * <p>
+ * The results follow the HQL built by StatsManagerImpl for the same arguments: the user of an
+ * anonymous event is reported as '-', the final date includes the whole day, and an empty
+ * list of events or users matches nothing.
+ */
+public class SiteEventColumns implements Serializable {
+	private static final long		serialVersionUID	= 1L;
+
+	/** Event, day and month codes are packed into 16 bits each of the grouping key */
+	private static final int		MAX_CODE			= 0xFFFF;
+
+	private static final int		GROUP_NONE			= 0;
+	private static final int		GROUP_DAY			= 1;
+	private static final int		GROUP_MONTH			= 2;
+	private static final int		GROUP_YEAR			= 3;
+
+	private static final Set<String> SUPPORTED_TOTALS	= new HashSet<String>(Arrays.asList(
+			StatsManager.T_NONE, StatsManager.T_SITE, StatsManager.T_USER, StatsManager.T_EVENT, StatsManager.T_TOOL,
+			StatsManager.T_DATE, StatsManager.T_LASTDATE, StatsManager.T_DATEMONTH, StatsManager.T_DATEYEAR,
+			StatsManager.T_TOTAL, StatsManager.T_VISITS, StatsManager.T_UNIQUEVISITS));
+
+	private final String			siteId;
+	private final long				loadTime;
+	private final boolean			complete;
+
+	private final String[]			users;
+	private final String[]			events;
+	private final long[]			days;
+	private final int[]				dayYears;
+	private final int[]				dayMonths;
+
+	private final int				rows;
+	private final int[]				userCol;
+	private final int[]				eventCol;
+	private final int[]				dayCol;
+	private final long[]			countCol;
+
+	private SiteEventColumns(String siteId, boolean complete, String[] users, String[] events, long[] days,
+			int rows, int[] userCol, int[] eventCol, int[] dayCol, long[] countCol) {
+		this.siteId = siteId;
+		this.loadTime = System.currentTimeMillis();
+		this.complete = complete;
+		this.users = users;
+		this.events = events;
+		this.days = days;
+		this.rows = rows;
+		this.userCol = userCol;
+		this.eventCol = eventCol;
+		this.dayCol = dayCol;
+		this.countCol = countCol;
+		this.dayYears = new int[days.length];
+		this.dayMonths = new int[days.length];
+		Calendar c = Calendar.getInstance();
+		for(int i=0; i<days.length; i++) {
+			c.setTimeInMillis(days[i]);
+			dayYears[i] = c.get(Calendar.YEAR);
+			dayMonths[i] = c.get(Calendar.MONTH) + 1;
+		}
+	}
+
+	/**
+	 * Placeholder for a site with more rows than are allowed in memory, its reports are left to the database.
+	 */
+	public static SiteEventColumns tooLarge(String siteId) {
+		return new SiteEventColumns(siteId, false, new String[0], new String[0], new long[0], 0, new int[0], new int[0], new int[0], new long[0]);
+	}
+
+	public String getSiteId() {
+		return siteId;
+	}
+
+	public long getLoadTime() {
+		return loadTime;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	/**
+	 * @return true if the event reports of the site can be answered from these columns
+	 */
+	public boolean isQueryable() {
+		return complete && events.length <= MAX_CODE && days.length <= MAX_CODE;
+	}
+
+	/**
+	 * @return true if the report columns can be worked out here, visits from other tables and
+	 * resource or page columns can't
+	 */
+	public static boolean supports(List<String> totalsBy) {
+		return SUPPORTED_TOTALS.containsAll(totalsBy);
+	}
+
+	/**
+	 * Filter, group and sort the site's events.
+	 * @param eventIds events to count, null for all of them
+	 * @param anonymousEvents events whose user is reported as '-' when grouping by user
+	 * @param showAnonymousAccessEvents count the events of the anonymous user ('?')
+	 * @param iDate the initial date (can be null)
+	 * @param fDate the final date, included (can be null)
+	 * @param userIds users to count, null for all of them
+	 * @param totalsBy columns to group by, see {@link #supports(List)}
+	 * @param sortBy column to sort by (can be null)
+	 * @param sortAscending sort ascending?
+	 * @return one group per row of the report
+	 */
+	public List<Group> query(Set<String> eventIds, Set<String> anonymousEvents, boolean showAnonymousAccessEvents,
+			Date iDate, Date fDate, Collection<String> userIds,
+			List<String> totalsBy, String sortBy, boolean sortAscending) {
+		// conditions as lookup tables over the dictionaries
+		boolean[] eventMatch = new boolean[events.length];
+		boolean[] eventAnonymous = new boolean[events.length];
+		for(int i=0; i<events.length; i++) {
+			eventMatch[i] = eventIds == null || eventIds.contains(events[i]);
+			eventAnonymous[i] = anonymousEvents != null && anonymousEvents.contains(events[i]);
+		}
+		Set<String> userSet = userIds == null ? null : new HashSet<String>(userIds);
+		boolean[] userMatch = new boolean[users.length];
+		for(int i=0; i<users.length; i++) {
+			boolean selected = userSet == null || (userSet.isEmpty() ? "".equals(users[i]) : userSet.contains(users[i]));
+			userMatch[i] = selected && (showAnonymousAccessEvents || !"?".equals(users[i]));
+		}
+		int dayFrom = iDate == null ? 0 : firstDayFrom(startOfDay(iDate, 0));
+		int dayTo = fDate == null ? days.length : firstDayFrom(startOfDay(fDate, 1));
+
+		boolean byUser = totalsBy.contains(StatsManager.T_USER);
+		boolean byEvent = totalsBy.contains(StatsManager.T_EVENT) || totalsBy.contains(StatsManager.T_TOOL);
+		boolean maskAnonymous = byUser && anonymousEvents != null && !anonymousEvents.isEmpty();
+		boolean unique = totalsBy.contains(StatsManager.T_VISITS) || totalsBy.contains(StatsManager.T_UNIQUEVISITS);
+		int dateGrouping = GROUP_NONE;
+		if(totalsBy.contains(StatsManager.T_DATE)) {
+			dateGrouping = GROUP_DAY;
+		}else if(totalsBy.contains(StatsManager.T_DATEMONTH)) {
+			dateGrouping = GROUP_MONTH;
+		}else if(totalsBy.contains(StatsManager.T_DATEYEAR)) {
+			dateGrouping = GROUP_YEAR;
+		}
+		// the '-' user of anonymous events gets the code after the last user
+		int anonymousUser = users.length;
+
+		GroupIndex index = new GroupIndex();
+		long[] keys = new long[16];
+		long[] totals = new long[16];
+		int[] lastDays = new int[16];
+		BitSet[] uniques = unique ? new BitSet[16] : null;
+		int groups = 0;
+
+		for(int r=0; r<rows; r++) {
+			int e = eventCol[r];
+			if(!eventMatch[e]) {
+				continue;
+			}
+			int u = userCol[r];
+			if(!userMatch[u]) {
+				continue;
+			}
+			int d = dayCol[r];
+			if(d < dayFrom || d >= dayTo) {
+				continue;
+			}
+			long key = 0;
+			if(byUser) {
+				key |= (long) (maskAnonymous && eventAnonymous[e] ? anonymousUser : u) << 32;
+			}
+			if(byEvent) {
+				key |= (long) e << 16;
+			}
+			if(dateGrouping == GROUP_DAY) {
+				key |= d;
+			}else if(dateGrouping == GROUP_MONTH) {
+				key |= (dayYears[d] - 1900) * 12 + dayMonths[d] - 1;
+			}else if(dateGrouping == GROUP_YEAR) {
+				key |= dayYears[d];
+			}
+			int g = index.get(key);
+			if(g < 0) {
+				g = groups++;
+				if(g == keys.length) {
+					int size = keys.length * 2;
+					keys = Arrays.copyOf(keys, size);
+					totals = Arrays.copyOf(totals, size);
+					lastDays = Arrays.copyOf(lastDays, size);
+					if(unique) {
+						uniques = Arrays.copyOf(uniques, size);
+					}
+				}
+				index.put(key, g);
+				keys[g] = key;
+				lastDays[g] = d;
+				if(unique) {
+					uniques[g] = new BitSet();
+				}
+			}
+			totals[g] += countCol[r];
+			if(d > lastDays[g]) {
+				lastDays[g] = d;
+			}
+			if(unique) {
+				uniques[g].set(u);
+			}
+		}
+
+		List<Group> result = new ArrayList<Group>(groups);
+		for(int g=0; g<groups; g++) {
+			Group group = new Group();
+			if(byUser) {
+				int u = (int) (keys[g] >>> 32);
+				group.user = u == anonymousUser ? "-" : users[u];
+			}
+			if(byEvent) {
+				group.event = events[(int) ((keys[g] >>> 16) & MAX_CODE)];
+			}
+			int d = dateGrouping == GROUP_DAY ? (int) (keys[g] & MAX_CODE) : lastDays[g];
+			group.date = new java.sql.Date(days[d]);
+			group.year = dayYears[d];
+			group.month = dayMonths[d];
+			group.total = totals[g];
+			group.unique = unique ? uniques[g].cardinality() : 0;
+			result.add(group);
+		}
+
+		Comparator<Group> comparator = comparator(totalsBy, sortBy);
+		if(comparator != null) {
+			result.sort(sortAscending ? comparator : comparator.reversed());
+		}
+		return result;
+	}
+
+	/**
+	 * The sort columns the HQL would order by for these totals
+	 */
+	private static Comparator<Group> comparator(List<String> totalsBy, String sortBy) {
+		if(sortBy == null) {
+			return null;
+		}
+		if(sortBy.equals(StatsManager.T_USER) && totalsBy.contains(StatsManager.T_USER)) {
+			return Comparator.comparing((Group g) -> g.user);
+		}
+		if((sortBy.equals(StatsManager.T_EVENT) || sortBy.equals(StatsManager.T_TOOL))
+				&& (totalsBy.contains(StatsManager.T_EVENT) || totalsBy.contains(StatsManager.T_TOOL))) {
+			return Comparator.comparing((Group g) -> g.event);
+		}
+		if((sortBy.equals(StatsManager.T_DATE) || sortBy.equals(StatsManager.T_LASTDATE))
+				&& (totalsBy.contains(StatsManager.T_DATE) || totalsBy.contains(StatsManager.T_LASTDATE))) {
+			return Comparator.comparing((Group g) -> g.date);
+		}
+		if(sortBy.equals(StatsManager.T_TOTAL) || sortBy.equals(StatsManager.T_VISITS)) {
+			return Comparator.comparingLong((Group g) -> g.total);
+		}
+		if(sortBy.equals(StatsManager.T_UNIQUEVISITS)) {
+			return Comparator.comparingLong((Group g) -> g.unique);
+		}
+		return null;
+	}
+
+	/** Index of the first day on or after the time, days.length if there is none */
+	private int firstDayFrom(long time) {
+		int i = Arrays.binarySearch(days, time);
+		return i >= 0 ? i : -i - 1;
+	}
+
+	/** Start of the day of the date, plus a number of days */
+	private static long startOfDay(Date date, int plusDays) {
+		Calendar c = Calendar.getInstance();
+		c.setTime(date);
+		c.set(Calendar.HOUR_OF_DAY, 0);
+		c.set(Calendar.MINUTE, 0);
+		c.set(Calendar.SECOND, 0);
+		c.set(Calendar.MILLISECOND, 0);
+		c.add(Calendar.DAY_OF_YEAR, plusDays);
+		return c.getTimeInMillis();
+	}
+
+	/**
+	 * One row of a report. Only the fields that are part of the grouping are meaningful,
+	 * date is the last day of the group unless grouping by day.
+	 */
+	public static class Group {
+		private String	user;
+		private String	event;
+		private Date	date;
+		private int		year;
+		private int		month;
+		private long	total;
+		private long	unique;
+
+		public String getUser() {
+			return user;
+		}
+
+		public String getEvent() {
+			return event;
+		}
+
+		public Date getDate() {
+			return date;
+		}
+
+		public int getYear() {
+			return year;
+		}
+
+		public int getMonth() {
+			return month;
+		}
+
+		public long getTotal() {
+			return total;
+		}
+
+		public long getUnique() {
+			return unique;
+		}
+	}
+
+	/**
+	 * Collects the rows of a site as they are read from the database.
+	 */
+	public static class Builder {
+		private final String				siteId;
+		private final Map<String, Integer>	userCodes	= new HashMap<String, Integer>();
+		private final Map<String, Integer>	eventCodes	= new HashMap<String, Integer>();
+		private final Map<Long, Integer>	dayCodes	= new HashMap<Long, Integer>();
+		private int							rows		= 0;
+		private int[]						userCol		= new int[1024];
+		private int[]						eventCol	= new int[1024];
+		private int[]						dayCol		= new int[1024];
+		private long[]						countCol	= new long[1024];
+
+		public Builder(String siteId) {
+			this.siteId = siteId;
+		}
+
+		public int getRows() {
+			return rows;
+		}
+
+		public void add(String userId, String eventId, Date date, long count) {
+			if(rows == countCol.length) {
+				int size = rows * 2;
+				userCol = Arrays.copyOf(userCol, size);
+				eventCol = Arrays.copyOf(eventCol, size);
+				dayCol = Arrays.copyOf(dayCol, size);
+				countCol = Arrays.copyOf(countCol, size);
+			}
+			userCol[rows] = code(userCodes, userId);
+			eventCol[rows] = code(eventCodes, eventId);
+			dayCol[rows] = code(dayCodes, date.getTime());
+			countCol[rows] = count;
+			rows++;
+		}
+
+		public SiteEventColumns build() {
+			// number the days in date order, so day ranges are code ranges
+			long[] days = new long[dayCodes.size()];
+			for(Map.Entry<Long, Integer> day : dayCodes.entrySet()) {
+				days[day.getValue()] = day.getKey();
+			}
+			long[] sortedDays = days.clone();
+			Arrays.sort(sortedDays);
+			int[] recode = new int[days.length];
+			for(int i=0; i<days.length; i++) {
+				recode[i] = Arrays.binarySearch(sortedDays, days[i]);
+			}
+			int[] sortedDayCol = new int[rows];
+			for(int r=0; r<rows; r++) {
+				sortedDayCol[r] = recode[dayCol[r]];
+			}
+			return new SiteEventColumns(siteId, true, dictionary(userCodes), dictionary(eventCodes), sortedDays,
+					rows, Arrays.copyOf(userCol, rows), Arrays.copyOf(eventCol, rows), sortedDayCol, Arrays.copyOf(countCol, rows));
+		}
+
+		private static <T> int code(Map<T, Integer> codes, T value) {
+			Integer code = codes.get(value);
+			if(code == null) {
+				code = codes.size();
+				codes.put(value, code);
+			}
+			return code;
+		}
+
+		private static String[] dictionary(Map<String, Integer> codes) {
+			String[] values = new String[codes.size()];
+			for(Map.Entry<String, Integer> entry : codes.entrySet()) {
+				values[entry.getValue()] = entry.getKey();
+			}
+			return values;
+		}
+	}
+
+	/**
+	 * Open addressing map from a packed grouping key to the group number, without boxing either.
+	 */
+	private static class GroupIndex {
+		private long[]	keys	= new long[64];
+		private int[]	values	= new int[64];
+		private int		size	= 0;
+
+		{
+			Arrays.fill(values, -1);
+		}
+
+		int get(long key) {
+			int mask = keys.length - 1;
+			for(int i = slot(key, mask); ; i = (i + 1) & mask) {
+				if(values[i] < 0) {
+					return -1;
+				}
+				if(keys[i] == key) {
+					return values[i];
+				}
+			}
+		}
+
+		void put(long key, int value) {
+			if(size * 2 >= keys.length) {
+				grow();
+			}
+			int mask = keys.length - 1;
+			int i = slot(key, mask);
+			while(values[i] >= 0 && keys[i] != key) {
+				i = (i + 1) & mask;
+			}
+			if(values[i] < 0) {
+				size++;
+			}
+			keys[i] = key;
+			values[i] = value;
+		}
+
+		private void grow() {
+			long[] oldKeys = keys;
+			int[] oldValues = values;
+			keys = new long[oldKeys.length * 2];
+			values = new int[oldValues.length * 2];
+			Arrays.fill(values, -1);
+			size = 0;
+			for(int i=0; i<oldKeys.length; i++) {
+				if(oldValues[i] >= 0) {
+					put(oldKeys[i], oldValues[i]);
+				}
+			}
+		}
+
+		private static int slot(long key, int mask) {
+			long h = key * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32)) & mask;
+		}
+	}
+}
@@ -23,6 +23,7 @@ import java.io.InputStream;
 import java.lang.reflect.Method;
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
@@ -39,6 +40,8 @@ import org.apache.commons.digester.Digester;
 import org.apache.commons.lang.StringEscapeUtils;
 import org.hibernate.Criteria;
 import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.criterion.Expression;
 import org.springframework.dao.DataAccessException;
 import org.springframework.orm.hibernate4.HibernateCallback;
@@ -116,6 +119,9 @@ public class StatsManagerImpl extends HibernateDaoSupport implements StatsManage
 	private boolean						isEventContextSupported					= false;
 	private boolean						enableReportExport						= true;
 	private boolean						sortUsersByDisplayName					= false;
+	private boolean						columnarCacheEnabled					= false;
+	private int							columnarCacheMaxRows					= 250000;
+	private int							columnarCacheMaxAge						= 300;
 
 	/** Controller fields */
 	private boolean						showAnonymousAccessEvents				= true;
@@ -138,6 +144,7 @@ public class StatsManagerImpl extends HibernateDaoSupport implements StatsManage
 	
 	/** Caching */
 	private Cache<String, PrefsData>						cachePrefsData							= null;
+	private Cache<String, SiteEventColumns>					cacheEventColumns						= null;
 	
 	
 
@@ -317,6 +324,18 @@ public class StatsManagerImpl extends HibernateDaoSupport implements StatsManage
 		this.enableReportExport = enableReportExport;
 	}
 
+	public void setColumnarCacheEnabled(boolean columnarCacheEnabled) {
+		this.columnarCacheEnabled = columnarCacheEnabled;
+	}
+
+	public void setColumnarCacheMaxRows(int columnarCacheMaxRows) {
+		this.columnarCacheMaxRows = columnarCacheMaxRows;
+	}
+
+	public void setColumnarCacheMaxAge(int columnarCacheMaxAge) {
+		this.columnarCacheMaxAge = columnarCacheMaxAge;
+	}
+
 	public boolean isEnableReportExport() {
 		return enableReportExport;
 	}
@@ -335,6 +354,9 @@ public class StatsManagerImpl extends HibernateDaoSupport implements StatsManage
 		// Initialize cacheReportDef and event observer for preferences invalidation across cluster
 		M_ets.addPriorityObserver(this);
 		cachePrefsData = M_ms.getCache(PrefsData.class.getName());
+		if(columnarCacheEnabled) {
+			cacheEventColumns = M_ms.getCache(SiteEventColumns.class.getName());
+		}
 		
 		logger.info("init(): - (Event.getContext()?, site visits enabled, charts background color, charts in 3D, charts transparency, item labels visible on bar charts) : " +
 							isEventContextSupported+','+enableSiteVisits+','+chartBackgroundColor+','+chartIn3D+','+chartTransparency+','+itemLabelsVisible);
@@ -1297,8 +1319,16 @@ public class StatsManagerImpl extends HibernateDaoSupport implements StatsManage
 		final String hql = sqlBuilder.getHQL();
 		final Map<Integer,Integer> columnMap = sqlBuilder.getHQLColumnMap();
 		
+		// answer from the site's columns when they are in memory
+		SiteEventColumns columns = getEventColumns(siteId, totalsBy);
+		if(columns != null) {
+			List<Object[]> records = queryEventColumns(columns, siteId, events, anonymousEvents, iDate, fDate, userIds,
+					inverseUserSelection, totalsBy != null ? totalsBy : TOTALSBY_EVENT_DEFAULT, columnMap, sortBy, sortAscending);
+			return toEventStats(page(records, page, maxResults), columnMap, siteId, inverseUserSelection, totalsBy, anonymousEvents);
+		}
+
 		// DO IT!
-		HibernateCallback<List<Stat>> hcb = session -> {
+		HibernateCallback<List<Object[]>> hcb = session -> {
             Query q = session.createQuery(hql);
             if(siteId != null) {
                 q.setString("siteid", siteId);
@@ -1346,7 +1376,14 @@ public class StatsManagerImpl extends HibernateDaoSupport implements StatsManage
                 q.setMaxResults(maxResults);
             }
             log.debug("getEventStats(): " + q.getQueryString());
-            List<Object[]> records = q.list();
+            return q.list();
+        };
+		List<Object[]> records = getHibernateTemplate().execute(hcb);
+		return toEventStats(records, columnMap, siteId, inverseUserSelection, totalsBy, anonymousEvents);
+	}
+
+	private List<Stat> toEventStats(List<Object[]> records, Map<Integer,Integer> columnMap, String siteId,
+			boolean inverseUserSelection, List<String> totalsBy, Set<String> anonymousEvents) {
             List<Stat> results = new ArrayList<>();
             Set<String> siteUserIds = null;
             if(inverseUserSelection)
@@ -1396,25 +1433,15 @@ public class StatsManagerImpl extends HibernateDaoSupport implements StatsManage
                             && columnMap.containsKey(StatsSqlBuilder.C_DATEYEAR)) {
                             int ixY = (Integer) columnMap.get(StatsSqlBuilder.C_DATEYEAR);
                             int ixM = (Integer) columnMap.get(StatsSqlBuilder.C_DATEMONTH);
-                            int yr = 0, mo = 0;
-                            if(getDbVendor().equals("oracle")){
-                                yr = Integer.parseInt((String)s[ixY]);
-                                mo = Integer.parseInt((String)s[ixM]) - 1;
-                            }else{
-                                yr = ((Integer)s[ixY]).intValue();
-                                mo = ((Integer)s[ixM]).intValue() - 1;
-                            }
+                            // strings from to_char() on oracle
+                            int yr = toInt(s[ixY]);
+                            int mo = toInt(s[ixM]) - 1;
                             cal.set(Calendar.YEAR, yr);
                             cal.set(Calendar.MONTH, mo);
                             c.setDate(cal.getTime());
                         }else if(columnMap.containsKey(StatsSqlBuilder.C_DATEYEAR)) {
                             int ix = (Integer) columnMap.get(StatsSqlBuilder.C_DATEYEAR);
-                            int yr = 0;
-                            if(getDbVendor().equals("oracle")){
-                                yr = Integer.parseInt((String)s[ix]);
-                            }else{
-                                yr = ((Integer)s[ix]).intValue();
-                            }
+                            int yr = toInt(s[ix]);
                             cal.set(Calendar.YEAR, yr);
                             c.setDate(cal.getTime());
                         }
@@ -1497,8 +1524,6 @@ public class StatsManagerImpl extends HibernateDaoSupport implements StatsManage
                 results = consolidated;
             }
             return results;
-        };
-		return getHibernateTemplate().execute(hcb);
 	}
 	
 	/* (non-Javadoc)
@@ -1520,6 +1545,13 @@ public class StatsManagerImpl extends HibernateDaoSupport implements StatsManage
 		final String hql = sqlBuilder.getHQL();
 		final Map<Integer,Integer> columnMap = sqlBuilder.getHQLColumnMap();
 
+		SiteEventColumns columns = getEventColumns(siteId, totalsBy);
+		if(columns != null) {
+			int rowCount = queryEventColumns(columns, siteId, events, anonymousEvents, iDate, fDate, userIds,
+					inverseUserSelection, totalsBy != null ? totalsBy : TOTALSBY_EVENT_DEFAULT, columnMap, null, true).size();
+			return inverseUserSelection ? getSiteUsers(siteId).size() - rowCount : rowCount;
+		}
+
 		// DO IT!
 		HibernateCallback<Integer> hcb = session -> {
             Query q = session.createQuery(hql);
@@ -1569,6 +1601,121 @@ public class StatsManagerImpl extends HibernateDaoSupport implements StatsManage
 		return getHibernateTemplate().execute(hcb);
 	}
 	
+	/**
+	 * @return the site's events in memory if the columnar cache is on and can answer a
+	 * report with these totals, null to query the database
+	 */
+	private SiteEventColumns getEventColumns(final String siteId, List<String> totalsBy) {
+		if(!columnarCacheEnabled || siteId == null
+				|| !SiteEventColumns.supports(totalsBy != null ? totalsBy : TOTALSBY_EVENT_DEFAULT)) {
+			return null;
+		}
+		SiteEventColumns columns = cacheEventColumns.get(siteId);
+		if(columns == null || System.currentTimeMillis() - columns.getLoadTime() > columnarCacheMaxAge * 1000L) {
+			columns = loadEventColumns(siteId);
+			cacheEventColumns.put(siteId, columns);
+		}
+		return columns.isQueryable() ? columns : null;
+	}
+
+	private SiteEventColumns loadEventColumns(final String siteId) {
+		long start = System.currentTimeMillis();
+		HibernateCallback<SiteEventColumns> hcb = session -> {
+            ScrollableResults rows = session.createQuery("select s.userId, s.eventId, s.date, s.count from EventStatImpl as s where s.siteId = :siteid")
+                    .setString("siteid", siteId)
+                    .setFetchSize(1000)
+                    .scroll(ScrollMode.FORWARD_ONLY);
+            try{
+                SiteEventColumns.Builder builder = new SiteEventColumns.Builder(siteId);
+                while(rows.next()) {
+                    if(builder.getRows() >= columnarCacheMaxRows) {
+                        return SiteEventColumns.tooLarge(siteId);
+                    }
+                    builder.add(rows.getString(0), rows.getString(1), rows.getDate(2), rows.getLong(3));
+                }
+                return builder.build();
+            }finally{
+                rows.close();
+            }
+        };
+		SiteEventColumns columns = getHibernateTemplate().execute(hcb);
+		if(columns.isQueryable()) {
+			log.debug("Loaded " + columns.getRows() + " event rows of site " + siteId + " in " + (System.currentTimeMillis() - start) + " ms");
+		}else{
+			log.debug("Site " + siteId + " has too many event rows for memory, reports will query the database");
+		}
+		return columns;
+	}
+
+	/**
+	 * Run an event report against the site's columns, producing rows laid out as the HQL for the
+	 * same arguments would return them.
+	 */
+	private List<Object[]> queryEventColumns(SiteEventColumns columns, String siteId, List<String> events,
+			Set<String> anonymousEvents, Date iDate, Date fDate, List<String> userIds, boolean inverseUserSelection,
+			List<String> totalsBy, Map<Integer,Integer> columnMap, String sortBy, boolean sortAscending) {
+		Set<String> eventIds = events == null ? null : new HashSet<>(events);
+		if(inverseUserSelection) {
+			// just the matching users, as 'select distinct s.userId' does
+			List users = new ArrayList<>();
+			for(SiteEventColumns.Group group : columns.query(eventIds, anonymousEvents, showAnonymousAccessEvents,
+					iDate, fDate, userIds, Arrays.asList(T_USER), null, true)) {
+				users.add(group.getUser());
+			}
+			return users;
+		}
+		List<SiteEventColumns.Group> groups = columns.query(eventIds, anonymousEvents, showAnonymousAccessEvents,
+				iDate, fDate, userIds, totalsBy, sortBy, sortAscending);
+		List<Object[]> records = new ArrayList<>(groups.size());
+		for(SiteEventColumns.Group group : groups) {
+			Object[] record = new Object[columnMap.size()];
+			for(Map.Entry<Integer,Integer> column : columnMap.entrySet()) {
+				Integer c = column.getKey();
+				Object value = null;
+				if(c.equals(StatsSqlBuilder.C_SITE)) {
+					value = siteId;
+				}else if(c.equals(StatsSqlBuilder.C_USER)) {
+					value = group.getUser();
+				}else if(c.equals(StatsSqlBuilder.C_EVENT) || c.equals(StatsSqlBuilder.C_TOOL)) {
+					value = group.getEvent();
+				}else if(c.equals(StatsSqlBuilder.C_DATE)) {
+					value = group.getDate();
+				}else if(c.equals(StatsSqlBuilder.C_DATEYEAR)) {
+					value = group.getYear();
+				}else if(c.equals(StatsSqlBuilder.C_DATEMONTH)) {
+					value = group.getMonth();
+				}else if(c.equals(StatsSqlBuilder.C_TOTAL) || c.equals(StatsSqlBuilder.C_VISITS)) {
+					value = group.getTotal();
+				}else if(c.equals(StatsSqlBuilder.C_UNIQUEVISITS)) {
+					value = group.getUnique();
+				}
+				record[column.getValue()] = value;
+			}
+			records.add(record);
+		}
+		return records;
+	}
+
+	/** The rows setFirstResult/setMaxResults would have returned */
+	private static <T> List<T> page(List<T> records, PagingPosition page, int maxResults) {
+		int first = page != null ? page.getFirst() - 1 : 0;
+		int max = records.size();
+		if(page != null) {
+			max = page.getLast() - page.getFirst() + 1;
+		}
+		if(maxResults > 0) {
+			max = maxResults;
+		}
+		if(first >= records.size()) {
+			return new ArrayList<>();
+		}
+		return records.subList(Math.max(first, 0), Math.min(records.size(), Math.max(first, 0) + max));
+	}
+
+	private static int toInt(Object value) {
+		return value instanceof Number ? ((Number) value).intValue() : Integer.parseInt((String) value);
+	}
+	
 	/* (non-Javadoc)
 	 * @see org.sakaiproject.sitestats.api.StatsManager#getEventStats(java.lang.String, java.util.List, java.util.Date, java.util.Date, java.util.List, boolean, org.sakaiproject.javax.PagingPosition, java.lang.String, java.lang.String, boolean)
 	 */
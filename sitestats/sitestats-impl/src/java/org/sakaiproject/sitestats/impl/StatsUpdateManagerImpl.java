@@ -16,6 +16,7 @@
 package org.sakaiproject.sitestats.impl;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
@@ -26,7 +27,19 @@ import java.util.List;
 import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang.StringUtils;
@@ -99,32 +112,32 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 
 	/** Collect Thread and Semaphore */
 	private Thread							collectThread;
-	private List<Event>						collectThreadQueue					= new ArrayList<Event>();
+	private BlockingQueue<Event>			collectThreadQueue					= new LinkedBlockingQueue<Event>();
 	private Object							collectThreadSemaphore				= new Object();
-	private boolean							collectThreadRunning				= false;
+	private volatile boolean				collectThreadRunning				= false;
 
-	/** Collect thread queue maps */
-	private Map<String, EventStat>					eventStatMap			= Collections.synchronizedMap(new HashMap<String, EventStat>());
-	private Map<String, ResourceStat>				resourceStatMap			= Collections.synchronizedMap(new HashMap<String, ResourceStat>());
-	private Map<String, LessonBuilderStat>			lessonBuilderStatMap	= Collections.synchronizedMap(new HashMap<String, LessonBuilderStat>());
-	private Map<String, SiteActivity>				activityMap				= Collections.synchronizedMap(new HashMap<String, SiteActivity>());
-	private Map<String, SiteVisits>					visitsMap				= Collections.synchronizedMap(new HashMap<String, SiteVisits>());
-	private Map<String, SitePresenceConsolidation>	presencesMap			= Collections.synchronizedMap(new HashMap<String, SitePresenceConsolidation>());
-	private Map<UniqueVisitsKey, Integer>			uniqueVisitsMap			= Collections.synchronizedMap(new HashMap<UniqueVisitsKey, Integer>());
-	private Map<String, ServerStat>					serverStatMap			= Collections.synchronizedMap(new HashMap<String, ServerStat>());
-	private Map<String, UserStat>					userStatMap				= Collections.synchronizedMap(new HashMap<String, UserStat>());
+	/** Counters for the events collected since the last db update, swapped for an empty one on each update */
+	private final AtomicReference<ConsolidationBuffer>	buffer			= new AtomicReference<ConsolidationBuffer>(new ConsolidationBuffer());
 
-	private Map<String, String>				lessonPageCreateEventMap		=  new HashMap<String, String>();
+	/** Db update workers, only used when the counters are written in more than one shard */
+	private int								flushThreads						= 1;
+	private ExecutorService					flushExecutor;
+
+	private Map<String, String>				lessonPageCreateEventMap		=  new ConcurrentHashMap<String, String>();
 
 	private boolean							initialized							= false;
 	
+	/** Site presences pair up begin and end events, so they are still consolidated one at a time */
 	private final ReentrantLock				lock								= new ReentrantLock();
 	
 	/** Metrics */
-	private boolean							isIdle								= true;
-	private long							totalEventsProcessed				= 0;
-	private long							totalTimeInEventProcessing			= 0;
-	private long							resetTime					= System.currentTimeMillis();
+	private volatile boolean				isIdle								= true;
+	private final LongAdder					totalEventsProcessed				= new LongAdder();
+	private final AtomicLong				totalTimeInEventProcessing			= new AtomicLong();
+	private volatile long					resetTime							= System.currentTimeMillis();
+	private final AtomicLong				totalFlushes						= new AtomicLong();
+	private final AtomicLong				failedFlushes						= new AtomicLong();
+	private volatile long					lastFlushDuration					= 0;
 
 	
 	// ################################################################
@@ -160,6 +173,14 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 	public long getCollectThreadUpdateInterval(){
 		return collectThreadUpdateInterval;
 	}	
+
+	public void setFlushThreads(int flushThreads){
+		this.flushThreads = Math.max(1, flushThreads);
+	}
+
+	public int getFlushThreads(){
+		return flushThreads;
+	}
 	
 	public void setCollectAdminEvents(boolean value){
 		this.collectAdminEvents = value;
@@ -220,7 +241,17 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 		}
 		buff.append(", collect administrator events: " + collectAdminEvents);
 		buff.append(", collect events only for sites with SiteStats: " + collectEventsForSiteWithToolOnly);			
+		buff.append(", db update threads: " + flushThreads);
 		logger.info(buff.toString());
+
+		if(flushThreads > 1) {
+			final AtomicInteger count = new AtomicInteger();
+			flushExecutor = Executors.newFixedThreadPool(flushThreads, r -> {
+				Thread t = new Thread(r, "sitestats-update-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			});
+		}
 		
 		initialized = true;
 		setCollectThreadEnabled(collectThreadEnabled);
@@ -234,6 +265,10 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 			// stop update thread
 			stopUpdateThread();
 		}
+		if(flushExecutor != null) {
+			flushExecutor.shutdown();
+			flushExecutor = null;
+		}
 	}
 
 	
@@ -260,7 +295,7 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 			//log.debug("Time spent pre-processing 1 event: " + (endTime-startTime) + " ms");
 			boolean success = doUpdateConsolidatedEvents();
 			isIdle = true;
-			totalTimeInEventProcessing += (System.currentTimeMillis() - startTime);
+			totalTimeInEventProcessing.addAndGet(System.currentTimeMillis() - startTime);
 			return success;
 		}
 		return true;
@@ -297,7 +332,7 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 				//log.debug("Time spent pre-processing " + eventCount + " event(s): " + (endTime-startTime) + " ms");
 				boolean success = doUpdateConsolidatedEvents();
 				isIdle = true;
-				totalTimeInEventProcessing += (System.currentTimeMillis() - startTime);
+				totalTimeInEventProcessing.addAndGet(System.currentTimeMillis() - startTime);
 				return success;
 			}
 		}
@@ -382,19 +417,21 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 	}
 	
 	public void resetMetrics() {
-		totalEventsProcessed = 0;
-		totalTimeInEventProcessing = 0;
+		totalEventsProcessed.reset();
+		totalTimeInEventProcessing.set(0);
+		totalFlushes.set(0);
+		failedFlushes.set(0);
 		resetTime = System.currentTimeMillis();
 	}
 	
 	@Override
 	public long getNumberOfEventsProcessed() {
-		return totalEventsProcessed;
+		return totalEventsProcessed.sum();
 	}
 	
 	@Override
 	public long getTotalTimeInEventProcessing() {
-		return totalTimeInEventProcessing;
+		return totalTimeInEventProcessing.get();
 	}
 	
 	@Override
@@ -409,10 +446,12 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 	
 	@Override
 	public double getNumberOfEventsProcessedPerSec() {
-		if(totalTimeInEventProcessing > 0) {
-			return Util.round((double)totalEventsProcessed / ((double)totalTimeInEventProcessing/1000), 3);
+		long processed = getNumberOfEventsProcessed();
+		long time = getTotalTimeInEventProcessing();
+		if(time > 0) {
+			return Util.round((double)processed / ((double)time/1000), 3);
 		}else{
-			return Util.round((double)totalEventsProcessed / 0.001, 3); // => will assume 1ms instead of 0ms
+			return Util.round((double)processed / 0.001, 3); // => will assume 1ms instead of 0ms
 		}
 	}
 	
@@ -420,20 +459,50 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 	public double getNumberOfEventsGeneratedPerSec() {
 		double ellapsed = (double) getTotalTimeElapsedSinceReset();
 		if(ellapsed > 0) {
-			return Util.round((double)totalEventsProcessed / (ellapsed/1000), 3);
+			return Util.round((double)getNumberOfEventsProcessed() / (ellapsed/1000), 3);
 		}else{
-			return Util.round((double)totalEventsProcessed / 0.001, 3); // => will assume 1ms instead of 0ms
+			return Util.round((double)getNumberOfEventsProcessed() / 0.001, 3); // => will assume 1ms instead of 0ms
 		}
 	}
 	
 	@Override
 	public long getAverageTimeInEventProcessingPerEvent() {
-		if(totalEventsProcessed > 0) {
-			return totalTimeInEventProcessing / totalEventsProcessed;
+		long processed = getNumberOfEventsProcessed();
+		if(processed > 0) {
+			return getTotalTimeInEventProcessing() / processed;
 		}else{
 			return 0;
 		}
 	}
+
+	@Override
+	public long getQueueLag() {
+		Event oldest = collectThreadQueue.peek();
+		if(oldest instanceof CustomEventImpl && ((CustomEventImpl) oldest).getDate() != null) {
+			return Math.max(0, System.currentTimeMillis() - ((CustomEventImpl) oldest).getDate().getTime());
+		}
+		return 0;
+	}
+
+	@Override
+	public int getNumberOfPendingCounters() {
+		return buffer.get().size();
+	}
+
+	@Override
+	public long getNumberOfFlushes() {
+		return totalFlushes.get();
+	}
+
+	@Override
+	public long getNumberOfFailedFlushes() {
+		return failedFlushes.get();
+	}
+
+	@Override
+	public long getLastFlushDuration() {
+		return lastFlushDuration;
+	}
 	
 	public String getMetricsSummary(boolean compact) {
 		StringBuilder sb = new StringBuilder();
@@ -447,6 +516,10 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 			sb.append("\t\tNumber of events genereated in Sakai per sec: ").append(getNumberOfEventsGeneratedPerSec()).append("\n");
 			sb.append("\t\tAverage time spent in event processing per event: ").append(getAverageTimeInEventProcessingPerEvent()).append(" ms\n");
 			sb.append("\t\tEvent queue size: ").append(getQueueSize()).append("\n");
+			sb.append("\t\tEvent queue lag: ").append(getQueueLag()).append(" ms\n");
+			sb.append("\t\tPending counters: ").append(getNumberOfPendingCounters()).append("\n");
+			sb.append("\t\tDb updates (failed): ").append(getNumberOfFlushes()).append(" (").append(getNumberOfFailedFlushes()).append(")\n");
+			sb.append("\t\tLast db update took: ").append(getLastFlushDuration()).append(" ms\n");
 			sb.append("\t\tIdle: ").append(isIdle());
 		}else{
 			sb.append("#Events processed: ").append(getNumberOfEventsProcessed()).append(", ");
@@ -455,6 +528,8 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 			sb.append("#Events processed/sec: ").append(getNumberOfEventsProcessedPerSec()).append(", ");
 			sb.append("Avg. Time/event: ").append(getAverageTimeInEventProcessingPerEvent()).append(" ms, ");
 			sb.append("Event queue size: ").append(getQueueSize()).append(", ");
+			sb.append("Event queue lag: ").append(getQueueLag()).append(" ms, ");
+			sb.append("Last db update: ").append(getLastFlushDuration()).append(" ms, ");
 			sb.append("Idle: ").append(isIdle());
 		}
 		return sb.toString();
@@ -466,8 +541,6 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 	// ################################################################	
 	/** Method called whenever an new event is generated from EventTrackingService: do not call this method! */
 	public void update(Observable obs, Object o) {
-		// At the moment this isn't threadsafe, but as sakai event handling is single threaded this shoudn't be a problem,
-		// but it's not a formal contract.
 		if(o instanceof Event){
 			Event e = (Event) o;
 			Event eventWithPreciseDate = buildEvent(getToday(), e.getEvent(), e.getResource(), e.getContext(), e.getUserId(), e.getSessionId());
@@ -479,18 +552,15 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 	public void run(){
 		try{
 			log.debug("Started statistics update thread");
+			List<Event> events = new ArrayList<Event>();
 			while(collectThreadRunning){
 				// do update job
 				isIdle = false;
 				long startTime = System.currentTimeMillis();
-				int eventCount = collectThreadQueue.size();
-				if(eventCount > 0) {
-					//long startTime2 = System.currentTimeMillis();
-					while(collectThreadQueue.size() > 0){
-						preProcessEvent(collectThreadQueue.remove(0));
-					}
-					//long endTime2 = System.currentTimeMillis();
-					//log.debug("Time spent pre-processing " + eventCount + " event(s): " + (endTime2-startTime2) + " ms");
+				events.clear();
+				collectThreadQueue.drainTo(events);
+				for(Event event : events){
+					preProcessEvent(event);
 				}
 				transactionTemplate.execute(new TransactionCallbackWithoutResult() {
 					@Override
@@ -499,7 +569,7 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 					}
 				});
 				isIdle = true;
-				totalTimeInEventProcessing += (System.currentTimeMillis() - startTime);
+				totalTimeInEventProcessing.addAndGet(System.currentTimeMillis() - startTime);
 
 				// sleep if no work to do
 				if(!collectThreadRunning) break;
@@ -544,7 +614,7 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 	// Event process methods
 	// ################################################################	
 	private void preProcessEvent(Event event) {
-		totalEventsProcessed++;
+		totalEventsProcessed.increment();
 		String userId = event.getUserId();
 		Event e = fixMalFormedEvents(event);
 		if (e == null) {
@@ -650,60 +720,24 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 		Date date = getTruncatedDate(dateTime);
 		// update		
 		if(isRegisteredEvent(eventId) && !StatsManager.SITEVISITEND_EVENTID.equals(eventId)){
-			// add to eventStatMap
-			String key = userId+siteId+eventId+date;
-			synchronized(eventStatMap){
-				EventStat e1 = eventStatMap.get(key);
-				if(e1 == null){
-					e1 = new EventStatImpl();
-					e1.setUserId(userId);
-					e1.setSiteId(siteId);
-					e1.setEventId(eventId);
-					e1.setDate(date);
-				}
-				e1.setCount(e1.getCount() + 1);
-				eventStatMap.put(key, e1);
-			}
+			// count in eventStats
+			increment(b -> b.eventStats, new StatKey(date, userId, siteId, eventId));
 			
 			if(!StatsManager.SITEVISIT_EVENTID.equals(eventId)){
-				// add to activityMap
-				String key2 = siteId+date+eventId;
-				synchronized(activityMap){
-					SiteActivity e2 = activityMap.get(key2);
-					if(e2 == null){
-						e2 = new SiteActivityImpl();
-						e2.setSiteId(siteId);
-						e2.setDate(date);
-						e2.setEventId(eventId);
-					}
-					e2.setCount(e2.getCount() + 1);
-					activityMap.put(key2, e2);
-				}
+				// count in activity
+				increment(b -> b.activity, new StatKey(date, siteId, eventId));
 			}
 		}	
 
 		if(eventId.startsWith(StatsManager.RESOURCE_EVENTID_PREFIX)){
-			// add to resourceStatMap
+			// count in resourceStats
 			String resourceAction = null;
 			try{
 				resourceAction = eventId.split("\\.")[1];
 			}catch(ArrayIndexOutOfBoundsException ex){
 				resourceAction = eventId;
 			}
-			String key = userId+siteId+resourceRef+resourceAction+date;
-			synchronized(resourceStatMap){
-				ResourceStat e1 = resourceStatMap.get(key);
-				if(e1 == null){
-					e1 = new ResourceStatImpl();
-					e1.setUserId(userId);
-					e1.setSiteId(siteId);
-					e1.setResourceRef(resourceRef);
-					e1.setResourceAction(resourceAction);
-					e1.setDate(date);
-				}
-				e1.setCount(e1.getCount() + 1);
-				resourceStatMap.put(key, e1);
-			}
+			increment(b -> b.resourceStats, new StatKey(date, userId, siteId, resourceRef, resourceAction));
 		} else if (eventId.startsWith(StatsManager.LESSONS_EVENTID_PREFIX)) {
 			String[] resourceParts = resourceRef.split("/");
 			if (resourceParts.length > 3 && "page".equals(resourceParts[2])) {
@@ -715,7 +749,7 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 					lessonBuilderAction = eventId;
 				}
 
-				String key = userId + siteId + lessonBuilderAction + pageId + date;
+				StatKey key = new StatKey(date, pageId, userId, siteId, resourceRef, lessonBuilderAction);
 
 				if ("create".equals(lessonBuilderAction)) {
 					// We cache create events so we can ignore read events from page creators
@@ -760,34 +794,23 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 					}
 
 					if (creatorUserId == null || !creatorUserId.equals(userId)) {
-						addToLessonBuilderStatMap(key, userId, siteId, resourceRef, pageId, lessonBuilderAction, date);
+						increment(b -> b.lessonBuilderStats, key);
 					}
 				} else {
-					addToLessonBuilderStatMap(key, userId, siteId, resourceRef, pageId, lessonBuilderAction, date);
+					increment(b -> b.lessonBuilderStats, key);
 				}
 			}
 		} else if(StatsManager.SITEVISIT_EVENTID.equals(eventId)){
-			// add to visitsMap
-			String key = siteId+date;
-			lock.lock();
-			try{
-				SiteVisits e1 = visitsMap.get(key);
-				if(e1 == null){
-					e1 = new SiteVisitsImpl();
-					e1.setSiteId(siteId);
-					e1.setDate(date);
-				}
-				e1.setTotalVisits(e1.getTotalVisits() + 1);
-				// unique visits are determined when updating to db:
-				//	 --> e1.setTotalUnique(totalUnique);
-				visitsMap.put(key, e1);
-				// place entry on map so we can update unique visits later
-				UniqueVisitsKey keyUniqueVisits = new UniqueVisitsKey(siteId, date);
-				uniqueVisitsMap.put(keyUniqueVisits, Integer.valueOf(1));
-				
-				// site presence started
-				if(M_sm.isEnableSitePresences()) {
-					String pKey = siteId+userId+date;
+			// count in visits
+			// unique visits are determined when updating to db
+			increment(b -> b.visits, new StatKey(date, siteId));
+			
+			// site presence started
+			if(M_sm.isEnableSitePresences()) {
+				String pKey = siteId+userId+date;
+				lock.lock();
+				try{
+					Map<String, SitePresenceConsolidation> presencesMap = buffer.get().presences;
 					SitePresenceConsolidation spc = presencesMap.get(pKey);
 					if(spc == null) {
 						SitePresence sp = new SitePresenceImpl();
@@ -798,9 +821,9 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 					}
 					spc.sitePresence.setLastVisitStartTime(dateTime);
 					presencesMap.put(pKey, spc);					
+				}finally{
+					lock.unlock();
 				}
-			}finally{
-				lock.unlock();
 			}
 			
 		}else if(StatsManager.SITEVISITEND_EVENTID.equals(eventId)){
@@ -809,6 +832,7 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 				String pKey = siteId+userId+date;
 				lock.lock();
 				try{
+					Map<String, SitePresenceConsolidation> presencesMap = buffer.get().presences;
 					SitePresenceConsolidation spc = presencesMap.get(pKey);
 					if(spc == null) {
 						Calendar c = Calendar.getInstance(); 
@@ -846,24 +870,6 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 		
 	}
 
-	private void addToLessonBuilderStatMap(String key, String userId, String siteId, String pageRef, long pageId, String action, Date date) {
-
-		synchronized (lessonBuilderStatMap) {
-			LessonBuilderStat e1 = lessonBuilderStatMap.get(key);
-			if (e1 == null) {
-				e1 = new LessonBuilderStatImpl();
-				e1.setUserId(userId);
-				e1.setSiteId(siteId);
-				e1.setPageRef(pageRef);
-				e1.setPageId(pageId);
-				e1.setPageAction(action);
-				e1.setDate(date);
-			}
-			e1.setCount(e1.getCount() + 1);
-			lessonBuilderStatMap.put(key, e1);
-		}
-	}
-
 	protected boolean isRegisteredEvent(String eventId) {
 		return M_ers.isRegisteredEvent(eventId);
 	}
@@ -873,19 +879,8 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 		
 		Date date = getTruncatedDate(dateTime);
 				
-		// add to serverStatMap
-		String key = eventId+date;
-		synchronized(serverStatMap){
-			ServerStat s = serverStatMap.get(key);
-			if(s == null){
-				s = new ServerStatImpl();
-				s.setEventId(eventId);
-				s.setDate(date);
-			}
-			s.setCount(s.getCount() + 1);
-			serverStatMap.put(key, s);
-		}
-		
+		// count in serverStats
+		increment(b -> b.serverStats, new StatKey(date, eventId));
 	}
 	
 	//STAT-299 consolidate a user event
@@ -893,134 +888,201 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 		
 		Date date = getTruncatedDate(dateTime);
 				
-		// add to userStatMap
-		String key = userId+date;
-		synchronized(userStatMap){
-			UserStat s = userStatMap.get(key);
-			if(s == null){
-				s = new UserStatImpl();
-				s.setUserId(userId);
-				s.setDate(date);
-			}
-			s.setCount(s.getCount() + 1);
-			userStatMap.put(key, s);
+		// count in userStats
+		increment(b -> b.userStats, new StatKey(date, userId));
+	}
+
+	/**
+	 * Counts one more occurrence of the key in the current buffer. A db update swapping the
+	 * buffer out in the meantime waits for this to finish, so no count is lost.
+	 */
+	private void increment(Function<ConsolidationBuffer, Map<StatKey, LongAdder>> counters, StatKey key) {
+		ConsolidationBuffer b;
+		while(true) {
+			b = buffer.get();
+			b.writers.incrementAndGet();
+			if(buffer.get() == b) break;
+			// swapped out under us, count in the new one instead
+			b.writers.decrementAndGet();
+		}
+		try{
+			counters.apply(b).computeIfAbsent(key, k -> new LongAdder()).increment();
+		}finally{
+			b.writers.decrementAndGet();
 		}
-		
 	}
 	
 
 	// ################################################################
 	// Db update methods
 	// ################################################################	
-	@SuppressWarnings("unchecked")
 	private synchronized boolean doUpdateConsolidatedEvents() {
 		long startTime = System.currentTimeMillis();
-		if(eventStatMap.size() > 0 || resourceStatMap.size() > 0
-				|| activityMap.size() > 0 || uniqueVisitsMap.size() > 0 
-				|| visitsMap.size() > 0 || presencesMap.size() > 0
-				|| serverStatMap.size() > 0 || userStatMap.size() > 0) {
-
-		    try {
-				getHibernateTemplate().execute(session -> {
-                    // do: EventStat
-                    if(eventStatMap.size() > 0) {
-                        Collection<EventStat> tmp1 = null;
-                        synchronized(eventStatMap){
-                            tmp1 = eventStatMap.values();
-                            eventStatMap = Collections.synchronizedMap(new HashMap<String, EventStat>());
-                        }
-                        doUpdateEventStatObjects(session, tmp1);
-                    }
-
-                    // do: ResourceStat
-                    if(resourceStatMap.size() > 0) {
-                        Collection<ResourceStat> tmp2 = null;
-                        synchronized(resourceStatMap){
-                            tmp2 = resourceStatMap.values();
-                            resourceStatMap = Collections.synchronizedMap(new HashMap<String, ResourceStat>());
-                        }
-                        doUpdateResourceStatObjects(session, tmp2);
-                    }
-
-                    // do: Lessons ResourceStat
-                    if (lessonBuilderStatMap.size() > 0) {
-                        Collection<LessonBuilderStat> tmp3 = null;
-                        synchronized (lessonBuilderStatMap) {
-                            tmp3 = lessonBuilderStatMap.values();
-                            lessonBuilderStatMap = Collections.synchronizedMap(new HashMap<String, LessonBuilderStat>());
-                        }
-                        doUpdateLessonBuilderStatObjects(session, tmp3);
-                    }
-
-                    // do: SiteActivity
-                    if(activityMap.size() > 0) {
-                        Collection<SiteActivity> tmp3 = null;
-                        synchronized(activityMap){
-                            tmp3 = activityMap.values();
-                            activityMap = Collections.synchronizedMap(new HashMap<String, SiteActivity>());
-                        }
-                        doUpdateSiteActivityObjects(session, tmp3);
-                    }
-
-                    // do: SiteVisits
-                    if(uniqueVisitsMap.size() > 0 || visitsMap.size() > 0) {
-                        // determine unique visits for event related sites
-                        Map<UniqueVisitsKey, Integer> tmp4;
-                        synchronized(uniqueVisitsMap){
-                            tmp4 = uniqueVisitsMap;
-                            uniqueVisitsMap = Collections.synchronizedMap(new HashMap<UniqueVisitsKey, Integer>());
-                        }
-                        tmp4 = doGetSiteUniqueVisits(session, tmp4);
-
-                        // do: SiteVisits
-                        if(visitsMap.size() > 0) {
-                            Collection<SiteVisits> tmp5 = null;
-                            synchronized(visitsMap){
-                                tmp5 = visitsMap.values();
-                                visitsMap = Collections.synchronizedMap(new HashMap<String, SiteVisits>());
-                            }
-                            doUpdateSiteVisitsObjects(session, tmp5, tmp4);
-                        }
-                    }
-
-                    // do: SitePresences
-                    if(presencesMap.size() > 0) {
-                        Collection<SitePresenceConsolidation> tmp6 = null;
-                        synchronized(presencesMap){
-                            tmp6 = presencesMap.values();
-                            presencesMap = Collections.synchronizedMap(new HashMap<String, SitePresenceConsolidation>());
-                        }
-                        doUpdateSitePresencesObjects(session, tmp6);
-                    }
-
-                    // do: ServerStats
-                    if(serverStatMap.size() > 0) {
-                        Collection<ServerStat> tmp7 = null;
-                        synchronized(serverStatMap){
-                            tmp7 = serverStatMap.values();
-                            serverStatMap = Collections.synchronizedMap(new HashMap<String, ServerStat>());
-                        }
-                        doUpdateServerStatObjects(session, tmp7);
-                    }
-
-                    // do: UserStats
-                    if(userStatMap.size() > 0) {
-                        Collection<UserStat> tmp8 = null;
-                        synchronized(userStatMap){
-                            tmp8 = userStatMap.values();
-                            userStatMap = Collections.synchronizedMap(new HashMap<String, UserStat>());
-                        }
-                        doUpdateUserStatObjects(session, tmp8);
-                    }
-                    return null;
-            	});
-			} catch(DataAccessException dae) {
-				return false;
-			}
-			long endTime = System.currentTimeMillis();
-			log.debug("Time spent in doUpdateConsolidatedEvents(): " + (endTime-startTime) + " ms");
+		ConsolidationBuffer consolidated = swapBuffer();
+		if(consolidated.isEmpty()) {
+			return true;
 		}
-		return true;
+
+		// rows of the same key always land in the same shard, so shards never update the same row
+		int shardCount = flushExecutor != null ? flushThreads : 1;
+		List<CounterShard> shards = new ArrayList<CounterShard>(shardCount);
+		for(int i=0; i<shardCount; i++) {
+			shards.add(new CounterShard());
+		}
+		consolidated.eventStats.forEach((k, c) -> shards.get(k.shard(shardCount)).eventStats.add(toEventStat(k, c.sum())));
+		consolidated.resourceStats.forEach((k, c) -> shards.get(k.shard(shardCount)).resourceStats.add(toResourceStat(k, c.sum())));
+		consolidated.lessonBuilderStats.forEach((k, c) -> shards.get(k.shard(shardCount)).lessonBuilderStats.add(toLessonBuilderStat(k, c.sum())));
+		consolidated.activity.forEach((k, c) -> shards.get(k.shard(shardCount)).activity.add(toSiteActivity(k, c.sum())));
+		consolidated.serverStats.forEach((k, c) -> shards.get(k.shard(shardCount)).serverStats.add(toServerStat(k, c.sum())));
+		consolidated.userStats.forEach((k, c) -> shards.get(k.shard(shardCount)).userStats.add(toUserStat(k, c.sum())));
+
+		boolean success = true;
+		try {
+			success = getHibernateTemplate().execute(session -> {
+				boolean countersWritten = true;
+				if(shardCount == 1) {
+					doUpdateCounterShard(session, shards.get(0));
+				}else{
+					// each shard is written in its own transaction
+					List<Future<?>> futures = new ArrayList<Future<?>>(shardCount);
+					for(CounterShard shard : shards) {
+						futures.add(flushExecutor.submit(() -> transactionTemplate.execute(status ->
+								getHibernateTemplate().execute(shardSession -> {
+									doUpdateCounterShard(shardSession, shard);
+									return null;
+								}))));
+					}
+					for(Future<?> future : futures) {
+						try{
+							future.get();
+						}catch(ExecutionException e){
+							log.warn("Failed to update a shard of the consolidated events", e.getCause());
+							countersWritten = false;
+						}catch(InterruptedException e){
+							Thread.currentThread().interrupt();
+							countersWritten = false;
+						}
+					}
+				}
+
+				// do: SiteVisits
+				// these read the event stats written above for the unique visits
+				if(consolidated.visits.size() > 0) {
+					// determine unique visits for event related sites
+					Map<UniqueVisitsKey, Integer> uniqueVisits = new HashMap<UniqueVisitsKey, Integer>();
+					List<SiteVisits> visits = new ArrayList<SiteVisits>(consolidated.visits.size());
+					consolidated.visits.forEach((k, c) -> {
+						uniqueVisits.put(new UniqueVisitsKey(k.parts[0], k.date), Integer.valueOf(1));
+						visits.add(toSiteVisits(k, c.sum()));
+					});
+					doUpdateSiteVisitsObjects(session, visits, doGetSiteUniqueVisits(session, uniqueVisits));
+				}
+
+				// do: SitePresences
+				if(consolidated.presences.size() > 0) {
+					doUpdateSitePresencesObjects(session, consolidated.presences.values());
+				}
+				return countersWritten;
+			});
+		} catch(DataAccessException dae) {
+			success = false;
+		}
+		lastFlushDuration = System.currentTimeMillis() - startTime;
+		totalFlushes.incrementAndGet();
+		if(!success) {
+			failedFlushes.incrementAndGet();
+		}
+		log.debug("Time spent in doUpdateConsolidatedEvents(): " + lastFlushDuration + " ms");
+		return success;
+	}
+
+	/**
+	 * Puts an empty buffer in place for new events and waits for anyone still counting into the old one.
+	 */
+	private ConsolidationBuffer swapBuffer() {
+		ConsolidationBuffer consolidated = buffer.getAndSet(new ConsolidationBuffer());
+		// presences are only changed while holding the lock
+		lock.lock();
+		lock.unlock();
+		while(consolidated.writers.get() > 0) {
+			Thread.yield();
+		}
+		return consolidated;
+	}
+
+	private void doUpdateCounterShard(Session session, CounterShard shard) {
+		doUpdateEventStatObjects(session, shard.eventStats);
+		doUpdateResourceStatObjects(session, shard.resourceStats);
+		doUpdateLessonBuilderStatObjects(session, shard.lessonBuilderStats);
+		doUpdateSiteActivityObjects(session, shard.activity);
+		doUpdateServerStatObjects(session, shard.serverStats);
+		doUpdateUserStatObjects(session, shard.userStats);
+	}
+
+	private static EventStat toEventStat(StatKey k, long count) {
+		EventStat e = new EventStatImpl();
+		e.setUserId(k.parts[0]);
+		e.setSiteId(k.parts[1]);
+		e.setEventId(k.parts[2]);
+		e.setDate(k.date);
+		e.setCount(count);
+		return e;
+	}
+
+	private static ResourceStat toResourceStat(StatKey k, long count) {
+		ResourceStat e = new ResourceStatImpl();
+		e.setUserId(k.parts[0]);
+		e.setSiteId(k.parts[1]);
+		e.setResourceRef(k.parts[2]);
+		e.setResourceAction(k.parts[3]);
+		e.setDate(k.date);
+		e.setCount(count);
+		return e;
+	}
+
+	private static LessonBuilderStat toLessonBuilderStat(StatKey k, long count) {
+		LessonBuilderStat e = new LessonBuilderStatImpl();
+		e.setUserId(k.parts[0]);
+		e.setSiteId(k.parts[1]);
+		e.setPageRef(k.parts[2]);
+		e.setPageAction(k.parts[3]);
+		e.setPageId(k.id);
+		e.setDate(k.date);
+		e.setCount(count);
+		return e;
+	}
+
+	private static SiteActivity toSiteActivity(StatKey k, long count) {
+		SiteActivity e = new SiteActivityImpl();
+		e.setSiteId(k.parts[0]);
+		e.setEventId(k.parts[1]);
+		e.setDate(k.date);
+		e.setCount(count);
+		return e;
+	}
+
+	private static SiteVisits toSiteVisits(StatKey k, long count) {
+		SiteVisits e = new SiteVisitsImpl();
+		e.setSiteId(k.parts[0]);
+		e.setDate(k.date);
+		e.setTotalVisits(count);
+		return e;
+	}
+
+	private static ServerStat toServerStat(StatKey k, long count) {
+		ServerStat e = new ServerStatImpl();
+		e.setEventId(k.parts[0]);
+		e.setDate(k.date);
+		e.setCount(count);
+		return e;
+	}
+
+	private static UserStat toUserStat(StatKey k, long count) {
+		UserStat e = new UserStatImpl();
+		e.setUserId(k.parts[0]);
+		e.setDate(k.date);
+		e.setCount(count);
+		return e;
 	}
 	
 	private void doUpdateEventStatObjects(Session session, Collection<EventStat> o) {
@@ -1694,6 +1756,88 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 		return c.getTime();
 	}
 
+	/**
+	 * The events consolidated between two db updates. Counting is done on concurrent maps of
+	 * adders so event collection never waits on a lock, and the db update swaps the whole
+	 * buffer out instead of copying each map.
+	 */
+	private static class ConsolidationBuffer {
+		final Map<StatKey, LongAdder>					eventStats			= new ConcurrentHashMap<StatKey, LongAdder>();
+		final Map<StatKey, LongAdder>					resourceStats		= new ConcurrentHashMap<StatKey, LongAdder>();
+		final Map<StatKey, LongAdder>					lessonBuilderStats	= new ConcurrentHashMap<StatKey, LongAdder>();
+		final Map<StatKey, LongAdder>					activity			= new ConcurrentHashMap<StatKey, LongAdder>();
+		final Map<StatKey, LongAdder>					visits				= new ConcurrentHashMap<StatKey, LongAdder>();
+		final Map<StatKey, LongAdder>					serverStats			= new ConcurrentHashMap<StatKey, LongAdder>();
+		final Map<StatKey, LongAdder>					userStats			= new ConcurrentHashMap<StatKey, LongAdder>();
+		/** Only used while holding the lock of StatsUpdateManagerImpl */
+		final Map<String, SitePresenceConsolidation>	presences			= new HashMap<String, SitePresenceConsolidation>();
+		/** Threads still counting into this buffer */
+		final AtomicInteger								writers				= new AtomicInteger();
+
+		int size() {
+			return eventStats.size() + resourceStats.size() + lessonBuilderStats.size() + activity.size()
+					+ visits.size() + serverStats.size() + userStats.size() + presences.size();
+		}
+
+		boolean isEmpty() {
+			return size() == 0;
+		}
+	}
+
+	/**
+	 * The rows one db update thread writes.
+	 */
+	private static class CounterShard {
+		final List<EventStat>			eventStats			= new ArrayList<EventStat>();
+		final List<ResourceStat>		resourceStats		= new ArrayList<ResourceStat>();
+		final List<LessonBuilderStat>	lessonBuilderStats	= new ArrayList<LessonBuilderStat>();
+		final List<SiteActivity>		activity			= new ArrayList<SiteActivity>();
+		final List<ServerStat>			serverStats			= new ArrayList<ServerStat>();
+		final List<UserStat>			userStats			= new ArrayList<UserStat>();
+	}
+
+	/**
+	 * Identifies one row of a stats table: the day, the string columns in a fixed order per
+	 * table and, for lessons, the page id. Used in place of the concatenated strings the maps
+	 * used to be keyed with, which could also make two different rows look the same.
+	 */
+	private static final class StatKey {
+		final Date		date;
+		final long		id;
+		final String[]	parts;
+		private final int hash;
+
+		StatKey(Date date, String... parts) {
+			this(date, 0, parts);
+		}
+
+		StatKey(Date date, long id, String... parts) {
+			this.date = date;
+			this.id = id;
+			this.parts = parts;
+			this.hash = 31 * (31 * Arrays.hashCode(parts) + Long.hashCode(id)) + (date == null ? 0 : date.hashCode());
+		}
+
+		int shard(int shards) {
+			return Math.floorMod(hash, shards);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof StatKey)) {
+				return false;
+			}
+			StatKey k = (StatKey) o;
+			return hash == k.hash && id == k.id && Arrays.equals(parts, k.parts)
+					&& (date == null ? k.date == null : date.equals(k.date));
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
 	private static class UniqueVisitsKey {
 		public String siteId;
 		public Date date;
@@ -0,0 +1,23 @@
+-- Rollups of SAKAI_EVENT read by the server wide reports, maintained by ServerWideRollupJobImpl
+CREATE TABLE SST_SERVERWIDE_EVENTS (
+	PERIOD_TYPE CHAR(1) NOT NULL,
+	PERIOD_START DATETIME NOT NULL,
+	EVENT_ID VARCHAR(32) NOT NULL,
+	EVENT_COUNT BIGINT NOT NULL,
+	PRIMARY KEY(PERIOD_TYPE, PERIOD_START, EVENT_ID)
+);
+
+CREATE TABLE SST_SERVERWIDE_USERS (
+	PERIOD_TYPE CHAR(1) NOT NULL,
+	PERIOD_START DATETIME NOT NULL,
+	USER_ID VARCHAR(99) NOT NULL,
+	LOGINS INT NOT NULL,
+	PRIMARY KEY(PERIOD_TYPE, PERIOD_START, USER_ID)
+);
+
+CREATE TABLE SST_SERVERWIDE_WATERMARK (
+	NAME VARCHAR(32) NOT NULL,
+	LAST_EVENT_ID BIGINT NOT NULL,
+	LAST_RUN DATETIME,
+	PRIMARY KEY(NAME)
+);
@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2006-2018 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.sitestats.test;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.GregorianCalendar;
+import java.util.Scanner;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.db.api.SqlService;
+import org.sakaiproject.sitestats.impl.ServerWideRollupJobImpl;
+
+public class ServerWideRollupJobTest {
+	private static final long	HOUR	= 3600 * 1000L;
+
+	private Connection				connection;
+	private ServerWideRollupJobImpl	job;
+
+	@Before
+	public void setUp() throws Exception {
+		Class.forName("org.hsqldb.jdbcDriver");
+		connection = DriverManager.getConnection("jdbc:hsqldb:mem:rollups", "sa", "");
+		try(Statement st = connection.createStatement()) {
+			st.execute("create table SAKAI_EVENT (EVENT_ID bigint primary key, EVENT_DATE timestamp, EVENT varchar(32), SESSION_ID varchar(163))");
+			st.execute("create table SAKAI_SESSION (SESSION_ID varchar(163) primary key, SESSION_USER varchar(99))");
+			st.execute("insert into SAKAI_SESSION values ('session-a', 'user-a')");
+			try(InputStream in = ServerWideRollupJobImpl.class.getClassLoader().getResourceAsStream("hsqldb/sst_serverwide_rollups.sql")) {
+				String ddl = new Scanner(in, "UTF-8").useDelimiter("\\A").next();
+				for(String sql : ddl.replaceAll("--.*", "").split(";")) {
+					if(!sql.trim().isEmpty()) {
+						st.execute(sql);
+					}
+				}
+			}
+		}
+
+		SqlService sqlService = mock(SqlService.class);
+		when(sqlService.borrowConnection()).thenReturn(connection);
+		when(sqlService.getCal()).thenReturn(new GregorianCalendar());
+		job = new ServerWideRollupJobImpl();
+		job.setSqlService(sqlService);
+		job.setSqlBlockSize(10);
+		job.setHourlyRetentionDays(0);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		try(Statement st = connection.createStatement()) {
+			st.execute("shutdown");
+		}
+		connection.close();
+	}
+
+	@Test
+	public void testBlocksAndWatermark() throws Exception {
+		for(long id = 1; id <= 25; id++) {
+			addEvent(id, System.currentTimeMillis() - HOUR, "content.read");
+		}
+		job.setMaxEventsPerRun(20);
+
+		// stops after the block that reaches the limit
+		Assert.assertEquals(20, job.updateRollups());
+		Assert.assertEquals(20, getWatermark());
+		Assert.assertEquals(5, job.updateRollups());
+		Assert.assertEquals(25, getWatermark());
+		Assert.assertEquals(0, job.updateRollups());
+		Assert.assertEquals(25, countEvents("content.read"));
+	}
+
+	@Test
+	public void testEmptyEventTable() throws Exception {
+		Assert.assertEquals(0, job.updateRollups());
+		Assert.assertEquals(0, countEvents("content.read"));
+	}
+
+	@Test
+	public void testRecentEventsAreReadAgain() throws Exception {
+		long old = System.currentTimeMillis() - HOUR;
+		for(long id = 1; id <= 3; id++) {
+			addEvent(id, old, "content.read");
+		}
+		// id 4 is not committed yet while 5 already is
+		addEvent(5, System.currentTimeMillis(), "content.read");
+
+		Assert.assertEquals(3, job.updateRollups());
+		Assert.assertEquals(3, getWatermark());
+
+		addEvent(4, System.currentTimeMillis(), "content.read");
+		// once the tail has settled it is read from the watermark, so the late event is not skipped
+		try(Statement st = connection.createStatement()) {
+			st.executeUpdate("update SAKAI_EVENT set EVENT_DATE = EVENT_DATE - INTERVAL '1' HOUR");
+		}
+		Assert.assertEquals(2, job.updateRollups());
+		Assert.assertEquals(5, getWatermark());
+		Assert.assertEquals(5, countEvents("content.read"));
+	}
+
+	@Test
+	public void testLogins() throws Exception {
+		addEvent(1, System.currentTimeMillis() - HOUR, "user.login");
+		addEvent(2, System.currentTimeMillis() - HOUR, "user.login");
+		job.updateRollups();
+		try(Statement st = connection.createStatement();
+				ResultSet rs = st.executeQuery("select LOGINS from SST_SERVERWIDE_USERS where USER_ID = 'user-a' and PERIOD_TYPE = 'D'")) {
+			Assert.assertTrue(rs.next());
+			Assert.assertEquals(2, rs.getInt(1));
+		}
+	}
+
+	private void addEvent(long id, long date, String event) throws Exception {
+		try(PreparedStatement st = connection.prepareStatement("insert into SAKAI_EVENT values (?, ?, ?, 'session-a')")) {
+			st.setLong(1, id);
+			st.setTimestamp(2, new Timestamp(date));
+			st.setString(3, event);
+			st.executeUpdate();
+		}
+	}
+
+	private long getWatermark() throws Exception {
+		try(Statement st = connection.createStatement();
+				ResultSet rs = st.executeQuery("select LAST_EVENT_ID from SST_SERVERWIDE_WATERMARK")) {
+			Assert.assertTrue(rs.next());
+			return rs.getLong(1);
+		}
+	}
+
+	private long countEvents(String event) throws Exception {
+		try(PreparedStatement st = connection.prepareStatement("select sum(EVENT_COUNT) from SST_SERVERWIDE_EVENTS where PERIOD_TYPE = 'D' and EVENT_ID = ?")) {
+			st.setString(1, event);
+			try(ResultSet rs = st.executeQuery()) {
+				rs.next();
+				return rs.getLong(1);
+			}
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2006-2018 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.sitestats.test;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.sitestats.api.StatsManager;
+import org.sakaiproject.sitestats.impl.SiteEventColumns;
+
+public class SiteEventColumnsTest {
+	private Date				today;
+	private Date				yesterday;
+	private Date				lastMonth;
+	private SiteEventColumns	columns;
+
+	@Before
+	public void setUp() {
+		Calendar c = Calendar.getInstance();
+		c.set(Calendar.HOUR_OF_DAY, 0);
+		c.set(Calendar.MINUTE, 0);
+		c.set(Calendar.SECOND, 0);
+		c.set(Calendar.MILLISECOND, 0);
+		today = c.getTime();
+		c.add(Calendar.DAY_OF_YEAR, -1);
+		yesterday = c.getTime();
+		c.add(Calendar.MONTH, -1);
+		lastMonth = c.getTime();
+
+		SiteEventColumns.Builder builder = new SiteEventColumns.Builder("site-a");
+		builder.add("user-a", "content.read", today, 3);
+		builder.add("user-a", "content.new", today, 1);
+		builder.add("user-b", "content.read", today, 2);
+		builder.add("user-a", "content.read", yesterday, 4);
+		builder.add("user-b", "pres.begin", yesterday, 1);
+		builder.add("?", "content.read", lastMonth, 5);
+		columns = builder.build();
+	}
+
+	@Test
+	public void testGroupByUserAndEvent() {
+		List<SiteEventColumns.Group> groups = columns.query(null, null, true, null, null, null,
+				Arrays.asList(StatsManager.T_USER, StatsManager.T_EVENT), StatsManager.T_TOTAL, false);
+		Assert.assertEquals(5, groups.size());
+		Assert.assertEquals("user-a", groups.get(0).getUser());
+		Assert.assertEquals("content.read", groups.get(0).getEvent());
+		Assert.assertEquals(7, groups.get(0).getTotal());
+		Assert.assertEquals(today, groups.get(0).getDate());
+		Assert.assertEquals(5, groups.get(1).getTotal());
+		Assert.assertEquals("?", groups.get(1).getUser());
+	}
+
+	@Test
+	public void testFilters() {
+		// final date includes the whole day, anonymous access left out
+		List<SiteEventColumns.Group> groups = columns.query(new HashSet<String>(Arrays.asList("content.read")), null, false,
+				lastMonth, yesterday, null, Arrays.asList(StatsManager.T_USER), null, true);
+		Assert.assertEquals(1, groups.size());
+		Assert.assertEquals("user-a", groups.get(0).getUser());
+		Assert.assertEquals(4, groups.get(0).getTotal());
+
+		groups = columns.query(null, null, true, null, null, Arrays.asList("user-b"),
+				Arrays.asList(StatsManager.T_EVENT), StatsManager.T_EVENT, true);
+		Assert.assertEquals(2, groups.size());
+		Assert.assertEquals("content.read", groups.get(0).getEvent());
+		Assert.assertEquals("pres.begin", groups.get(1).getEvent());
+
+		// empty selections match nothing
+		Assert.assertTrue(columns.query(Collections.<String>emptySet(), null, true, null, null, null,
+				Arrays.asList(StatsManager.T_USER), null, true).isEmpty());
+		Assert.assertTrue(columns.query(null, null, true, null, null, Collections.<String>emptyList(),
+				Arrays.asList(StatsManager.T_USER), null, true).isEmpty());
+	}
+
+	@Test
+	public void testAnonymousEvents() {
+		List<SiteEventColumns.Group> groups = columns.query(null, Collections.singleton("pres.begin"), false, null, null, null,
+				Arrays.asList(StatsManager.T_USER), StatsManager.T_USER, true);
+		Assert.assertEquals(3, groups.size());
+		Assert.assertEquals("-", groups.get(0).getUser());
+		Assert.assertEquals(1, groups.get(0).getTotal());
+		Assert.assertEquals("user-b", groups.get(2).getUser());
+		Assert.assertEquals(2, groups.get(2).getTotal());
+	}
+
+	@Test
+	public void testDatesAndVisits() {
+		List<SiteEventColumns.Group> groups = columns.query(null, null, true, null, null, null,
+				Arrays.asList(StatsManager.T_DATE, StatsManager.T_VISITS, StatsManager.T_UNIQUEVISITS), StatsManager.T_DATE, true);
+		Assert.assertEquals(3, groups.size());
+		Assert.assertEquals(lastMonth, groups.get(0).getDate());
+		Assert.assertEquals(6, groups.get(2).getTotal());
+		Assert.assertEquals(2, groups.get(2).getUnique());
+
+		groups = columns.query(null, null, true, null, null, null,
+				Arrays.asList(StatsManager.T_USER, StatsManager.T_LASTDATE), StatsManager.T_USER, true);
+		Assert.assertEquals(3, groups.size());
+		Assert.assertEquals(today, groups.get(1).getDate());
+		Assert.assertEquals(8, groups.get(1).getTotal());
+	}
+
+	@Test
+	public void testSupportedTotals() {
+		Assert.assertTrue(SiteEventColumns.supports(StatsManager.TOTALSBY_EVENT_DEFAULT));
+		Assert.assertFalse(SiteEventColumns.supports(StatsManager.TOTALSBY_RESOURCE_DEFAULT));
+		Assert.assertFalse(SiteEventColumns.tooLarge("site-a").isQueryable());
+		Assert.assertTrue(columns.isQueryable());
+	}
+}